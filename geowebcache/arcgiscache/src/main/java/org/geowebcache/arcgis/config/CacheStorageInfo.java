@@ -4,8 +4,8 @@ package org.geowebcache.arcgis.config;
  * Represents a {@code CacheStorageInfo} element in an ArcGIS tile cache config file.
  * <p>
  * This element exists from ArcGIS 10.0 onwards, and defines whether the cache is in "exploded" or
- * "compact" format. As the "compact" format is not documented by ESRI, we only support the
- * "exploded" format.
+ * "compact" format. Only the original (ArcGIS 10.0) compact format, made of {@code .bundle} and
+ * {@code .bundlx} file pairs, is supported.
  * </p>
  * <p>
  * XML representation:
@@ -28,6 +28,8 @@ public class CacheStorageInfo {
 
     public static final String EXPLODED_FORMAT_CODE = "esriMapCacheStorageModeExploded";
 
+    public static final String COMPACT_FORMAT_CODE = "esriMapCacheStorageModeCompact";
+
     private String storageFormat;
 
     private int packetSize;
@@ -49,6 +51,10 @@ public class CacheStorageInfo {
         return storageFormat;
     }
 
+    /**
+     * The number of rows and columns of tiles per bundle in the compact format, zero for the
+     * exploded format
+     */
     public int getPacketSize() {
         return packetSize;
     }
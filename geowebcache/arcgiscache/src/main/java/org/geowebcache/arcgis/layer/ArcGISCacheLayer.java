@@ -16,6 +16,7 @@ import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.arcgis.config.CacheInfo;
 import org.geowebcache.arcgis.config.CacheInfoPersister;
+import org.geowebcache.arcgis.config.CacheStorageInfo;
 import org.geowebcache.arcgis.config.LODInfo;
 import org.geowebcache.arcgis.config.TileCacheInfo;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
@@ -64,6 +65,11 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
 
     private transient BoundingBox layerBounds;
 
+    /**
+     * Bundle size of a compact cache, zero for an exploded cache
+     */
+    private transient int packetSize;
+
     @Override
     public boolean isEnabled() {
         return enabled;
@@ -140,6 +146,17 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
         log.info("Configuring layer " + getName() + " out of the ArcGIS tiling scheme "
                 + tilingScheme.getAbsolutePath());
 
+        CacheStorageInfo storageInfo = cacheInfo.getCacheStorageInfo();
+        if (CacheStorageInfo.COMPACT_FORMAT_CODE.equals(storageInfo.getStorageFormat())) {
+            packetSize = storageInfo.getPacketSize();
+            if (packetSize <= 0) {
+                throw new IllegalStateException("Compact cache for layer '" + getName()
+                        + "' has an invalid packet size: " + packetSize);
+            }
+        } else {
+            packetSize = 0;
+        }
+
         super.subSets = createGridSubsets(gridSetBroker);
         super.formats = loadMimeTypes();
         return true;
@@ -193,11 +210,14 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
     public ConveyorTile getTile(final ConveyorTile tile) throws GeoWebCacheException, IOException,
             OutsideCoverageException {
 
-        String path = getTilePath(tile);
-        File tileFile = new File(path);
+        final Resource tileContent;
+        if (packetSize > 0) {
+            tileContent = readBundleTile(tile);
+        } else {
+            tileContent = readFile(new File(getTilePath(tile)));
+        }
 
-        if (tileFile.exists()) {
-            Resource tileContent = readFile(tileFile);
+        if (tileContent != null) {
             tile.setCacheResult(CacheResult.HIT);
             tile.setBlob(tileContent);
         } else {
@@ -233,9 +253,10 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
         return blank != null;
     }
 
-    private String getTilePath(final ConveyorTile tile) {
-
-        final MimeType mimeType = tile.getMimeType();
+    /**
+     * @return the ArcGIS column, row and level of the tile
+     */
+    private long[] getArcGISIndex(final ConveyorTile tile) {
         final long[] tileIndex = tile.getTileIndex();
         final String gridSetId = tile.getGridSetId();
         final GridSubset gridSubset = this.getGridSubset(gridSetId);
@@ -254,8 +275,33 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
         // bottom-right, and GWC computes tiles in bottom-left to top-right order
         final long y = (coverageMaxY - tileIndex[1]);
 
+        return new long[] { x, y, z };
+    }
+
+    private String getLevelDir(final int z) {
         String level = Integer.toHexString(z);
         level = zeroPadder(level, 2);
+        return "L" + level;
+    }
+
+    /**
+     * Reads the tile out of its compact cache bundle
+     *
+     * @return the tile, or {@code null} if the cache doesn't have it
+     */
+    private Resource readBundleTile(final ConveyorTile tile) throws IOException {
+        final long[] index = getArcGISIndex(tile);
+        File levelDir = new File(getLayerPath().toString(), getLevelDir((int) index[2]));
+        return BundleCache.get().getTile(levelDir, packetSize, index[1], index[0]);
+    }
+
+    private String getTilePath(final ConveyorTile tile) {
+
+        final MimeType mimeType = tile.getMimeType();
+        final long[] index = getArcGISIndex(tile);
+        final long x = index[0];
+        final long y = index[1];
+        final String level = getLevelDir((int) index[2]);
 
         String row = Long.toHexString(y);
         row = zeroPadder(row, 8);
@@ -265,7 +311,7 @@ public class ArcGISCacheLayer extends AbstractTileLayer {
 
         StringBuilder path = getLayerPath();
 
-        path.append(File.separatorChar).append('L').append(level).append(File.separatorChar)
+        path.append(File.separatorChar).append(level).append(File.separatorChar)
                 .append('R').append(row).append(File.separatorChar).append('C').append(col);
 
         String fileExtension = mimeType.getFileExtension();
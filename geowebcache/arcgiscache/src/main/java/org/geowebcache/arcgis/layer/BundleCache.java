@@ -0,0 +1,293 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheExtensions;
+import org.geowebcache.io.Resource;
+
+/**
+ * Reads tiles out of ArcGIS compact caches, keeping the most recently used bundles open.
+ * <p>
+ * A compact cache stores the tiles of a level in bundles of {@code packetSize x packetSize} tiles,
+ * named after the row and column of their top left tile like in {@code L05/R0080C0100.bundle}. The
+ * {@code .bundle} file holds the tiles, each one prefixed by its length as a little endian int, and
+ * the {@code .bundlx} file next to it is the index: a 16 bytes header followed by the 5 bytes,
+ * little endian, offset of each tile in the bundle, in column major order.
+ * </p>
+ * <p>
+ * The index is memory mapped and the tiles served straight out of the bundle file channel, see
+ * {@link BundleTileResource}. As each open bundle takes a file descriptor, at most
+ * {@code GWC_ARCGIS_MAX_OPEN_BUNDLES} (defaults to {@value #DEFAULT_MAX_OPEN_BUNDLES}) are kept
+ * open, shared by all the layers.
+ * </p>
+ */
+class BundleCache {
+
+    private static final Log log = LogFactory.getLog(BundleCache.class);
+
+    static final String MAX_OPEN_BUNDLES_PROPERTY = "GWC_ARCGIS_MAX_OPEN_BUNDLES";
+
+    static final int DEFAULT_MAX_OPEN_BUNDLES = 512;
+
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    private static final int INDEX_ENTRY_SIZE = 5;
+
+    private static BundleCache instance;
+
+    private final int maxOpenBundles;
+
+    /**
+     * Open bundles in access order, guards the bundles reference counts too
+     */
+    private final LinkedHashMap<File, Bundle> openBundles = new LinkedHashMap<File, Bundle>(16,
+            0.75f, true);
+
+    BundleCache(final int maxOpenBundles) {
+        this.maxOpenBundles = maxOpenBundles;
+    }
+
+    /**
+     * @return the bundle cache shared by all the layers
+     */
+    static synchronized BundleCache get() {
+        if (instance == null) {
+            int maxOpenBundles = DEFAULT_MAX_OPEN_BUNDLES;
+            String value = GeoWebCacheExtensions.getProperty(MAX_OPEN_BUNDLES_PROPERTY);
+            if (value != null) {
+                try {
+                    maxOpenBundles = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid " + MAX_OPEN_BUNDLES_PROPERTY + ": '" + value
+                            + "', using the default of " + DEFAULT_MAX_OPEN_BUNDLES);
+                }
+            }
+            instance = new BundleCache(maxOpenBundles);
+        }
+        return instance;
+    }
+
+    /**
+     * An open bundle, its index mapped in memory
+     */
+    static class Bundle {
+
+        final File file;
+
+        final int packetSize;
+
+        final long lastModified;
+
+        private final RandomAccessFile raf;
+
+        final FileChannel channel;
+
+        private final ByteBuffer index;
+
+        // the following are guarded by the cache
+
+        private int users;
+
+        private boolean evicted;
+
+        private Bundle(File file, int packetSize, ByteBuffer index) throws IOException {
+            this.file = file;
+            this.packetSize = packetSize;
+            this.index = index;
+            this.lastModified = file.lastModified();
+            this.raf = new RandomAccessFile(file, "r");
+            this.channel = raf.getChannel();
+        }
+
+        /**
+         * @return the position of the tile length in the bundle, or -1 if there's no such tile
+         */
+        long offset(final int rowInBundle, final int colInBundle) {
+            final int entry = INDEX_HEADER_SIZE + INDEX_ENTRY_SIZE
+                    * (colInBundle * packetSize + rowInBundle);
+            // absolute gets, safe for concurrent use
+            long offset = 0;
+            for (int i = INDEX_ENTRY_SIZE - 1; i >= 0; i--) {
+                offset = (offset << 8) | (index.get(entry + i) & 0xFF);
+            }
+            return offset == 0 ? -1 : offset;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.debug("Error closing " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the tile at the given ArcGIS row and column out of the bundle holding it
+     *
+     * @param levelDir
+     *            the directory of the level, as in {@code _alllayers/L05}
+     * @return the tile, or {@code null} if the bundle or the tile doesn't exist
+     */
+    Resource getTile(final File levelDir, final int packetSize, final long row, final long col)
+            throws IOException {
+
+        final long bundleRow = row - row % packetSize;
+        final long bundleCol = col - col % packetSize;
+        final File bundleFile = new File(levelDir, bundleName(bundleRow, bundleCol));
+
+        final Bundle bundle = acquire(bundleFile, packetSize);
+        if (bundle == null) {
+            return null;
+        }
+        try {
+            final long offset = bundle.offset((int) (row - bundleRow), (int) (col - bundleCol));
+            if (offset < 0) {
+                return null;
+            }
+            ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (length.hasRemaining()) {
+                if (bundle.channel.read(length, offset + length.position()) < 0) {
+                    throw new IOException("Unexpected end of bundle "
+                            + bundleFile.getAbsolutePath());
+                }
+            }
+            final int tileLength = length.getInt(0);
+            if (tileLength <= 0) {
+                return null;
+            }
+            return new BundleTileResource(this, bundleFile, packetSize, offset + 4, tileLength,
+                    bundle.lastModified);
+        } finally {
+            release(bundle);
+        }
+    }
+
+    /**
+     * @return the bundle file name for the tile at the given row and column
+     */
+    static String bundleName(final long bundleRow, final long bundleCol) {
+        StringBuilder name = new StringBuilder(20);
+        name.append('R');
+        appendHex(bundleRow, name);
+        name.append('C');
+        appendHex(bundleCol, name);
+        return name.append(".bundle").toString();
+    }
+
+    private static void appendHex(final long value, final StringBuilder sb) {
+        String hex = Long.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
+    }
+
+    /**
+     * Gets the given bundle, opening it if needed. Shall be {@link #release(Bundle) released} once
+     * done with it.
+     *
+     * @return the bundle, or {@code null} if the bundle or its index don't exist
+     */
+    Bundle acquire(final File bundleFile, final int packetSize) throws IOException {
+        synchronized (openBundles) {
+            Bundle bundle = openBundles.get(bundleFile);
+            if (bundle == null) {
+                bundle = open(bundleFile, packetSize);
+                if (bundle == null) {
+                    return null;
+                }
+                openBundles.put(bundleFile, bundle);
+                evict();
+            }
+            bundle.users++;
+            return bundle;
+        }
+    }
+
+    void release(final Bundle bundle) {
+        synchronized (openBundles) {
+            bundle.users--;
+            if (bundle.users == 0 && bundle.evicted) {
+                bundle.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used bundles down to {@link #maxOpenBundles}. Bundles in use are
+     * closed once released.
+     */
+    private void evict() {
+        Iterator<Map.Entry<File, Bundle>> it = openBundles.entrySet().iterator();
+        while (openBundles.size() > maxOpenBundles && it.hasNext()) {
+            Bundle bundle = it.next().getValue();
+            it.remove();
+            bundle.evicted = true;
+            if (bundle.users == 0) {
+                bundle.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all the open bundles
+     */
+    void clear() {
+        synchronized (openBundles) {
+            for (Bundle bundle : openBundles.values()) {
+                bundle.evicted = true;
+                if (bundle.users == 0) {
+                    bundle.close();
+                }
+            }
+            openBundles.clear();
+        }
+    }
+
+    /**
+     * @return the number of open bundles
+     */
+    int size() {
+        synchronized (openBundles) {
+            return openBundles.size();
+        }
+    }
+
+    private static Bundle open(final File bundleFile, final int packetSize) throws IOException {
+        final String name = bundleFile.getName();
+        final File indexFile = new File(bundleFile.getParentFile(), name.substring(0, name
+                .length() - "bundle".length())
+                + "bundlx");
+        if (!bundleFile.exists() || !indexFile.exists()) {
+            return null;
+        }
+        final long indexSize = INDEX_HEADER_SIZE + (long) INDEX_ENTRY_SIZE * packetSize
+                * packetSize;
+        ByteBuffer index;
+        FileInputStream in = new FileInputStream(indexFile);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() < indexSize) {
+                throw new IOException(indexFile.getAbsolutePath() + " is too short for "
+                        + packetSize + "x" + packetSize + " bundles");
+            }
+            // the mapping outlives the channel, no need to hold a file descriptor for it
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+        } finally {
+            in.close();
+        }
+        return new Bundle(bundleFile, packetSize, index);
+    }
+}
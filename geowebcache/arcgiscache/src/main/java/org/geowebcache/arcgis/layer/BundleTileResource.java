@@ -0,0 +1,138 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.geowebcache.io.FileBackedResource;
+import org.geowebcache.io.Resource;
+
+/**
+ * A read only {@link Resource} for a tile inside an ArcGIS compact cache bundle.
+ * <p>
+ * Holds no data nor file handle, {@link #transferTo(WritableByteChannel)} takes the bundle out of
+ * the {@link BundleCache} and transfers the tile byte range straight from its file channel, so no
+ * per request buffer is needed and the OS can send the data without copying it when the target
+ * allows it. Bundles are never modified, so the container may as well send the tile by itself, see
+ * {@link FileBackedResource}.
+ * </p>
+ */
+class BundleTileResource implements FileBackedResource {
+
+    private final BundleCache cache;
+
+    private final File bundleFile;
+
+    private final int packetSize;
+
+    private final long offset;
+
+    private final int length;
+
+    private final long lastModified;
+
+    BundleTileResource(BundleCache cache, File bundleFile, int packetSize, long offset,
+            int length, long lastModified) {
+        this.cache = cache;
+        this.bundleFile = bundleFile;
+        this.packetSize = packetSize;
+        this.offset = offset;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @see org.geowebcache.io.FileBackedResource#getFile()
+     */
+    public File getFile() {
+        return bundleFile;
+    }
+
+    /**
+     * @see org.geowebcache.io.FileBackedResource#getOffset()
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#getSize()
+     */
+    public long getSize() {
+        return length;
+    }
+
+    /**
+     * @see org.geowebcache.io.Resource#getLastModified()
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long transferTo(WritableByteChannel target) throws IOException {
+        BundleCache.Bundle bundle = acquire();
+        try {
+            long written = 0;
+            while (written < length) {
+                long count = bundle.channel.transferTo(offset + written, length - written, target);
+                if (count <= 0) {
+                    if (bundle.channel.size() < offset + length) {
+                        throw new IOException("Bundle " + bundleFile.getAbsolutePath()
+                                + " was truncated");
+                    }
+                    throw new IOException("Unable to transfer the tile at " + offset
+                            + " out of bundle " + bundleFile.getAbsolutePath() + ", " + written
+                            + " of " + length + " bytes were transferred");
+                }
+                written += count;
+            }
+            return written;
+        } finally {
+            cache.release(bundle);
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        BundleCache.Bundle bundle = acquire();
+        try {
+            while (buffer.hasRemaining()) {
+                if (bundle.channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Bundle " + bundleFile.getAbsolutePath()
+                            + " was truncated");
+                }
+            }
+        } finally {
+            cache.release(bundle);
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    private BundleCache.Bundle acquire() throws IOException {
+        BundleCache.Bundle bundle = cache.acquire(bundleFile, packetSize);
+        if (bundle == null) {
+            throw new IOException("Bundle " + bundleFile.getAbsolutePath() + " no longer exists");
+        }
+        return bundle;
+    }
+
+    /**
+     * Unsupported, compact caches are read only
+     */
+    public long transferFrom(ReadableByteChannel channel) throws IOException {
+        throw new UnsupportedOperationException("ArcGIS compact caches are read only");
+    }
+
+    /**
+     * Unsupported, compact caches are read only
+     */
+    public OutputStream getOutputStream() throws IOException {
+        throw new UnsupportedOperationException("ArcGIS compact caches are read only");
+    }
+}
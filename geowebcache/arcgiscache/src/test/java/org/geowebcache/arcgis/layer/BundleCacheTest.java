@@ -0,0 +1,127 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.Resource;
+
+public class BundleCacheTest extends TestCase {
+
+    private static final int PACKET_SIZE = 128;
+
+    private File levelDir;
+
+    private BundleCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        levelDir = File.createTempFile("gwcCompactCache", "");
+        levelDir.delete();
+        levelDir = new File(levelDir, "L05");
+        assertTrue(levelDir.mkdirs());
+        cache = new BundleCache(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.clear();
+        FileUtils.deleteDirectory(levelDir.getParentFile());
+    }
+
+    /**
+     * Writes a bundle and its index holding the given tiles, keyed by their row and column within
+     * the bundle
+     */
+    private void writeBundle(long bundleRow, long bundleCol, Map<long[], byte[]> tiles)
+            throws IOException {
+        String name = BundleCache.bundleName(bundleRow, bundleCol);
+        File bundle = new File(levelDir, name);
+        File index = new File(levelDir, name.substring(0, name.length() - 1) + "x");
+
+        byte[] offsets = new byte[16 + 5 * PACKET_SIZE * PACKET_SIZE + 16];
+        RandomAccessFile out = new RandomAccessFile(bundle, "rw");
+        try {
+            // ArcGIS bundles start with a 60 bytes header we don't care about
+            out.write(new byte[60]);
+            for (Map.Entry<long[], byte[]> tile : tiles.entrySet()) {
+                long offset = out.getFilePointer();
+                int entry = 16 + 5 * (int) (tile.getKey()[1] * PACKET_SIZE + tile.getKey()[0]);
+                for (int i = 0; i < 5; i++) {
+                    offsets[entry + i] = (byte) (offset >>> (8 * i));
+                }
+                int length = tile.getValue().length;
+                out.write(new byte[] { (byte) length, (byte) (length >>> 8),
+                        (byte) (length >>> 16), (byte) (length >>> 24) });
+                out.write(tile.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        FileUtils.writeByteArrayToFile(index, offsets);
+    }
+
+    private byte[] transfer(Resource resource) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(resource.getSize(), resource.transferTo(Channels.newChannel(out)));
+        return out.toByteArray();
+    }
+
+    public void testBundleName() {
+        assertEquals("R0000C0000.bundle", BundleCache.bundleName(0, 0));
+        assertEquals("R0080C0100.bundle", BundleCache.bundleName(128, 256));
+        assertEquals("R10000C0080.bundle", BundleCache.bundleName(65536, 128));
+    }
+
+    public void testGetTile() throws Exception {
+        Map<long[], byte[]> tiles = new HashMap<long[], byte[]>();
+        tiles.put(new long[] { 3, 5 }, "tile at row 3 col 5".getBytes());
+        tiles.put(new long[] { 127, 0 }, "tile at row 127 col 0".getBytes());
+        tiles.put(new long[] { 1, 1 }, new byte[0]);
+        writeBundle(0, 0, tiles);
+
+        Resource tile = cache.getTile(levelDir, PACKET_SIZE, 3, 5);
+        assertNotNull(tile);
+        assertEquals("tile at row 3 col 5", new String(transfer(tile)));
+        tile = cache.getTile(levelDir, PACKET_SIZE, 127, 0);
+        InputStream in = tile.getInputStream();
+        try {
+            assertEquals("tile at row 127 col 0", new String(IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+
+        // not in the index, empty, and in a missing bundle
+        assertNull(cache.getTile(levelDir, PACKET_SIZE, 5, 3));
+        assertNull(cache.getTile(levelDir, PACKET_SIZE, 1, 1));
+        assertNull(cache.getTile(levelDir, PACKET_SIZE, 128, 0));
+    }
+
+    public void testEviction() throws Exception {
+        Map<long[], byte[]> tiles = new HashMap<long[], byte[]>();
+        tiles.put(new long[] { 0, 0 }, "first".getBytes());
+        writeBundle(0, 0, tiles);
+        tiles.clear();
+        tiles.put(new long[] { 2, 1 }, "second".getBytes());
+        writeBundle(128, 0, tiles);
+
+        Resource first = cache.getTile(levelDir, PACKET_SIZE, 0, 0);
+        Resource second = cache.getTile(levelDir, PACKET_SIZE, 130, 1);
+        assertEquals(1, cache.size());
+
+        // the resources reopen their bundle as needed
+        assertEquals("first", new String(transfer(first)));
+        assertEquals("second", new String(transfer(second)));
+        assertEquals("first", new String(transfer(first)));
+        assertEquals(1, cache.size());
+    }
+}
@@ -20,7 +20,6 @@ package org.geowebcache;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
@@ -60,6 +59,7 @@ import org.geowebcache.service.Service;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.UniformTileResource;
 import org.geowebcache.util.ServletUtils;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.AbstractController;
@@ -528,7 +528,9 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
         if (httpCode == HttpServletResponse.SC_OK && tile.getLayer().useETags()) {
             String ifNoneMatch = servletReq.getHeader("If-None-Match");
-            String hexTag = Long.toHexString(tileTimeStamp);
+            // all the uniform tiles of a color share the same contents, and tag
+            String hexTag = blob instanceof UniformTileResource ? ((UniformTileResource) blob)
+                    .getETag() : Long.toHexString(tileTimeStamp);
 
             if (ifNoneMatch != null) {
                 if (ifNoneMatch.equals(hexTag)) {
@@ -541,7 +543,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
             servletResp.setHeader("ETag", hexTag);
         }
 
-        writeFixedResponse(servletResp, httpCode, mimeType, blob, cacheResult, contentLength);
+        writeFixedResponse(servletReq, servletResp, httpCode, mimeType, blob, cacheResult,
+                contentLength);
     }
 
     /**
@@ -573,11 +576,13 @@ public class GeoWebCacheDispatcher extends AbstractController {
             Resource resource, CacheResult cacheRes) {
 
         int contentLength = (int) (resource == null ? -1 : resource.getSize());
-        writeFixedResponse(response, httpCode, contentType, resource, cacheRes, contentLength);
+        writeFixedResponse(null, response, httpCode, contentType, resource, cacheRes,
+                contentLength);
     }
 
-    private void writeFixedResponse(HttpServletResponse response, int httpCode, String contentType,
-            Resource resource, CacheResult cacheRes, int contentLength) {
+    private void writeFixedResponse(HttpServletRequest request, HttpServletResponse response,
+            int httpCode, String contentType, Resource resource, CacheResult cacheRes,
+            int contentLength) {
 
         response.setStatus(httpCode);
         response.setContentType(contentType);
@@ -585,8 +590,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
         response.setContentLength((int) contentLength);
         if (resource != null) {
             try {
-                OutputStream os = response.getOutputStream();
-                resource.transferTo(Channels.newChannel(os));
+                ServletUtils.writeResource(resource, request, response);
 
                 runtimeStats.log(contentLength, cacheRes);
 
@@ -8,6 +8,9 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
 import org.springframework.util.Assert;
 
 public class ByteArrayResource implements Resource {
@@ -145,6 +148,14 @@ public class ByteArrayResource implements Resource {
         return new SeekableOutputStream(this);
     }
 
+    /**
+     * Returns an image output stream appending to this resource contents, that image writers can
+     * seek back into without the output being cached in yet another buffer.
+     */
+    public ImageOutputStream getImageOutputStream() {
+        return new SeekableImageOutputStream(this);
+    }
+
     public void expand() {
         if (data == null) {
             data = new byte[4096];
@@ -179,6 +190,102 @@ public class ByteArrayResource implements Resource {
         }
     }
 
+    public static final class SeekableImageOutputStream extends ImageOutputStreamImpl {
+
+        private final ByteArrayResource res;
+
+        /**
+         * index in the resource data of the stream position 0
+         */
+        private final int base;
+
+        public SeekableImageOutputStream(ByteArrayResource res) {
+            this.res = res;
+            if (res.data == null) {
+                res.expand();
+            }
+            this.base = res.offset + res.length;
+        }
+
+        private void ensureCapacity(long end) {
+            final long required = base + end;
+            if (required > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Resource can't grow past 2GB");
+            }
+            if (res.data.length < required) {
+                byte[] newdata = new byte[Math.max((int) required, (int) (res.data.length * 1.5))];
+                System.arraycopy(res.data, 0, newdata, 0, res.data.length);
+                res.data = newdata;
+            }
+        }
+
+        private void written() {
+            final int end = base - res.offset + (int) streamPos;
+            if (end > res.length) {
+                res.length = end;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkClosed();
+            flushBits();
+            ensureCapacity(streamPos + 1);
+            res.data[base + (int) streamPos] = (byte) b;
+            streamPos++;
+            written();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            flushBits();
+            ensureCapacity(streamPos + len);
+            System.arraycopy(b, off, res.data, base + (int) streamPos, len);
+            streamPos += len;
+            written();
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= length()) {
+                return -1;
+            }
+            return res.data[base + (int) streamPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            final long available = length() - streamPos;
+            if (available <= 0) {
+                return -1;
+            }
+            final int read = (int) Math.min(len, available);
+            System.arraycopy(res.data, base + (int) streamPos, b, off, read);
+            streamPos += read;
+            return read;
+        }
+
+        @Override
+        public long length() {
+            return res.offset + res.length - base;
+        }
+
+        @Override
+        public boolean isCached() {
+            return true;
+        }
+
+        @Override
+        public boolean isCachedMemory() {
+            return true;
+        }
+    }
+
     public static final class SeekableOutputStream extends OutputStream {
 
         private ByteArrayResource res;
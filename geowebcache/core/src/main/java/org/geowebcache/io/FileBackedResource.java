@@ -0,0 +1,25 @@
+package org.geowebcache.io;
+
+import java.io.File;
+
+/**
+ * A {@link Resource} whose contents are {@link #getSize() size} bytes of a file starting at
+ * {@link #getOffset() offset}, so that they can be sent straight out of the file, for example by
+ * the servlet container with {@code sendfile}.
+ * <p>
+ * Only resources whose file region doesn't change once the resource is created should implement
+ * this interface.
+ * </p>
+ */
+public interface FileBackedResource extends Resource {
+
+    /**
+     * @return the file holding the resource contents
+     */
+    public File getFile();
+
+    /**
+     * @return the position of the resource contents in the {@link #getFile() file}
+     */
+    public long getOffset();
+}
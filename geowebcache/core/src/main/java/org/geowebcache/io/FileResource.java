@@ -11,7 +11,7 @@ import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
-public class FileResource implements Resource {
+public class FileResource implements FileBackedResource {
 
     private final File file;
 
@@ -19,6 +19,20 @@ public class FileResource implements Resource {
         this.file = file;
     }
 
+    /**
+     * @see org.geowebcache.io.FileBackedResource#getFile()
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @see org.geowebcache.io.FileBackedResource#getOffset()
+     */
+    public long getOffset() {
+        return 0;
+    }
+
     /**
      * @see org.geowebcache.io.Resource#getLastModified()
      */
@@ -42,7 +56,7 @@ public class FileResource implements Resource {
         try {
             final long size = in.size();
             long written = 0;
-            while ((written += in.transferTo(written, size, target)) < size) {
+            while ((written += in.transferTo(written, size - written, target)) < size) {
                 ;
             }
             return size;
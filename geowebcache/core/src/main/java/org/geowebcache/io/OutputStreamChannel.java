@@ -0,0 +1,74 @@
+package org.geowebcache.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link WritableByteChannel} writing to an {@link OutputStream}, like
+ * {@link java.nio.channels.Channels#newChannel(OutputStream)} but without allocating a new array on
+ * each write.
+ * <p>
+ * Array backed buffers are written straight from their array. Direct buffers, like the ones
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)} uses when the
+ * target isn't a file channel, are copied through an array kept per thread.
+ * </p>
+ * <p>
+ * Closing the channel doesn't close the stream, so it can be used on a servlet response stream
+ * the container is in charge of.
+ * </p>
+ */
+public class OutputStreamChannel implements WritableByteChannel {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final OutputStream out;
+
+    private boolean open = true;
+
+    public OutputStreamChannel(OutputStream out) {
+        this.out = out;
+    }
+
+    public int write(final ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        final int length = src.remaining();
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+        final byte[] buffer = BUFFER.get();
+        while (src.hasRemaining()) {
+            int count = Math.min(src.remaining(), buffer.length);
+            src.get(buffer, 0, count);
+            out.write(buffer, 0, count);
+        }
+        return length;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Flushes the stream, but leaves it open
+     */
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            out.flush();
+        }
+    }
+}
@@ -91,6 +91,12 @@ public abstract class AbstractTileLayer extends TileLayer {
 
     protected List<ParameterFilter> parameterFilters;
 
+    protected Integer transientCacheMaxTiles;
+
+    protected Integer transientCacheMaxStorageKB;
+
+    protected Boolean parallelEncoding;
+
     protected transient boolean saveExpirationHeaders;
 
     protected transient List<MimeType> formats;
@@ -356,6 +362,37 @@ public abstract class AbstractTileLayer extends TileLayer {
         return queryable == null ? false : queryable.booleanValue();
     }
 
+    /**
+     * @see TileLayer#getTransientCacheMaxTiles()
+     */
+    @Override
+    public int getTransientCacheMaxTiles() {
+        return transientCacheMaxTiles == null ? super.getTransientCacheMaxTiles()
+                : transientCacheMaxTiles.intValue();
+    }
+
+    /**
+     * @see TileLayer#getTransientCacheMaxStorageKB()
+     */
+    @Override
+    public int getTransientCacheMaxStorageKB() {
+        return transientCacheMaxStorageKB == null ? super.getTransientCacheMaxStorageKB()
+                : transientCacheMaxStorageKB.intValue();
+    }
+
+    /**
+     * @see TileLayer#isParallelEncoding()
+     */
+    @Override
+    public boolean isParallelEncoding() {
+        return parallelEncoding == null ? super.isParallelEncoding() : parallelEncoding
+                .booleanValue();
+    }
+
+    public void setParallelEncoding(boolean parallelEncoding) {
+        this.parallelEncoding = Boolean.valueOf(parallelEncoding);
+    }
+
     /**
      * The timeout used when querying the backend server. The same value is used for both the
      * connection and the data timeout, so in theory the timeout could be twice this value.
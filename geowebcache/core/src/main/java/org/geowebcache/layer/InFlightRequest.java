@@ -0,0 +1,142 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
+/**
+ * A backend request for a meta tile (or a single tile) that is being processed by one thread, and
+ * that other threads asking for tiles of the same meta tile can wait for instead of issuing the
+ * same request.
+ * <p>
+ * Waiting threads first {@link #request(long[]) register} the tile they're interested in, so that
+ * the producing thread {@link #publish(long[], Resource) hands it over} as soon as it's encoded,
+ * then {@link #await(long) wait} for the request to be {@link #complete(boolean) completed}. A tile
+ * registered too late to be handed over is to be looked up in the cache as usual.
+ * </p>
+ */
+public class InFlightRequest {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final ConcurrentMap<GridLoc, AtomicReference<Resource>> requested =
+            new ConcurrentHashMap<GridLoc, AtomicReference<Resource>>();
+
+    private volatile boolean succeeded;
+
+    /**
+     * Asks for the tile at the given grid location to be handed over once produced
+     */
+    public void request(final long[] gridLoc) {
+        requested.putIfAbsent(new GridLoc(gridLoc), new AtomicReference<Resource>());
+    }
+
+    /**
+     * @return whether any waiting thread asked for the tile at the given grid location
+     */
+    public boolean isRequested(final long[] gridLoc) {
+        return requested.size() > 0 && requested.containsKey(new GridLoc(gridLoc));
+    }
+
+    /**
+     * @return the number of tiles waiting threads asked for
+     */
+    public int getRequestedCount() {
+        return requested.size();
+    }
+
+    /**
+     * Hands over a copy of the encoded tile to the threads waiting for it, if any.
+     * <p>
+     * The tile is copied since it is usually held in a reusable buffer.
+     * </p>
+     */
+    public void publish(final long[] gridLoc, final Resource tile) throws IOException {
+        if (requested.size() == 0) {
+            return;
+        }
+        AtomicReference<Resource> ref = requested.get(new GridLoc(gridLoc));
+        if (ref != null) {
+            final int size = (int) tile.getSize();
+            ByteArrayResource copy = new ByteArrayResource(Math.max(1, size));
+            tile.transferTo(Channels.newChannel(copy.getOutputStream()));
+            ref.set(copy);
+        }
+    }
+
+    /**
+     * Marks the request as finished and wakes up the waiting threads
+     *
+     * @param success
+     *            whether the tiles were produced, if not the waiting threads should retry
+     */
+    public void complete(final boolean success) {
+        this.succeeded = success;
+        done.countDown();
+    }
+
+    /**
+     * Waits for the request to be completed
+     *
+     * @return {@code true} if the request completed successfully within the timeout, {@code false}
+     *         if it failed or timed out
+     */
+    public boolean await(final long timeoutMillis) throws InterruptedException {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS) && succeeded;
+    }
+
+    /**
+     * @return the tile handed over for the given location, or {@code null} if it wasn't requested
+     *         in time or couldn't be produced
+     */
+    public Resource getTile(final long[] gridLoc) {
+        AtomicReference<Resource> ref = requested.get(new GridLoc(gridLoc));
+        return ref == null ? null : ref.get();
+    }
+
+    private static final class GridLoc {
+        private final long x, y, z;
+
+        GridLoc(long[] gridLoc) {
+            this.x = gridLoc[0];
+            this.y = gridLoc[1];
+            this.z = gridLoc[2];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GridLoc)) {
+                return false;
+            }
+            GridLoc g = (GridLoc) o;
+            return x == g.x && y == g.y && z == g.z;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = x * 31 * 31 + y * 31 + z;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -19,13 +19,19 @@ package org.geowebcache.layer;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import javax.imageio.IIOImage;
@@ -34,6 +40,7 @@ import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.media.jai.JAI;
 import javax.media.jai.PlanarImage;
@@ -49,6 +56,7 @@ import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
 import org.springframework.util.Assert;
 
@@ -71,10 +79,25 @@ public class MetaTile implements TileResponseReceiver {
         }
         NATIVE_JAI_AVAILABLE = nativeJAIAvailable;
         if (!NATIVE_JAI_AVAILABLE) {
-            log.warn("********* Native JAI is not installed, meta tile cropping may be slow ********");
+            log.warn("********* Native JAI is not installed, cropping meta tiles that are not "
+                    + "buffered images may be slow ********");
         }
     }
 
+    private static final int MAX_CACHED_WRITERS = 16;
+
+    /**
+     * Writers are looked up through the service registry and hold native resources, so each
+     * thread keeps the ones it used, instead of looking up a new one for each tile
+     */
+    private static final ThreadLocal<Map<WriterKey, CachedWriter>> WRITERS =
+            new ThreadLocal<Map<WriterKey, CachedWriter>>() {
+                @Override
+                protected Map<WriterKey, CachedWriter> initialValue() {
+                    return new HashMap<WriterKey, CachedWriter>();
+                }
+            };
+
     // buffer for storing the metatile, if it is an image
     protected RenderedImage metaTileImage = null;
 
@@ -118,6 +141,8 @@ public class MetaTile implements TileResponseReceiver {
 
     private List<RenderedImage> disposableImages;
 
+    private boolean preparedForEncoding;
+
     /**
      * The the request format is the format used for the request to the backend.
      * 
@@ -268,8 +293,30 @@ public class MetaTile implements TileResponseReceiver {
         }
     }
 
-    public void setImage(RenderedImage metaTiledImage) {
+    /**
+     * Decodes the meta tile image while it's read from the given stream, instead of having the
+     * whole encoded image read into a buffer first. The stream is not closed.
+     */
+    public void setImageStream(InputStream stream) throws GeoWebCacheException, IOException {
+        Assert.notNull(stream, "WMSMetaTile.setImageStream() received null");
+
+        // an explicit memory cache, ImageIO would use a temporary file when caching is enabled
+        ImageInputStream imgStream = new MemoryCacheImageInputStream(stream);
+        RenderedImage metaTiledImage = ImageIO.read(imgStream);// read closes imgStream for us
+        if (metaTiledImage == null) {
+            throw new GeoWebCacheException(
+                    "ImageIO.read(InputStream) returned null. Unable to read image.");
+        }
+        setImage(metaTiledImage);
+    }
+
+    public synchronized void setImage(RenderedImage metaTiledImage) {
         this.metaTileImage = metaTiledImage;
+        this.preparedForEncoding = false;
+    }
+
+    public RenderedImage getImage() {
+        return metaTileImage;
     }
 
     /**
@@ -300,6 +347,10 @@ public class MetaTile implements TileResponseReceiver {
 
     /**
      * Extracts a single tile from the metatile.
+     * <p>
+     * If the meta tile is a {@link BufferedImage} the tile shares its raster, and it's only valid
+     * until the meta tile is {@link #dispose() disposed}. Other images are cropped with JAI.
+     * </p>
      * 
      * @param minX
      *            left pixel index to crop the meta tile at
@@ -314,6 +365,12 @@ public class MetaTile implements TileResponseReceiver {
     public RenderedImage createTile(final int minX, final int minY, final int tileWidth,
             final int tileHeight) {
 
+        if (metaTileImage instanceof BufferedImage) {
+            // the usual case, ImageIO decodes into buffered images. The tile is a view sharing the
+            // meta tile raster, no pixels are copied and there's no image chain to dispose
+            return ((BufferedImage) metaTileImage).getSubimage(minX, minY, tileWidth, tileHeight);
+        }
+
         // do a crop, and then turn it into a buffered image so that we can release
         // the image chain
         RenderedOp cropped = CropDescriptor.create(metaTileImage, Float.valueOf(minX),
@@ -348,40 +405,169 @@ public class MetaTile implements TileResponseReceiver {
         if (tiles == null) {
             return false;
         }
-        String format = responseFormat.getInternalName();
-
         if (log.isDebugEnabled()) {
             log.debug("Thread: " + Thread.currentThread().getName() + " writing: " + tileIdx);
         }
 
-        // TODO should we recycle the writers ?
-        // GR: it'd be only a 2% perf gain according to profiler
-        ImageWriter writer = javax.imageio.ImageIO.getImageWritersByFormatName(format).next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-
-        if (this.formatModifier != null) {
-            param = formatModifier.adjustImageWriteParam(param);
-        }
+        prepareForEncoding();
+        final CachedWriter cached = getWriter(responseFormat, formatModifier);
+        final ImageWriter writer = cached.writer;
 
         Rectangle tileRegion = tiles[tileIdx];
         RenderedImage tile = createTile(tileRegion.x, tileRegion.y, tileRegion.width,
                 tileRegion.height);
         disposeLater(tile);
-        OutputStream outputStream = target.getOutputStream();
-        ImageOutputStream imgOut = new MemoryCacheImageOutputStream(outputStream);
+        ImageOutputStream imgOut;
+        if (target instanceof ByteArrayResource) {
+            // write straight into the target, no need for an intermediate cache
+            imgOut = ((ByteArrayResource) target).getImageOutputStream();
+        } else {
+            imgOut = new MemoryCacheImageOutputStream(target.getOutputStream());
+        }
         writer.setOutput(imgOut);
         IIOImage image = new IIOImage(tile, null, null);
+        boolean written = false;
         try {
-            writer.write(null, image, param);
+            writer.write(null, image, cached.param);
+            written = true;
         } finally {
             imgOut.close();
-            writer.dispose();
+            if (written) {
+                writer.reset();
+            } else {
+                // don't reuse a writer left in an unknown state
+                WRITERS.get().remove(cached.key);
+                writer.dispose();
+            }
         }
 
         return true;
     }
 
-    protected void disposeLater(RenderedImage tile) {
+    /**
+     * Checks whether the tile at the given index is made of a single color, as are the tiles of
+     * empty or fully covered areas of a map.
+     * <p>
+     * The tile pixels are compared row by row against the first one, so tiles that aren't uniform
+     * are usually told apart after a handful of pixels. Tiles whose pixels are all fully
+     * transparent are reported as uniform no matter their color components.
+     * </p>
+     *
+     * @param tileIdx
+     *            the index of the tile relative to the internal array
+     * @return the tile color as a non negative ARGB value, {@code 0} for fully transparent tiles,
+     *         or {@code -1} if the tile has more than one color
+     */
+    public long getUniformColor(final int tileIdx) {
+        if (tiles == null) {
+            return -1;
+        }
+        // look at the same pixels that are going to be encoded
+        prepareForEncoding();
+        final RenderedImage image = metaTileImage;
+        final ColorModel colorModel = image == null ? null : image.getColorModel();
+        if (colorModel == null) {
+            return -1;
+        }
+        final Rectangle region = tiles[tileIdx];
+        final Raster raster;
+        if (image instanceof BufferedImage) {
+            raster = ((BufferedImage) image).getRaster();
+        } else {
+            raster = image.getData(region);
+        }
+
+        final int numBands = raster.getNumBands();
+        final int width = region.width;
+        final int maxY = region.y + region.height;
+        final int[] row = new int[width * numBands];
+        final int[] first = raster.getPixel(region.x, region.y, (int[]) null);
+
+        if (colorModel.hasAlpha() && !(colorModel instanceof IndexColorModel)) {
+            final int alphaBand = numBands - 1;
+            if (first[alphaBand] == 0) {
+                // only the alpha band matters
+                for (int y = region.y; y < maxY; y++) {
+                    raster.getSamples(region.x, y, width, 1, alphaBand, row);
+                    for (int i = 0; i < width; i++) {
+                        if (row[i] != 0) {
+                            return -1;
+                        }
+                    }
+                }
+                return 0;
+            }
+        }
+
+        for (int y = region.y; y < maxY; y++) {
+            raster.getPixels(region.x, y, width, 1, row);
+            for (int i = 0; i < row.length; i += numBands) {
+                for (int b = 0; b < numBands; b++) {
+                    if (row[i + b] != first[b]) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        final int argb = colorModel.getRGB(raster.getDataElements(region.x, region.y, null));
+        if ((argb >>> 24) == 0) {
+            return 0;
+        }
+        return argb & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Called before encoding each tile, does whatever needs to be done once per meta tile.
+     * <p>
+     * For paletted PNG output of a true color meta tile, that is when the backend was asked for a
+     * different format, the meta tile is quantized so that its tiles share a single palette
+     * computed only once.
+     * </p>
+     */
+    protected synchronized void prepareForEncoding() {
+        if (preparedForEncoding) {
+            return;
+        }
+        preparedForEncoding = true;
+        if (responseFormat == ImageMime.png8 && metaTileImage instanceof BufferedImage
+                && !PaletteQuantizer.isPaletted((BufferedImage) metaTileImage)) {
+            BufferedImage trueColor = (BufferedImage) metaTileImage;
+            metaTileImage = PaletteQuantizer.quantize(trueColor);
+            trueColor.flush();
+        }
+    }
+
+    /**
+     * Returns this thread's writer for the given format, looking up the writer and its parameters
+     * only the first time
+     */
+    private static CachedWriter getWriter(final MimeType format,
+            final FormatModifier formatModifier) {
+        final Map<WriterKey, CachedWriter> writers = WRITERS.get();
+        final WriterKey key = new WriterKey(format.getInternalName(), formatModifier);
+        CachedWriter cached = writers.get(key);
+        if (cached == null) {
+            if (writers.size() >= MAX_CACHED_WRITERS) {
+                // probably the layer configuration changed, start over
+                for (CachedWriter stale : writers.values()) {
+                    stale.writer.dispose();
+                }
+                writers.clear();
+            }
+            ImageWriter writer = ImageIO.getImageWritersByFormatName(format.getInternalName())
+                    .next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (formatModifier != null) {
+                param = formatModifier.adjustImageWriteParam(param);
+            }
+            cached = new CachedWriter(key, writer, param);
+            writers.put(key, cached);
+        }
+        return cached;
+    }
+
+    protected synchronized void disposeLater(RenderedImage tile) {
         if (disposableImages == null) {
             disposableImages = new ArrayList<RenderedImage>(tiles.length);
         }
@@ -557,4 +743,44 @@ public class MetaTile implements TileResponseReceiver {
             }
         }
     }
+
+    private static final class WriterKey {
+        private final String format;
+
+        private final FormatModifier formatModifier;
+
+        WriterKey(String format, FormatModifier formatModifier) {
+            this.format = format;
+            this.formatModifier = formatModifier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WriterKey)) {
+                return false;
+            }
+            WriterKey k = (WriterKey) o;
+            // format modifiers are compared by identity, they cache their write parameters
+            return format.equals(k.format) && formatModifier == k.formatModifier;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * format.hashCode() + System.identityHashCode(formatModifier);
+        }
+    }
+
+    private static final class CachedWriter {
+        private final WriterKey key;
+
+        private final ImageWriter writer;
+
+        private final ImageWriteParam param;
+
+        CachedWriter(WriterKey key, ImageWriter writer, ImageWriteParam param) {
+            this.key = key;
+            this.writer = writer;
+            this.param = param;
+        }
+    }
 }
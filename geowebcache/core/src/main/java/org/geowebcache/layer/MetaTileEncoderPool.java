@@ -0,0 +1,59 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads the tiles of a meta tile are encoded and saved on, for the layers that
+ * {@link TileLayer#isParallelEncoding() encode in parallel}.
+ * <p>
+ * There's one thread per processor, since encoding is CPU bound, and a short queue. When the queue
+ * is full the tile is encoded by the thread submitting it, which slows down whoever is producing
+ * meta tiles (e.g. seeding threads) rather than piling up decoded meta tiles in memory.
+ * </p>
+ */
+class MetaTileEncoderPool {
+
+    private static final Executor EXECUTOR;
+    static {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(2 * threads),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GWC tile encoder " + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        EXECUTOR = executor;
+    }
+
+    private MetaTileEncoderPool() {
+        // static access only
+    }
+
+    static Executor getExecutor() {
+        return EXECUTOR;
+    }
+}
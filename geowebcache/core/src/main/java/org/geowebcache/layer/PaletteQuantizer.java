@@ -0,0 +1,443 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reduces a true color image to an 8 bit paletted one, so that a whole meta tile is quantized once
+ * and all its tiles are encoded with the same palette.
+ * <p>
+ * If the image has no more than 256 distinct colors they're used as they are. Otherwise the palette
+ * is built by median cut over a histogram of the colors reduced to 5 bits per color component and 3
+ * bits of alpha, and each histogram cell maps to the palette entry of the box it ended up in, so
+ * that finding the palette index of a pixel is a single array lookup. Fully transparent pixels all
+ * map to a single transparent entry.
+ * </p>
+ */
+class PaletteQuantizer {
+
+    private static final int MAX_COLORS = 256;
+
+    private static final int CELLS = 1 << 18;
+
+    /**
+     * Shifts of the alpha, red, green and blue components in a histogram cell index
+     */
+    private static final int[] SHIFTS = { 15, 10, 5, 0 };
+
+    private static final int[] MASKS = { 0x07, 0x1F, 0x1F, 0x1F };
+
+    private PaletteQuantizer() {
+        // static access only
+    }
+
+    /**
+     * @return whether the image is already paletted, and there's nothing to gain quantizing it
+     */
+    static boolean isPaletted(final BufferedImage image) {
+        return image.getColorModel() instanceof IndexColorModel;
+    }
+
+    /**
+     * Returns a paletted copy of the given image
+     */
+    static BufferedImage quantize(final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] argb = readPixels(image);
+
+        // count the cells, and the exact colors as long as there are few enough
+        final int[] histogram = new int[CELLS];
+        ExactColors exact = new ExactColors();
+        boolean transparent = false;
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            if ((pixel >>> 24) == 0) {
+                argb[i] = 0;
+                transparent = true;
+            } else {
+                histogram[cell(pixel)]++;
+            }
+            if (exact != null && !exact.add(argb[i])) {
+                exact = null;
+            }
+        }
+
+        final int[] palette;
+        final byte[] cellIndexes;
+        if (exact != null) {
+            palette = exact.colors();
+            cellIndexes = null;
+        } else {
+            cellIndexes = new byte[CELLS];
+            palette = medianCut(histogram, transparent ? MAX_COLORS - 1 : MAX_COLORS,
+                    transparent ? 1 : 0, cellIndexes);
+            if (transparent) {
+                palette[0] = 0;
+            }
+        }
+
+        byte[] r = new byte[palette.length];
+        byte[] g = new byte[palette.length];
+        byte[] b = new byte[palette.length];
+        byte[] a = new byte[palette.length];
+        boolean opaque = true;
+        for (int i = 0; i < palette.length; i++) {
+            a[i] = (byte) (palette[i] >>> 24);
+            r[i] = (byte) (palette[i] >>> 16);
+            g[i] = (byte) (palette[i] >>> 8);
+            b[i] = (byte) palette[i];
+            opaque &= a[i] == (byte) 0xFF;
+        }
+        // an opaque palette saves the encoder from writing a transparency chunk
+        IndexColorModel icm = opaque ? new IndexColorModel(8, palette.length, r, g, b)
+                : new IndexColorModel(8, palette.length, r, g, b, a);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+                icm);
+        // a freshly created image, the data starts at offset 0 and is not padded
+        byte[] indexes = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            if (exact != null) {
+                indexes[i] = (byte) exact.indexOf(pixel);
+            } else if (pixel == 0) {
+                indexes[i] = 0;
+            } else {
+                indexes[i] = cellIndexes[cell(pixel)];
+            }
+        }
+        return result;
+    }
+
+    private static int cell(final int argb) {
+        return ((argb >>> 29) << 15) | ((argb >>> 9) & 0x7C00) | ((argb >>> 6) & 0x03E0)
+                | ((argb >>> 3) & 0x001F);
+    }
+
+    private static int component(final int cell, final int c) {
+        return (cell >>> SHIFTS[c]) & MASKS[c];
+    }
+
+    /**
+     * Reads the image as non premultiplied ARGB, going straight to the data for the 8 bit
+     * interleaved RGB(A) images decoders produce
+     */
+    private static int[] readPixels(final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] argb = new int[width * height];
+        final WritableRaster raster = image.getRaster();
+
+        if (image.getColorModel() instanceof ComponentColorModel
+                && !image.getColorModel().isAlphaPremultiplied()
+                && image.getColorModel().getColorSpace().isCS_sRGB()
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+                && (raster.getNumBands() == 3 || raster.getNumBands() == 4)) {
+
+            PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            byte[] data = buffer.getData();
+            int pixelStride = sm.getPixelStride();
+            int scanlineStride = sm.getScanlineStride();
+            int[] offsets = sm.getBandOffsets();
+            boolean alpha = raster.getNumBands() == 4;
+            int origin = buffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            int i = 0;
+            for (int y = 0; y < height; y++) {
+                int pos = origin + y * scanlineStride;
+                for (int x = 0; x < width; x++, pos += pixelStride) {
+                    int value = alpha ? (data[pos + offsets[3]] & 0xFF) << 24 : 0xFF000000;
+                    value |= (data[pos + offsets[0]] & 0xFF) << 16;
+                    value |= (data[pos + offsets[1]] & 0xFF) << 8;
+                    value |= data[pos + offsets[2]] & 0xFF;
+                    argb[i++] = value;
+                }
+            }
+        } else {
+            image.getRGB(0, 0, width, height, argb, 0, width);
+        }
+        return argb;
+    }
+
+    /**
+     * Builds a palette out of the histogram by median cut
+     *
+     * @param histogram
+     *            pixel count per cell
+     * @param maxColors
+     *            maximum number of palette entries to build
+     * @param firstIndex
+     *            index of the first built entry in the returned palette
+     * @param cellIndexes
+     *            filled with the palette index of each non empty cell
+     * @return the palette, as ARGB values
+     */
+    private static int[] medianCut(final int[] histogram, final int maxColors,
+            final int firstIndex, final byte[] cellIndexes) {
+        int count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                count++;
+            }
+        }
+        int[] cells = new int[count];
+        for (int i = 0, j = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                cells[j++] = i;
+            }
+        }
+
+        Box[] boxes = new Box[maxColors];
+        int boxCount = 0;
+        if (count > 0) {
+            boxes[boxCount++] = new Box(cells, histogram, 0, count);
+        }
+        final int[] scratch = new int[count];
+        while (boxCount < maxColors) {
+            Box largest = null;
+            long largestScore = 0;
+            for (int i = 0; i < boxCount; i++) {
+                long score = boxes[i].score();
+                if (score > largestScore) {
+                    largest = boxes[i];
+                    largestScore = score;
+                }
+            }
+            if (largest == null) {
+                // every box is a single cell
+                break;
+            }
+            boxes[boxCount++] = largest.split(cells, histogram, scratch);
+        }
+
+        int[] palette = new int[firstIndex + boxCount];
+        for (int i = 0; i < boxCount; i++) {
+            Box box = boxes[i];
+            palette[firstIndex + i] = box.averageColor(cells, histogram);
+            for (int j = box.start; j < box.end; j++) {
+                cellIndexes[cells[j]] = (byte) (firstIndex + i);
+            }
+        }
+        return palette;
+    }
+
+    /**
+     * A range of the cells array, holding the cells within a box of the color space
+     */
+    private static final class Box {
+
+        int start, end;
+
+        final int[] min = new int[4];
+
+        final int[] max = new int[4];
+
+        long pixels;
+
+        Box(int[] cells, int[] histogram, int start, int end) {
+            this.start = start;
+            this.end = end;
+            shrink(cells, histogram);
+        }
+
+        private void shrink(int[] cells, int[] histogram) {
+            for (int c = 0; c < 4; c++) {
+                min[c] = Integer.MAX_VALUE;
+                max[c] = -1;
+            }
+            pixels = 0;
+            for (int i = start; i < end; i++) {
+                int cell = cells[i];
+                for (int c = 0; c < 4; c++) {
+                    int v = component(cell, c);
+                    if (v < min[c]) {
+                        min[c] = v;
+                    }
+                    if (v > max[c]) {
+                        max[c] = v;
+                    }
+                }
+                pixels += histogram[cell];
+            }
+        }
+
+        /**
+         * The component with the widest range, alpha being counted at the same scale as the colors
+         */
+        private int longestComponent() {
+            int longest = 0;
+            int longestLength = -1;
+            for (int c = 0; c < 4; c++) {
+                int length = (max[c] - min[c]) << (c == 0 ? 2 : 0);
+                if (length > longestLength) {
+                    longest = c;
+                    longestLength = length;
+                }
+            }
+            return longest;
+        }
+
+        /**
+         * @return how badly the box needs splitting, zero if it can't be split
+         */
+        long score() {
+            if (end - start < 2) {
+                return 0;
+            }
+            int c = longestComponent();
+            return pixels * ((max[c] - min[c]) << (c == 0 ? 2 : 0));
+        }
+
+        /**
+         * Splits the box at the pixel median of its longest component, keeping the lower half
+         *
+         * @return the upper half
+         */
+        Box split(int[] cells, int[] histogram, int[] scratch) {
+            final int c = longestComponent();
+            final int shift = SHIFTS[c];
+            final int mask = MASKS[c];
+
+            // counting sort of the cells on the split component
+            int[] offsets = new int[mask + 2];
+            for (int i = start; i < end; i++) {
+                offsets[((cells[i] >>> shift) & mask) + 1]++;
+            }
+            for (int v = 1; v < offsets.length; v++) {
+                offsets[v] += offsets[v - 1];
+            }
+            for (int i = start; i < end; i++) {
+                int cell = cells[i];
+                scratch[start + offsets[(cell >>> shift) & mask]++] = cell;
+            }
+            System.arraycopy(scratch, start, cells, start, end - start);
+
+            // both halves get at least one cell
+            int splitAt = start + 1;
+            long below = histogram[cells[start]];
+            while (splitAt < end - 1 && below * 2 < pixels) {
+                below += histogram[cells[splitAt]];
+                splitAt++;
+            }
+            // don't split a run of cells sharing the same value of the component
+            int splitValue = (cells[splitAt - 1] >>> shift) & mask;
+            while (splitAt < end - 1 && ((cells[splitAt] >>> shift) & mask) == splitValue) {
+                splitAt++;
+            }
+
+            Box upper = new Box(cells, histogram, splitAt, end);
+            this.end = splitAt;
+            shrink(cells, histogram);
+            return upper;
+        }
+
+        int averageColor(int[] cells, int[] histogram) {
+            long[] sums = new long[4];
+            for (int i = start; i < end; i++) {
+                int cell = cells[i];
+                long n = histogram[cell];
+                for (int c = 0; c < 4; c++) {
+                    sums[c] += n * component(cell, c);
+                }
+            }
+            int argb = 0;
+            for (int c = 0; c < 4; c++) {
+                // average of the cells, back to 8 bits
+                int v = (int) Math.round(sums[c] * 255.0 / (pixels * MASKS[c]));
+                argb |= Math.min(255, v) << (24 - 8 * c);
+            }
+            return argb;
+        }
+    }
+
+    /**
+     * Open addressing set of up to 256 ARGB values, remembering their insertion order
+     */
+    private static final class ExactColors {
+
+        private final int[] table = new int[4 * MAX_COLORS];
+
+        private final int[] indexes = new int[4 * MAX_COLORS];
+
+        private final int[] colors = new int[MAX_COLORS];
+
+        private int size;
+
+        private boolean hasZero;
+
+        private int zeroIndex;
+
+        /**
+         * @return false if the color didn't fit
+         */
+        boolean add(final int argb) {
+            if (argb == 0) {
+                if (!hasZero) {
+                    if (size == MAX_COLORS) {
+                        return false;
+                    }
+                    hasZero = true;
+                    zeroIndex = size;
+                    colors[size++] = 0;
+                }
+                return true;
+            }
+            int slot = slot(argb);
+            while (table[slot] != 0) {
+                if (table[slot] == argb) {
+                    return true;
+                }
+                slot = (slot + 1) & (table.length - 1);
+            }
+            if (size == MAX_COLORS) {
+                return false;
+            }
+            table[slot] = argb;
+            indexes[slot] = size;
+            colors[size++] = argb;
+            return true;
+        }
+
+        int indexOf(final int argb) {
+            if (argb == 0) {
+                return zeroIndex;
+            }
+            int slot = slot(argb);
+            while (table[slot] != argb) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            return indexes[slot];
+        }
+
+        int[] colors() {
+            int[] result = new int[Math.max(1, size)];
+            System.arraycopy(colors, 0, result, 0, size);
+            return result;
+        }
+
+        private int slot(final int argb) {
+            int h = argb * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (table.length - 1);
+        }
+    }
+}
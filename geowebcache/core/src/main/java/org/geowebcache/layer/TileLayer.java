@@ -25,6 +25,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -49,8 +52,11 @@ import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.UpdateSourceDefinition;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TransientCache;
 import org.geowebcache.util.GWCVars;
 import org.geowebcache.util.ServletUtils;
 
@@ -221,6 +227,30 @@ public abstract class TileLayer {
 
     public abstract void setBackendTimeout(int seconds);
 
+    /**
+     * @return the maximum number of tiles of the zoom levels that are not cached to be kept in
+     *         memory until requested
+     */
+    public int getTransientCacheMaxTiles() {
+        return TransientCache.DEFAULT_MAX_TILES;
+    }
+
+    /**
+     * @return the maximum size, in KiB, of the tiles of the zoom levels that are not cached to be
+     *         kept in memory until requested
+     */
+    public int getTransientCacheMaxStorageKB() {
+        return TransientCache.DEFAULT_MAX_STORAGE_KB;
+    }
+
+    /**
+     * @return whether the tiles of a meta tile other than the requested one are to be encoded and
+     *         saved in parallel, after the requested tile is returned
+     */
+    public boolean isParallelEncoding() {
+        return false;
+    }
+
     /**
      * 
      * @return array with supported MIME types
@@ -569,6 +599,36 @@ public abstract class TileLayer {
      * @param imageFormat
      */
     protected void saveTiles(MetaTile metaTile, ConveyorTile tileProto) throws GeoWebCacheException {
+        saveTiles(metaTile, tileProto, null);
+    }
+
+    /**
+     * Loops over the gridPositions, generates cache keys and saves to cache, handing over the
+     * encoded tiles to the threads waiting on {@code inFlight} for them
+     * 
+     * @param inFlight
+     *            the request other threads may be waiting on for tiles of this meta tile, or
+     *            {@code null}
+     */
+    protected void saveTiles(MetaTile metaTile, ConveyorTile tileProto, InFlightRequest inFlight)
+            throws GeoWebCacheException {
+        saveTiles(metaTile, tileProto, inFlight, null);
+    }
+
+    /**
+     * Saves the tiles of the meta tile like {@link #saveTiles(MetaTile, ConveyorTile,
+     * InFlightRequest)}, but if the layer {@link #isParallelEncoding() encodes in parallel} only
+     * the requested tile is saved before returning, and the others are encoded and saved on a
+     * shared pool of threads.
+     * 
+     * @param onSaved
+     *            notified once all the tiles are saved, possibly on another thread, if this method
+     *            returns normally; the meta tile shall not be disposed until then. May be
+     *            {@code null} to save all the tiles before returning.
+     */
+    protected void saveTiles(final MetaTile metaTile, final ConveyorTile tileProto,
+            final InFlightRequest inFlight, final TilesSavedCallback onSaved)
+            throws GeoWebCacheException {
 
         final long[][] gridPositions = metaTile.getTilesGridPositions();
         final long[] gridLoc = tileProto.getTileIndex();
@@ -577,57 +637,195 @@ public abstract class TileLayer {
         final int zoomLevel = (int) gridLoc[2];
         final boolean store = this.getExpireCache(zoomLevel) != GWCVars.CACHE_DISABLE_CACHE;
 
-        Resource resource;
-        boolean encode;
+        if (onSaved == null || !isParallelEncoding()) {
+            // blob store listeners get the whole meta tile at once
+            BlobStoreListenerList.beginBatch();
+            try {
+                for (int i = 0; i < gridPositions.length; i++) {
+                    saveTile(metaTile, i, tileProto, inFlight, gridSubset, store);
+                }
+            } finally {
+                BlobStoreListenerList.endBatch();
+            }
+            if (onSaved != null) {
+                onSaved.saved(true);
+            }
+            return;
+        }
+
+        // the requested tile on this thread, so it can be returned right away
+        final List<Integer> others = new ArrayList<Integer>(gridPositions.length);
         for (int i = 0; i < gridPositions.length; i++) {
-            final long[] gridPos = gridPositions[i];
-            if (Arrays.equals(gridLoc, gridPos)) {
-                // Is this the one we need to save? then don't use the buffer or it'll be overridden
-                // by the next tile
-                resource = getImageBuffer(WMS_BUFFER2);
-                tileProto.setBlob(resource);
-                encode = true;
+            if (Arrays.equals(gridLoc, gridPositions[i])) {
+                saveTile(metaTile, i, tileProto, inFlight, gridSubset, store);
             } else {
-                resource = getImageBuffer(WMS_BUFFER);
-                encode = store;
+                others.add(Integer.valueOf(i));
             }
+        }
+        if (others.isEmpty()) {
+            onSaved.saved(true);
+            return;
+        }
 
-            if (encode) {
-                if (!gridSubset.covers(gridPos)) {
-                    // edge tile outside coverage, do not store it
-                    continue;
+        final AtomicInteger pending = new AtomicInteger(others.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Executor executor = MetaTileEncoderPool.getExecutor();
+        for (final Integer tileIdx : others) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        saveTile(metaTile, tileIdx.intValue(), tileProto, inFlight, gridSubset,
+                                store);
+                    } catch (Exception e) {
+                        failed.set(true);
+                        log.error("Unable to save tile "
+                                + Arrays.toString(gridPositions[tileIdx.intValue()]) + " of "
+                                + getName() + ": " + e.getMessage(), e);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            onSaved.saved(!failed.get());
+                        }
+                    }
                 }
+            });
+        }
+    }
+
+    /**
+     * Notified once the tiles of a meta tile are saved, see
+     * {@link TileLayer#saveTiles(MetaTile, ConveyorTile, InFlightRequest, TilesSavedCallback)}
+     */
+    protected static interface TilesSavedCallback {
+
+        /**
+         * @param success
+         *            {@code false} if any of the tiles failed to be saved
+         */
+        void saved(boolean success);
+    }
+
+    /**
+     * Encodes, hands over and saves to cache the tile at the given index of the meta tile
+     */
+    private void saveTile(final MetaTile metaTile, final int tileIdx, final ConveyorTile tileProto,
+            final InFlightRequest inFlight, final GridSubset gridSubset, final boolean store)
+            throws GeoWebCacheException {
+
+        final long[] gridPos = metaTile.getTilesGridPositions()[tileIdx];
+        final boolean requested = Arrays.equals(tileProto.getTileIndex(), gridPos);
+
+        Resource resource;
+        boolean encode;
+        if (requested) {
+            // Is this the one we need to save? then don't use the buffer or it'll be overridden
+            // by the next tile
+            resource = getImageBuffer(WMS_BUFFER2);
+            tileProto.setBlob(resource);
+            encode = true;
+        } else {
+            resource = getImageBuffer(WMS_BUFFER);
+            encode = store || (inFlight != null && inFlight.isRequested(gridPos));
+        }
+
+        if (!encode) {
+            return;
+        }
+        if (!gridSubset.covers(gridPos)) {
+            // edge tile outside coverage, do not store it
+            return;
+        }
+
+        try {
+            if (store && !tileProto.isMetaTileCacheOnly()
+                    && tileProto.getStorageBroker().getUniformTileStore() != null
+                    && saveUniformTile(metaTile, tileIdx, tileProto, inFlight, requested,
+                            resource)) {
+                return;
+            }
+            boolean completed = metaTile.writeTileToStream(tileIdx, resource);
+            if (!completed) {
+                log.error("metaTile.writeTileToStream returned false, no tiles saved");
+            } else if (inFlight != null) {
+                inFlight.publish(gridPos, resource);
+            }
+            if (store) {
+                long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+
+                TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
+                        tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
+                        tileProto.getParameters(), resource);
 
                 try {
-                    boolean completed = metaTile.writeTileToStream(i, resource);
-                    if (!completed) {
-                        log.error("metaTile.writeTileToStream returned false, no tiles saved");
+                    if (tileProto.isMetaTileCacheOnly()) {
+                        tileProto.getStorageBroker().putTransient(tile,
+                                getTransientCacheMaxTiles(), getTransientCacheMaxStorageKB());
+                    } else {
+                        tileProto.getStorageBroker().put(tile);
                     }
-                    if (store) {
-                        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
-
-                        TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
-                                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
-                                tileProto.getParameters(), resource);
-
-                        try {
-                            if (tileProto.isMetaTileCacheOnly()) {
-                                tileProto.getStorageBroker().putTransient(tile);
-                            } else {
-                                tileProto.getStorageBroker().put(tile);
-                            }
-                            tileProto.getStorageObject().setCreated(tile.getCreated());
-                        } catch (StorageException e) {
-                            throw new GeoWebCacheException(e);
-                        }
+                    if (requested) {
+                        tileProto.getStorageObject().setCreated(tile.getCreated());
                     }
-                } catch (IOException ioe) {
-                    log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
-                            + ioe.getMessage());
-                    ioe.printStackTrace();
+                } catch (StorageException e) {
+                    throw new GeoWebCacheException(e);
                 }
             }
+        } catch (IOException ioe) {
+            log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
+                    + ioe.getMessage());
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Records the tile at the given index of the meta tile as a uniform one if it's made of a
+     * single color, encoding it only if it's the first tile of its color for the tile set
+     * 
+     * @return whether the tile was uniform and has been saved
+     */
+    private boolean saveUniformTile(final MetaTile metaTile, final int tileIdx,
+            final ConveyorTile tileProto, final InFlightRequest inFlight, final boolean requested,
+            final Resource buffer) throws GeoWebCacheException, IOException {
+
+        final long[] gridPos = metaTile.getTilesGridPositions()[tileIdx];
+        final long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+        final StorageBroker storageBroker = tileProto.getStorageBroker();
+        final TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
+                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
+                tileProto.getParameters(), null);
+        // no point in scanning the raster for a tile the store can't record
+        if (!storageBroker.getUniformTileStore().supports(tile)) {
+            return false;
+        }
+        final long color = metaTile.getUniformColor(tileIdx);
+        if (color < 0) {
+            return false;
+        }
+
+        Resource blob = storageBroker.getUniformTileStore().getResource(tile, color);
+        if (blob == null) {
+            if (!metaTile.writeTileToStream(tileIdx, buffer)) {
+                log.error("metaTile.writeTileToStream returned false, no tiles saved");
+                return true;
+            }
+            blob = buffer;
+        }
+        tile.setBlob(blob);
+        try {
+            Resource shared = storageBroker.putUniform(tile, color);
+            if (shared != null) {
+                blob = shared;
+            }
+        } catch (StorageException e) {
+            throw new GeoWebCacheException(e);
+        }
+        if (inFlight != null) {
+            inFlight.publish(gridPos, blob);
+        }
+        if (requested) {
+            tileProto.setBlob(blob);
+            tileProto.getStorageObject().setCreated(tile.getCreated());
         }
+        return true;
     }
 
 }
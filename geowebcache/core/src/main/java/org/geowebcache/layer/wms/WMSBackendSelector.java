@@ -0,0 +1,301 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Picks the backend URL of a WMS layer each request is sent to, based on how the backends have
+ * been doing lately.
+ * <p>
+ * Each backend keeps track of its outstanding requests and of an exponentially weighted moving
+ * average of its response times, and the one with the lowest expected wait (average latency times
+ * outstanding requests plus one) is chosen, so that a slow node gets less traffic instead of an
+ * equal share.
+ * </p>
+ * <p>
+ * A backend failing {@link #getFailureThreshold() failureThreshold} requests in a row is taken out
+ * of rotation (its circuit is opened) for {@link #getOpenTimeout() openTimeout} milliseconds, after
+ * which a single probe request is let through (half open): if it succeeds the backend is back in
+ * rotation, otherwise it stays out for another period. If all the backends are out of rotation the
+ * one that's been out the longest is still tried rather than failing the request right away, as
+ * long as it's not waiting on the outcome of its probe.
+ * </p>
+ */
+public class WMSBackendSelector {
+
+    private static Log log = LogFactory.getLog(WMSBackendSelector.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    public static final long DEFAULT_OPEN_TIMEOUT = 30 * 1000;
+
+    /**
+     * Weight of the latest sample in the response time average
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    public static enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Backend[] backends;
+
+    private final List<Backend> backendList;
+
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private final int failureThreshold;
+
+    private final long openTimeout;
+
+    public WMSBackendSelector(String[] urls) {
+        this(urls, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIMEOUT);
+    }
+
+    /**
+     * @param urls
+     *            the backend URLs
+     * @param failureThreshold
+     *            number of consecutive failures that take a backend out of rotation
+     * @param openTimeout
+     *            milliseconds before a backend out of rotation is probed again
+     */
+    public WMSBackendSelector(String[] urls, int failureThreshold, long openTimeout) {
+        if (urls == null || urls.length == 0) {
+            throw new IllegalArgumentException("At least one backend URL is required");
+        }
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold shall be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTimeout = openTimeout;
+        this.backends = new Backend[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            backends[i] = new Backend(urls[i]);
+        }
+        this.backendList = Collections.unmodifiableList(Arrays.asList(backends));
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenTimeout() {
+        return openTimeout;
+    }
+
+    /**
+     * @return the backends, in configuration order, to look at their statistics
+     */
+    public List<Backend> getBackends() {
+        return backendList;
+    }
+
+    /**
+     * Chooses the backend for the next request. The caller shall {@link Backend#start() start} the
+     * request on it, and report how it went through {@link Backend#success(long)} or
+     * {@link Backend#failure(long)}.
+     *
+     * @param excluded
+     *            backends not to choose (e.g. the ones that already failed this request), may be
+     *            {@code null}
+     * @return the chosen backend, or {@code null} if all the backends are excluded or waiting on
+     *         the outcome of a probe request
+     */
+    public Backend select(final List<Backend> excluded) {
+        final long now = System.currentTimeMillis();
+        // start from a different backend each time so ties are spread evenly
+        final int offset = (rotation.getAndIncrement() & Integer.MAX_VALUE) % backends.length;
+
+        Backend best = null;
+        double bestCost = Double.MAX_VALUE;
+        Backend probe = null;
+        Backend fallback = null;
+        for (int i = 0; i < backends.length; i++) {
+            Backend backend = backends[(offset + i) % backends.length];
+            if (excluded != null && excluded.contains(backend)) {
+                continue;
+            }
+            if (backend.state == CircuitState.CLOSED) {
+                double cost = backend.expectedCost();
+                if (cost < bestCost) {
+                    best = backend;
+                    bestCost = cost;
+                }
+            } else if (backend.state == CircuitState.OPEN) {
+                // half open ones already have their probe in flight, they're not chosen at all
+                if (now - backend.openedAt >= openTimeout
+                        && (probe == null || backend.openedAt < probe.openedAt)) {
+                    probe = backend;
+                }
+                if (fallback == null || backend.openedAt < fallback.openedAt) {
+                    fallback = backend;
+                }
+            }
+        }
+
+        // a backend whose open period expired gets a probe request, before the healthy ones
+        if (probe != null && probe.tryHalfOpen()) {
+            return probe;
+        }
+        if (best == null && fallback != null && fallback.state == CircuitState.OPEN) {
+            best = fallback;
+        }
+        return best;
+    }
+
+    /**
+     * Statistics and circuit state of a single backend URL
+     */
+    public class Backend {
+
+        private final String url;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private volatile double averageLatency;
+
+        private volatile CircuitState state = CircuitState.CLOSED;
+
+        private volatile long openedAt;
+
+        Backend(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return number of requests currently being processed by this backend
+         */
+        public int getOutstandingRequests() {
+            return outstanding.get();
+        }
+
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        /**
+         * @return moving average of the response time, in milliseconds
+         */
+        public double getAverageLatency() {
+            return averageLatency;
+        }
+
+        public CircuitState getState() {
+            return state;
+        }
+
+        double expectedCost() {
+            // an unused backend has no latency yet, count it as a fast one
+            return (outstanding.get() + 1) * Math.max(1d, averageLatency);
+        }
+
+        synchronized boolean tryHalfOpen() {
+            if (state != CircuitState.OPEN) {
+                return false;
+            }
+            state = CircuitState.HALF_OPEN;
+            return true;
+        }
+
+        /**
+         * Marks the start of a request to this backend
+         *
+         * @return the start time, to be passed to {@link #success(long)} or {@link #failure(long)}
+         */
+        public long start() {
+            outstanding.incrementAndGet();
+            requests.incrementAndGet();
+            return System.currentTimeMillis();
+        }
+
+        /**
+         * Marks the successful end of a request started at the given time
+         */
+        public void success(final long startTime) {
+            outstanding.decrementAndGet();
+            sample(System.currentTimeMillis() - startTime);
+            consecutiveFailures.set(0);
+            if (state != CircuitState.CLOSED) {
+                synchronized (this) {
+                    if (state != CircuitState.CLOSED) {
+                        log.info("Backend " + url + " is back in rotation");
+                        state = CircuitState.CLOSED;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Marks the failed end of a request started at the given time
+         */
+        public void failure(final long startTime) {
+            outstanding.decrementAndGet();
+            // a failure that takes long is as bad as a slow response
+            sample(System.currentTimeMillis() - startTime);
+            failures.incrementAndGet();
+            final int failed = consecutiveFailures.incrementAndGet();
+            if (state == CircuitState.HALF_OPEN
+                    || (state == CircuitState.CLOSED && failed >= failureThreshold)) {
+                synchronized (this) {
+                    if (state != CircuitState.OPEN) {
+                        log.warn("Backend " + url + " failed " + failed
+                                + " requests in a row, taking it out of rotation for "
+                                + openTimeout + "ms");
+                        openedAt = System.currentTimeMillis();
+                        state = CircuitState.OPEN;
+                    }
+                }
+            }
+        }
+
+        private synchronized void sample(final long latency) {
+            if (averageLatency == 0) {
+                averageLatency = latency;
+            } else {
+                averageLatency += EWMA_WEIGHT * (latency - averageLatency);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return url + "[" + state + ", outstanding: " + outstanding.get() + ", requests: "
+                    + requests.get() + ", failures: " + failures.get() + ", avg latency: "
+                    + Math.round(averageLatency) + "ms]";
+        }
+    }
+}
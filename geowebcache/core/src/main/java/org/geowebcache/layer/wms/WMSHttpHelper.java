@@ -23,17 +23,25 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.io.Resource;
+import org.geowebcache.layer.MetaTile;
 import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.mime.ErrorMime;
 import org.geowebcache.service.ServiceException;
@@ -45,18 +53,39 @@ import org.springframework.util.Assert;
 /**
  * This class is a wrapper for HTTP interaction with WMS backend
  * 
- * All methods in this class MUST be written as if they were static
+ * All methods in this class MUST be thread safe. Requests go through a single HttpClient, created
+ * on first use, that keeps a pool of keep-alive connections to the backends, limited to
+ * {@link #setMaxConnectionsPerHost(int) maxConnectionsPerHost} per backend server.
  * 
  */
 public class WMSHttpHelper extends WMSSourceHelper {
     private static Log log = LogFactory.getLog(org.geowebcache.layer.wms.WMSHttpHelper.class);
 
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 128;
+
+    /**
+     * How long a pooled connection can stay unused before being closed, in milliseconds
+     */
+    static final long IDLE_CONNECTION_TIMEOUT = 60 * 1000;
+
+    private static final int DEFAULT_BACKEND_TIMEOUT = 120;
+
     private final URL proxyUrl;
 
     private final String httpUsername;
 
     private final String httpPassword;
 
+    private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private volatile int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+    private volatile HttpClient httpClient;
+
+    private volatile long lastIdleCheck;
+
     public WMSHttpHelper() {
         this(null, null, null);
     }
@@ -68,6 +97,66 @@ public class WMSHttpHelper extends WMSSourceHelper {
         this.proxyUrl = proxyUrl;
     }
 
+    /**
+     * @param maxConnectionsPerHost
+     *            maximum number of connections open at the same time to a single backend server;
+     *            requests exceeding it wait for a connection to be released, up to the backend
+     *            timeout
+     */
+    public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost shall be positive");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxTotalConnections = Math.max(maxTotalConnections, maxConnectionsPerHost);
+        HttpClient client = this.httpClient;
+        if (client != null) {
+            HttpConnectionManagerParams params = client.getHttpConnectionManager().getParams();
+            params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+            params.setMaxTotalConnections(maxTotalConnections);
+        }
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Returns the shared client, creating it on first use. The connection timeout is the one of the
+     * first request, while the socket timeout is set for each request.
+     * <p>
+     * Connections left unused for more than {@link #IDLE_CONNECTION_TIMEOUT} are closed here
+     * rather than on a background thread, there's no point in doing it while no requests come in.
+     * </p>
+     */
+    protected HttpClient getHttpClient(final URL url, final int backendTimeout) {
+        HttpClient client = this.httpClient;
+        if (client == null) {
+            synchronized (this) {
+                client = this.httpClient;
+                if (client == null) {
+                    HttpClientBuilder builder = new HttpClientBuilder(url, backendTimeout,
+                            httpUsername, httpPassword, proxyUrl);
+                    builder.setPooled(maxConnectionsPerHost, maxTotalConnections);
+                    client = builder.buildClient();
+                    this.lastIdleCheck = System.currentTimeMillis();
+                    this.httpClient = client;
+                }
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - lastIdleCheck > IDLE_CONNECTION_TIMEOUT) {
+            lastIdleCheck = now;
+            HttpConnectionManager manager = client.getHttpConnectionManager();
+            manager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT);
+            if (manager instanceof MultiThreadedHttpConnectionManager) {
+                ((MultiThreadedHttpConnectionManager) manager).deleteClosedConnections();
+            }
+        }
+        return client;
+    }
+
     /**
      * Loops over the different backends, tries the request
      * 
@@ -81,34 +170,88 @@ public class WMSHttpHelper extends WMSSourceHelper {
     protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
             Map<String, String> wmsParams, String expectedMimeType, Resource target)
             throws GeoWebCacheException {
+        makeRequest(tileRespRecv, layer, wmsParams, expectedMimeType, target, null);
+    }
+
+    /**
+     * Decodes the meta tile image straight from the response stream, so that decoding overlaps
+     * the transfer and the encoded image is only held by the image input stream cache until it's
+     * decoded. A backend failing half way through the response is handled like any other failure,
+     * by requesting the meta tile from the next backend.
+     */
+    @Override
+    public void makeRequestAndDecode(WMSMetaTile metaTile, Resource buffer)
+            throws GeoWebCacheException {
+        Map<String, String> wmsParams = metaTile.getWMSParams();
+        WMSLayer layer = metaTile.getLayer();
+        String format = metaTile.getRequestFormat().getFormat();
+
+        makeRequest(metaTile, layer, wmsParams, format, buffer, metaTile);
+    }
+
+    /**
+     * @param decodeTarget
+     *            if not {@code null} a successful response is decoded into it, otherwise it's
+     *            read into {@code target}
+     */
+    private void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+            Map<String, String> wmsParams, String expectedMimeType, Resource target,
+            MetaTile decodeTarget) throws GeoWebCacheException {
         Assert.notNull(target, "Target resource can't be null");
         Assert.isTrue(target.getSize() == 0, "Target resource is not empty");
 
         URL wmsBackendUrl = null;
 
         final Integer backendTimeout = layer.getBackendTimeout();
-        int backendTries = 0; // keep track of how many backends we have tried
+        final WMSBackendSelector selector = layer.getBackendSelector();
+        // keep track of the backends we have tried
+        List<WMSBackendSelector.Backend> tried = new ArrayList<WMSBackendSelector.Backend>(2);
+        int backendTries = 0;
         GeoWebCacheException fetchException = null;
-        while (target.getSize() == 0 && backendTries < layer.getWMSurl().length) {
-            String requestUrl = layer.nextWmsURL();
-
+        WMSBackendSelector.Backend backend;
+        boolean received = false;
+        while (!received && (backend = selector.select(tried)) != null) {
+            final long startTime = backend.start();
+            boolean success = false;
             try {
-                wmsBackendUrl = new URL(requestUrl);
-            } catch (MalformedURLException maue) {
-                throw new GeoWebCacheException("Malformed URL: " + requestUrl + " "
-                        + maue.getMessage());
-            }
-            try {
-                connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams, expectedMimeType,
-                        backendTimeout, target);
-            } catch (GeoWebCacheException e) {
-                fetchException = e;
+                try {
+                    wmsBackendUrl = new URL(backend.getUrl());
+                } catch (MalformedURLException maue) {
+                    throw new GeoWebCacheException("Malformed URL: " + backend.getUrl() + " "
+                            + maue.getMessage());
+                }
+                try {
+                    received = connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams,
+                            expectedMimeType, backendTimeout, target, decodeTarget);
+                    success = true;
+                } catch (ServiceException e) {
+                    fetchException = e;
+                    // the backend is up and rejected the request itself, that's not its fault
+                    final int status = tileRespRecv.getStatus();
+                    success = status >= 400 && status < 500;
+                } catch (GeoWebCacheException e) {
+                    fetchException = e;
+                }
+            } finally {
+                if (success) {
+                    backend.success(startTime);
+                } else {
+                    backend.failure(startTime);
+                }
             }
 
+            tried.add(backend);
             backendTries++;
         }
 
-        if (target.getSize() == 0) {
+        if (backendTries == 0) {
+            String msg = "No backend available, all of them are out of rotation";
+            tileRespRecv.setError();
+            tileRespRecv.setErrorMessage(msg);
+            throw new GeoWebCacheException(msg);
+        }
+
+        if (!received) {
             String msg = "All backends (" + backendTries + ") failed.";
             if (fetchException != null) {
                 msg += " Reason: " + fetchException.getMessage() + ". ";
@@ -131,12 +274,15 @@ public class WMSHttpHelper extends WMSSourceHelper {
      * @param wmsBackendUrl
      * @param data
      * @param wmsparams
-     * @return
+     * @param decodeTarget
+     *            meta tile to decode the response into if it's the expected image, or {@code null}
+     * @return whether the response contents were received, either in {@code target} or decoded
+     *         into {@code decodeTarget}
      * @throws GeoWebCacheException
      */
-    private void connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
+    private boolean connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
             Map<String, String> wmsParams, String requestMime, Integer backendTimeout,
-            Resource target) throws GeoWebCacheException {
+            Resource target, MetaTile decodeTarget) throws GeoWebCacheException {
 
         GetMethod getMethod = null;
         final int responseCode;
@@ -166,8 +312,10 @@ public class WMSHttpHelper extends WMSSourceHelper {
 
             // Check that we're not getting an error MIME back.
             String responseMime = getMethod.getResponseHeader("Content-Type").getValue();
+            boolean expectedMime = true;
             if (responseCode != 204 && responseMime != null
                     && !mimeStringCheck(requestMime, responseMime)) {
+                expectedMime = false;
                 String message = null;
                 if (responseMime.equalsIgnoreCase(ErrorMime.vnd_ogc_se_inimage.getFormat())) {
                     // TODO: revisit: I don't understand why it's trying to create a String message
@@ -212,22 +360,33 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
 
             // Read the actual data
-            if (responseCode != 204) {
+            if (responseCode != 204 && decodeTarget != null && expectedMime) {
+                try {
+                    decodeTarget.setImageStream(getMethod.getResponseBodyAsStream());
+                } catch (IOException ioe) {
+                    throw new GeoWebCacheException("Error decoding the response from "
+                            + wmsBackendUrl.toString() + ": " + ioe.getMessage(), ioe);
+                }
+                return true;
+            } else if (responseCode != 204) {
                 try {
                     InputStream inStream = getMethod.getResponseBodyAsStream();
-                    ReadableByteChannel channel = Channels.newChannel(inStream);
-                    try {
-                        target.transferFrom(channel);
-                    } finally {
-                        channel.close();
-                    }
-                    if (responseLength > 0) {
-                        int readAccu = (int) target.getSize();
-                        if (readAccu != responseLength) {
-                            tileRespRecv.setError();
-                            throw new GeoWebCacheException("Responseheader advertised "
-                                    + responseLength + " bytes, but only received " + readAccu
-                                    + " from " + wmsBackendUrl.toString());
+                    // null if the body was already consumed to build the error message
+                    if (inStream != null) {
+                        ReadableByteChannel channel = Channels.newChannel(inStream);
+                        try {
+                            target.transferFrom(channel);
+                        } finally {
+                            channel.close();
+                        }
+                        if (responseLength > 0) {
+                            int readAccu = (int) target.getSize();
+                            if (readAccu != responseLength) {
+                                tileRespRecv.setError();
+                                throw new GeoWebCacheException("Responseheader advertised "
+                                        + responseLength + " bytes, but only received " + readAccu
+                                        + " from " + wmsBackendUrl.toString());
+                            }
                         }
                     }
                 } catch (IOException ioe) {
@@ -236,6 +395,7 @@ public class WMSHttpHelper extends WMSSourceHelper {
                             + ioe.getMessage());
                 }
             }
+            return target.getSize() > 0;
 
         } finally {
             if (getMethod != null) {
@@ -260,9 +420,20 @@ public class WMSHttpHelper extends WMSSourceHelper {
     public GetMethod executeRequest(final URL url, final Map<String, String> queryParams,
             final Integer backendTimeout) throws HttpException, IOException {
 
-        HttpClientBuilder builder = new HttpClientBuilder(url, backendTimeout, httpUsername,
-                httpPassword, proxyUrl);
-        HttpClient httpClient = builder.buildClient();
+        final int timeout = backendTimeout == null ? DEFAULT_BACKEND_TIMEOUT : backendTimeout
+                .intValue();
+        HttpClient httpClient = getHttpClient(url, timeout);
+
+        final boolean doAuthentication = httpUsername != null;
+        if (doAuthentication) {
+            // the client is shared by all the backends of the layer, make sure it has the
+            // credentials for this one
+            AuthScope authScope = new AuthScope(url.getHost(), url.getPort());
+            if (httpClient.getState().getCredentials(authScope) == null) {
+                httpClient.getState().setCredentials(authScope,
+                        new UsernamePasswordCredentials(httpUsername, httpPassword));
+            }
+        }
 
         GetMethod getMethod = new GetMethod(url.toString());
         if (queryParams != null && queryParams.size() > 0) {
@@ -274,7 +445,8 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
             getMethod.setQueryString(params);
         }
-        getMethod.setDoAuthentication(builder.isDoAuthentication());
+        getMethod.setDoAuthentication(doAuthentication);
+        getMethod.getParams().setSoTimeout(timeout * 1000);
 
         httpClient.executeMethod(getMethod);
         return getMethod;
@@ -20,10 +20,14 @@ package org.geowebcache.layer.wms;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -47,12 +51,13 @@ import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.AbstractTileLayer;
 import org.geowebcache.layer.ExpirationRule;
-import org.geowebcache.layer.GridLocObj;
+import org.geowebcache.layer.InFlightRequest;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.TileKey;
 import org.geowebcache.util.GWCVars;
 
 /**
@@ -100,23 +105,35 @@ public class WMSLayer extends AbstractTileLayer {
     @SuppressWarnings("unused")
     private String cachePrefix;
 
+    /**
+     * Maximum number of connections open at the same time to each backend server (no longer used
+     * to size the tile locks)
+     */
     private Integer concurrency;
 
     // private transient int expireCacheInt = -1;
 
     // private transient int expireClientsInt = -1;
 
-    private transient int curWmsURL;
+    private transient volatile WMSBackendSelector backendSelector;
 
+    /**
+     * Only used on the slow path, to wait for the layer lock to be released and for the in flight
+     * requests to finish
+     */
     private transient Lock layerLock;
 
-    private transient boolean layerLocked;
+    private transient volatile boolean layerLocked;
 
     private transient Condition layerLockedCond;
 
-    private transient Condition[] gridLocConds;
+    private transient Condition inFlightDoneCond;
 
-    private transient HashMap<GridLocObj, Boolean> procQueue;
+    /**
+     * The backend requests in progress, keyed by meta tile, so that concurrent requests for tiles
+     * of the same meta tile wait for a single backend request
+     */
+    private transient ConcurrentMap<TileKey, InFlightRequest> inFlight;
 
     private transient WMSSourceHelper sourceHelper;
 
@@ -185,7 +202,7 @@ public class WMSLayer extends AbstractTileLayer {
                     + " is configured without a source, which is a bug unless you're running tests that don't care.");
         }
 
-        curWmsURL = 0;
+        backendSelector = null;
 
         if (backendTimeout == null) {
             backendTimeout = 120;
@@ -193,7 +210,8 @@ public class WMSLayer extends AbstractTileLayer {
 
         layerLock = new ReentrantLock();
         layerLockedCond = layerLock.newCondition();
-        procQueue = new HashMap<GridLocObj, Boolean>();
+        inFlightDoneCond = layerLock.newCondition();
+        inFlight = new ConcurrentHashMap<TileKey, InFlightRequest>();
 
         if (this.metaWidthHeight == null || this.metaWidthHeight.length != 2) {
             this.metaWidthHeight = new int[2];
@@ -201,19 +219,12 @@ public class WMSLayer extends AbstractTileLayer {
             this.metaWidthHeight[1] = 3;
         }
 
-        // Create conditions for tile locking
         if (concurrency == null) {
             concurrency = 32;
         }
 
-        // TODO There should be a WMSServer object and it should be on that
-        this.gridLocConds = new Condition[concurrency];
-
-        for (int i = 0; i < gridLocConds.length; i++) {
-            gridLocConds[i] = layerLock.newCondition();
-        }
-
         if (this.sourceHelper instanceof WMSHttpHelper) {
+            ((WMSHttpHelper) this.sourceHelper).setMaxConnectionsPerHost(concurrency.intValue());
             for (int i = 0; i < wmsUrl.length; i++) {
                 String url = wmsUrl[i];
                 if (!url.contains("?")) {
@@ -339,7 +350,7 @@ public class WMSLayer extends AbstractTileLayer {
         if (fullParameters.isEmpty()) {
             fullParameters = getDefaultParameterFilters();
         }
-        WMSMetaTile metaTile = new WMSMetaTile(this, gridSubset, mimeType,
+        final WMSMetaTile metaTile = new WMSMetaTile(this, gridSubset, mimeType,
                 this.getFormatModifier(tile.getMimeType()), gridLoc, metaWidthHeight[0],
                 metaWidthHeight[1], fullParameters);
 
@@ -348,32 +359,41 @@ public class WMSLayer extends AbstractTileLayer {
             metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
         }
 
-        long[] metaGridLoc = metaTile.getMetaGridPos();
-        GridLocObj metaGlo = new GridLocObj(metaGridLoc, this.gridLocConds.length);
+        final long[] metaGridLoc = metaTile.getMetaGridPos();
+        final TileKey metaKey = TileKey.forParameters(getName(), tile.getGridSetId(),
+                mimeType.getFormat(), fullParameters, metaGridLoc);
 
-        /** ****************** Acquire lock ******************* */
-        waitForQueue(metaGlo);
-        /** ****************** Check cache again ************** */
-        if (tryCache && tryCacheFetch(tile)) {
-            // Someone got it already, return lock and we're done
-            removeFromQueue(metaGlo);
+        /** ****************** Join or start the backend request ******************* */
+        final InFlightRequest request = startRequest(metaKey, tile);
+        if (request == null) {
+            // Someone else fetched it for us
+            metaTile.dispose();
             return finalizeTile(tile);
         }
 
-        tile.setCacheResult(CacheResult.MISS);
-        
-        /*
-         * This thread's byte buffer
-         */
-        ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
-
+        boolean success = false;
+        boolean handedOver = false;
         try {
+            /** ****************** Check cache again ************** */
+            if (tryCache && tryCacheFetch(tile)) {
+                // Someone got it already, we're done
+                success = true;
+                return finalizeTile(tile);
+            }
+
+            tile.setCacheResult(CacheResult.MISS);
+
+            /*
+             * This thread's byte buffer
+             */
+            ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+
             /** ****************** No luck, Request metatile ****** */
             // Leave a hint to save expiration, if necessary
             if (saveExpirationHeaders) {
                 metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
-            sourceHelper.makeRequest(metaTile, buffer);
+            sourceHelper.makeRequestAndDecode(metaTile, buffer);
 
             if (metaTile.getError()) {
                 throw new GeoWebCacheException("Empty metatile, error message: "
@@ -385,14 +405,22 @@ public class WMSLayer extends AbstractTileLayer {
                 saveExpirationInformation((int) (tile.getExpiresHeader() / 1000));
             }
 
-            metaTile.setImageBytes(buffer);
-
-            saveTiles(metaTile, tile);
+            saveTiles(metaTile, tile, request, new TilesSavedCallback() {
+                public void saved(boolean allSaved) {
+                    // may be called after returning, once all the tiles are saved
+                    endRequest(metaKey, request, allSaved);
+                    metaTile.dispose();
+                }
+            });
+            handedOver = true;
+            success = true;
 
             /** ****************** Return lock and response ****** */
         } finally {
-            removeFromQueue(metaGlo);
-            metaTile.dispose();
+            if (!handedOver) {
+                endRequest(metaKey, request, success);
+                metaTile.dispose();
+            }
         }
         return finalizeTile(tile);
     }
@@ -410,15 +438,24 @@ public class WMSLayer extends AbstractTileLayer {
             throws GeoWebCacheException {
         // String debugHeadersStr = null;
         long[] gridLoc = tile.getTileIndex();
-        GridLocObj glo = new GridLocObj(gridLoc, this.gridLocConds.length);
+        Map<String, String> fullParameters = tile.getFullParameters();
+        if (fullParameters.isEmpty()) {
+            fullParameters = getDefaultParameterFilters();
+        }
+        final TileKey key = TileKey.forParameters(getName(), tile.getGridSetId(), tile
+                .getMimeType().getFormat(), fullParameters, gridLoc);
 
-        /** ****************** Acquire lock ******************* */
-        waitForQueue(glo);
+        /** ****************** Join or start the backend request ******************* */
+        final InFlightRequest request = startRequest(key, tile);
+        if (request == null) {
+            return finalizeTile(tile);
+        }
+        boolean success = false;
         try {
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
-                // Someone got it already, return lock and we're done
-                removeFromQueue(glo);
+                // Someone got it already, we're done
+                success = true;
                 return tile;
                 // return this.createTileResponse(tile.getData(), -1, mime,
                 // response);
@@ -442,14 +479,116 @@ public class WMSLayer extends AbstractTileLayer {
                 // Converting to seconds in the process
                 saveExpirationInformation((int) (tile.getExpiresHeader() / 1000));
             }
+            request.publish(gridLoc, tile.getBlob());
+            success = true;
 
             /** ****************** Return lock and response ****** */
+        } catch (IOException e) {
+            throw new GeoWebCacheException(e);
         } finally {
-            removeFromQueue(glo);
+            endRequest(key, request, success);
         }
         return finalizeTile(tile);
     }
 
+    /**
+     * Registers the calling thread as the one in charge of the backend request for the given
+     * (meta) tile key, or waits for the thread already in charge of it to finish.
+     * 
+     * @return the request this thread is in charge of, or {@code null} if another thread fetched
+     *         the tile in the meantime and it's been set on {@code tile}
+     */
+    private InFlightRequest startRequest(final TileKey key, final ConveyorTile tile) {
+        final long[] gridLoc = tile.getTileIndex();
+        while (true) {
+            waitForLayerLock();
+
+            final InFlightRequest request = new InFlightRequest();
+            final InFlightRequest running = inFlight.putIfAbsent(key, request);
+            if (running == null) {
+                if (layerLocked) {
+                    // the layer got locked in the meantime, back off
+                    endRequest(key, request, false);
+                    continue;
+                }
+                return request;
+            }
+
+            running.request(gridLoc);
+            boolean completed;
+            try {
+                completed = running.await(getInFlightTimeout());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+            }
+            if (completed) {
+                Resource produced = running.getTile(gridLoc);
+                if (produced != null) {
+                    tile.setBlob(produced);
+                    tile.setCacheResult(CacheResult.HIT);
+                    return null;
+                }
+                if (tryCacheFetch(tile)) {
+                    return null;
+                }
+            }
+            // the other request failed, timed out, or the tile is not cached: try ourselves
+            if (!completed && log.isDebugEnabled()) {
+                log.debug("Request for " + key + " failed or timed out, retrying");
+            }
+            inFlight.remove(key, running);
+        }
+    }
+
+    /**
+     * @return the backend requests currently being processed, only used for testing
+     */
+    Collection<InFlightRequest> getInFlightRequests() {
+        return inFlight.values();
+    }
+
+    /**
+     * Marks the request as finished, waking up the threads waiting for it
+     */
+    private void endRequest(final TileKey key, final InFlightRequest request,
+            final boolean success) {
+        inFlight.remove(key, request);
+        request.complete(success);
+        if (layerLocked) {
+            layerLock.lock();
+            try {
+                inFlightDoneCond.signalAll();
+            } finally {
+                layerLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait for another thread's backend request before trying ourselves
+     */
+    private long getInFlightTimeout() {
+        int timeout = backendTimeout == null ? 120 : backendTimeout.intValue();
+        int urls = wmsUrl == null ? 1 : Math.max(1, wmsUrl.length);
+        // the backend request may be retried once per backend url
+        return 1000L * timeout * urls + 1000L;
+    }
+
+    private void waitForLayerLock() {
+        if (!layerLocked) {
+            return;
+        }
+        layerLock.lock();
+        try {
+            while (layerLocked) {
+                layerLockedCond.awaitUninterruptibly();
+            }
+        } finally {
+            layerLock.unlock();
+        }
+    }
+
     public boolean tryCacheFetch(ConveyorTile tile) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
@@ -618,13 +757,21 @@ public class WMSLayer extends AbstractTileLayer {
     }
 
     /**
-     * Get the WMS backend URL that should be used next according to the round robin.
-     * 
-     * @return the next URL
+     * @return the selector that spreads the requests among the backend URLs of this layer and
+     *         keeps track of their statistics
      */
-    protected String nextWmsURL() {
-        curWmsURL = (curWmsURL + 1) % wmsUrl.length;
-        return wmsUrl[curWmsURL];
+    public WMSBackendSelector getBackendSelector() {
+        WMSBackendSelector selector = backendSelector;
+        if (selector == null) {
+            synchronized (this) {
+                selector = backendSelector;
+                if (selector == null) {
+                    selector = new WMSBackendSelector(wmsUrl);
+                    backendSelector = selector;
+                }
+            }
+        }
+        return selector;
     }
 
     public long[][] getZoomedInGridLoc(String gridSetId, long[] gridLoc)
@@ -642,18 +789,20 @@ public class WMSLayer extends AbstractTileLayer {
             return;
         }
 
-        boolean wait = true;
-        // Wait until the queue is free
-        while (wait) {
-            try {
-                layerLock.lock();
-                this.layerLocked = true;
-                if (this.procQueue == null || this.procQueue.size() == 0) {
-                    wait = false;
+        layerLock.lock();
+        try {
+            this.layerLocked = true;
+            // Wait until the in flight requests are done
+            while (!inFlight.isEmpty()) {
+                try {
+                    inFlightDoneCond.await(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-            } finally {
-                layerLock.unlock();
             }
+        } finally {
+            layerLock.unlock();
         }
     }
 
@@ -676,65 +825,6 @@ public class WMSLayer extends AbstractTileLayer {
         }
     }
 
-    /**
-     * 
-     * @param metaGridLoc
-     * @return
-     */
-    protected boolean waitForQueue(GridLocObj glo) {
-        boolean retry = true;
-        boolean hasWaited = false;
-        // int condIdx = getLocCondIdx(gridLoc);
-
-        while (retry) {
-            layerLock.lock();
-            try {
-                // Check for global lock
-                if (layerLocked) {
-                    this.layerLockedCond.await();
-                } else if (this.procQueue.containsKey(glo)) {
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " WAITING FOR "+glo.toString()+ " convar " + condIdx);
-                    hasWaited = true;
-                    this.gridLocConds[glo.hashCode()].await();
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " WAKING UP "+glo.toString()+ " convar " + condIdx);
-                } else {
-                    this.procQueue.put(glo, true);
-                    retry = false;
-                    // System.out.println(Thread.currentThread().getId()
-                    // + " CONTINUES "+glo.toString()+ " convar " + condIdx);
-                }
-            } catch (InterruptedException ie) {
-                // Do we care? Maybe if the program is about to shut down
-            } finally {
-                layerLock.unlock();
-            }
-        }
-
-        return hasWaited;
-    }
-
-    /**
-     * Synchronization function, ensures that the same metatile is not requested simultaneously by
-     * two threads.
-     * 
-     * @param gridLoc
-     *            the grid positions of the tile (bottom left of metatile)
-     * @return
-     */
-    protected void removeFromQueue(GridLocObj glo) {
-        layerLock.lock();
-        try {
-            // System.out.println(Thread.currentThread().getId()
-            // + " DONE, SIGNALLING "+glo.toString() + " convar " + condIdx);
-            this.procQueue.remove(glo);
-            this.gridLocConds[glo.hashCode()].signalAll();
-        } finally {
-            layerLock.unlock();
-        }
-    }
-
     public void setErrorMime(String errormime) {
         this.errorMime = errormime;
     }
@@ -746,6 +836,7 @@ public class WMSLayer extends AbstractTileLayer {
 
     public void setWMSurl(String[] wmsurl) {
         this.wmsUrl = wmsurl;
+        this.backendSelector = null;
     }
 
     public String[] getWMSurl() {
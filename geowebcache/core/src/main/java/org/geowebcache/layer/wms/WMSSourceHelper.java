@@ -49,6 +49,25 @@ public abstract class WMSSourceHelper {
         makeRequest(metaTile, layer, wmsParams, format, target);
     }
 
+    /**
+     * Requests the meta tile image and {@link WMSMetaTile#setImage sets it} on the meta tile,
+     * unless the meta tile ends up {@link WMSMetaTile#getError() in error}.
+     * <p>
+     * This default implementation reads the whole response into {@code buffer} and then decodes
+     * it, subclasses that can are encouraged to decode the response as it comes in instead.
+     * </p>
+     * 
+     * @param buffer
+     *            empty resource the response can be read into
+     */
+    public void makeRequestAndDecode(WMSMetaTile metaTile, Resource buffer)
+            throws GeoWebCacheException {
+        makeRequest(metaTile, buffer);
+        if (!metaTile.getError()) {
+            metaTile.setImageBytes(buffer);
+        }
+    }
+
     public void makeRequest(ConveyorTile tile, Resource target) throws GeoWebCacheException {
         WMSLayer layer = (WMSLayer) tile.getLayer();
 
@@ -18,13 +18,16 @@ package org.geowebcache.seed;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.filter.request.RequestFilter;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.storage.BatchBlobStoreListener;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileBatch;
 import org.geowebcache.storage.TileRange;
 
 class TruncateTask extends GWCTask {
@@ -38,6 +41,11 @@ class TruncateTask extends GWCTask {
 
     private final StorageBroker storageBroker;
 
+    /**
+     * The thread running the truncate, so that {@link #terminateNicely()} can interrupt it
+     */
+    private Thread runner;
+
     public TruncateTask(StorageBroker sb, TileRange tr, TileLayer tl, boolean doFilterUpdate) {
         this.storageBroker = sb;
         this.tr = tr;
@@ -52,13 +60,25 @@ class TruncateTask extends GWCTask {
     protected void doActionInternal() throws GeoWebCacheException, InterruptedException {
         super.state = GWCTask.STATE.RUNNING;
         checkInterrupted();
+        final Progress progress = new Progress(System.currentTimeMillis());
+        synchronized (this) {
+            runner = Thread.currentThread();
+        }
+        storageBroker.addBlobStoreListener(progress);
         try {
             storageBroker.delete(tr);
         } catch (Exception e) {
             e.printStackTrace();
             super.state = GWCTask.STATE.DEAD;
             log.error("During truncate request: " + e.getMessage());
+        } finally {
+            storageBroker.removeBlobStoreListener(progress);
+            synchronized (this) {
+                runner = null;
+            }
         }
+        super.tilesDone = progress.deleted.get();
+        super.timeSpent = (System.currentTimeMillis() - progress.start) / 1000;
 
         checkInterrupted();
         if (doFilterUpdate) {
@@ -91,6 +111,80 @@ class TruncateTask extends GWCTask {
         }
     }
 
+    /**
+     * Also interrupts the running truncate, which would otherwise only check the termination flag
+     * once done
+     */
+    @Override
+    public void terminateNicely() {
+        super.terminateNicely();
+        synchronized (this) {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Counts the tiles deleted off the truncated layer and grid set as they go
+     */
+    private class Progress implements BatchBlobStoreListener {
+
+        private final long start;
+
+        private final AtomicLong deleted = new AtomicLong();
+
+        Progress(long start) {
+            this.start = start;
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+            deleted(layerName, gridSetId, 1);
+        }
+
+        public void tilesDeleted(TileBatch batch) {
+            deleted(batch.getLayerName(), batch.getGridSetId(), batch.size());
+        }
+
+        private void deleted(String layerName, String gridSetId, int count) {
+            if (tl.getName().equals(layerName) && tr.getGridSetId().equals(gridSetId)) {
+                tilesDone = deleted.addAndGet(count);
+                timeSpent = (System.currentTimeMillis() - start) / 1000;
+            }
+        }
+
+        public void tilesStored(TileBatch batch) {
+            // nothing to do
+        }
+
+        public void tilesUpdated(TileBatch batch) {
+            // nothing to do
+        }
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+            // nothing to do
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            // nothing to do
+        }
+
+        public void layerDeleted(String layerName) {
+            // nothing to do
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+            // nothing to do
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+            // nothing to do
+        }
+    }
+
     @Override
     protected void dispose() {
         // do nothing
@@ -17,9 +17,6 @@
 package org.geowebcache.service;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -129,9 +126,7 @@ public abstract class Service {
         response.setContentLength(size);
 
         try {
-            OutputStream os = response.getOutputStream();
-            WritableByteChannel channel = Channels.newChannel(os);
-            data.transferTo(channel);
+            ServletUtils.writeResource(data, conv.servletReq, response);
             
             if(stats != null) {
                 stats.log(size, conv.getCacheResult());
@@ -21,6 +21,11 @@ import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.WMSBackendSelector;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.storage.MemoryTileCache;
 import org.geowebcache.util.ServletUtils;
 
 public class RuntimeStats {    
@@ -65,6 +70,10 @@ public class RuntimeStats {
     
     RuntimeStatsThread statsThread;
     
+    MemoryTileCache memoryCache;
+    
+    TileLayerDispatcher tileLayerDispatcher;
+    
     /**
      * 
      * @param pollInterval seconds between recording aggregate values
@@ -102,6 +111,22 @@ public class RuntimeStats {
         requests = new int[this.intervals[this.intervals.length - 1] / pollInterval];
     }
     
+    /**
+     * Sets the in-memory tile cache whose hit, miss and eviction counters are to be reported, if
+     * any
+     */
+    public void setMemoryCache(MemoryTileCache memoryCache) {
+        this.memoryCache = memoryCache;
+    }
+    
+    /**
+     * Sets the dispatcher to look up the layers whose WMS backend statistics are to be reported,
+     * if any
+     */
+    public void setTileLayerDispatcher(TileLayerDispatcher tileLayerDispatcher) {
+        this.tileLayerDispatcher = tileLayerDispatcher;
+    }
+    
     public void start() {
         statsThread = new RuntimeStatsThread(this);
         
@@ -223,6 +248,16 @@ public class RuntimeStats {
             str.append("</td></tr>\n");
             
             str.append("<tr><td colspan=\"5\"> </td></tr>");
+            
+            if(memoryCache != null) {
+                appendMemoryCacheStats(str);
+                
+                str.append("<tr><td colspan=\"5\"> </td></tr>");
+            }
+            
+            if(tileLayerDispatcher != null && appendBackendStats(str)) {
+                str.append("<tr><td colspan=\"5\"> </td></tr>");
+            }
                         
             str.append("<tr><td>Interval</td><td>Requests</td><td>Rate</td><td>Bytes</td><td>Bandwidth</td></tr>\n");
             
@@ -254,6 +289,63 @@ public class RuntimeStats {
         return str.toString();
     }
     
+    private void appendMemoryCacheStats(StringBuilder str) {
+        final long hits = memoryCache.getHitCount();
+        final long misses = memoryCache.getMissCount();
+        
+        str.append("<tr><td colspan=\"2\">Memory cache hit ratio:</td><td colspan=\"3\">");
+        if(hits + misses > 0) {
+            double hitPercentage = (hits * 100.0) / (hits + misses);
+            str.append(Math.round(hitPercentage * 100.0) / 100.0 + "% of " + (hits + misses)
+                    + " lookups");
+        } else {
+            str.append("No data");
+        }
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"2\">Memory cache evictions:</td><td colspan=\"3\">");
+        str.append(memoryCache.getEvictionCount());
+        str.append("</td></tr>\n");
+        
+        str.append("<tr><td colspan=\"2\">Memory cache usage:</td><td colspan=\"3\">");
+        str.append(memoryCache.getTileCount() + " of " + memoryCache.getMaxTiles() + " tiles, ");
+        str.append((memoryCache.getStorageSize() / 1024) + " of "
+                + memoryCache.getMaxStorageKB() + " KiB");
+        str.append("</td></tr>\n");
+    }
+    
+    /**
+     * Lists the backends of the WMS layers that have more than one
+     * 
+     * @return whether any backend was listed
+     */
+    private boolean appendBackendStats(StringBuilder str) {
+        boolean appended = false;
+        for (TileLayer layer : tileLayerDispatcher.getLayerList()) {
+            if (!(layer instanceof WMSLayer)) {
+                continue;
+            }
+            WMSLayer wmsLayer = (WMSLayer) layer;
+            if (wmsLayer.getWMSurl() == null || wmsLayer.getWMSurl().length < 2) {
+                continue;
+            }
+            if (!appended) {
+                str.append("<tr><td colspan=\"2\">WMS backend</td><td>State</td>"
+                        + "<td>Requests (failed)</td><td>Avg. latency</td></tr>\n");
+                appended = true;
+            }
+            for (WMSBackendSelector.Backend backend : wmsLayer.getBackendSelector().getBackends()) {
+                str.append("<tr><td colspan=\"2\">" + layer.getName() + ": " + backend.getUrl()
+                        + "</td><td>");
+                str.append(backend.getState() + "</td><td>");
+                str.append(backend.getRequestCount() + " (" + backend.getFailureCount()
+                        + ")</td><td>");
+                str.append(Math.round(backend.getAverageLatency()) + " ms</td></tr>\n");
+            }
+        }
+        return appended;
+    }
+    
     private String[] calculateRequests(int interval) {
         int nodeCount = interval / pollInterval;
         
@@ -0,0 +1,38 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+/**
+ * A {@link BlobStoreListener} that can take tile events in batches.
+ * <p>
+ * Whenever blob stores send tile events in batches, for example per meta tile or per directory
+ * when truncating, these methods are called once per batch instead of the per tile ones. Tiles
+ * sent one at a time still go through the {@link BlobStoreListener} methods.
+ * </p>
+ *
+ * @see BlobStoreListenerList#beginBatch()
+ */
+public interface BatchBlobStoreListener extends BlobStoreListener {
+
+    void tilesStored(TileBatch batch);
+
+    void tilesDeleted(TileBatch batch);
+
+    /**
+     * @param batch
+     *            the updated tiles, with their {@link TileBatch#getOldSize(int) previous sizes}
+     */
+    void tilesUpdated(TileBatch batch);
+}
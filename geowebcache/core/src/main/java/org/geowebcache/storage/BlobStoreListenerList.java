@@ -1,10 +1,23 @@
 package org.geowebcache.storage;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class BlobStoreListenerList {
 
+    private static final int STORED = 0;
+
+    private static final int DELETED = 1;
+
+    private static final int UPDATED = 2;
+
+    /**
+     * Tile events gathered by the current thread between {@link #beginBatch()} and
+     * {@link #endBatch()}
+     */
+    private static final ThreadLocal<PendingBatches> PENDING = new ThreadLocal<PendingBatches>();
+
     private List<BlobStoreListener> listeners = new CopyOnWriteArrayList<BlobStoreListener>();
 
     public synchronized void addListener(BlobStoreListener listener) {
@@ -17,6 +30,14 @@ public final class BlobStoreListenerList {
         return listeners.remove(listener);
     }
 
+    /**
+     * @return whether there are no listeners, for callers to skip gathering event data no one
+     *         will get
+     */
+    public boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
     public void sendLayerDeleted(String layerName) {
         if (listeners.size() > 0) {
             for (int i = 0; i < listeners.size(); i++) {
@@ -45,6 +66,10 @@ public final class BlobStoreListenerList {
             Long parametersId, long x, long y, int z, long length) {
 
         if (listeners.size() > 0) {
+            if (batch(DELETED, layerName, gridSetId, blobFormat, parametersId, x, y, z, length,
+                    0)) {
+                return;
+            }
             for (int i = 0; i < listeners.size(); i++) {
                 listeners.get(i).tileDeleted(layerName, gridSetId, blobFormat, parametersId, x, y,
                         z, length);
@@ -80,6 +105,10 @@ public final class BlobStoreListenerList {
 
             final int blobSize = stObj.getBlobSize();
 
+            if (batch(STORED, layerName, gridSetId, blobFormat, paramsId, xyz[0], xyz[1],
+                    (int) xyz[2], blobSize, 0)) {
+                return;
+            }
             for (int i = 0; i < listeners.size(); i++) {
                 listeners.get(i).tileStored(layerName, gridSetId, blobFormat, paramsId, xyz[0],
                         xyz[1], (int) xyz[2], blobSize);
@@ -99,6 +128,10 @@ public final class BlobStoreListenerList {
 
             final int blobSize = stObj.getBlobSize();
 
+            if (batch(UPDATED, layerName, gridSetId, blobFormat, paramsId, xyz[0], xyz[1],
+                    (int) xyz[2], blobSize, oldSize)) {
+                return;
+            }
             for (int i = 0; i < listeners.size(); i++) {
                 listeners.get(i).tileUpdated(layerName, gridSetId, blobFormat, paramsId, xyz[0],
                         xyz[1], (int) xyz[2], blobSize, oldSize);
@@ -106,4 +139,148 @@ public final class BlobStoreListenerList {
             }
         }
     }
+
+    public void sendTilesStored(TileBatch batch) {
+        send(STORED, batch);
+    }
+
+    public void sendTilesDeleted(TileBatch batch) {
+        send(DELETED, batch);
+    }
+
+    public void sendTilesUpdated(TileBatch batch) {
+        send(UPDATED, batch);
+    }
+
+    /**
+     * Sends the batch to the {@link BatchBlobStoreListener}s in a single call, and tile by tile to
+     * the others
+     */
+    private void send(final int type, final TileBatch batch) {
+        if (listeners.size() == 0 || batch.size() == 0) {
+            return;
+        }
+        final String layerName = batch.getLayerName();
+        final String gridSetId = batch.getGridSetId();
+        final String blobFormat = batch.getBlobFormat();
+        final Long parametersId = batch.getParametersId();
+        for (int i = 0; i < listeners.size(); i++) {
+            final BlobStoreListener listener = listeners.get(i);
+            if (listener instanceof BatchBlobStoreListener) {
+                BatchBlobStoreListener batchListener = (BatchBlobStoreListener) listener;
+                if (type == STORED) {
+                    batchListener.tilesStored(batch);
+                } else if (type == DELETED) {
+                    batchListener.tilesDeleted(batch);
+                } else {
+                    batchListener.tilesUpdated(batch);
+                }
+                continue;
+            }
+            for (int j = 0; j < batch.size(); j++) {
+                final long x = batch.getX(j);
+                final long y = batch.getY(j);
+                final int z = batch.getZ(j);
+                final long blobSize = batch.getBlobSize(j);
+                if (type == STORED) {
+                    listener.tileStored(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                            blobSize);
+                } else if (type == DELETED) {
+                    listener.tileDeleted(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                            blobSize);
+                } else {
+                    listener.tileUpdated(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                            blobSize, batch.getOldSize(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts gathering the tile events sent on the current thread, by any blob store, into
+     * batches that are sent at the matching {@link #endBatch()}. Calls may be nested, the events
+     * are sent when the outermost batch ends.
+     * <p>
+     * Meant for callers storing or deleting a bunch of tiles at once, like when saving the tiles
+     * of a meta tile, so that {@link BatchBlobStoreListener}s get a call per batch instead of one
+     * per tile. Each call shall be matched by a call to {@link #endBatch()} in a finally block.
+     * </p>
+     */
+    public static void beginBatch() {
+        PendingBatches pending = PENDING.get();
+        if (pending == null) {
+            pending = new PendingBatches();
+            PENDING.set(pending);
+        }
+        pending.depth++;
+    }
+
+    /**
+     * Sends the tile events gathered since the matching {@link #beginBatch()}, if it's the
+     * outermost one
+     */
+    public static void endBatch() {
+        final PendingBatches pending = PENDING.get();
+        if (pending == null || --pending.depth > 0) {
+            return;
+        }
+        // listeners may send events of their own
+        PENDING.remove();
+        for (PendingBatch batch : pending.batches) {
+            batch.list.send(batch.type, batch.tiles);
+        }
+    }
+
+    /**
+     * Adds the tile to the current thread's batch, if any
+     * 
+     * @return {@code false} if the current thread is not gathering events in batches
+     */
+    private boolean batch(int type, String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        final PendingBatches pending = PENDING.get();
+        if (pending == null) {
+            return false;
+        }
+        PendingBatch batch = null;
+        final List<PendingBatch> batches = pending.batches;
+        for (int i = batches.size() - 1; i >= 0; i--) {
+            PendingBatch candidate = batches.get(i);
+            if (candidate.list == this && candidate.type == type
+                    && candidate.tiles.isSameTileSet(layerName, gridSetId, blobFormat,
+                            parametersId)) {
+                batch = candidate;
+                break;
+            }
+        }
+        if (batch == null) {
+            batch = new PendingBatch(this, type, new TileBatch(layerName, gridSetId, blobFormat,
+                    parametersId, 16));
+            batches.add(batch);
+        }
+        batch.tiles.add(x, y, z, blobSize, oldSize);
+        return true;
+    }
+
+    private static class PendingBatches {
+
+        private int depth;
+
+        private final List<PendingBatch> batches = new ArrayList<PendingBatch>(2);
+    }
+
+    private static class PendingBatch {
+
+        private final BlobStoreListenerList list;
+
+        private final int type;
+
+        private final TileBatch tiles;
+
+        PendingBatch(BlobStoreListenerList list, int type, TileBatch tiles) {
+            this.list = list;
+            this.type = type;
+            this.tiles = tiles;
+        }
+    }
 }
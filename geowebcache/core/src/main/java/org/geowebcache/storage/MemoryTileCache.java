@@ -0,0 +1,448 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeType;
+
+/**
+ * A bounded, thread safe, in-memory tile cache meant to sit in front of the {@link BlobStore}.
+ * <p>
+ * The cache is bounded both by number of tiles and by total storage size. In order to keep
+ * contention low it is split into a number of independently locked segments, each one holding an
+ * access ordered (LRU) map and a proportional share of the limits. Tiles bigger than a segment's
+ * share of the storage limit are never cached.
+ * </p>
+ * <p>
+ * The cache registers itself as a {@link BlobStoreListener} (see
+ * {@link StorageBroker#setMemoryCache(MemoryTileCache)}) so that deleted, updated and truncated
+ * tiles are evicted as soon as the blob store reports them.
+ * </p>
+ */
+public class MemoryTileCache implements BlobStoreListener {
+
+    private static Log log = LogFactory.getLog(MemoryTileCache.class);
+
+    public static final int DEFAULT_MAX_TILES = 10000;
+
+    public static final int DEFAULT_MAX_STORAGE_KB = 64 * 1024;
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final int maxTiles;
+
+    private final long maxStorageKB;
+
+    public MemoryTileCache() {
+        this(DEFAULT_MAX_TILES, DEFAULT_MAX_STORAGE_KB);
+    }
+
+    public MemoryTileCache(int maxTiles, long maxStorageKB) {
+        this(maxTiles, maxStorageKB, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param maxTiles
+     *            maximum number of tiles held in memory
+     * @param maxStorageKB
+     *            maximum size, in KiB, of the tiles held in memory
+     * @param concurrency
+     *            estimated number of concurrently updating threads, rounded up to a power of two
+     *            to determine the number of segments
+     */
+    public MemoryTileCache(int maxTiles, long maxStorageKB, int concurrency) {
+        if (maxTiles < 1 || maxStorageKB < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Cache limits and concurrency shall be positive");
+        }
+        int nsegments = 1;
+        while (nsegments < concurrency && nsegments < maxTiles) {
+            nsegments <<= 1;
+        }
+        this.maxTiles = maxTiles;
+        this.maxStorageKB = maxStorageKB;
+        this.segmentMask = nsegments - 1;
+        this.segments = new Segment[nsegments];
+
+        final int segmentTiles = Math.max(1, maxTiles / nsegments);
+        final long segmentBytes = Math.max(1, (maxStorageKB * 1024) / nsegments);
+        for (int i = 0; i < nsegments; i++) {
+            segments[i] = new Segment(segmentTiles, segmentBytes);
+        }
+        log.info("Memory tile cache initialized for a maximum of " + maxTiles + " tiles and "
+                + maxStorageKB + "KiB in " + nsegments + " segments");
+    }
+
+    private Segment segmentFor(final TileKey key) {
+        int h = key.hashCode();
+        // spread the hash bits so that tiles next to each other do not pile up in one segment
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * Looks up the tile in memory and, if found, sets its blob and creation time.
+     * <p>
+     * Tiles with parameters whose parameters id hasn't been resolved yet (i.e. it's {@code -1} but
+     * the tile has non default parameters) can't be looked up and are reported as a miss.
+     * </p>
+     *
+     * @return {@code true} if the tile was found in memory
+     */
+    public boolean get(final TileObject tile) {
+        if (!isCacheable(tile)) {
+            return false;
+        }
+        final TileKey key = TileKey.forTile(tile);
+        final CachedTile cached = segmentFor(key).get(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        tile.setBlob(new ByteArrayResource(cached.data));
+        tile.setCreated(cached.created);
+        return true;
+    }
+
+    /**
+     * Returns a token to be handed over to {@link #put(TileObject, long)} once the tile has been
+     * fetched from the blob store, so that a tile invalidated in between is not cached with stale
+     * contents.
+     *
+     * @return the generation token, or {@code -1} if the tile can't be cached because its
+     *         parameters id is not yet known
+     */
+    public long getGeneration(final TileObject tile) {
+        if (!isCacheable(tile)) {
+            return -1L;
+        }
+        return segmentFor(TileKey.forTile(tile)).generation;
+    }
+
+    /**
+     * Adds the tile contents to the cache if it's not bigger than allowed.
+     * <p>
+     * The tile's blob is copied to memory and, in order to avoid reading it twice, replaced by the
+     * in-memory copy.
+     * </p>
+     *
+     * @param generation
+     *            the value of {@link #getGeneration(TileObject)} obtained before the tile contents
+     *            were fetched
+     * @return {@code true} if the tile was cached
+     */
+    public boolean put(final TileObject tile, final long generation) throws StorageException {
+        final Resource blob = tile.getBlob();
+        if (blob == null || generation == -1L || !isCacheable(tile)) {
+            return false;
+        }
+        final TileKey key = TileKey.forTile(tile);
+        final Segment segment = segmentFor(key);
+        final long size = blob.getSize();
+        if (size <= 0 || size > segment.maxBytes) {
+            return false;
+        }
+        final byte[] data;
+        try {
+            data = readFully(blob, (int) size);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile " + key + ": " + e.getMessage());
+        }
+        tile.setBlob(new ByteArrayResource(data));
+        return segment.put(key, new CachedTile(data, tile.getCreated()), generation);
+    }
+
+    private boolean isCacheable(final TileObject tile) {
+        if (tile.getParametersId() != -1L) {
+            return true;
+        }
+        Map<String, String> parameters = tile.getParameters();
+        return parameters == null || parameters.size() == 0;
+    }
+
+    static byte[] readFully(Resource blob, int size) throws IOException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            // never share the array, it may be a reusable buffer
+            byte[] data = new byte[size];
+            System.arraycopy(contents, 0, data, 0, size);
+            return data;
+        }
+        byte[] data = new byte[size];
+        InputStream in = blob.getInputStream();
+        try {
+            int read = 0;
+            while (read < size) {
+                int n = in.read(data, read, size - read);
+                if (n == -1) {
+                    throw new IOException("Premature end of stream: expected " + size
+                            + " bytes, got " + read);
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Evicts the given tile from the cache, if present.
+     */
+    public void remove(final TileObject tile) {
+        remove(TileKey.forTile(tile));
+    }
+
+    public void remove(final TileKey key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Evicts all the tiles in the given range, regardless of their parameters id
+     */
+    public void remove(final TileRange range) {
+        final String layerName = range.getLayerName();
+        final String gridSetId = range.getGridSetId();
+        final MimeType mimeType = range.getMimeType();
+        final String format = mimeType == null ? null : mimeType.getFormat();
+        for (Segment segment : segments) {
+            segment.removeMatching(new KeyMatcher() {
+                public boolean matches(TileKey key) {
+                    return layerName.equals(key.getLayerName())
+                            && gridSetId.equals(key.getGridSetId())
+                            && (format == null || format.equals(key.getFormat()))
+                            && range.contains(key.getX(), key.getY(), key.getZ());
+                }
+            });
+        }
+    }
+
+    /**
+     * Evicts all the tiles of the given layer and, if {@code gridSetId != null}, gridset.
+     */
+    public void remove(final String layerName, final String gridSetId) {
+        for (Segment segment : segments) {
+            segment.removeMatching(new KeyMatcher() {
+                public boolean matches(TileKey key) {
+                    return layerName.equals(key.getLayerName())
+                            && (gridSetId == null || gridSetId.equals(key.getGridSetId()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Evicts all the cached tiles
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public int getMaxTiles() {
+        return maxTiles;
+    }
+
+    public long getMaxStorageKB() {
+        return maxStorageKB;
+    }
+
+    /**
+     * @return number of tiles currently in memory
+     */
+    public int getTileCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.tileCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of bytes currently used by the cached tiles
+     */
+    public long getStorageSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.storageSize();
+        }
+        return size;
+    }
+
+    /*
+     * BlobStoreListener implementation, keeps the cache in sync with the blob store
+     */
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        // tile is being stored for the first time, nothing to invalidate
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        remove(TileKey.forTile(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        remove(TileKey.forTile(layerName, gridSetId, blobFormat, parametersId, x, y, z));
+    }
+
+    public void layerDeleted(String layerName) {
+        remove(layerName, null);
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        remove(oldLayerName, null);
+        remove(newLayerName, null);
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        remove(layerName, gridSetId);
+    }
+
+    private static interface KeyMatcher {
+        boolean matches(TileKey key);
+    }
+
+    private static final class CachedTile {
+        final byte[] data;
+
+        final long created;
+
+        CachedTile(byte[] data, long created) {
+            this.data = data;
+            this.created = created;
+        }
+    }
+
+    /**
+     * An independently locked portion of the cache
+     */
+    private final class Segment {
+
+        private final LinkedHashMap<TileKey, CachedTile> tiles;
+
+        private final int maxTiles;
+
+        private final long maxBytes;
+
+        private long bytes;
+
+        /**
+         * Incremented on every invalidation, read without locking as a hint for {@link #put}
+         */
+        volatile long generation;
+
+        Segment(int maxTiles, long maxBytes) {
+            this.maxTiles = maxTiles;
+            this.maxBytes = maxBytes;
+            this.tiles = new LinkedHashMap<TileKey, CachedTile>(16, 0.75f, true);
+        }
+
+        synchronized CachedTile get(TileKey key) {
+            return tiles.get(key);
+        }
+
+        synchronized boolean put(TileKey key, CachedTile tile, long expectedGeneration) {
+            if (expectedGeneration != generation) {
+                // invalidated while the caller was fetching the tile
+                return false;
+            }
+            CachedTile old = tiles.put(key, tile);
+            if (old != null) {
+                bytes -= old.data.length;
+            }
+            bytes += tile.data.length;
+
+            Iterator<CachedTile> eldest = tiles.values().iterator();
+            while ((tiles.size() > maxTiles || bytes > maxBytes) && eldest.hasNext()) {
+                CachedTile evicted = eldest.next();
+                eldest.remove();
+                bytes -= evicted.data.length;
+                evictions.incrementAndGet();
+            }
+            return true;
+        }
+
+        synchronized void remove(TileKey key) {
+            generation++;
+            CachedTile old = tiles.remove(key);
+            if (old != null) {
+                bytes -= old.data.length;
+            }
+        }
+
+        synchronized void removeMatching(KeyMatcher matcher) {
+            generation++;
+            for (Iterator<Map.Entry<TileKey, CachedTile>> it = tiles.entrySet().iterator(); it
+                    .hasNext();) {
+                Map.Entry<TileKey, CachedTile> e = it.next();
+                if (matcher.matches(e.getKey())) {
+                    bytes -= e.getValue().data.length;
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            generation++;
+            tiles.clear();
+            bytes = 0;
+        }
+
+        synchronized int tileCount() {
+            return tiles.size();
+        }
+
+        synchronized long storageSize() {
+            return bytes;
+        }
+    }
+}
@@ -18,6 +18,8 @@
 package org.geowebcache.storage;
 
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,7 +43,20 @@ public class StorageBroker {
 
     private boolean verifyFileSize = false;
     
-    private TransientCache transientCache;
+    /**
+     * Transient caches for the tiles of the zoom levels that are not to be persisted, by layer
+     * name
+     */
+    private final ConcurrentMap<String, TransientCache> transientCaches =
+            new ConcurrentHashMap<String, TransientCache>();
+
+    private MemoryTileCache memoryCache;
+
+    private UniformTileStore uniformTileStore;
+
+    private TileExistenceIndex tileExistenceIndex;
+
+    private WriteBehindQueue writeBehindQueue;
 
     public StorageBroker(MetaStore metaStore, BlobStore blobStore) {
         this.metaStore = metaStore;
@@ -52,8 +67,6 @@ public class StorageBroker {
         } else {
             metaStoreEnabled = false;
         }
-        // @todo are these settings reasonable? should they be configurable?
-        transientCache = new TransientCache(100,1000);
     }
 
     public void addBlobStoreListener(BlobStoreListener listener){
@@ -68,15 +81,117 @@ public class StorageBroker {
         this.verifyFileSize = verifyFileSize;
     }
 
+    /**
+     * Sets the in-memory tile cache to be checked before going to the stores, or {@code null} to
+     * disable it.
+     * <p>
+     * The cache is registered as a listener of the blob store in order to be notified of deleted
+     * and updated tiles.
+     * </p>
+     */
+    public void setMemoryCache(MemoryTileCache memoryCache) {
+        if (this.memoryCache != null) {
+            blobStore.removeListener(this.memoryCache);
+        }
+        this.memoryCache = memoryCache;
+        if (memoryCache != null) {
+            blobStore.addListener(memoryCache);
+        }
+    }
+
+    /**
+     * @return the in-memory tile cache, or {@code null} if not enabled
+     */
+    public MemoryTileCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * Sets the store for single color tiles, or {@code null} to store them as any other tile.
+     * <p>
+     * Tile layers check whether the tiles they are about to save are made of a single color, and
+     * if so {@link #putUniform(TileObject, long) record} them in this store instead of the blob
+     * store, where all the tiles of a color share the same encoded image.
+     * </p>
+     */
+    public void setUniformTileStore(UniformTileStore uniformTileStore) {
+        this.uniformTileStore = uniformTileStore;
+    }
+
+    /**
+     * @return the store for single color tiles, or {@code null} if not enabled
+     */
+    public UniformTileStore getUniformTileStore() {
+        return uniformTileStore;
+    }
+
+    /**
+     * Sets the index of the stored tiles to tell misses by, without going to the stores, or
+     * {@code null} to disable it.
+     * <p>
+     * The index keeps itself up to date as a listener of the blob store it indexes, which must be
+     * this broker's.
+     * </p>
+     */
+    public void setTileExistenceIndex(TileExistenceIndex tileExistenceIndex) {
+        this.tileExistenceIndex = tileExistenceIndex;
+    }
+
+    /**
+     * @return the index of the stored tiles, or {@code null} if not enabled
+     */
+    public TileExistenceIndex getTileExistenceIndex() {
+        return tileExistenceIndex;
+    }
+
+    /**
+     * Sets the queue tiles are {@link #put(TileObject) put} in to be stored by its own threads,
+     * or {@code null} to store them on the calling thread.
+     * <p>
+     * The queue is started with this broker as the tile writer, and shut down by
+     * {@link #destroy()}. Queued tiles are served from memory until written.
+     * </p>
+     */
+    public void setWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+        if (this.writeBehindQueue != null) {
+            this.writeBehindQueue.shutdown();
+        }
+        this.writeBehindQueue = writeBehindQueue;
+        if (writeBehindQueue != null) {
+            writeBehindQueue.start(new WriteBehindQueue.TileWriter() {
+                public boolean write(TileObject tile) throws StorageException {
+                    return putNow(tile);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the write behind queue, or {@code null} if tiles are stored on the calling thread
+     */
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
     /**
      * Completely eliminates the cache for the given layer.
      */
     public boolean delete(String layerName) throws StorageException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.discard(layerName, null);
+        }
         boolean ret = true;
         if (metaStoreEnabled) {
             ret = metaStore.delete(layerName);
         }
         ret = (ret && blobStore.delete(layerName));
+        if (uniformTileStore != null) {
+            uniformTileStore.delete(layerName);
+        }
+        if (memoryCache != null) {
+            memoryCache.remove(layerName, null);
+        }
+        transientCaches.remove(layerName);
         return ret;
     }
 
@@ -91,24 +206,50 @@ public class StorageBroker {
      */
     public boolean deleteByGridSetId(final String layerName, final String gridSetId)
             throws StorageException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.discard(layerName, gridSetId);
+        }
         boolean ret = true;
         if (metaStoreEnabled) {
             ret = metaStore.deleteByGridsetId(layerName, gridSetId);
         }
         ret = (ret && blobStore.deleteByGridsetId(layerName, gridSetId));
+        if (uniformTileStore != null) {
+            uniformTileStore.deleteByGridSetId(layerName, gridSetId);
+        }
+        if (memoryCache != null) {
+            memoryCache.remove(layerName, gridSetId);
+        }
         return ret;
     }
 
     public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        if (writeBehindQueue != null) {
+            // queued with the old name, and the tiles of a new layer would be moved otherwise
+            writeBehindQueue.discard(oldLayerName, null);
+            writeBehindQueue.discard(newLayerName, null);
+        }
         boolean ret = true;
         if (metaStoreEnabled) {
             ret = metaStore.rename(oldLayerName, newLayerName);
         }
         ret = (ret && blobStore.rename(oldLayerName, newLayerName));
+        if (uniformTileStore != null) {
+            uniformTileStore.rename(oldLayerName, newLayerName);
+        }
+        if (memoryCache != null) {
+            memoryCache.remove(oldLayerName, null);
+            memoryCache.remove(newLayerName, null);
+        }
+        transientCaches.remove(oldLayerName);
+        transientCaches.remove(newLayerName);
         return ret;
     }
 
     public boolean delete(TileRange trObj) throws StorageException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.discard(trObj);
+        }
         boolean deleted;
         if (metaStoreEnabled) {
             deleted = metaStore.delete(blobStore, trObj);
@@ -118,10 +259,42 @@ public class StorageBroker {
             }
             deleted = blobStore.delete(trObj);
         }
+        if (uniformTileStore != null) {
+            uniformTileStore.delete(trObj);
+        }
+        if (memoryCache != null) {
+            // the blob store reports each deleted tile, but not all of them may do so
+            memoryCache.remove(trObj);
+        }
         return deleted;
     }
 
     public boolean get(TileObject tileObj) throws StorageException {
+        if (uniformTileStore != null && uniformTileStore.get(tileObj)) {
+            // already in memory, no need to go through the memory cache
+            return true;
+        }
+        if (writeBehindQueue != null && writeBehindQueue.get(tileObj)) {
+            return true;
+        }
+        if (memoryCache == null) {
+            return getFromStores(tileObj);
+        }
+        if (memoryCache.get(tileObj)) {
+            return true;
+        }
+        final long generation = memoryCache.getGeneration(tileObj);
+        boolean found = getFromStores(tileObj);
+        if (found) {
+            memoryCache.put(tileObj, generation);
+        }
+        return found;
+    }
+
+    private boolean getFromStores(TileObject tileObj) throws StorageException {
+        if (tileExistenceIndex != null && tileExistenceIndex.isMissing(tileObj)) {
+            return false;
+        }
         if (!metaStoreEnabled) {
             boolean found = getBlobOnly(tileObj);
             return found;
@@ -167,7 +340,31 @@ public class StorageBroker {
         }
     }
 
+    /**
+     * Stores the tile, or queues it to be stored if there's a
+     * {@link #setWriteBehindQueue(WriteBehindQueue) write behind queue}.
+     * 
+     * @return whether the tile was stored or queued
+     */
     public boolean put(TileObject tileObj) throws StorageException {
+        if (uniformTileStore != null) {
+            uniformTileStore.remove(tileObj);
+        }
+        try {
+            if (writeBehindQueue != null) {
+                return writeBehindQueue.put(tileObj);
+            }
+            return putNow(tileObj);
+        } finally {
+            // evicted once the new contents are in place, bumping the cache generation so a
+            // concurrent get that read the old contents does not cache them back
+            if (memoryCache != null) {
+                memoryCache.remove(tileObj);
+            }
+        }
+    }
+
+    private boolean putNow(TileObject tileObj) throws StorageException {
         if (!metaStoreEnabled) {
             boolean stored = putBlobOnly(tileObj);
             return stored;
@@ -190,6 +387,48 @@ public class StorageBroker {
         return false;
     }
 
+    /**
+     * Records a tile made of a single color in the {@link #setUniformTileStore(UniformTileStore)
+     * uniform tile store} instead of storing it, removing any tile previously stored at its
+     * position. The tile blob is only needed if it's the first tile of its color for the layer,
+     * grid set and format, see {@link UniformTileStore#getResource(TileObject, long)}.
+     * <p>
+     * Tiles the uniform tile store can't track are {@link #put(TileObject) stored} as usual.
+     * </p>
+     * 
+     * @param color
+     *            the tile color, as returned by
+     *            {@link org.geowebcache.layer.MetaTile#getUniformColor(int)}
+     * @return the shared encoded tile to serve the tile with, or {@code null} if the tile was
+     *         stored as usual
+     */
+    public UniformTileResource putUniform(TileObject tileObj, long color)
+            throws StorageException {
+        if (uniformTileStore == null || !uniformTileStore.supports(tileObj)) {
+            put(tileObj);
+            return null;
+        }
+        // a recorded uniform tile was removed from the blob store when it was recorded, and the
+        // existence index knows about the tiles the blob store holds
+        final boolean mayBeStored = !uniformTileStore.contains(tileObj)
+                && (tileExistenceIndex == null || !tileExistenceIndex.isMissing(tileObj));
+        UniformTileResource shared = uniformTileStore.put(tileObj, color);
+        if (shared == null) {
+            put(tileObj);
+            return null;
+        }
+        if (memoryCache != null) {
+            memoryCache.remove(tileObj);
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.discard(tileObj);
+        }
+        if (mayBeStored) {
+            blobStore.delete(tileObj);
+        }
+        return shared;
+    }
+
     private boolean putBlobOnly(TileObject tileObj) {
         if (tileObj.getParameters() == null || tileObj.getParameters().size() == 0) {
             try {
@@ -210,6 +449,12 @@ public class StorageBroker {
      */
     public void destroy() {
         log.info("Destroying StorageBroker");
+        if (writeBehindQueue != null) {
+            writeBehindQueue.shutdown();
+        }
+        if (uniformTileStore != null) {
+            uniformTileStore.destroy();
+        }
     }
 
     public String getLayerMetadata(final String layerName, final String key) {
@@ -220,6 +465,10 @@ public class StorageBroker {
         this.blobStore.putLayerMetadata(layerName, key, value);
     }
 
+    /**
+     * @deprecated the transient cache is no longer keyed by file path, see {@link TileKey}
+     */
+    @Deprecated
     public static String computeTransientKey(TileObject tile) {
         try {
             MimeType mime = MimeType.createFromFormat(tile.getBlobFormat());
@@ -230,20 +479,54 @@ public class StorageBroker {
         }
     }
 
+    /**
+     * Looks up and removes the tile from the transient cache, tiles there are meant to be served
+     * only once.
+     */
     public boolean getTransient(TileObject tile) {
-        String key = computeTransientKey(tile);
-        Resource resource;
-        synchronized (transientCache) {
-            resource = transientCache.get(key);
+        TransientCache transientCache = transientCaches.get(tile.getLayerName());
+        Resource resource = null;
+        if (transientCache != null) {
+            resource = transientCache.get(TileKey.forTileParameters(tile));
         }
         tile.setBlob(resource); 
         return resource != null;
     }
 
+    /**
+     * Adds the tile to the layer's transient cache using the default limits of
+     * {@link TransientCache#DEFAULT_MAX_TILES} tiles and
+     * {@link TransientCache#DEFAULT_MAX_STORAGE_KB}KiB
+     */
     public void putTransient(TileObject tile) {
-        String key = computeTransientKey(tile);
-        synchronized (transientCache) {
-            transientCache.put(key, tile.getBlob());
+        putTransient(tile, TransientCache.DEFAULT_MAX_TILES, TransientCache.DEFAULT_MAX_STORAGE_KB);
+    }
+
+    /**
+     * Adds the tile to the layer's transient cache, creating it with the given limits if needed
+     * 
+     * @param maxTiles
+     *            maximum number of tiles for the layer's transient cache
+     * @param maxStorageKB
+     *            maximum size of the layer's transient cache, in KiB
+     */
+    public void putTransient(TileObject tile, int maxTiles, int maxStorageKB) {
+        final String layerName = tile.getLayerName();
+        TransientCache transientCache = transientCaches.get(layerName);
+        if (transientCache == null || transientCache.getMaxTiles() != maxTiles
+                || transientCache.getMaxStorageKB() != maxStorageKB) {
+            TransientCache newCache = new TransientCache(maxTiles, maxStorageKB);
+            if (transientCache == null) {
+                transientCache = transientCaches.putIfAbsent(layerName, newCache);
+                if (transientCache == null) {
+                    transientCache = newCache;
+                }
+            } else {
+                // layer configuration changed, drop the old cache contents
+                transientCaches.put(layerName, newCache);
+                transientCache = newCache;
+            }
         }
+        transientCache.put(TileKey.forTileParameters(tile), tile.getBlob());
     }
 }
@@ -0,0 +1,168 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+/**
+ * A batch of tiles of the same layer, grid set, format and parameters, as sent to
+ * {@link BatchBlobStoreListener}s.
+ * <p>
+ * Tile coordinates and sizes are kept in primitive arrays, so that a batch costs a handful of
+ * objects no matter how many tiles it holds. Once sent to the listeners a batch is no longer
+ * modified, so listeners may hold on to it, for example to queue it up for another thread.
+ * </p>
+ */
+public final class TileBatch {
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String blobFormat;
+
+    private final Long parametersId;
+
+    private int size;
+
+    private long[] x;
+
+    private long[] y;
+
+    private int[] z;
+
+    private long[] blobSize;
+
+    private long[] oldSize;
+
+    public TileBatch(String layerName, String gridSetId, String blobFormat, Long parametersId,
+            int capacity) {
+        this.layerName = layerName;
+        this.gridSetId = gridSetId;
+        this.blobFormat = blobFormat;
+        this.parametersId = parametersId;
+        capacity = Math.max(1, capacity);
+        this.x = new long[capacity];
+        this.y = new long[capacity];
+        this.z = new int[capacity];
+        this.blobSize = new long[capacity];
+        this.oldSize = new long[capacity];
+    }
+
+    /**
+     * Adds a stored or deleted tile
+     */
+    public void add(long x, long y, int z, long blobSize) {
+        add(x, y, z, blobSize, 0);
+    }
+
+    /**
+     * Adds an updated tile
+     */
+    public void add(long x, long y, int z, long blobSize, long oldSize) {
+        if (size == this.x.length) {
+            grow();
+        }
+        this.x[size] = x;
+        this.y[size] = y;
+        this.z[size] = z;
+        this.blobSize[size] = blobSize;
+        this.oldSize[size] = oldSize;
+        size++;
+    }
+
+    private void grow() {
+        final int capacity = 2 * size;
+        x = copy(x, capacity);
+        y = copy(y, capacity);
+        blobSize = copy(blobSize, capacity);
+        oldSize = copy(oldSize, capacity);
+        int[] newZ = new int[capacity];
+        System.arraycopy(z, 0, newZ, 0, size);
+        z = newZ;
+    }
+
+    private long[] copy(long[] array, int capacity) {
+        long[] copy = new long[capacity];
+        System.arraycopy(array, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * @return whether tiles of the given layer, grid set, format and parameters belong to this
+     *         batch
+     */
+    public boolean isSameTileSet(String layerName, String gridSetId, String blobFormat,
+            Long parametersId) {
+        return equal(this.layerName, layerName) && equal(this.gridSetId, gridSetId)
+                && equal(this.blobFormat, blobFormat) && equal(this.parametersId, parametersId);
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public String getGridSetId() {
+        return gridSetId;
+    }
+
+    public String getBlobFormat() {
+        return blobFormat;
+    }
+
+    public Long getParametersId() {
+        return parametersId;
+    }
+
+    /**
+     * @return the number of tiles in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getX(int i) {
+        return x[i];
+    }
+
+    public long getY(int i) {
+        return y[i];
+    }
+
+    public int getZ(int i) {
+        return z[i];
+    }
+
+    public long getBlobSize(int i) {
+        return blobSize[i];
+    }
+
+    /**
+     * @return the size the i-th tile had before being updated, {@code 0} for stored or deleted
+     *         tiles
+     */
+    public long getOldSize(int i) {
+        return oldSize[i];
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(layerName).append(", ").append(gridSetId)
+                .append(", ").append(blobFormat).append(", ").append(parametersId).append(", ")
+                .append(size).append(" tiles]").toString();
+    }
+}
@@ -0,0 +1,483 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * In-memory index of the tiles stored in a {@link FileBlobStore}, so that cache misses are told
+ * without going to the file system (see {@link StorageBroker#setTileExistenceIndex}).
+ * <p>
+ * The index is built at start up by scanning the cache with a few threads, and kept up to date
+ * afterwards from the blob store events. Until the scan is over nothing is known to be missing.
+ * It can only be used when this GeoWebCache instance is the only one writing to the cache, tiles
+ * written by anyone else would be taken for missing.
+ * </p>
+ * <p>
+ * Each zoom level of a tile set is a sparse bitmap split in chunks of 32x32 tiles, held in
+ * primitive arrays, so that an indexed tile costs a bit on dense areas and about 130 bytes on the
+ * sparsest ones. Missed delete events only make the index report deleted tiles as still there, a
+ * harmless outcome given all it's used for is skipping the lookup of missing tiles.
+ * </p>
+ */
+public class TileExistenceIndex implements BatchBlobStoreListener, InitializingBean,
+        DisposableBean {
+
+    private static final Log log = LogFactory.getLog(TileExistenceIndex.class);
+
+    private final FileBlobStore blobStore;
+
+    private final TileLayerDispatcher layers;
+
+    private final Map<String, LayerIndex> layerIndexes =
+            new ConcurrentHashMap<String, LayerIndex>();
+
+    private int rebuildThreads = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private volatile boolean ready;
+
+    private ExecutorService rebuildExecutor;
+
+    /**
+     * @param blobStore
+     *            the blob store to index, the index registers itself as its listener. It's
+     *            scanned through {@link FileBlobStore#scanTiles}, which the
+     *            {@link org.geowebcache.storage.blobstore.file.BundleFileBlobStore} overrides to
+     *            report its bundled tiles
+     * @param layers
+     *            the layers to index the tiles of at start up
+     */
+    public TileExistenceIndex(FileBlobStore blobStore, TileLayerDispatcher layers) {
+        this.blobStore = blobStore;
+        this.layers = layers;
+    }
+
+    /**
+     * @param rebuildThreads
+     *            how many layers are scanned at once at start up. Defaults to the number of
+     *            processors, up to 4.
+     */
+    public void setRebuildThreads(int rebuildThreads) {
+        this.rebuildThreads = Math.max(1, rebuildThreads);
+    }
+
+    /**
+     * Starts listening to the blob store and scanning its tiles in the background
+     */
+    public void afterPropertiesSet() {
+        blobStore.addListener(this);
+
+        final List<Runnable> scans = new ArrayList<Runnable>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        for (TileLayer layer : layers.getLayerList()) {
+            for (String gridSetId : layer.getGridSubsets()) {
+                final String layerName = layer.getName();
+                final String scanGridSetId = gridSetId;
+                scans.add(new Runnable() {
+                    public void run() {
+                        try {
+                            long count = blobStore.scanTiles(layerName, scanGridSetId,
+                                    TileExistenceIndex.this);
+                            log.debug("Indexed " + count + " tiles of " + layerName + "/"
+                                    + scanGridSetId);
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            log.warn("Unable to index the tiles of " + layerName + "/"
+                                    + scanGridSetId + ", the index won't be used", e);
+                        } finally {
+                            if (pending.decrementAndGet() == 0 && failed.get() == 0) {
+                                ready = true;
+                                log.info("Tile existence index ready");
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        if (scans.isEmpty()) {
+            ready = true;
+            return;
+        }
+        pending.set(scans.size());
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC tile index thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        rebuildExecutor = Executors.newFixedThreadPool(rebuildThreads, tf);
+        for (Runnable scan : scans) {
+            rebuildExecutor.submit(scan);
+        }
+        rebuildExecutor.shutdown();
+    }
+
+    /**
+     * Stops indexing and listening to the blob store
+     */
+    public void destroy() {
+        if (rebuildExecutor != null) {
+            rebuildExecutor.shutdownNow();
+        }
+        blobStore.removeListener(this);
+        ready = false;
+        layerIndexes.clear();
+    }
+
+    /**
+     * @return whether the start up scan is over, and hence tiles not in the index are missing
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return whether the tile is in the index, not to be trusted until {@link #isReady() ready}
+     */
+    public boolean contains(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z) {
+        LayerIndex layer = layerIndexes.get(layerName);
+        if (layer == null) {
+            return false;
+        }
+        TileSetIndex tileSet = layer.get(gridSetId, blobFormat, parametersId);
+        return tileSet != null && tileSet.contains(x, y, z);
+    }
+
+    /**
+     * @return {@code true} if the tile is known not to be stored, {@code false} if it may be
+     */
+    public boolean isMissing(TileObject tile) {
+        if (!ready) {
+            return false;
+        }
+        final long parameters = tile.getParametersId();
+        if (parameters == -1L && tile.getParameters() != null && !tile.getParameters().isEmpty()) {
+            // the parameters id isn't known yet
+            return false;
+        }
+        final long[] xyz = tile.getXYZ();
+        return !contains(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                parameters == -1L ? null : Long.valueOf(parameters), xyz[0], xyz[1],
+                (int) xyz[2]);
+    }
+
+    private TileSetIndex tileSet(String layerName, String gridSetId, String blobFormat,
+            Long parametersId) {
+        LayerIndex layer = layerIndexes.get(layerName);
+        if (layer == null) {
+            synchronized (layerIndexes) {
+                layer = layerIndexes.get(layerName);
+                if (layer == null) {
+                    layer = new LayerIndex();
+                    layerIndexes.put(layerName, layer);
+                }
+            }
+        }
+        return layer.getOrCreate(gridSetId, blobFormat, parametersId);
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        tileSet(layerName, gridSetId, blobFormat, parametersId).set(x, y, z, true);
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        tileStored(layerName, gridSetId, blobFormat, parametersId, x, y, z, blobSize);
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            Long parametersId, long x, long y, int z, long blobSize) {
+        LayerIndex layer = layerIndexes.get(layerName);
+        TileSetIndex tileSet = layer == null ? null : layer.get(gridSetId, blobFormat,
+                parametersId);
+        if (tileSet != null) {
+            tileSet.set(x, y, z, false);
+        }
+    }
+
+    public void tilesStored(TileBatch batch) {
+        tileSet(batch.getLayerName(), batch.getGridSetId(), batch.getBlobFormat(),
+                batch.getParametersId()).set(batch, true);
+    }
+
+    public void tilesUpdated(TileBatch batch) {
+        tilesStored(batch);
+    }
+
+    public void tilesDeleted(TileBatch batch) {
+        LayerIndex layer = layerIndexes.get(batch.getLayerName());
+        TileSetIndex tileSet = layer == null ? null : layer.get(batch.getGridSetId(),
+                batch.getBlobFormat(), batch.getParametersId());
+        if (tileSet != null) {
+            tileSet.set(batch, false);
+        }
+    }
+
+    public void layerDeleted(String layerName) {
+        layerIndexes.remove(layerName);
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        synchronized (layerIndexes) {
+            LayerIndex layer = layerIndexes.remove(oldLayerName);
+            if (layer != null) {
+                layerIndexes.put(newLayerName, layer);
+            } else {
+                layerIndexes.remove(newLayerName);
+            }
+        }
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        LayerIndex layer = layerIndexes.get(layerName);
+        if (layer != null) {
+            layer.remove(gridSetId);
+        }
+    }
+
+    /**
+     * The tile sets of a layer, looked up without creating any object
+     */
+    private static final class LayerIndex {
+
+        private volatile TileSetIndex[] tileSets = new TileSetIndex[0];
+
+        TileSetIndex get(String gridSetId, String blobFormat, Long parametersId) {
+            final TileSetIndex[] current = tileSets;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].matches(gridSetId, blobFormat, parametersId)) {
+                    return current[i];
+                }
+            }
+            return null;
+        }
+
+        TileSetIndex getOrCreate(String gridSetId, String blobFormat, Long parametersId) {
+            TileSetIndex tileSet = get(gridSetId, blobFormat, parametersId);
+            if (tileSet != null) {
+                return tileSet;
+            }
+            synchronized (this) {
+                tileSet = get(gridSetId, blobFormat, parametersId);
+                if (tileSet == null) {
+                    tileSet = new TileSetIndex(gridSetId, blobFormat, parametersId);
+                    TileSetIndex[] added = new TileSetIndex[tileSets.length + 1];
+                    System.arraycopy(tileSets, 0, added, 0, tileSets.length);
+                    added[tileSets.length] = tileSet;
+                    tileSets = added;
+                }
+                return tileSet;
+            }
+        }
+
+        synchronized void remove(String gridSetId) {
+            List<TileSetIndex> kept = new ArrayList<TileSetIndex>();
+            for (TileSetIndex tileSet : tileSets) {
+                if (!tileSet.gridSetId.equals(gridSetId)) {
+                    kept.add(tileSet);
+                }
+            }
+            tileSets = kept.toArray(new TileSetIndex[kept.size()]);
+        }
+    }
+
+    /**
+     * The tiles of a layer, grid set, format and parameters combination, by zoom level
+     */
+    private static final class TileSetIndex {
+
+        final String gridSetId;
+
+        final String blobFormat;
+
+        final Long parametersId;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private TileBitmap[] levels = new TileBitmap[0];
+
+        TileSetIndex(String gridSetId, String blobFormat, Long parametersId) {
+            this.gridSetId = gridSetId;
+            this.blobFormat = blobFormat;
+            this.parametersId = parametersId;
+        }
+
+        boolean matches(String gridSetId, String blobFormat, Long parametersId) {
+            return this.gridSetId.equals(gridSetId) && this.blobFormat.equals(blobFormat)
+                    && (this.parametersId == null ? parametersId == null : this.parametersId
+                            .equals(parametersId));
+        }
+
+        boolean contains(long x, long y, int z) {
+            lock.readLock().lock();
+            try {
+                return z >= 0 && z < levels.length && levels[z] != null && levels[z].get(x, y);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void setLocked(long x, long y, int z, boolean value) {
+            if (z >= levels.length) {
+                if (!value) {
+                    return;
+                }
+                TileBitmap[] grown = new TileBitmap[z + 1];
+                System.arraycopy(levels, 0, grown, 0, levels.length);
+                levels = grown;
+            }
+            if (levels[z] == null) {
+                if (!value) {
+                    return;
+                }
+                levels[z] = new TileBitmap();
+            }
+            levels[z].set(x, y, value);
+        }
+
+        void set(long x, long y, int z, boolean value) {
+            lock.writeLock().lock();
+            try {
+                setLocked(x, y, z, value);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void set(TileBatch batch, boolean value) {
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    setLocked(batch.getX(i), batch.getY(i), batch.getZ(i), value);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Sparse bitmap of the tiles of a zoom level, made of chunks of {@code 32x32} tiles held in an
+     * open addressing hash table keyed by chunk position.
+     */
+    static final class TileBitmap {
+
+        private static final int CHUNK_SHIFT = 5;
+
+        private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private static final int CHUNK_LONGS = (1 << (2 * CHUNK_SHIFT)) / 64;
+
+        private static final long FREE = -1L;
+
+        private long[] keys;
+
+        private long[][] chunks;
+
+        private int size;
+
+        TileBitmap() {
+            keys = new long[16];
+            Arrays.fill(keys, FREE);
+            chunks = new long[16][];
+        }
+
+        private static long key(final long x, final long y) {
+            return ((x >>> CHUNK_SHIFT) << 32) | (y >>> CHUNK_SHIFT);
+        }
+
+        private static int bit(final long x, final long y) {
+            return (int) (((x & CHUNK_MASK) << CHUNK_SHIFT) | (y & CHUNK_MASK));
+        }
+
+        private int slot(final long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            final int mask = keys.length - 1;
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (keys[slot] != FREE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        boolean get(final long x, final long y) {
+            final long[] chunk = chunks[slot(key(x, y))];
+            if (chunk == null) {
+                return false;
+            }
+            final int bit = bit(x, y);
+            return (chunk[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        void set(final long x, final long y, final boolean value) {
+            final long key = key(x, y);
+            int slot = slot(key);
+            long[] chunk = chunks[slot];
+            if (chunk == null) {
+                if (!value) {
+                    return;
+                }
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    slot = slot(key);
+                }
+                chunk = new long[CHUNK_LONGS];
+                keys[slot] = key;
+                chunks[slot] = chunk;
+                size++;
+            }
+            final int bit = bit(x, y);
+            if (value) {
+                chunk[bit >>> 6] |= 1L << bit;
+            } else {
+                chunk[bit >>> 6] &= ~(1L << bit);
+            }
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final long[][] oldChunks = chunks;
+            keys = new long[2 * oldKeys.length];
+            Arrays.fill(keys, FREE);
+            chunks = new long[keys.length][];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldChunks[i] != null) {
+                    final int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    chunks[slot] = oldChunks[i];
+                }
+            }
+        }
+    }
+}
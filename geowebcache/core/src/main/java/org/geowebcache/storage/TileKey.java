@@ -0,0 +1,177 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.Map;
+
+/**
+ * Compact, immutable identifier for a single tile, suitable as a hash key for in-memory tile
+ * caches.
+ * <p>
+ * A key is made of the layer name, gridset id, blob format, parameters id (or {@code -1} for the
+ * default parameters), optionally the parameters themselves, and the tile index. Unlike the file
+ * path for the tile it is cheap to build, and its hash code is computed only once.
+ * </p>
+ */
+public final class TileKey {
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String format;
+
+    private final long parametersId;
+
+    private final long x;
+
+    private final long y;
+
+    private final int z;
+
+    private final Map<String, String> parameters;
+
+    private final int hash;
+
+    public TileKey(final String layerName, final String gridSetId, final String format,
+            final long parametersId, final long x, final long y, final int z) {
+        this(layerName, gridSetId, format, parametersId, null, x, y, z);
+    }
+
+    private TileKey(final String layerName, final String gridSetId, final String format,
+            final long parametersId, final Map<String, String> parameters, final long x,
+            final long y, final int z) {
+        this.layerName = layerName;
+        this.gridSetId = gridSetId;
+        this.format = format;
+        this.parametersId = parametersId;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.parameters = parameters == null || parameters.size() == 0 ? null : parameters;
+
+        int h = 17;
+        h = 31 * h + (int) (x ^ (x >>> 32));
+        h = 31 * h + (int) (y ^ (y >>> 32));
+        h = 31 * h + z;
+        h = 31 * h + (int) (parametersId ^ (parametersId >>> 32));
+        h = 31 * h + (layerName == null ? 0 : layerName.hashCode());
+        h = 31 * h + (gridSetId == null ? 0 : gridSetId.hashCode());
+        h = 31 * h + (format == null ? 0 : format.hashCode());
+        h = 31 * h + (this.parameters == null ? 0 : this.parameters.hashCode());
+        this.hash = h;
+    }
+
+    /**
+     * Creates the key for the given tile; a parameters id of {@code -1} identifies the tiles for
+     * the default set of parameters.
+     */
+    public static TileKey forTile(final TileObject tile) {
+        final long[] xyz = tile.getXYZ();
+        return new TileKey(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                tile.getParametersId(), xyz[0], xyz[1], (int) xyz[2]);
+    }
+
+    /**
+     * Creates a key that identifies the tile by its parameters rather than by its parameters id,
+     * for tiles that don't go through the {@link MetaStore} and hence never get a parameters id
+     * assigned.
+     */
+    public static TileKey forTileParameters(final TileObject tile) {
+        return forParameters(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                tile.getParameters(), tile.getXYZ());
+    }
+
+    /**
+     * Creates a key that identifies a tile (or meta tile) of the default parameters id by its
+     * request parameters
+     *
+     * @see #forTileParameters(TileObject)
+     */
+    public static TileKey forParameters(final String layerName, final String gridSetId,
+            final String format, final Map<String, String> parameters, final long[] xyz) {
+        return new TileKey(layerName, gridSetId, format, -1L, parameters, xyz[0], xyz[1],
+                (int) xyz[2]);
+    }
+
+    /**
+     * Creates the key for a tile as reported through a {@link BlobStoreListener} event, where a
+     * {@code null} parameters id stands for the default parameters.
+     */
+    public static TileKey forTile(final String layerName, final String gridSetId,
+            final String format, final Long parametersId, final long x, final long y, final int z) {
+        final long paramsId = parametersId == null ? -1L : parametersId.longValue();
+        return new TileKey(layerName, gridSetId, format, paramsId, x, y, z);
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public String getGridSetId() {
+        return gridSetId;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public long getParametersId() {
+        return parametersId;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TileKey)) {
+            return false;
+        }
+        TileKey k = (TileKey) o;
+        return hash == k.hash && x == k.x && y == k.y && z == k.z
+                && parametersId == k.parametersId && equal(layerName, k.layerName)
+                && equal(gridSetId, k.gridSetId) && equal(format, k.format)
+                && equal(parameters, k.parameters);
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + layerName + "," + gridSetId + "," + format + ","
+                + (parameters == null ? String.valueOf(parametersId) : parameters.toString())
+                + ",{" + x + ", " + y + ", " + z + "}]";
+    }
+}
@@ -93,9 +93,9 @@ public class TileRange {
             return true;
         }
 
-        if (z >= getZoomStart() && z <= getZoomStop()) {
+        if (includesZoomLevel(z)) {
 
-            long[] rB = rangeBounds((int) z);
+            long[] rB = getZoomLevelBounds(z);
 
             if (rB[0] <= x && rB[2] >= x && rB[1] <= y && rB[3] >= y) {
                 return true;
@@ -157,6 +157,32 @@ public class TileRange {
         return parameters;
     }
 
+    /**
+     * @return whether the range takes in tiles at the given zoom level, that is, the level is
+     *         within the range zoom levels (all of them if both are {@code -1}) and the range has
+     *         either no bounds at all or some for the level
+     */
+    public boolean includesZoomLevel(final int zoomLevel) {
+        if (!(zoomStart == -1 && zoomStop == -1)
+                && (zoomLevel < zoomStart || zoomLevel > zoomStop)) {
+            return false;
+        }
+        return rangeBounds == null || rangeBounds.containsKey(Integer.valueOf(zoomLevel));
+    }
+
+    /**
+     * @return the {@code minx, miny, maxx, maxy, z} bounds at the given zoom level, or
+     *         {@code null} if the range has no bounds at all, meaning the whole level. Only
+     *         meaningful for the levels the range {@link #includesZoomLevel includes}, for the
+     *         others it's {@code null} too.
+     */
+    public long[] getZoomLevelBounds(final int zoomLevel) {
+        if (rangeBounds == null || !includesZoomLevel(zoomLevel)) {
+            return null;
+        }
+        return rangeBounds.get(Integer.valueOf(zoomLevel));
+    }
+
     public long[] rangeBounds(final int zoomLevel) {
         if (zoomLevel < zoomStart) {
             throw new IllegalArgumentException(zoomLevel + " < zoomStart (" + zoomStart + ")");
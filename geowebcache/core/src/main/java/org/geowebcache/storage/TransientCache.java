@@ -15,93 +15,205 @@
 package org.geowebcache.storage;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 
 /**
- * Non-thread safe Resource cache. Currently in-memory only.
+ * Thread safe, in-memory cache for the tiles of a meta tile that are not to be persisted (i.e.
+ * outside the layer's cached zoom levels) so that they can be served once when requested.
+ * <p>
+ * Entries are consumed on read. The cache is bounded by number of tiles and storage size, and is
+ * split into independently locked segments, each holding a share of the limits and evicting its
+ * oldest entries first.
+ * </p>
+ *
  * @author Ian Schneider <ischneider@opengeo.org>
  */
 public class TransientCache {
-    
+
+    public static final int DEFAULT_MAX_TILES = 100;
+
+    public static final int DEFAULT_MAX_STORAGE_KB = 1000;
+
+    private static final int DEFAULT_CONCURRENCY = 8;
+
     private final int maxTiles;
-    private final int maxStorage;
-    private long currentStorage;
-    private Map<String,Resource> cache = new LinkedHashMap<String, Resource>() {
 
-        @Override
-        protected boolean removeEldestEntry(Entry<String, Resource> eldest) {
-            return removeEntries(eldest);
-        }
-        
-    };
-    
+    private final int maxStorageKB;
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
     public TransientCache(int maxTiles, int maxStorageKB) {
+        this(maxTiles, maxStorageKB, DEFAULT_CONCURRENCY);
+    }
+
+    public TransientCache(int maxTiles, int maxStorageKB, int concurrency) {
+        if (maxTiles < 1 || maxStorageKB < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Cache limits and concurrency shall be positive");
+        }
         this.maxTiles = maxTiles;
-        this.maxStorage = maxStorageKB * 1024;
+        this.maxStorageKB = maxStorageKB;
+
+        // keep at least a handful of tiles per segment so a whole meta tile fits in
+        int nsegments = 1;
+        while (nsegments < concurrency && maxTiles / (nsegments << 1) >= 16) {
+            nsegments <<= 1;
+        }
+        this.segments = new Segment[nsegments];
+        this.segmentMask = nsegments - 1;
+        final int segmentTiles = maxTiles / nsegments;
+        final long segmentStorage = (maxStorageKB * 1024L) / nsegments;
+        for (int i = 0; i < nsegments; i++) {
+            segments[i] = new Segment(segmentTiles, segmentStorage);
+        }
     }
-    
+
+    private Segment segmentFor(TileKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    public int getMaxTiles() {
+        return maxTiles;
+    }
+
+    public int getMaxStorageKB() {
+        return maxStorageKB;
+    }
+
+    /**
+     * @return number of cached tiles
+     */
     public int size() {
-        return cache.size();
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
     }
-    
+
+    /**
+     * @return number of bytes used by the cached tiles
+     */
     public long storageSize() {
-        return currentStorage;
+        long size = 0;
+        for (Segment s : segments) {
+            size += s.storageSize();
+        }
+        return size;
     }
-    
-    public void put(String key, Resource r) {
-        byte[] buf = new byte[(int) r.getSize()];
+
+    /**
+     * Caches a copy of the resource contents under the given key, replacing any previous entry
+     * for it.
+     */
+    public void put(TileKey key, Resource r) {
+        final byte[] buf;
         try {
-            r.getInputStream().read(buf);
+            buf = toByteArray(r);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
-        ByteArrayResource blob = new ByteArrayResource(buf);
-        currentStorage += r.getSize();
-        cache.put(key, blob);
+        segmentFor(key).put(key, new ByteArrayResource(buf));
     }
-    
-    public Resource get(String key) {
-        Resource cached = cache.get(key);
-        if (cached != null) {
-            cache.remove(key);
-            currentStorage -= cached.getSize();
-        }
-        return cached;
+
+    /**
+     * Removes and returns the resource cached under the given key.
+     *
+     * @return the cached resource, or {@code null} if not found
+     */
+    public Resource get(TileKey key) {
+        return segmentFor(key).remove(key);
     }
-    
+
     /**
-     * Loop through elements, removing and recompute currentStorage size
+     * Removes all the cached tiles
      */
-    private void clean() {
-        // iterator returns items in order added so oldest items are first
-        Iterator<Resource> items = cache.values().iterator();
-        long storage = currentStorage;
-        while (items.hasNext()) {
-            Resource r = items.next();
-            storage -= r.getSize();
-            if (storage < maxStorage) {
-                break;
-            } else {
-                items.remove();
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    private static byte[] toByteArray(Resource r) throws IOException {
+        final int size = (int) r.getSize();
+        byte[] buf = new byte[size];
+        InputStream in = r.getInputStream();
+        try {
+            int read = 0;
+            while (read < size) {
+                int n = in.read(buf, read, size - read);
+                if (n == -1) {
+                    throw new IOException("Expected " + size + " bytes, got " + read);
+                }
+                read += n;
             }
+        } finally {
+            in.close();
         }
-        currentStorage = storage;
+        return buf;
     }
-    
-    private boolean removeEntries(Entry<String, Resource> eldest) {
-        boolean remove = false;
-        // not sure if we can do both at the same time?
-        if (currentStorage > maxStorage) {
-            clean();
-        } else if (cache.size() > maxTiles) {
-            remove = true;
+
+    private static final class Segment {
+
+        private final int maxTiles;
+
+        private final long maxStorage;
+
+        private long currentStorage;
+
+        // insertion ordered, so the oldest entries are evicted first
+        private final LinkedHashMap<TileKey, Resource> cache =
+                new LinkedHashMap<TileKey, Resource>();
+
+        Segment(int maxTiles, long maxStorage) {
+            this.maxTiles = maxTiles;
+            this.maxStorage = maxStorage;
+        }
+
+        synchronized void put(TileKey key, Resource blob) {
+            Resource old = cache.remove(key);
+            if (old != null) {
+                currentStorage -= old.getSize();
+            }
+            cache.put(key, blob);
+            currentStorage += blob.getSize();
+
+            // never evict the entry just added, even if it's bigger than the whole segment
+            Iterator<Resource> oldest = cache.values().iterator();
+            while (cache.size() > 1 && (cache.size() > maxTiles || currentStorage > maxStorage)) {
+                currentStorage -= oldest.next().getSize();
+                oldest.remove();
+            }
+        }
+
+        synchronized Resource remove(TileKey key) {
+            Resource cached = cache.remove(key);
+            if (cached != null) {
+                currentStorage -= cached.getSize();
+            }
+            return cached;
+        }
+
+        synchronized void clear() {
+            cache.clear();
+            currentStorage = 0;
+        }
+
+        synchronized int size() {
+            return cache.size();
+        }
+
+        synchronized long storageSize() {
+            return currentStorage;
         }
-        return remove;
     }
 }
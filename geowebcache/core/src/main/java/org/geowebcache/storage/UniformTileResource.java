@@ -0,0 +1,91 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import javax.imageio.stream.ImageOutputStream;
+
+import org.geowebcache.io.ByteArrayResource;
+
+/**
+ * The encoded image of a single color tile, shared by all the tiles of a tile set that have that
+ * color.
+ * <p>
+ * Instances are read only, and carry an entity tag derived from their contents so that clients can
+ * revalidate any tile served with it without the tile having been stored at all.
+ * </p>
+ *
+ * @see UniformTileStore
+ */
+public final class UniformTileResource extends ByteArrayResource {
+
+    private final long color;
+
+    private final String eTag;
+
+    /**
+     * @param color
+     *            the tile color, as returned by
+     *            {@link org.geowebcache.layer.MetaTile#getUniformColor(int)}
+     * @param contents
+     *            the encoded tile, not to be modified afterwards
+     */
+    public UniformTileResource(final long color, final byte[] contents) {
+        super(contents);
+        this.color = color;
+        this.eTag = "gwc-uniform-" + Long.toHexString(color) + "-"
+                + Integer.toHexString(Arrays.hashCode(contents)) + "-"
+                + Integer.toHexString(contents.length);
+    }
+
+    public long getColor() {
+        return color;
+    }
+
+    /**
+     * @return the entity tag for the tiles served with this resource
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel channel) {
+        throw new UnsupportedOperationException("Uniform tiles are read only");
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("Uniform tiles are read only");
+    }
+
+    @Override
+    public ImageOutputStream getImageOutputStream() {
+        throw new UnsupportedOperationException("Uniform tiles are read only");
+    }
+
+    @Override
+    public void truncate() {
+        throw new UnsupportedOperationException("Uniform tiles are read only");
+    }
+
+    @Override
+    public void expand() {
+        throw new UnsupportedOperationException("Uniform tiles are read only");
+    }
+}
@@ -0,0 +1,894 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * Keeps track of the tiles made of a single color, such as the empty or fully covered areas of a
+ * map, so that they don't need to be stored and read back one by one.
+ * <p>
+ * For each layer, grid set and format the store keeps one {@link UniformTileResource encoded
+ * tile} per color, and a marker per uniform tile with its color and creation time. Markers live
+ * in memory in open addressing hash tables of primitives, about 40 bytes per tile, and are
+ * persisted to an append only log per layer, compacted whenever it grows well beyond the markers
+ * it holds.
+ * </p>
+ * <p>
+ * Only tiles for the default parameters are tracked, and tile coordinates have to fit in 29 bits
+ * and zoom levels in 5 bits, the other tiles are always stored as usual.
+ * </p>
+ *
+ * @see StorageBroker#setUniformTileStore(UniformTileStore)
+ * @see org.geowebcache.layer.MetaTile#getUniformColor(int)
+ */
+public class UniformTileStore {
+
+    private static final Log log = LogFactory.getLog(UniformTileStore.class);
+
+    /**
+     * Name of the directory for the layer logs, under the cache directory
+     */
+    public static final String DIRECTORY_NAME = "_gwc_uniform_tiles_";
+
+    private static final String EXTENSION = ".markers";
+
+    private static final int MAGIC = 0x47574355;
+
+    private static final int VERSION = 1;
+
+    private static final int TILE_SET = 1;
+
+    private static final int COLOR = 2;
+
+    private static final int MARK = 3;
+
+    private static final int UNMARK = 4;
+
+    /**
+     * The log is compacted once it has this many records and four times as many as live markers
+     */
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private static final int COORD_BITS = 29;
+
+    private static final long MAX_COORD = (1L << COORD_BITS) - 1;
+
+    private static final int MAX_ZOOM = 31;
+
+    private final File directory;
+
+    private final ConcurrentMap<String, LayerMarkers> layers =
+            new ConcurrentHashMap<String, LayerMarkers>();
+
+    /**
+     * Keeps the layer logs in the {@link #DIRECTORY_NAME} directory of the cache
+     */
+    public UniformTileStore(DefaultStorageFinder storageFinder) throws ConfigurationException {
+        this(new File(storageFinder.getDefaultPath(), DIRECTORY_NAME));
+    }
+
+    /**
+     * @param directory
+     *            where to keep the layer logs, created on demand
+     */
+    public UniformTileStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return whether this store can track the given tile, tiles with parameters or with
+     *         coordinates beyond 29 bits can't be
+     */
+    public boolean supports(TileObject tile) {
+        return key(tile) >= 0;
+    }
+
+    /**
+     * @return whether the tile is a recorded uniform tile, leaving the tile alone
+     */
+    public boolean contains(TileObject tile) {
+        final long key = key(tile);
+        if (key < 0) {
+            return false;
+        }
+        return layer(tile.getLayerName()).contains(tile, key);
+    }
+
+    /**
+     * Looks up a uniform tile, setting its blob to the shared encoded tile and its creation time
+     * to the time it was recorded
+     *
+     * @return whether the tile is a recorded uniform tile
+     */
+    public boolean get(TileObject tile) {
+        final long key = key(tile);
+        if (key < 0) {
+            return false;
+        }
+        return layer(tile.getLayerName()).get(tile, key);
+    }
+
+    /**
+     * @return the encoded tile already recorded for the tile set of the given tile and the given
+     *         color, if any, so that callers don't need to encode the tile again
+     */
+    public UniformTileResource getResource(TileObject tile, long color) {
+        if (key(tile) < 0) {
+            return null;
+        }
+        return layer(tile.getLayerName()).getResource(tile, color);
+    }
+
+    /**
+     * Records the tile as a uniform one of the given color. The tile blob becomes the encoded tile
+     * for that color if none was recorded yet for its tile set.
+     *
+     * @return the shared encoded tile for the tile color, or {@code null} if the tile can't be
+     *         tracked by this store and is to be stored as usual
+     */
+    public UniformTileResource put(TileObject tile, long color) throws StorageException {
+        final long key = key(tile);
+        if (key < 0 || color < 0) {
+            return null;
+        }
+        return layer(tile.getLayerName()).put(tile, key, color);
+    }
+
+    /**
+     * Forgets a tile, for example because it's about to be stored as a regular one
+     *
+     * @return whether the tile was a recorded uniform tile
+     */
+    public boolean remove(TileObject tile) throws StorageException {
+        final long key = key(tile);
+        if (key < 0) {
+            return false;
+        }
+        return layer(tile.getLayerName()).remove(tile, key);
+    }
+
+    /**
+     * Forgets the uniform tiles in the given range
+     */
+    public void delete(TileRange range) throws StorageException {
+        final Map<String, String> parameters = range.getParameters();
+        if (parameters != null && parameters.size() > 0) {
+            return;
+        }
+        layer(range.getLayerName()).delete(range);
+    }
+
+    /**
+     * Forgets all the uniform tiles of a layer
+     */
+    public void delete(final String layerName) throws StorageException {
+        LayerMarkers markers = layers.remove(layerName);
+        if (markers != null) {
+            markers.close();
+        }
+        File file = layerFile(layerName);
+        if (file.exists() && !file.delete()) {
+            throw new StorageException("Unable to delete " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Forgets all the uniform tiles of a layer and grid set
+     */
+    public void deleteByGridSetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        layer(layerName).deleteByGridSetId(gridSetId);
+    }
+
+    /**
+     * Moves the uniform tiles of a layer over to its new name, replacing any under the new name
+     */
+    public void rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        delete(newLayerName);
+        LayerMarkers markers = layers.remove(oldLayerName);
+        if (markers != null) {
+            markers.close();
+        }
+        File oldFile = layerFile(oldLayerName);
+        if (oldFile.exists() && !oldFile.renameTo(layerFile(newLayerName))) {
+            throw new StorageException("Unable to rename " + oldFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Closes the layer logs
+     */
+    public void destroy() {
+        for (Iterator<LayerMarkers> it = layers.values().iterator(); it.hasNext();) {
+            LayerMarkers markers = it.next();
+            it.remove();
+            try {
+                markers.close();
+            } catch (StorageException e) {
+                log.warn(e.getMessage());
+            }
+        }
+    }
+
+    private LayerMarkers layer(final String layerName) {
+        LayerMarkers markers = layers.get(layerName);
+        if (markers == null) {
+            // loading only reads the file, so a concurrent load doing the same is harmless
+            LayerMarkers loaded = new LayerMarkers(layerFile(layerName));
+            markers = layers.putIfAbsent(layerName, loaded);
+            if (markers == null) {
+                markers = loaded;
+            }
+        }
+        return markers;
+    }
+
+    private File layerFile(final String layerName) {
+        return new File(directory, FilePathGenerator.filteredLayerName(layerName) + EXTENSION);
+    }
+
+    /**
+     * @return the marker key for the tile, or {@code -1} if it's not one this store can track
+     */
+    private static long key(final TileObject tile) {
+        final Map<String, String> parameters = tile.getParameters();
+        if (parameters != null && parameters.size() > 0) {
+            return -1;
+        }
+        final long[] xyz = tile.getXYZ();
+        return key(xyz[0], xyz[1], (int) xyz[2]);
+    }
+
+    static long key(final long x, final long y, final int z) {
+        if (x < 0 || y < 0 || z < 0 || x > MAX_COORD || y > MAX_COORD || z > MAX_ZOOM) {
+            return -1;
+        }
+        return ((long) z << (2 * COORD_BITS)) | (x << COORD_BITS) | y;
+    }
+
+    static long keyX(final long key) {
+        return (key >>> COORD_BITS) & MAX_COORD;
+    }
+
+    static long keyY(final long key) {
+        return key & MAX_COORD;
+    }
+
+    static int keyZ(final long key) {
+        return (int) (key >>> (2 * COORD_BITS));
+    }
+
+    /**
+     * The uniform tiles of a layer and the log they are persisted to
+     */
+    private static final class LayerMarkers {
+
+        private final File file;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final List<TileSetMarkers> tileSets = new ArrayList<TileSetMarkers>(2);
+
+        /**
+         * Appends to the log, opened on the first change by rewriting the log from memory
+         */
+        private DataOutputStream out;
+
+        private int records;
+
+        LayerMarkers(File file) {
+            this.file = file;
+            final File old = oldFile(file);
+            if (!file.exists() && old.exists()) {
+                // interrupted while swapping in a rewritten log
+                old.renameTo(file);
+            }
+            if (file.exists()) {
+                load();
+            }
+        }
+
+        /**
+         * @return where the log is moved while swapping in a rewritten one, on the platforms that
+         *         can't rename over it
+         */
+        private static File oldFile(final File file) {
+            return new File(file.getParentFile(), file.getName() + ".old");
+        }
+
+        boolean get(final TileObject tile, final long key) {
+            lock.readLock().lock();
+            try {
+                TileSetMarkers tileSet = find(tile.getGridSetId(), tile.getBlobFormat());
+                if (tileSet == null) {
+                    return false;
+                }
+                final int slot = tileSet.markers.find(key);
+                if (slot < 0) {
+                    return false;
+                }
+                tile.setBlob(tileSet.colors.get(tileSet.markers.getColor(slot)));
+                tile.setCreated(tileSet.markers.getCreated(slot));
+                return true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean contains(final TileObject tile, final long key) {
+            lock.readLock().lock();
+            try {
+                TileSetMarkers tileSet = find(tile.getGridSetId(), tile.getBlobFormat());
+                return tileSet != null && tileSet.markers.find(key) >= 0;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        UniformTileResource getResource(final TileObject tile, final long color) {
+            lock.readLock().lock();
+            try {
+                TileSetMarkers tileSet = find(tile.getGridSetId(), tile.getBlobFormat());
+                if (tileSet == null) {
+                    return null;
+                }
+                final int index = tileSet.colorIndex(color);
+                return index < 0 ? null : tileSet.colors.get(index);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        UniformTileResource put(final TileObject tile, final long key, final long color)
+                throws StorageException {
+            lock.writeLock().lock();
+            try {
+                openLog();
+                TileSetMarkers tileSet = find(tile.getGridSetId(), tile.getBlobFormat());
+                if (tileSet == null) {
+                    tileSet = new TileSetMarkers(tileSets.size(), tile.getGridSetId(),
+                            tile.getBlobFormat());
+                    tileSets.add(tileSet);
+                    writeTileSet(out, tileSet);
+                    records++;
+                }
+                int index = tileSet.colorIndex(color);
+                if (index < 0) {
+                    Resource blob = tile.getBlob();
+                    if (blob == null) {
+                        throw new StorageException("No encoded tile for uniform color "
+                                + Long.toHexString(color));
+                    }
+                    index = tileSet.colors.size();
+                    tileSet.colors.add(new UniformTileResource(color, contents(blob)));
+                    writeColor(out, tileSet, index);
+                    records++;
+                }
+                final long created = tile.getCreated();
+                tileSet.markers.put(key, index, created);
+                out.writeByte(MARK);
+                out.writeInt(tileSet.id);
+                out.writeLong(key);
+                out.writeInt(index);
+                out.writeLong(created);
+                records++;
+                flush();
+                return tileSet.colors.get(index);
+            } catch (IOException e) {
+                throw storageException("Unable to record uniform tile in ", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        boolean remove(final TileObject tile, final long key) throws StorageException {
+            // the common case is that there's nothing to remove, only take the write lock if
+            // there is
+            lock.readLock().lock();
+            try {
+                TileSetMarkers tileSet = find(tile.getGridSetId(), tile.getBlobFormat());
+                if (tileSet == null || tileSet.markers.find(key) < 0) {
+                    return false;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                TileSetMarkers tileSet = find(tile.getGridSetId(), tile.getBlobFormat());
+                if (tileSet == null || !tileSet.markers.remove(key)) {
+                    return false;
+                }
+                openLog();
+                out.writeByte(UNMARK);
+                out.writeInt(tileSet.id);
+                out.writeLong(key);
+                records++;
+                flush();
+                return true;
+            } catch (IOException e) {
+                throw storageException("Unable to remove uniform tile from ", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void delete(final TileRange range) throws StorageException {
+            lock.writeLock().lock();
+            try {
+                boolean changed = false;
+                for (TileSetMarkers tileSet : tileSets) {
+                    if (range.getGridSetId() != null
+                            && !range.getGridSetId().equals(tileSet.gridSetId)) {
+                        continue;
+                    }
+                    if (range.getMimeType() != null
+                            && !range.getMimeType().getFormat().equals(tileSet.blobFormat)) {
+                        continue;
+                    }
+                    final MarkerTable markers = tileSet.markers;
+                    // removing shifts entries around, collect the keys first
+                    long[] remove = new long[markers.size()];
+                    int count = 0;
+                    for (int slot = 0; slot < markers.capacity(); slot++) {
+                        final long key = markers.getKey(slot);
+                        if (key >= 0 && range.contains(keyX(key), keyY(key), keyZ(key))) {
+                            remove[count++] = key;
+                        }
+                    }
+                    for (int i = 0; i < count; i++) {
+                        markers.remove(remove[i]);
+                    }
+                    changed |= count > 0;
+                }
+                if (changed) {
+                    rewrite();
+                }
+            } catch (IOException e) {
+                throw storageException("Unable to delete uniform tiles from ", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void deleteByGridSetId(final String gridSetId) throws StorageException {
+            lock.writeLock().lock();
+            try {
+                boolean changed = false;
+                for (Iterator<TileSetMarkers> it = tileSets.iterator(); it.hasNext();) {
+                    if (it.next().gridSetId.equals(gridSetId)) {
+                        it.remove();
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    rewrite();
+                }
+            } catch (IOException e) {
+                throw storageException("Unable to delete uniform tiles from ", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void close() throws StorageException {
+            lock.writeLock().lock();
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+            } catch (IOException e) {
+                throw storageException("Unable to close ", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private TileSetMarkers find(final String gridSetId, final String blobFormat) {
+            for (int i = 0; i < tileSets.size(); i++) {
+                TileSetMarkers tileSet = tileSets.get(i);
+                if (tileSet.gridSetId.equals(gridSetId) && tileSet.blobFormat.equals(blobFormat)) {
+                    return tileSet;
+                }
+            }
+            return null;
+        }
+
+        private void openLog() throws IOException {
+            if (out == null) {
+                // also drops whatever a crash may have left half written at the end of the log
+                rewrite();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flush();
+            int live = 0;
+            for (TileSetMarkers tileSet : tileSets) {
+                live += tileSet.markers.size();
+            }
+            if (records > MIN_COMPACT_RECORDS && records > 4 * live) {
+                rewrite();
+            }
+        }
+
+        private StorageException storageException(String message, IOException cause) {
+            StorageException se = new StorageException(message + file.getAbsolutePath() + ": "
+                    + cause.getMessage());
+            se.initCause(cause);
+            return se;
+        }
+
+        /**
+         * Writes the log anew out of the markers in memory and leaves it open for appending
+         */
+        private void rewrite() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                throw new IOException("Unable to create " + parent.getAbsolutePath());
+            }
+            final File tmp = new File(parent, file.getName() + ".tmp");
+            DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            int written = 0;
+            try {
+                tmpOut.writeInt(MAGIC);
+                tmpOut.writeInt(VERSION);
+                for (int id = 0; id < tileSets.size(); id++) {
+                    final TileSetMarkers tileSet = tileSets.get(id);
+                    tileSet.id = id;
+                    writeTileSet(tmpOut, tileSet);
+                    written++;
+                    for (int index = 0; index < tileSet.colors.size(); index++) {
+                        writeColor(tmpOut, tileSet, index);
+                        written++;
+                    }
+                    final MarkerTable markers = tileSet.markers;
+                    for (int slot = 0; slot < markers.capacity(); slot++) {
+                        final long key = markers.getKey(slot);
+                        if (key >= 0) {
+                            tmpOut.writeByte(MARK);
+                            tmpOut.writeInt(id);
+                            tmpOut.writeLong(key);
+                            tmpOut.writeInt(markers.getColor(slot));
+                            tmpOut.writeLong(markers.getCreated(slot));
+                            written++;
+                        }
+                    }
+                }
+            } finally {
+                tmpOut.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // some platforms won't rename over an existing file, keep the old log aside until
+                // the new one is in place so that there's always one to load
+                final File old = oldFile(file);
+                old.delete();
+                if (!file.renameTo(old) || !tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                            + file.getAbsolutePath());
+                }
+                old.delete();
+            }
+            records = written;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+
+        private void writeTileSet(DataOutputStream out, TileSetMarkers tileSet)
+                throws IOException {
+            out.writeByte(TILE_SET);
+            out.writeInt(tileSet.id);
+            out.writeUTF(tileSet.gridSetId);
+            out.writeUTF(tileSet.blobFormat);
+        }
+
+        private void writeColor(DataOutputStream out, TileSetMarkers tileSet, int index)
+                throws IOException {
+            UniformTileResource resource = tileSet.colors.get(index);
+            byte[] contents = resource.getContents();
+            out.writeByte(COLOR);
+            out.writeInt(tileSet.id);
+            out.writeInt(index);
+            out.writeLong(resource.getColor());
+            out.writeInt(contents.length);
+            out.write(contents);
+        }
+
+        /**
+         * Replays the log, keeping whatever could be read if it's cut short
+         */
+        private void load() {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    log.warn("Ignoring unknown uniform tiles file " + file.getAbsolutePath());
+                    return;
+                }
+                int type;
+                while ((type = in.read()) != -1) {
+                    switch (type) {
+                    case TILE_SET: {
+                        final int id = in.readInt();
+                        TileSetMarkers tileSet = new TileSetMarkers(id, in.readUTF(), in.readUTF());
+                        if (id != tileSets.size()) {
+                            throw new IOException("Unexpected tile set id " + id);
+                        }
+                        tileSets.add(tileSet);
+                        break;
+                    }
+                    case COLOR: {
+                        final TileSetMarkers tileSet = tileSet(in.readInt());
+                        final int index = in.readInt();
+                        final long color = in.readLong();
+                        final byte[] contents = new byte[in.readInt()];
+                        in.readFully(contents);
+                        if (index != tileSet.colors.size()) {
+                            throw new IOException("Unexpected color index " + index);
+                        }
+                        tileSet.colors.add(new UniformTileResource(color, contents));
+                        break;
+                    }
+                    case MARK: {
+                        final TileSetMarkers tileSet = tileSet(in.readInt());
+                        final long key = in.readLong();
+                        final int index = in.readInt();
+                        final long created = in.readLong();
+                        if (index < 0 || index >= tileSet.colors.size()) {
+                            throw new IOException("Unexpected color index " + index);
+                        }
+                        tileSet.markers.put(key, index, created);
+                        break;
+                    }
+                    case UNMARK:
+                        tileSet(in.readInt()).markers.remove(in.readLong());
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                    }
+                    records++;
+                }
+            } catch (IOException e) {
+                log.warn("Uniform tiles file " + file.getAbsolutePath()
+                        + " is incomplete, keeping the " + records + " records read: "
+                        + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        log.debug(e);
+                    }
+                }
+            }
+        }
+
+        private TileSetMarkers tileSet(final int id) throws IOException {
+            if (id < 0 || id >= tileSets.size()) {
+                throw new IOException("Unknown tile set id " + id);
+            }
+            return tileSets.get(id);
+        }
+
+        private static byte[] contents(final Resource blob) throws IOException {
+            if (blob instanceof ByteArrayResource) {
+                // copied, the blob is usually a reused encoding buffer
+                byte[] contents = ((ByteArrayResource) blob).getContents();
+                byte[] copy = new byte[contents == null ? 0 : contents.length];
+                if (contents != null) {
+                    System.arraycopy(contents, 0, copy, 0, contents.length);
+                }
+                return copy;
+            }
+            ByteArrayResource copy = new ByteArrayResource((int) blob.getSize());
+            blob.transferTo(Channels.newChannel(copy.getOutputStream()));
+            return copy.getContents();
+        }
+    }
+
+    /**
+     * The uniform tiles of a layer for a grid set and format
+     */
+    private static final class TileSetMarkers {
+
+        /**
+         * The tile set id in the log
+         */
+        int id;
+
+        final String gridSetId;
+
+        final String blobFormat;
+
+        /**
+         * The encoded tiles, by color index
+         */
+        final List<UniformTileResource> colors = new ArrayList<UniformTileResource>(2);
+
+        final MarkerTable markers = new MarkerTable();
+
+        TileSetMarkers(int id, String gridSetId, String blobFormat) {
+            this.id = id;
+            this.gridSetId = gridSetId;
+            this.blobFormat = blobFormat;
+        }
+
+        int colorIndex(final long color) {
+            for (int i = 0; i < colors.size(); i++) {
+                if (colors.get(i).getColor() == color) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Hash table from non negative tile keys to a color index and a creation time, with linear
+     * probing over primitive arrays so that markers cost no objects at all
+     */
+    static final class MarkerTable {
+
+        private static final long FREE = -1L;
+
+        private long[] keys;
+
+        private int[] colors;
+
+        private long[] created;
+
+        private int size;
+
+        MarkerTable() {
+            allocate(16);
+        }
+
+        private void allocate(final int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            colors = new int[capacity];
+            created = new long[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        /**
+         * @return the key at the given slot, or {@code -1} if the slot is free
+         */
+        long getKey(final int slot) {
+            return keys[slot];
+        }
+
+        int getColor(final int slot) {
+            return colors[slot];
+        }
+
+        long getCreated(final int slot) {
+            return created[slot];
+        }
+
+        private int home(final long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        /**
+         * @return the slot holding the key, or {@code -1} if not found
+         */
+        int find(final long key) {
+            final int mask = keys.length - 1;
+            for (int slot = home(key);; slot = (slot + 1) & mask) {
+                final long k = keys[slot];
+                if (k == key) {
+                    return slot;
+                }
+                if (k == FREE) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(final long key, final int color, final long createdTime) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            final int mask = keys.length - 1;
+            int slot = home(key);
+            while (keys[slot] != FREE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == FREE) {
+                keys[slot] = key;
+                size++;
+            }
+            colors[slot] = color;
+            created[slot] = createdTime;
+        }
+
+        boolean remove(final long key) {
+            int free = find(key);
+            if (free < 0) {
+                return false;
+            }
+            keys[free] = FREE;
+            size--;
+            // shift back the entries of the same probe sequence so lookups don't stop early
+            final int mask = keys.length - 1;
+            for (int slot = (free + 1) & mask; keys[slot] != FREE; slot = (slot + 1) & mask) {
+                final int home = home(keys[slot]);
+                final boolean inPlace = free < slot ? (home > free && home <= slot)
+                        : (home > free || home <= slot);
+                if (!inPlace) {
+                    keys[free] = keys[slot];
+                    colors[free] = colors[slot];
+                    created[free] = created[slot];
+                    keys[slot] = FREE;
+                    free = slot;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final int[] oldColors = colors;
+            final long[] oldCreated = created;
+            allocate(2 * oldKeys.length);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    put(oldKeys[i], oldColors[i], oldCreated[i]);
+                }
+            }
+        }
+    }
+}
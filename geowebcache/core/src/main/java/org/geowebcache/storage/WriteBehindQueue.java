@@ -0,0 +1,518 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A bounded queue of tiles to be persisted by dedicated IO threads, so that the threads serving
+ * tile requests don't wait for the stores (see {@link StorageBroker#setWriteBehindQueue}).
+ * <p>
+ * Tiles are written in the order they were queued. A tile queued again before being written
+ * replaces the queued contents and keeps its place in the queue, so that only its last version is
+ * written, and tiles of the same position are never written concurrently. Until a tile is
+ * written, it is served from memory by {@link #get(TileObject)}.
+ * </p>
+ * <p>
+ * What happens to a tile queued while the queue is full depends on the {@link OverflowPolicy}.
+ * Tiles are meant to be recreated if lost, so the queue is not persistent: tiles still queued
+ * when the {@link #shutdown() shutdown} time out expires are lost.
+ * </p>
+ */
+public class WriteBehindQueue {
+
+    private static Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    public static final int DEFAULT_THREADS = 2;
+
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+
+    /**
+     * What to do with a tile queued while the queue is full
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Wait for a queued tile to be written
+         */
+        BLOCK,
+        /**
+         * Don't store the tile, it'll be created again when next requested
+         */
+        DROP,
+        /**
+         * Write the tile on the calling thread
+         */
+        INLINE
+    }
+
+    /**
+     * Persists the queued tiles
+     */
+    public static interface TileWriter {
+        boolean write(TileObject tile) throws StorageException;
+    }
+
+    private final int capacity;
+
+    private final int threads;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled whenever a tile is queued, written or discarded, or the queue shut down
+     */
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Tiles waiting to be written, in insertion order, guarded by {@link #lock}
+     */
+    private final LinkedHashMap<TileKey, TileObject> pending =
+            new LinkedHashMap<TileKey, TileObject>();
+
+    /**
+     * Tiles being written by the IO threads, guarded by {@link #lock}
+     */
+    private final Set<TileKey> writing = new HashSet<TileKey>();
+
+    /**
+     * The last queued version of each tile not yet written, for lookups without locking
+     */
+    private final ConcurrentHashMap<TileKey, TileObject> unwritten =
+            new ConcurrentHashMap<TileKey, TileObject>();
+
+    private TileWriter writer;
+
+    private ExecutorService executor;
+
+    private boolean running;
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    public WriteBehindQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param capacity
+     *            maximum number of tiles waiting to be written
+     * @param threads
+     *            number of IO threads writing the tiles
+     */
+    public WriteBehindQueue(int capacity, int threads) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.capacity = capacity;
+        this.threads = threads;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy can't be null");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    /**
+     * @param shutdownTimeout
+     *            how long to wait for the queued tiles to be written on shut down, in milliseconds
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Starts the IO threads, which will persist the queued tiles through the given writer.
+     */
+    public void start(final TileWriter writer) {
+        lock.lock();
+        try {
+            if (running) {
+                throw new IllegalStateException("The write behind queue is already started");
+            }
+            this.writer = writer;
+            this.running = true;
+            CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                    "GWC write behind thread-");
+            tf.setDaemon(true);
+            executor = Executors.newFixedThreadPool(threads, tf);
+            for (int i = 0; i < threads; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        writeLoop();
+                    }
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a tile to be written. Its blob is copied, so the caller is free to reuse it.
+     * <p>
+     * If the queue is not running the tile is written on the calling thread.
+     * </p>
+     *
+     * @return {@code false} if the tile was dropped, or written on the calling thread and the
+     *         writer returned {@code false}
+     */
+    public boolean put(final TileObject tile) throws StorageException {
+        final TileKey key = TileKey.forTileParameters(tile);
+        final TileObject copy = copy(tile);
+        TileWriter inlineWriter = null;
+        lock.lock();
+        try {
+            while (running && pending.size() >= capacity && !pending.containsKey(key)
+                    && overflowPolicy == OverflowPolicy.BLOCK) {
+                changed.awaitUninterruptibly();
+            }
+            if (!running) {
+                inlineWriter = writer;
+            } else if (pending.size() >= capacity && !pending.containsKey(key)) {
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Write behind queue full, dropping " + tile);
+                    }
+                    return false;
+                }
+                inlineWriter = writer;
+            } else {
+                if (pending.put(key, copy) != null) {
+                    coalesced.incrementAndGet();
+                }
+                unwritten.put(key, copy);
+                changed.signalAll();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (inlineWriter == null) {
+            throw new IllegalStateException("The write behind queue has not been started");
+        }
+        // any version still in the queue is older than this one
+        discard(key);
+        return inlineWriter.write(copy);
+    }
+
+    private static TileObject copy(final TileObject tile) throws StorageException {
+        final Resource blob = tile.getBlob();
+        final byte[] data;
+        try {
+            data = MemoryTileCache.readFully(blob, (int) blob.getSize());
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile " + tile + ": " + e.getMessage());
+        }
+        final long[] xyz = tile.getXYZ();
+        final TileObject copy = TileObject.createCompleteTileObject(tile.getLayerName(),
+                new long[] { xyz[0], xyz[1], xyz[2] }, tile.getGridSetId(),
+                tile.getBlobFormat(), tile.getParameters(), new ByteArrayResource(data));
+        copy.setCreated(tile.getCreated());
+        return copy;
+    }
+
+    /**
+     * Looks up a tile that has been queued but not written yet and, if found, sets its blob and
+     * creation time.
+     *
+     * @return {@code true} if the tile is waiting to be written
+     */
+    public boolean get(final TileObject tile) {
+        if (unwritten.isEmpty()) {
+            return false;
+        }
+        final TileObject queued = unwritten.get(TileKey.forTileParameters(tile));
+        if (queued == null) {
+            return false;
+        }
+        tile.setBlob(queued.getBlob());
+        tile.setCreated(queued.getCreated());
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            TileKey key = null;
+            TileObject tile = null;
+            lock.lock();
+            try {
+                while (tile == null) {
+                    Iterator<Map.Entry<TileKey, TileObject>> it = pending.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<TileKey, TileObject> entry = it.next();
+                        // an older version of the tile is being written, let it finish first
+                        if (!writing.contains(entry.getKey())) {
+                            key = entry.getKey();
+                            tile = entry.getValue();
+                            it.remove();
+                            writing.add(key);
+                            changed.signalAll();
+                            break;
+                        }
+                    }
+                    if (tile == null) {
+                        if (!running && pending.isEmpty()) {
+                            return;
+                        }
+                        changed.awaitUninterruptibly();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (writer.write(tile)) {
+                    written.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                log.error("Unable to write " + tile + ": " + e.getMessage(), e);
+            } finally {
+                lock.lock();
+                try {
+                    // unless queued again in the meantime
+                    unwritten.remove(key, tile);
+                    writing.remove(key);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the queued version of the tile, if any, and waits for the one being written, if
+     * any.
+     */
+    public void discard(final TileObject tile) {
+        discard(TileKey.forTileParameters(tile));
+    }
+
+    private void discard(final TileKey key) {
+        lock.lock();
+        try {
+            if (pending.remove(key) != null) {
+                unwritten.remove(key);
+                changed.signalAll();
+            }
+            while (writing.contains(key)) {
+                changed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all the queued tiles of the given layer and, if {@code gridSetId != null}, gridset,
+     * and waits for the ones being written.
+     */
+    public void discard(final String layerName, final String gridSetId) {
+        discard(new KeyMatcher() {
+            public boolean matches(TileKey key) {
+                return layerName.equals(key.getLayerName())
+                        && (gridSetId == null || gridSetId.equals(key.getGridSetId()));
+            }
+        });
+    }
+
+    /**
+     * Discards all the queued tiles in the given range, regardless of their parameters, and waits
+     * for the ones being written. A range with no grid set covers all of them.
+     */
+    public void discard(final TileRange range) {
+        final String layerName = range.getLayerName();
+        final String gridSetId = range.getGridSetId();
+        final MimeType mimeType = range.getMimeType();
+        final String format = mimeType == null ? null : mimeType.getFormat();
+        discard(new KeyMatcher() {
+            public boolean matches(TileKey key) {
+                return layerName.equals(key.getLayerName())
+                        && (gridSetId == null || gridSetId.equals(key.getGridSetId()))
+                        && (format == null || format.equals(key.getFormat()))
+                        && range.contains(key.getX(), key.getY(), key.getZ());
+            }
+        });
+    }
+
+    private static interface KeyMatcher {
+        boolean matches(TileKey key);
+    }
+
+    private void discard(final KeyMatcher matcher) {
+        lock.lock();
+        try {
+            Iterator<TileKey> it = pending.keySet().iterator();
+            while (it.hasNext()) {
+                TileKey key = it.next();
+                if (matcher.matches(key)) {
+                    it.remove();
+                    unwritten.remove(key);
+                }
+            }
+            changed.signalAll();
+            while (containsMatching(writing, matcher)) {
+                changed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean containsMatching(Set<TileKey> keys, KeyMatcher matcher) {
+        for (TileKey key : keys) {
+            if (matcher.matches(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the tiles queued so far, and any queued meanwhile, to be written.
+     *
+     * @return {@code false} if the time out expired first
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!pending.isEmpty() || !writing.isEmpty()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = changed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting tiles, which will be written on the calling thread from now on, and waits up
+     * to the {@link #setShutdownTimeout(long) shut down time out} for the queued ones to be
+     * written.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                log.warn("Timed out waiting for the write behind queue, " + getQueuedCount()
+                        + " tiles not written");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of tiles waiting to be written
+     */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of times a queued tile was replaced before being written
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,425 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.geowebcache.io.Resource;
+
+/**
+ * A file holding up to {@link #SIZE} x {@link #SIZE} tiles of a zoom level, used by
+ * {@link BundleFileBlobStore}.
+ * <p>
+ * The file starts with a fixed size index, holding the offset and length of each tile, followed by
+ * an append only data region. Tiles are always appended, and the index entry is updated only once
+ * the tile has been written. When writes are {@link #write(int, Resource, long, boolean) synced}
+ * the tile data reaches the disk before its index entry, so a crash never leaves the index
+ * pointing to partial data; otherwise the operating system may flush them in any order.
+ * Overwritten and deleted tiles leave dead space behind, which is reclaimed by
+ * {@link #compact() compacting} the bundle.
+ * </p>
+ * <p>
+ * The index is kept in memory while the bundle is open, and tiles are read with positional reads,
+ * so reads can run concurrently. Writes and compaction are exclusive.
+ * </p>
+ */
+class Bundle {
+
+    /**
+     * Number of tiles per bundle side
+     */
+    static final int SIZE = 128;
+
+    static final int TILES = SIZE * SIZE;
+
+    static final String EXTENSION = ".bundle";
+
+    private static final int MAGIC = 0x47574342; // GWCB
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * offset (long) and length (int) of a tile
+     */
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    static final long DATA_START = HEADER_SIZE + TILES * INDEX_ENTRY_SIZE;
+
+    /**
+     * tile index (int), length (int), creation time (long)
+     */
+    static final int RECORD_HEADER_SIZE = 16;
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private final long[] offsets = new long[TILES];
+
+    private final int[] lengths = new int[TILES];
+
+    private long liveBytes;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // the following are guarded by the owning store's bundle cache
+
+    int users;
+
+    boolean evicted;
+
+    boolean compactionScheduled;
+
+    private volatile boolean closed;
+
+    private Bundle(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the given bundle file
+     *
+     * @param create
+     *            whether to create the file if it doesn't exist
+     * @return the open bundle, or {@code null} if it doesn't exist and {@code create} is false
+     */
+    static Bundle open(final File file, final boolean create) throws IOException {
+        final boolean exists = file.exists();
+        if (!exists && !create) {
+            return null;
+        }
+        Bundle bundle = new Bundle(file);
+        bundle.raf = new RandomAccessFile(file, "rw");
+        bundle.channel = bundle.raf.getChannel();
+        try {
+            if (exists && bundle.channel.size() >= DATA_START) {
+                bundle.readIndex();
+            } else {
+                // new, or created but never written to
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(bundle.channel, header, 0);
+                bundle.raf.setLength(DATA_START);
+            }
+        } catch (IOException e) {
+            bundle.close();
+            throw e;
+        }
+        return bundle;
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException(file.getAbsolutePath() + " is not a tile bundle");
+        }
+        ByteBuffer index = ByteBuffer.allocate(TILES * INDEX_ENTRY_SIZE);
+        readFully(channel, index, HEADER_SIZE);
+        index.flip();
+        liveBytes = 0;
+        for (int i = 0; i < TILES; i++) {
+            offsets[i] = index.getLong();
+            lengths[i] = index.getInt();
+            if (offsets[i] != 0) {
+                liveBytes += RECORD_HEADER_SIZE + lengths[i];
+            }
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index of the tile at the given position in the bundle it belongs to
+     */
+    static int tileIndex(final long x, final long y) {
+        return (int) ((y % SIZE) * SIZE + (x % SIZE));
+    }
+
+    /**
+     * A tile as read from the bundle
+     */
+    static class Record {
+        final byte[] data;
+
+        final long created;
+
+        Record(byte[] data, long created) {
+            this.data = data;
+            this.created = created;
+        }
+    }
+
+    /**
+     * @return the tile at the given index, or {@code null} if it's not in the bundle
+     */
+    Record read(final int tileIndex) throws IOException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            final long offset = offsets[tileIndex];
+            if (offset == 0) {
+                return null;
+            }
+            // skip the tile index and length, read the creation time and the data in one go
+            ByteBuffer buffer = ByteBuffer.allocate(8 + lengths[tileIndex]);
+            readFully(channel, buffer, offset + 8);
+            buffer.flip();
+            long created = buffer.getLong();
+            byte[] data = new byte[lengths[tileIndex]];
+            buffer.get(data);
+            return new Record(data, created);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the length of the tile at the given index, or -1 if it's not in the bundle
+     */
+    int length(final int tileIndex) {
+        lock.readLock().lock();
+        try {
+            return offsets[tileIndex] == 0 ? -1 : lengths[tileIndex];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a tile and points the index to it
+     *
+     * @param sync
+     *            whether to force the tile data to disk before updating the index
+     * @return the length of the tile it replaced, or -1 if there was none
+     */
+    int write(final int tileIndex, final Resource blob, final long created, final boolean sync)
+            throws IOException {
+        final int length = (int) blob.getSize();
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            final long offset = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(tileIndex).putInt(length).putLong(created).flip();
+            writeFully(channel, header, offset);
+            channel.position(offset + RECORD_HEADER_SIZE);
+            long written = blob.transferTo(channel);
+            if (written != length) {
+                // leave the index alone, the partial record is just garbage
+                throw new IOException("Expected to write " + length + " bytes to "
+                        + file.getAbsolutePath() + " but wrote " + written);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+            final int oldLength = offsets[tileIndex] == 0 ? -1 : lengths[tileIndex];
+            writeIndexEntry(tileIndex, offset, length);
+            if (oldLength >= 0) {
+                liveBytes -= RECORD_HEADER_SIZE + oldLength;
+            }
+            liveBytes += RECORD_HEADER_SIZE + length;
+            return oldLength;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the tile at the given index from the index, its data becomes garbage
+     *
+     * @return the length of the removed tile, or -1 if there was none
+     */
+    int delete(final int tileIndex) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (offsets[tileIndex] == 0) {
+                return -1;
+            }
+            final int oldLength = lengths[tileIndex];
+            writeIndexEntry(tileIndex, 0, 0);
+            liveBytes -= RECORD_HEADER_SIZE + oldLength;
+            return oldLength;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeIndexEntry(final int tileIndex, final long offset, final int length)
+            throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(offset).putInt(length).flip();
+        writeFully(channel, entry, HEADER_SIZE + (long) tileIndex * INDEX_ENTRY_SIZE);
+        offsets[tileIndex] = offset;
+        lengths[tileIndex] = length;
+    }
+
+    /**
+     * @return the bytes taken by overwritten and deleted tiles
+     */
+    long getGarbage() throws IOException {
+        lock.readLock().lock();
+        try {
+            return closed ? 0 : channel.size() - DATA_START - liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes taken by the data region, live and dead tiles
+     */
+    long getDataSize() throws IOException {
+        lock.readLock().lock();
+        try {
+            return closed ? 0 : channel.size() - DATA_START;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the bundle keeping only the live tiles. The new bundle is written to a temporary
+     * file that replaces the current one once complete, and is removed if compaction fails.
+     */
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            final File tmp = new File(file.getParentFile(), file.getName() + ".compacting");
+            final long[] newOffsets = new long[TILES];
+            boolean compacted = false;
+            RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw");
+            try {
+                FileChannel target = tmpRaf.getChannel();
+                tmpRaf.setLength(0);
+                long position = DATA_START;
+                for (int i = 0; i < TILES; i++) {
+                    if (offsets[i] == 0) {
+                        continue;
+                    }
+                    final long count = RECORD_HEADER_SIZE + lengths[i];
+                    long transferred = 0;
+                    target.position(position);
+                    while (transferred < count) {
+                        long moved = channel.transferTo(offsets[i] + transferred, count
+                                - transferred, target);
+                        if (moved <= 0) {
+                            throw new IOException("Unable to copy tile " + i + " of "
+                                    + file.getAbsolutePath() + " to " + tmp.getAbsolutePath()
+                                    + ", the bundle is shorter than its index says");
+                        }
+                        transferred += moved;
+                    }
+                    newOffsets[i] = position;
+                    position += count;
+                }
+                ByteBuffer index = ByteBuffer.allocate((int) DATA_START);
+                index.putInt(MAGIC).putInt(VERSION);
+                for (int i = 0; i < TILES; i++) {
+                    index.putLong(newOffsets[i]).putInt(newOffsets[i] == 0 ? 0 : lengths[i]);
+                }
+                index.flip();
+                writeFully(target, index, 0);
+                target.force(true);
+                compacted = true;
+            } finally {
+                tmpRaf.close();
+                if (!compacted) {
+                    tmp.delete();
+                }
+            }
+
+            closeFile();
+            if (!tmp.renameTo(file)) {
+                // some platforms won't rename over an existing file
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    closed = true;
+                    throw new IOException("Unable to replace " + file.getAbsolutePath()
+                            + " with its compacted version " + tmp.getAbsolutePath());
+                }
+            }
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            System.arraycopy(newOffsets, 0, offsets, 0, TILES);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void close() {
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                closeFile();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void closeFile() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // nothing to do, the data was already written
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Bundle " + file.getAbsolutePath() + " has been closed");
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of bundle");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
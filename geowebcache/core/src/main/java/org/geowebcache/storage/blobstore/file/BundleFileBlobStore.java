@@ -0,0 +1,675 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BatchBlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileBatch;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A {@link FileBlobStore} storing tiles in bundles of {@link Bundle#SIZE} x {@link Bundle#SIZE}
+ * tiles per file, similar to ArcGIS compact caches, instead of a file per tile.
+ * <p>
+ * Bundles live in the same gridset and zoom level directories the file blob store uses, named
+ * {@code <bundleX>_<bundleY>.<extension>.bundle}, so layer and gridset deletes and renames work the
+ * same way. Each bundle has an index and an append only data region, see {@link Bundle}.
+ * </p>
+ * <p>
+ * Overwritten and deleted tiles leave dead space in their bundle. Once it's over
+ * {@link #setCompactionThreshold(double) compactionThreshold} of the bundle data, and at least
+ * {@link #setMinCompactionGarbage(long) minCompactionGarbage} bytes, the bundle is compacted in the
+ * background.
+ * </p>
+ * <p>
+ * Up to {@link #setMaxOpenBundles(int) maxOpenBundles} bundles are kept open, the least recently
+ * used ones being closed when more are needed.
+ * </p>
+ * <p>
+ * Some of the file blob store settings don't apply to bundles: the
+ * {@link #setTilePathLayout(TilePathLayout) tile path layout} is rejected, and the truncate thread
+ * and rate settings are ignored since a range delete rewrites each bundle index once. The disk
+ * quota startup scan of the cache directory doesn't look into bundles either, so disk usage is
+ * only tracked through the store events; {@link #scanTiles scanTiles} does report the bundled
+ * tiles.
+ * </p>
+ */
+public class BundleFileBlobStore extends FileBlobStore {
+
+    private static Log log = LogFactory.getLog(BundleFileBlobStore.class);
+
+    private static final int DEFAULT_MAX_OPEN_BUNDLES = 256;
+
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final long DEFAULT_MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    private int maxOpenBundles = DEFAULT_MAX_OPEN_BUNDLES;
+
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private long minCompactionGarbage = DEFAULT_MIN_COMPACTION_GARBAGE;
+
+    /**
+     * Open bundles in access order, guards the bundles reference counts and flags too
+     */
+    private final LinkedHashMap<File, Bundle> openBundles = new LinkedHashMap<File, Bundle>(16,
+            0.75f, true);
+
+    private final ExecutorService compactionService;
+
+    public BundleFileBlobStore(DefaultStorageFinder defStoreFinder) throws ConfigurationException {
+        super(defStoreFinder);
+        compactionService = createCompactionService();
+    }
+
+    public BundleFileBlobStore(String rootPath) throws StorageException {
+        super(rootPath);
+        compactionService = createCompactionService();
+    }
+
+    private static ExecutorService createCompactionService() {
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("GWC bundle compaction thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        return Executors.newSingleThreadExecutor(tf);
+    }
+
+    public int getMaxOpenBundles() {
+        return maxOpenBundles;
+    }
+
+    /**
+     * @param maxOpenBundles
+     *            how many bundles to keep open, each one takes a file descriptor and about 200KB
+     *            for its index
+     */
+    public void setMaxOpenBundles(int maxOpenBundles) {
+        this.maxOpenBundles = maxOpenBundles;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * @param compactionThreshold
+     *            ratio of dead space over the bundle data that triggers a compaction
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public long getMinCompactionGarbage() {
+        return minCompactionGarbage;
+    }
+
+    /**
+     * @param minCompactionGarbage
+     *            minimum bytes of dead space for a bundle to be compacted, so that small bundles
+     *            aren't rewritten over and over
+     */
+    public void setMinCompactionGarbage(long minCompactionGarbage) {
+        this.minCompactionGarbage = minCompactionGarbage;
+    }
+
+    /**
+     * Destroy method for Spring
+     */
+    @Override
+    public void destroy() {
+        compactionService.shutdownNow();
+        closeBundles(new File(getPath()));
+        super.destroy();
+    }
+
+    /**
+     * @return the bundle file holding the given tile
+     */
+    private File getBundleFile(final String layerName, final String gridSetId,
+            final MimeType mimeType, final long parametersId, final long x, final long y,
+            final long z) {
+        StringBuilder dir = new StringBuilder(FilePathGenerator.gridsetZoomLevelDir(gridSetId, z));
+        if (parametersId != -1L) {
+            dir.append('_').append(Long.toHexString(parametersId));
+        }
+        File zoomDir = new File(new File(getPath(), FilePathGenerator.filteredLayerName(layerName)),
+                dir.toString());
+        return new File(zoomDir, bundleName(x / Bundle.SIZE, y / Bundle.SIZE, mimeType));
+    }
+
+    private static String bundleName(final long bundleX, final long bundleY,
+            final MimeType mimeType) {
+        return bundleX + "_" + bundleY + "." + mimeType.getFileExtension() + Bundle.EXTENSION;
+    }
+
+    private File getBundleFile(final TileObject stObj) {
+        final MimeType mimeType;
+        try {
+            mimeType = MimeType.createFromFormat(stObj.getBlobFormat());
+        } catch (MimeException me) {
+            log.error(me.getMessage());
+            throw new RuntimeException(me);
+        }
+        final long[] xyz = stObj.getXYZ();
+        return getBundleFile(stObj.getLayerName(), stObj.getGridSetId(), mimeType, stObj
+                .getParametersId(), xyz[0], xyz[1], xyz[2]);
+    }
+
+    /**
+     * Gets the bundle stored in the given file, opening it if needed. Shall be
+     * {@link #release(Bundle) released} once done with it.
+     *
+     * @return the bundle, or {@code null} if it doesn't exist and {@code create} is false
+     */
+    private Bundle acquire(final File file, final boolean create) throws StorageException {
+        synchronized (openBundles) {
+            Bundle bundle = openBundles.get(file);
+            if (bundle == null) {
+                if (create) {
+                    File parent = file.getParentFile();
+                    if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                        throw new StorageException("Unable to create " + parent.getAbsolutePath());
+                    }
+                }
+                try {
+                    bundle = Bundle.open(file, create);
+                } catch (IOException e) {
+                    throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+                }
+                if (bundle == null) {
+                    return null;
+                }
+                openBundles.put(file, bundle);
+                evictBundles();
+            }
+            bundle.users++;
+            return bundle;
+        }
+    }
+
+    private void release(final Bundle bundle) {
+        synchronized (openBundles) {
+            bundle.users--;
+            if (bundle.users == 0 && bundle.evicted) {
+                bundle.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used bundles not in use, down to {@link #maxOpenBundles}
+     */
+    private void evictBundles() {
+        Iterator<Bundle> it = openBundles.values().iterator();
+        while (openBundles.size() > maxOpenBundles && it.hasNext()) {
+            Bundle bundle = it.next();
+            if (bundle.users == 0 && !bundle.compactionScheduled) {
+                it.remove();
+                bundle.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the open bundles under the given directory, before it's deleted or renamed
+     */
+    private void closeBundles(final File directory) {
+        final String prefix = directory.getAbsolutePath() + File.separator;
+        synchronized (openBundles) {
+            Iterator<Map.Entry<File, Bundle>> it = openBundles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<File, Bundle> entry = it.next();
+                if (entry.getKey().getAbsolutePath().startsWith(prefix)) {
+                    it.remove();
+                    Bundle bundle = entry.getValue();
+                    bundle.evicted = true;
+                    if (bundle.users == 0) {
+                        bundle.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private File getLayerDirectory(final String layerName) {
+        return new File(getPath(), FilePathGenerator.filteredLayerName(layerName));
+    }
+
+    @Override
+    public boolean delete(final String layerName) throws StorageException {
+        closeBundles(getLayerDirectory(layerName));
+        return super.delete(layerName);
+    }
+
+    @Override
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        closeBundles(getLayerDirectory(layerName));
+        return super.deleteByGridsetId(layerName, gridSetId);
+    }
+
+    @Override
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        closeBundles(getLayerDirectory(oldLayerName));
+        return super.rename(oldLayerName, newLayerName);
+    }
+
+    @Override
+    public Resource get(final TileObject stObj) throws StorageException {
+        final File file = getBundleFile(stObj);
+        final Bundle bundle = acquire(file, false);
+        if (bundle == null) {
+            return null;
+        }
+        try {
+            final long[] xyz = stObj.getXYZ();
+            Bundle.Record record = bundle.read(Bundle.tileIndex(xyz[0], xyz[1]));
+            if (record == null) {
+                return null;
+            }
+            if (0L == stObj.getCreated()) {
+                stObj.setCreated(record.created);
+            }
+            return new ByteArrayResource(record.data);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        } finally {
+            release(bundle);
+        }
+    }
+
+    @Override
+    public void put(final TileObject stObj) throws StorageException {
+        final File file = getBundleFile(stObj);
+        final long created = System.currentTimeMillis();
+        final int oldSize;
+        final Bundle bundle = acquire(file, true);
+        try {
+            final long[] xyz = stObj.getXYZ();
+            oldSize = bundle.write(Bundle.tileIndex(xyz[0], xyz[1]), stObj.getBlob(), created,
+                    isFsync());
+            if (oldSize >= 0) {
+                checkCompaction(bundle);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        } finally {
+            release(bundle);
+        }
+        stObj.setCreated(created);
+        /*
+         * This is important because listeners may be tracking tile existence
+         */
+        if (oldSize >= 0) {
+            getListeners().sendTileUpdated(stObj, oldSize);
+        } else {
+            getListeners().sendTileStored(stObj);
+        }
+    }
+
+    @Override
+    public boolean delete(final TileObject stObj) throws StorageException {
+        final File file = getBundleFile(stObj);
+        final Bundle bundle = acquire(file, false);
+        if (bundle == null) {
+            return false;
+        }
+        final int size;
+        try {
+            final long[] xyz = stObj.getXYZ();
+            size = bundle.delete(Bundle.tileIndex(xyz[0], xyz[1]));
+            if (size >= 0) {
+                checkCompaction(bundle);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        } finally {
+            release(bundle);
+        }
+        if (size < 0) {
+            return false;
+        }
+        stObj.setBlobSize(size);
+        getListeners().sendTileDeleted(stObj);
+        return true;
+    }
+
+    @Override
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final File layerPath = getLayerDirectory(trObj.getLayerName());
+        if (!layerPath.exists()) {
+            return true;
+        }
+        if (trObj.getGridSetId() == null) {
+            throw new StorageException("Specifying the grid set id is currently mandatory.");
+        }
+        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(trObj.getGridSetId());
+        final String extension = trObj.getMimeType() == null ? null : trObj.getMimeType()
+                .getFileExtension();
+        final String paramsSuffix = trObj.getParametersId() == null ? null : "_"
+                + Long.toHexString(trObj.getParametersId().longValue());
+
+        File[] zoomDirs = layerPath.listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                if (!pathname.isDirectory()
+                        || !pathname.getName().startsWith(gridsetPrefix + "_")) {
+                    return false;
+                }
+                if (paramsSuffix != null && !pathname.getName().endsWith(paramsSuffix)) {
+                    return false;
+                }
+                // levels without bounds have none of their tiles in the range
+                int z = FilePathGenerator.findZoomLevel(gridsetPrefix, pathname.getName());
+                return trObj.includesZoomLevel(z);
+            }
+        });
+
+        final long[] minXY = new long[2];
+        long count = 0;
+        for (File zoomDir : zoomDirs) {
+            final int z = FilePathGenerator.findZoomLevel(gridsetPrefix, zoomDir.getName());
+            final long[] bounds = trObj.getZoomLevelBounds(z);
+            File[] bundleFiles = zoomDir.listFiles();
+            for (File bundleFile : bundleFiles) {
+                String fileExtension = parseBundleName(bundleFile.getName(), minXY);
+                if (fileExtension == null) {
+                    continue;
+                }
+                if (extension != null && !extension.equalsIgnoreCase(fileExtension)) {
+                    continue;
+                }
+                final long minX = minXY[0];
+                final long minY = minXY[1];
+                if (bounds != null
+                        && (minX > bounds[2] || minX + Bundle.SIZE <= bounds[0]
+                                || minY > bounds[3] || minY + Bundle.SIZE <= bounds[1])) {
+                    continue;
+                }
+                final String blobFormat;
+                try {
+                    blobFormat = trObj.getMimeType() == null ? MimeType.createFromExtension(
+                            fileExtension).getFormat() : trObj.getMimeType().getFormat();
+                } catch (MimeException e) {
+                    log.warn("Skipping " + bundleFile.getAbsolutePath() + ": " + e.getMessage());
+                    continue;
+                }
+                count += deleteRange(bundleFile, trObj, blobFormat, minX, minY, z);
+            }
+            // Try deleting the zoom directory (will be done only if the directory is empty)
+            zoomDir.delete();
+        }
+
+        log.info("Truncated " + count + " tiles");
+        return true;
+    }
+
+    /**
+     * Parses a {@code <bundleX>_<bundleY>.<extension>.bundle} file name
+     *
+     * @param minXY
+     *            receives the position of the first tile of the bundle
+     * @return the tile file extension, or {@code null} if the name is not a bundle's
+     */
+    private static String parseBundleName(final String name, final long[] minXY) {
+        if (!name.endsWith(Bundle.EXTENSION)) {
+            return null;
+        }
+        String base = name.substring(0, name.length() - Bundle.EXTENSION.length());
+        int dot = base.indexOf('.');
+        int underscore = base.indexOf('_');
+        if (dot < 0 || underscore < 0 || underscore > dot) {
+            return null;
+        }
+        long bundleX = FilePathGenerator.parseLong(base, 0, underscore);
+        long bundleY = FilePathGenerator.parseLong(base, underscore + 1, dot);
+        if (bundleX < 0 || bundleY < 0) {
+            return null;
+        }
+        minXY[0] = bundleX * Bundle.SIZE;
+        minXY[1] = bundleY * Bundle.SIZE;
+        return base.substring(dot + 1);
+    }
+
+    /**
+     * Deletes the tiles of the given bundle within the range
+     *
+     * @return the number of deleted tiles
+     */
+    private int deleteRange(final File bundleFile, final TileRange trObj, final String blobFormat,
+            final long minX, final long minY, final int z) throws StorageException {
+
+        final Bundle bundle = acquire(bundleFile, false);
+        if (bundle == null) {
+            return 0;
+        }
+        int count = 0;
+        // a single batch of events per bundle
+        BlobStoreListenerList.beginBatch();
+        try {
+            for (int i = 0; i < Bundle.TILES; i++) {
+                final long x = minX + i % Bundle.SIZE;
+                final long y = minY + i / Bundle.SIZE;
+                if (bundle.length(i) < 0) {
+                    continue;
+                }
+                // the bounds, and the raster mask of a discontinuous range
+                if (!trObj.contains(x, y, z)) {
+                    continue;
+                }
+                int size = bundle.delete(i);
+                if (size >= 0) {
+                    getListeners().sendTileDeleted(trObj.getLayerName(), trObj.getGridSetId(),
+                            blobFormat, trObj.getParametersId(), x, y, z, size);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                checkCompaction(bundle);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + bundleFile.getAbsolutePath());
+        } finally {
+            BlobStoreListenerList.endBatch();
+            release(bundle);
+        }
+        return count;
+    }
+
+    /**
+     * Schedules the compaction of the bundle if there's enough dead space in it
+     */
+    private void checkCompaction(final Bundle bundle) throws IOException {
+        final long garbage = bundle.getGarbage();
+        if (garbage < minCompactionGarbage
+                || garbage < compactionThreshold * bundle.getDataSize()) {
+            return;
+        }
+        synchronized (openBundles) {
+            if (bundle.compactionScheduled || bundle.isClosed()) {
+                return;
+            }
+            bundle.compactionScheduled = true;
+            bundle.users++;
+        }
+        try {
+            compactionService.submit(new Runnable() {
+                public void run() {
+                    try {
+                        bundle.compact();
+                        if (log.isDebugEnabled()) {
+                            log.debug("Compacted " + bundle.getFile().getAbsolutePath());
+                        }
+                    } catch (IOException e) {
+                        log.warn("Error compacting " + bundle.getFile().getAbsolutePath(), e);
+                    } finally {
+                        synchronized (openBundles) {
+                            bundle.compactionScheduled = false;
+                        }
+                        release(bundle);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected, shutting down
+            synchronized (openBundles) {
+                bundle.compactionScheduled = false;
+            }
+            release(bundle);
+        }
+    }
+
+    /**
+     * Reports the tiles in the bundle indexes of a layer grid set to the listener, as a batch of
+     * {@link BatchBlobStoreListener#tilesStored(TileBatch) stored} tiles per bundle, along with
+     * their sizes.
+     * <p>
+     * Tiles stored or deleted while scanning may or may not be reported.
+     * </p>
+     *
+     * @return the number of tiles reported
+     */
+    @Override
+    public long scanTiles(final String layerName, final String gridSetId,
+            final BatchBlobStoreListener listener) throws StorageException {
+        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(gridSetId);
+        final File[] zoomDirs = getLayerDirectory(layerName).listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.isDirectory()
+                        && pathname.getName().startsWith(gridsetPrefix + "_");
+            }
+        });
+        if (zoomDirs == null) {
+            return 0;
+        }
+        final long[] minXY = new long[2];
+        long count = 0;
+        for (File zoomDir : zoomDirs) {
+            // <gridset>_<zoom level>[_<parameters id>]
+            final String zoomDirName = zoomDir.getName();
+            final int start = gridsetPrefix.length() + 1;
+            final int sep = zoomDirName.indexOf('_', start);
+            final long z = FilePathGenerator.parseLong(zoomDirName, start,
+                    sep < 0 ? zoomDirName.length() : sep);
+            Long parametersId = null;
+            try {
+                if (sep > 0) {
+                    parametersId = Long.valueOf(Long.parseLong(zoomDirName.substring(sep + 1), 16));
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (z < 0) {
+                continue;
+            }
+            final File[] bundleFiles = zoomDir.listFiles();
+            if (bundleFiles == null) {
+                continue;
+            }
+            for (File bundleFile : bundleFiles) {
+                final String extension = parseBundleName(bundleFile.getName(), minXY);
+                if (extension == null) {
+                    continue;
+                }
+                final String blobFormat;
+                try {
+                    blobFormat = MimeType.createFromExtension(extension).getFormat();
+                } catch (MimeException e) {
+                    continue;
+                }
+                final Bundle bundle = acquire(bundleFile, false);
+                if (bundle == null) {
+                    continue;
+                }
+                TileBatch batch = new TileBatch(layerName, gridSetId, blobFormat, parametersId,
+                        64);
+                try {
+                    for (int i = 0; i < Bundle.TILES; i++) {
+                        final int size = bundle.length(i);
+                        if (size >= 0) {
+                            batch.add(minXY[0] + i % Bundle.SIZE, minXY[1] + i / Bundle.SIZE,
+                                    (int) z, size);
+                        }
+                    }
+                } finally {
+                    release(bundle);
+                }
+                if (batch.size() > 0) {
+                    listener.tilesStored(batch);
+                    count += batch.size();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Bundles have no tile paths to lay out
+     *
+     * @throws UnsupportedOperationException
+     *             always
+     */
+    @Override
+    public void setTilePathLayout(TilePathLayout tilePathLayout) {
+        throw new UnsupportedOperationException("The tiles of a " + getClass().getSimpleName()
+                + " are laid out in bundles, it takes no tile path layout");
+    }
+
+    /**
+     * @return the bundle files of the given layer, mostly for monitoring and tests
+     */
+    public List<File> getBundleFiles(final String layerName) {
+        List<File> files = new ArrayList<File>();
+        File[] zoomDirs = getLayerDirectory(layerName).listFiles();
+        if (zoomDirs != null) {
+            for (File zoomDir : zoomDirs) {
+                File[] bundles = zoomDir.listFiles();
+                if (bundles == null) {
+                    continue;
+                }
+                for (File bundle : bundles) {
+                    if (bundle.getName().endsWith(Bundle.EXTENSION)) {
+                        files.add(bundle);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+}
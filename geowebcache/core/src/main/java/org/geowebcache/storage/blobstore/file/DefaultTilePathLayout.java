@@ -0,0 +1,100 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The original GeoWebCache layout, {@code <halfx>_<halfy>/<x>_<y>.<extension>} with zero padded
+ * numbers.
+ * <p>
+ * Tiles are grouped in squares whose side grows with the zoom level, so that the deepest levels
+ * still end up in a few thousand tiles per directory at most.
+ * </p>
+ */
+public class DefaultTilePathLayout implements TilePathLayout {
+
+    public static final DefaultTilePathLayout INSTANCE = new DefaultTilePathLayout();
+
+    /**
+     * @return the side of the squares the tiles are grouped in at the given level
+     */
+    private static long half(final int z) {
+        return 2 << (z / 2);
+    }
+
+    public void appendTilePath(StringBuilder path, long x, long y, int z, String extension) {
+        final long half = half(z);
+        final int digits = half > 10 ? FilePathGenerator.decimalDigits(half) : 1;
+
+        FilePathGenerator.zeroPadder(x / half, digits, path);
+        path.append('_');
+        FilePathGenerator.zeroPadder(y / half, digits, path);
+        path.append(File.separatorChar);
+
+        FilePathGenerator.zeroPadder(x, 2 * digits, path);
+        path.append('_');
+        FilePathGenerator.zeroPadder(y, 2 * digits, path);
+        path.append('.');
+        path.append(extension);
+    }
+
+    public List<File> listTileDirectories(File zoomDir, int z, long[] bounds) {
+        List<File> directories = new ArrayList<File>();
+        final String[] names = zoomDir.list();
+        if (names == null) {
+            return directories;
+        }
+        final long half = half(z);
+        for (String name : names) {
+            if (name.indexOf('.') >= 0) {
+                continue;
+            }
+            // <halfx>_<halfy>, skip the ones out of bounds
+            int sep = name.indexOf('_');
+            long halfx = sep < 0 ? -1 : FilePathGenerator.parseLong(name, 0, sep);
+            long halfy = sep < 0 ? -1 : FilePathGenerator.parseLong(name, sep + 1, name.length());
+            if (bounds != null && halfx >= 0 && halfy >= 0) {
+                long minx = halfx * half;
+                long miny = halfy * half;
+                if (minx > bounds[2] || minx + half - 1 < bounds[0] || miny > bounds[3]
+                        || miny + half - 1 < bounds[1]) {
+                    continue;
+                }
+            }
+            directories.add(new File(zoomDir, name));
+        }
+        return directories;
+    }
+
+    public boolean parseTile(String directoryName, String fileName, long[] xy) {
+        // <x>_<y>.<extension>
+        final int sep = fileName.indexOf('_');
+        final int dot = fileName.indexOf('.', sep + 1);
+        if (sep <= 0 || dot < 0 || fileName.indexOf('.', dot + 1) >= 0) {
+            return false;
+        }
+        xy[0] = FilePathGenerator.parseLong(fileName, 0, sep);
+        xy[1] = FilePathGenerator.parseLong(fileName, sep + 1, dot);
+        return xy[0] >= 0 && xy[1] >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "default";
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded set of directories known to exist, so that {@link FileBlobStore} doesn't check and
+ * create the directories of every tile it writes.
+ * <p>
+ * Once full the set is simply cleared, the directories being written to at the time will be back
+ * after a single check each. Directories are keyed by {@link File#getPath()}, which is consistent
+ * as long as they're all built out of the same root path.
+ * </p>
+ */
+class DirectoryCache {
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<String, Boolean> directories;
+
+    DirectoryCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.directories = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    boolean contains(final File directory) {
+        return directories.containsKey(directory.getPath());
+    }
+
+    void add(final File directory) {
+        if (directories.size() >= maxSize) {
+            directories.clear();
+        }
+        directories.put(directory.getPath(), Boolean.TRUE);
+    }
+
+    void remove(final File directory) {
+        directories.remove(directory.getPath());
+    }
+
+    /**
+     * Forgets the given directory and all the ones under it
+     */
+    void removeAll(final File directory) {
+        final String path = directory.getPath();
+        final String prefix = path + File.separator;
+        Iterator<String> it = directories.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.equals(path) || key.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        directories.clear();
+    }
+
+    int size() {
+        return directories.size();
+    }
+}
@@ -28,9 +28,13 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,11 +43,13 @@ import org.geowebcache.io.FileResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BatchBlobStoreListener;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.BlobStoreListenerList;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileBatch;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
@@ -66,6 +72,32 @@ public class FileBlobStore implements BlobStore {
 
     private static ExecutorService deleteExecutorService;
 
+    /**
+     * Tiles are written to {@code <tile file>.<tmpPrefix><counter>.tmp} and then renamed into
+     * place. The prefix is random so that stores from several processes sharing the cache
+     * directory don't clash.
+     */
+    private final String tmpPrefix = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE)
+            + "_";
+
+    private final AtomicLong tmpCounter = new AtomicLong();
+
+    private boolean fsync;
+
+    private static final int MAX_CACHED_DIRECTORIES = 10000;
+
+    /**
+     * Tile directories known to exist, so that writing a tile doesn't check its directories
+     */
+    private final DirectoryCache knownDirectories = new DirectoryCache(MAX_CACHED_DIRECTORIES);
+
+    private int truncateThreads = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private int truncateMaxDeletesPerSecond;
+
+    private TilePathLayout tilePathLayout = DefaultTilePathLayout.INSTANCE;
+
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws ConfigurationException {
         path = defStoreFinder.getDefaultPath();
         stagingArea = new File(path, "_gwc_in_progress_deletes_");
@@ -114,6 +146,76 @@ public class FileBlobStore implements BlobStore {
         deleteExecutorService = Executors.newFixedThreadPool(1);
     }
 
+    /**
+     * @return the root directory of the cache
+     */
+    protected String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the listeners to notify of the changes to the cache
+     */
+    protected BlobStoreListenerList getListeners() {
+        return listeners;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    /**
+     * @param fsync
+     *            whether to force each tile to disk before renaming it into place, so that a crash
+     *            can't leave a renamed but empty tile behind. Off by default, as it costs a disk
+     *            flush per tile.
+     */
+    public void setFsync(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    public int getTruncateThreads() {
+        return truncateThreads;
+    }
+
+    /**
+     * @param truncateThreads
+     *            how many threads delete the tiles of a {@link #delete(TileRange) truncated} range
+     *            at once. Defaults to the number of processors, up to 4.
+     */
+    public void setTruncateThreads(int truncateThreads) {
+        this.truncateThreads = Math.max(1, truncateThreads);
+    }
+
+    public int getTruncateMaxDeletesPerSecond() {
+        return truncateMaxDeletesPerSecond;
+    }
+
+    /**
+     * @param truncateMaxDeletesPerSecond
+     *            caps the rate at which a {@link #delete(TileRange) truncate} deletes tiles, so
+     *            that it doesn't starve the tiles being served off the same disk. {@code 0}, the
+     *            default, means no cap.
+     */
+    public void setTruncateMaxDeletesPerSecond(int truncateMaxDeletesPerSecond) {
+        this.truncateMaxDeletesPerSecond = Math.max(0, truncateMaxDeletesPerSecond);
+    }
+
+    public TilePathLayout getTilePathLayout() {
+        return tilePathLayout;
+    }
+
+    /**
+     * @param tilePathLayout
+     *            how the tiles are laid out under their zoom level directories. Defaults to
+     *            {@link DefaultTilePathLayout}, changing it for an existing cache requires running
+     *            the {@link TilePathLayoutMigrator} over it first.
+     */
+    public void setTilePathLayout(TilePathLayout tilePathLayout) {
+        this.tilePathLayout = tilePathLayout == null ? DefaultTilePathLayout.INSTANCE
+                : tilePathLayout;
+    }
+
     /**
      * Destroy method for Spring
      */
@@ -186,6 +288,8 @@ public class FileBlobStore implements BlobStore {
 
     private boolean stageDelete(final File source, final String targetName) throws StorageException {
 
+        knownDirectories.removeAll(source);
+
         if (!source.exists() || !source.canWrite()) {
             log.info(source + " does not exist or is not writable");
             return false;
@@ -274,6 +378,7 @@ public class FileBlobStore implements BlobStore {
             log.info(oldLayerPath + " is not writable");
             return false;
         }
+        knownDirectories.removeAll(oldLayerPath);
         boolean renamed = oldLayerPath.renameTo(newLayerPath);
         if (renamed) {
             this.listeners.sendLayerRenamed(oldLayerName, newLayerName);
@@ -314,14 +419,14 @@ public class FileBlobStore implements BlobStore {
         // Look at the parent directory to prune it if empty
         File parentDir = fh.getParentFile();
         // Try deleting the directory (will not do it if the directory contains files)
-        parentDir.delete();
+        if (parentDir.delete()) {
+            knownDirectories.remove(parentDir);
+        }
 
         return ret;
     }
 
     public boolean delete(TileRange trObj) throws StorageException {
-        int count = 0;
-
         String prefix = path + File.separator
                 + FilePathGenerator.filteredLayerName(trObj.getLayerName());
 
@@ -333,50 +438,18 @@ public class FileBlobStore implements BlobStore {
         if (!layerPath.isDirectory() || !layerPath.canWrite()) {
             throw new StorageException(prefix + " does is not a directory or is not writable.");
         }
-        
-        final FilePathFilter tileFinder = new FilePathFilter(trObj);
-
-        final String layerName = trObj.getLayerName();
-        final String gridSetId = trObj.getGridSetId();
-        final String blobFormat = trObj.getMimeType().getFormat();
-        // FRD trObj.getParametersId();
-        final Long parametersId = trObj.getParametersId();
-
-        File[] srsZoomDirs = layerPath.listFiles(tileFinder);
-
-        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(gridSetId);
-        for (File srsZoomParamId : srsZoomDirs) {
-            int zoomLevel = FilePathGenerator.findZoomLevel(gridsetPrefix, srsZoomParamId.getName());
-            File[] intermediates = srsZoomParamId.listFiles(tileFinder);
-
-            for (File imd : intermediates) {
-                File[] tiles = imd.listFiles(tileFinder);
-                long length;
-
-                for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
-                        String[] coords = tile.getName().split("\\.")[0].split("_");
-                        long x = Long.parseLong(coords[0]);
-                        long y = Long.parseLong(coords[1]);
-                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
-                                x, y, zoomLevel, length);
-                        count++;
-                    }
-                }
 
-                // Try deleting the directory (will be done only if the directory is empty)
-                if (imd.delete()) {
-                    // listeners.sendDirectoryDeleted(layerName);
-                }
-            }
-
-            // Try deleting the zoom directory (will be done only if the directory is empty)
-            if (srsZoomParamId.delete()) {
-                count++;
-                // listeners.sendDirectoryDeleted(layerName);
-            }
+        final RateLimiter rateLimiter = truncateMaxDeletesPerSecond > 0 ? new RateLimiter(
+                truncateMaxDeletesPerSecond) : null;
+        final TileRangeDeleter deleter = new TileRangeDeleter(trObj, layerPath, listeners,
+                knownDirectories, tilePathLayout, truncateThreads, rateLimiter);
+        final long count;
+        try {
+            count = deleter.delete();
+        } catch (InterruptedException e) {
+            log.info("Truncate of " + prefix + " interrupted");
+            Thread.currentThread().interrupt();
+            return false;
         }
 
         log.info("Truncated " + count + " tiles");
@@ -399,9 +472,8 @@ public class FileBlobStore implements BlobStore {
 
     public void put(TileObject stObj) throws StorageException {
         final File fh = getFileHandleTile(stObj, true);
-        final long oldSize = fh.length();
+        final long oldSize = writeFile(fh, stObj.getBlob());
         final boolean existed = oldSize > 0;
-        writeFile(fh, stObj.getBlob());
         stObj.setCreated(fh.lastModified());
         /*
          * This is important because listeners may be tracking tile existence
@@ -428,11 +500,14 @@ public class FileBlobStore implements BlobStore {
         final long parametersId = stObj.getParametersId();
 
         final File tilePath = FilePathGenerator.tilePath(path, layerName, xyz, gridSetId, mimeType,
-                parametersId);
+                parametersId, tilePathLayout);
 
         if (create) {
             File parent = tilePath.getParentFile();
-            mkdirs(parent, stObj);
+            if (!knownDirectories.contains(parent)) {
+                mkdirs(parent, stObj);
+                knownDirectories.add(parent);
+            }
         }
 
         return tilePath;
@@ -445,27 +520,160 @@ public class FileBlobStore implements BlobStore {
         return new FileResource(fh);
     }
 
-    private void writeFile(File target, Resource source) throws StorageException {
+    /**
+     * Writes the tile to a temporary file next to the target and renames it into place, so that
+     * concurrent readers either get the old tile or the new one, never a partially written one.
+     * 
+     * @return the size of the tile that was replaced, or 0 if there was none
+     */
+    private long writeFile(File target, Resource source) throws StorageException {
+        final File parent = target.getParentFile();
+        final File tmp = new File(parent, target.getName() + "." + tmpPrefix
+                + tmpCounter.incrementAndGet() + ".tmp");
         // Open the output stream
         FileOutputStream fos;
         try {
-            fos = new FileOutputStream(target);
+            fos = new FileOutputStream(tmp);
         } catch (FileNotFoundException ioe) {
-            throw new StorageException(ioe.getMessage() + " for " + target.getAbsolutePath());
+            // the directory may have been removed since it was cached, give it another try
+            knownDirectories.remove(parent);
+            if (parent.exists() || !parent.mkdirs()) {
+                throw new StorageException(ioe.getMessage() + " for " + tmp.getAbsolutePath());
+            }
+            knownDirectories.add(parent);
+            try {
+                fos = new FileOutputStream(tmp);
+            } catch (FileNotFoundException e) {
+                throw new StorageException(e.getMessage() + " for " + tmp.getAbsolutePath());
+            }
         }
 
+        boolean written = false;
         FileChannel channel = fos.getChannel();
         try {
             source.transferTo(channel);
+            if (fsync) {
+                channel.force(true);
+            }
+            written = true;
         } catch (IOException ioe) {
-            throw new StorageException(ioe.getMessage() + " for " + target.getAbsolutePath());
+            throw new StorageException(ioe.getMessage() + " for " + tmp.getAbsolutePath());
         } finally {
             try {
                 channel.close();
             } catch (IOException ioe) {
-                throw new StorageException(ioe.getMessage() + " for " + target.getAbsolutePath());
+                written = false;
+                throw new StorageException(ioe.getMessage() + " for " + tmp.getAbsolutePath());
+            } finally {
+                if (!written) {
+                    tmp.delete();
+                }
+            }
+        }
+
+        // as close as possible to the rename, for the listeners to get the right size
+        final long oldSize = listeners.isEmpty() ? 0 : target.length();
+        if (!tmp.renameTo(target)) {
+            // some platforms won't rename over an existing file, readers may see no tile at all
+            // for a moment but still never a partial one
+            if (!target.delete() || !tmp.renameTo(target)) {
+                tmp.delete();
+                throw new StorageException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                        + target.getAbsolutePath());
+            }
+        }
+        return oldSize;
+    }
+
+    /**
+     * Reports all the tiles stored for a layer grid set to the listener, as batches of
+     * {@link BatchBlobStoreListener#tilesStored(TileBatch) stored} tiles, one or more per tile
+     * directory.
+     * <p>
+     * Tile sizes are reported as {@code 0}, looking them up would cost a file system call per tile.
+     * Tiles stored or deleted while scanning may or may not be reported.
+     * </p>
+     * <p>
+     * Subclasses that don't keep a file per tile must override it, the
+     * {@link org.geowebcache.storage.TileExistenceIndex} relies on it to know the cached tiles.
+     * </p>
+     *
+     * @return the number of tiles reported
+     */
+    public long scanTiles(final String layerName, final String gridSetId,
+            final BatchBlobStoreListener listener) throws StorageException {
+        final File layerPath = new File(path, FilePathGenerator.filteredLayerName(layerName));
+        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(gridSetId) + "_";
+        final String[] zoomDirs = layerPath.list();
+        if (zoomDirs == null) {
+            return 0;
+        }
+        final Map<String, String> formats = new HashMap<String, String>();
+        final long[] xy = new long[2];
+        long count = 0;
+        for (String zoomDirName : zoomDirs) {
+            if (!zoomDirName.startsWith(gridsetPrefix)) {
+                continue;
+            }
+            // <gridset>_<zoom level>[_<parameters id>]
+            final int start = gridsetPrefix.length();
+            final int sep = zoomDirName.indexOf('_', start);
+            final long z = FilePathGenerator.parseLong(zoomDirName, start,
+                    sep < 0 ? zoomDirName.length() : sep);
+            Long parametersId = null;
+            try {
+                if (sep > 0) {
+                    parametersId = Long.valueOf(Long.parseLong(zoomDirName.substring(sep + 1), 16));
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (z < 0) {
+                continue;
+            }
+
+            final File zoomDir = new File(layerPath, zoomDirName);
+            for (File directory : tilePathLayout.listTileDirectories(zoomDir, (int) z, null)) {
+                final String directoryName = directory.getName();
+                final String[] names = directory.list();
+                if (names == null) {
+                    continue;
+                }
+                // tiles of all formats share the directories
+                Map<String, TileBatch> batches = new HashMap<String, TileBatch>();
+                for (String name : names) {
+                    final int dot = name.lastIndexOf('.');
+                    if (dot <= 0 || !tilePathLayout.parseTile(directoryName, name, xy)) {
+                        continue;
+                    }
+                    final String extension = name.substring(dot + 1);
+                    String format = formats.get(extension);
+                    if (format == null) {
+                        try {
+                            format = MimeType.createFromExtension(extension).getFormat();
+                        } catch (MimeException e) {
+                            format = "";
+                        }
+                        formats.put(extension, format);
+                    }
+                    if (format.length() == 0) {
+                        continue;
+                    }
+                    TileBatch batch = batches.get(format);
+                    if (batch == null) {
+                        batch = new TileBatch(layerName, gridSetId, format, parametersId,
+                                names.length);
+                        batches.put(format, batch);
+                    }
+                    batch.add(xy[0], xy[1], (int) z, 0);
+                    count++;
+                }
+                for (TileBatch batch : batches.values()) {
+                    listener.tilesStored(batch);
+                }
             }
         }
+        return count;
     }
 
     public void clear() throws StorageException {
@@ -23,6 +23,34 @@ import org.geowebcache.mime.MimeType;
 
 public class FilePathGenerator {
 
+    /**
+     * {@code ORDER_THRESHOLDS[k]} is the smallest number of {@code k + 1} digits the padding
+     * counted as such. The padding used to count digits with
+     * {@code Math.ceil(Math.log10(number) - 0.001)}, which falls a digit short for numbers just
+     * over a power of ten, and existing caches are laid out accordingly.
+     */
+    private static final long[] ORDER_THRESHOLDS = computeOrderThresholds();
+
+    private static long[] computeOrderThresholds() {
+        final long[] thresholds = new long[19];
+        long power = 10;
+        for (int k = 2; k < thresholds.length; k++) {
+            power *= 10;
+            long lo = power;
+            long hi = 2 * power;
+            while (lo < hi) {
+                final long mid = lo + (hi - lo) / 2;
+                if (Math.ceil(Math.log10(mid) - 0.001) > k) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            thresholds[k] = lo;
+        }
+        return thresholds;
+    }
+
     /**
      * Builds the storage path for a tile and returns it as two components, the directory path and
      * the tile file name.
@@ -45,23 +73,24 @@ public class FilePathGenerator {
      */
     public static File tilePath(String prefix, String layerName, long[] tileIndex,
             String gridSetId, MimeType mimeType, long parameters_id) {
+        return tilePath(prefix, layerName, tileIndex, gridSetId, mimeType, parameters_id,
+                DefaultTilePathLayout.INSTANCE);
+    }
+
+    /**
+     * Builds the storage path for a tile like
+     * {@link #tilePath(String, String, long[], String, MimeType, long)}, laying out the tiles
+     * under their {@link #gridsetZoomLevelDir(String, long) zoom level directory} as told by the
+     * given layout
+     */
+    public static File tilePath(String prefix, String layerName, long[] tileIndex,
+            String gridSetId, MimeType mimeType, long parameters_id, TilePathLayout layout) {
         long x = tileIndex[0];
         long y = tileIndex[1];
         long z = tileIndex[2];
 
         StringBuilder path = new StringBuilder(256);
 
-        long shift = z / 2;
-        long half = 2 << shift;
-        int digits = 1;
-        if (half > 10) {
-            digits = (int) (Math.log10(half)) + 1;
-        }
-        long halfx = x / half;
-        long halfy = y / half;
-
-        String fileExtension = mimeType.getFileExtension();
-
         path.append(prefix);
         path.append(File.separatorChar);
         appendFiltered(layerName, path);
@@ -69,19 +98,10 @@ public class FilePathGenerator {
         appendGridsetZoomLevelDir(gridSetId, z, path);
         if (parameters_id != -1L) {
             path.append('_');
-            path.append(Long.toHexString(parameters_id));
+            appendHex(parameters_id, path);
         }
         path.append(File.separatorChar);
-        zeroPadder(halfx, digits, path);
-        path.append('_');
-        zeroPadder(halfy, digits, path);
-        path.append(File.separatorChar);
-
-        zeroPadder(x, 2 * digits, path);
-        path.append('_');
-        zeroPadder(y, 2 * digits, path);
-        path.append('.');
-        path.append(fileExtension);
+        layout.appendTilePath(path, x, y, (int) z, mimeType.getFileExtension());
 
         File tileFile = new File(path.toString());
         return tileFile;
@@ -108,36 +128,84 @@ public class FilePathGenerator {
     }
 
     /**
-     * Silly way to pad numbers with leading zeros, since I don't know a fast way of doing this in
-     * Java.
-     * 
-     * @param number
-     * @param order
-     * @return
+     * Appends the number padded with leading zeros up to {@code order} digits, without creating
+     * any object
      */
-    private static void zeroPadder(long number, int order, StringBuilder padding) {
-        int numberOrder = 1;
-
-        if (number > 9) {
-            if (number > 11) {
-                numberOrder = (int) Math.ceil(Math.log10(number) - 0.001);
-            } else {
-                numberOrder = 2;
-            }
+    static void zeroPadder(long number, int order, StringBuilder padding) {
+        for (int diffOrder = order - numberOrder(number); diffOrder > 0; diffOrder--) {
+            padding.append('0');
+        }
+        padding.append(number);
+    }
+
+    /**
+     * @return the digits the padding counts the number to have, see {@link #ORDER_THRESHOLDS}
+     */
+    private static int numberOrder(final long number) {
+        if (number <= 9) {
+            return 1;
+        }
+        if (number <= 11) {
+            return 2;
+        }
+        // power = 10^k <= number < 10^(k+1)
+        int k = 1;
+        long power = 10;
+        while (k < 18 && number >= power * 10) {
+            power *= 10;
+            k++;
+        }
+        if (k >= 2 && number < ORDER_THRESHOLDS[k]) {
+            return k;
+        }
+        return k + 1;
+    }
+
+    /**
+     * @return the number of decimal digits of a non negative number
+     */
+    static int decimalDigits(long number) {
+        int digits = 1;
+        while (number > 9) {
+            number /= 10;
+            digits++;
         }
+        return digits;
+    }
 
-        int diffOrder = order - numberOrder;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-        if (diffOrder > 0) {
+    /**
+     * Appends the number as {@link Long#toHexString(long)} does, without creating any object
+     */
+    static void appendHex(final long number, final StringBuilder path) {
+        int shift = 60;
+        while (shift > 0 && ((number >>> shift) & 0xF) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            path.append(HEX_DIGITS[(int) ((number >>> shift) & 0xF)]);
+        }
+    }
 
-            while (diffOrder > 0) {
-                padding.append('0');
-                diffOrder--;
+    /**
+     * Parses the non negative decimal number in {@code s} between {@code start} and {@code end}
+     *
+     * @return the number, or {@code -1} if it's not a number
+     */
+    static long parseLong(final String s, final int start, final int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
             }
-            padding.append(number);// toString() + Long.toString(number);
-        } else {
-            padding.append(number);
+            value = value * 10 + (c - '0');
         }
+        return value;
     }
 
     public static String filteredGridSetId(String gridSetId) {
@@ -0,0 +1,145 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads the tiles of a zoom level evenly over two levels of 256 directories,
+ * {@code <hh>/<hh>/<x>_<y>.<extension>} where {@code hh} are two bytes of a hash of the tile
+ * coordinates in hexadecimal.
+ * <p>
+ * Unlike the {@link DefaultTilePathLayout default layout}, whose directories fill up unevenly
+ * depending on where the data is and can grow past what some file systems handle well, the
+ * directories here fill up evenly whatever the tiles distribution, with about 256 tiles each once
+ * a level reaches 16 million tiles. The price is that neighbouring tiles are scattered, so
+ * deleting a small range still touches as many directories as it has tiles, up to the whole level.
+ * </p>
+ */
+public class HashedTilePathLayout implements TilePathLayout {
+
+    private static final int FAN_OUT = 256;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Mixes the tile coordinates so that any set of tiles spreads evenly over the directories.
+     * <p>
+     * This decides where the tiles of existing caches are, it must never change.
+     * </p>
+     */
+    static long hash(final long x, final long y) {
+        long h = x * 0x9E3779B97F4A7C15L + y;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    private static void appendByte(final int b, final StringBuilder path) {
+        path.append(HEX_DIGITS[(b >>> 4) & 0xF]);
+        path.append(HEX_DIGITS[b & 0xF]);
+    }
+
+    public void appendTilePath(StringBuilder path, long x, long y, int z, String extension) {
+        final long hash = hash(x, y);
+        appendByte((int) hash, path);
+        path.append(File.separatorChar);
+        appendByte((int) (hash >>> 8), path);
+        path.append(File.separatorChar);
+        path.append(x);
+        path.append('_');
+        path.append(y);
+        path.append('.');
+        path.append(extension);
+    }
+
+    public List<File> listTileDirectories(File zoomDir, int z, long[] bounds) {
+        List<File> directories = new ArrayList<File>();
+        if (bounds != null) {
+            final long width = bounds[2] - bounds[0] + 1;
+            final long height = bounds[3] - bounds[1] + 1;
+            if (width <= 0 || height <= 0) {
+                return directories;
+            }
+            if (width <= FAN_OUT * FAN_OUT / height) {
+                // cheaper to tell the directories out of the tiles than listing them all
+                boolean[] seen = new boolean[FAN_OUT * FAN_OUT];
+                StringBuilder name = new StringBuilder(5);
+                for (long x = bounds[0]; x <= bounds[2]; x++) {
+                    for (long y = bounds[1]; y <= bounds[3]; y++) {
+                        final int dir = (int) (hash(x, y) & 0xFFFF);
+                        if (seen[dir]) {
+                            continue;
+                        }
+                        seen[dir] = true;
+                        name.setLength(0);
+                        appendByte(dir, name);
+                        name.append(File.separatorChar);
+                        appendByte(dir >>> 8, name);
+                        File directory = new File(zoomDir, name.toString());
+                        if (directory.isDirectory()) {
+                            directories.add(directory);
+                        }
+                    }
+                }
+                return directories;
+            }
+        }
+        String[] names = zoomDir.list();
+        if (names == null) {
+            return directories;
+        }
+        for (String name : names) {
+            if (!isHexByte(name)) {
+                continue;
+            }
+            File directory = new File(zoomDir, name);
+            String[] children = directory.list();
+            if (children == null) {
+                continue;
+            }
+            for (String child : children) {
+                if (isHexByte(child)) {
+                    directories.add(new File(directory, child));
+                }
+            }
+        }
+        return directories;
+    }
+
+    private static boolean isHexByte(final String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+                && Character.digit(name.charAt(1), 16) >= 0;
+    }
+
+    public boolean parseTile(String directoryName, String fileName, long[] xy) {
+        // <x>_<y>.<extension>
+        final int sep = fileName.indexOf('_');
+        final int dot = fileName.indexOf('.', sep + 1);
+        if (sep <= 0 || dot < 0 || fileName.indexOf('.', dot + 1) >= 0) {
+            return false;
+        }
+        xy[0] = FilePathGenerator.parseLong(fileName, 0, sep);
+        xy[1] = FilePathGenerator.parseLong(fileName, sep + 1, dot);
+        return xy[0] >= 0 && xy[1] >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "hashed";
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+/**
+ * Spaces out operations shared by several threads to a given rate, so that bulk file system work
+ * leaves room for the regular requests.
+ */
+class RateLimiter {
+
+    private final long intervalNanos;
+
+    private long nextFree;
+
+    /**
+     * @param permitsPerSecond
+     *            the maximum number of {@link #acquire() acquisitions} per second
+     */
+    RateLimiter(final double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond shall be positive: "
+                    + permitsPerSecond);
+        }
+        this.intervalNanos = (long) (1000000000d / permitsPerSecond);
+        this.nextFree = System.nanoTime();
+    }
+
+    /**
+     * Waits until the operation can proceed
+     */
+    void acquire() throws InterruptedException {
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (nextFree - now < 0) {
+                // idle for a while, don't let it burst to catch up
+                nextFree = now;
+            }
+            wait = nextFree - now;
+            nextFree += intervalNanos;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } else if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
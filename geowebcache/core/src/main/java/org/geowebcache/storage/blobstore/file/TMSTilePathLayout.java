@@ -0,0 +1,69 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TMS layout, {@code <x>/<y>.<extension>} under the zoom level directory.
+ * <p>
+ * GeoWebCache tile rows already count from the bottom of the grid as TMS does, so the tiles of a
+ * cache written with this layout can be served by any static web server as a TMS endpoint.
+ * </p>
+ */
+public class TMSTilePathLayout implements TilePathLayout {
+
+    public void appendTilePath(StringBuilder path, long x, long y, int z, String extension) {
+        path.append(x);
+        path.append(File.separatorChar);
+        path.append(y);
+        path.append('.');
+        path.append(extension);
+    }
+
+    public List<File> listTileDirectories(File zoomDir, int z, long[] bounds) {
+        List<File> directories = new ArrayList<File>();
+        final String[] names = zoomDir.list();
+        if (names == null) {
+            return directories;
+        }
+        for (String name : names) {
+            final long x = FilePathGenerator.parseLong(name, 0, name.length());
+            if (x < 0 || (bounds != null && (x < bounds[0] || x > bounds[2]))) {
+                continue;
+            }
+            directories.add(new File(zoomDir, name));
+        }
+        return directories;
+    }
+
+    public boolean parseTile(String directoryName, String fileName, long[] xy) {
+        // <x>/<y>.<extension>
+        final int dot = fileName.indexOf('.');
+        if (dot < 0 || fileName.indexOf('.', dot + 1) >= 0) {
+            return false;
+        }
+        xy[0] = FilePathGenerator.parseLong(directoryName, 0, directoryName.length());
+        xy[1] = FilePathGenerator.parseLong(fileName, 0, dot);
+        return xy[0] >= 0 && xy[1] >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "tms";
+    }
+}
@@ -0,0 +1,466 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileKey;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * A blob store keeping a copy of the most recently used tiles of a slower primary blob store,
+ * such as a {@link FileBlobStore} on a volume shared by several GeoWebCache instances, in a
+ * {@link FileBlobStore} on a local disk.
+ * <p>
+ * Tiles are copied to the local tier when read from the primary store and when stored, and the
+ * least recently used ones are deleted from it when it grows bigger than allowed. Deletes,
+ * truncates and renames go to both tiers. The primary store remains the only authority on what is
+ * cached: listeners are registered with it and layer metadata is kept in it.
+ * </p>
+ * <p>
+ * The local tier only serves the tiles it knows about, so its directory is emptied on start up
+ * and must not be shared with anything else. Tiles changed in the primary store by other
+ * GeoWebCache instances are not noticed, unless a {@link #setLocalTileMaxAge(long) maximum age}
+ * is set for the local copies.
+ * </p>
+ */
+public class TieredBlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(TieredBlobStore.class);
+
+    private final BlobStore primary;
+
+    private final FileBlobStore local;
+
+    private final long maxLocalBytes;
+
+    private long localTileMaxAge;
+
+    /**
+     * Local tiles in least recently used first order, guarded by itself
+     */
+    private final LinkedHashMap<TileKey, LocalTile> localTiles =
+            new LinkedHashMap<TileKey, LocalTile>(1024, 0.75f, true);
+
+    /**
+     * Total size of {@link #localTiles}, guarded by it
+     */
+    private long localBytes;
+
+    /**
+     * Incremented on every delete, so that a tile deleted while being copied to the local tier
+     * isn't left there
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Serialize the writes of a tile to the local tier, so that an older version read from the
+     * primary store doesn't overwrite a newer one being stored
+     */
+    private final Object[] writeLocks = new Object[64];
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param primary
+     *            the store holding all the tiles
+     * @param localRootPath
+     *            the directory of the local tier, whose contents will be deleted
+     * @param maxLocalSizeMB
+     *            the maximum size of the tiles in the local tier, in MiB
+     */
+    public TieredBlobStore(BlobStore primary, String localRootPath, long maxLocalSizeMB)
+            throws StorageException {
+        if (maxLocalSizeMB <= 0) {
+            throw new IllegalArgumentException("maxLocalSizeMB must be positive: "
+                    + maxLocalSizeMB);
+        }
+        this.primary = primary;
+        this.maxLocalBytes = maxLocalSizeMB * 1024 * 1024;
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+
+        final File localRoot = new File(localRootPath);
+        try {
+            if (localRoot.exists()) {
+                FileUtils.cleanDirectory(localRoot);
+            } else {
+                FileUtils.forceMkdir(localRoot);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to prepare the local tier directory "
+                    + localRoot.getAbsolutePath() + ": " + e.getMessage());
+        }
+        log.info("Keeping up to " + maxLocalSizeMB + "MiB of tiles in "
+                + localRoot.getAbsolutePath());
+        this.local = new FileBlobStore(localRoot.getAbsolutePath());
+    }
+
+    public long getLocalTileMaxAge() {
+        return localTileMaxAge;
+    }
+
+    /**
+     * @param localTileMaxAge
+     *            how long a tile is served from the local tier before being read again from the
+     *            primary store, in milliseconds, or {@code 0} for no limit
+     */
+    public void setLocalTileMaxAge(long localTileMaxAge) {
+        this.localTileMaxAge = localTileMaxAge;
+    }
+
+    /**
+     * @see FileBlobStore#setTilePathLayout(TilePathLayout)
+     */
+    public void setLocalTilePathLayout(TilePathLayout tilePathLayout) {
+        local.setTilePathLayout(tilePathLayout);
+    }
+
+    public BlobStore getPrimary() {
+        return primary;
+    }
+
+    public Resource get(final TileObject stObj) throws StorageException {
+        final TileKey key = TileKey.forTile(stObj);
+        LocalTile localTile;
+        synchronized (localTiles) {
+            localTile = localTiles.get(key);
+            if (localTile != null && localTileMaxAge > 0
+                    && System.currentTimeMillis() - localTile.copied > localTileMaxAge) {
+                remove(key);
+                localTile = null;
+            }
+        }
+        if (localTile != null) {
+            Resource resource = local.get(stObj);
+            if (resource != null) {
+                hits.incrementAndGet();
+                return resource;
+            }
+            // evicted meanwhile
+            synchronized (localTiles) {
+                if (localTiles.get(key) == localTile) {
+                    remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+
+        final long gen = generation.get();
+        final long readStarted = System.currentTimeMillis();
+        final Resource resource = primary.get(stObj);
+        if (resource == null) {
+            return null;
+        }
+        final ByteArrayResource contents;
+        try {
+            contents = readFully(resource);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile " + stObj + ": " + e.getMessage());
+        }
+        copyToLocal(stObj, contents, gen, readStarted);
+        return contents;
+    }
+
+    private static ByteArrayResource readFully(Resource resource) throws IOException {
+        final ByteArrayResource contents = new ByteArrayResource(
+                (int) Math.max(resource.getSize(), 1));
+        final InputStream in = resource.getInputStream();
+        try {
+            contents.transferFrom(Channels.newChannel(in));
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    public void put(final TileObject stObj) throws StorageException {
+        final long gen = generation.get();
+        primary.put(stObj);
+        copyToLocal(stObj, stObj.getBlob(), gen, -1L);
+    }
+
+    /**
+     * Writes the tile to the local tier, evicting the least recently used tiles if it's full. The
+     * local tier is just a copy, so failures are logged rather than reported.
+     *
+     * @param gen
+     *            the value of {@link #generation} before the tile was read or written to the
+     *            primary store
+     * @param readStarted
+     *            when the tile started to be read from the primary store, or {@code -1} if it's
+     *            being stored
+     */
+    private void copyToLocal(final TileObject stObj, final Resource blob, final long gen,
+            final long readStarted) {
+        final long size = blob.getSize();
+        if (size <= 0 || size > maxLocalBytes) {
+            return;
+        }
+        final TileKey key = TileKey.forTile(stObj);
+        // a copy, the local store sets the tile creation time
+        final TileObject copy = TileObject.createCompleteTileObject(stObj.getLayerName(),
+                stObj.getXYZ(), stObj.getGridSetId(), stObj.getBlobFormat(),
+                stObj.getParameters(), blob);
+        copy.setParamtersId(stObj.getParametersId());
+        final List<TileKey> evicted = new ArrayList<TileKey>();
+        boolean deleted = false;
+        synchronized (writeLocks[(key.hashCode() & 0x7FFFFFFF) % writeLocks.length]) {
+            if (readStarted != -1L) {
+                synchronized (localTiles) {
+                    LocalTile current = localTiles.get(key);
+                    if (current != null && current.copied >= readStarted) {
+                        // stored since it was read
+                        return;
+                    }
+                }
+            }
+            try {
+                local.put(copy);
+            } catch (StorageException e) {
+                log.warn("Unable to copy " + stObj + " to the local tier: " + e.getMessage());
+                return;
+            }
+            synchronized (localTiles) {
+                if (generation.get() != gen) {
+                    // the copy may be of a tile deleted meanwhile
+                    deleted = true;
+                } else {
+                    remove(key);
+                    localTiles.put(key, new LocalTile(size, System.currentTimeMillis()));
+                    localBytes += size;
+                    Iterator<Map.Entry<TileKey, LocalTile>> it = localTiles.entrySet()
+                            .iterator();
+                    while (localBytes > maxLocalBytes && it.hasNext()) {
+                        Map.Entry<TileKey, LocalTile> eldest = it.next();
+                        it.remove();
+                        localBytes -= eldest.getValue().size;
+                        evicted.add(eldest.getKey());
+                    }
+                }
+            }
+        }
+        if (deleted) {
+            deleteLocal(copy);
+            return;
+        }
+        evictions.addAndGet(evicted.size());
+        for (TileKey victim : evicted) {
+            TileObject tile = TileObject.createQueryTileObject(victim.getLayerName(), new long[] {
+                    victim.getX(), victim.getY(), victim.getZ() }, victim.getGridSetId(),
+                    victim.getFormat(), null);
+            tile.setParamtersId(victim.getParametersId());
+            deleteLocal(tile);
+        }
+    }
+
+    private void deleteLocal(final TileObject tile) {
+        try {
+            local.delete(tile);
+        } catch (StorageException e) {
+            log.warn("Unable to delete " + tile + " from the local tier: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the local tile from the LRU list, the caller must hold its lock
+     */
+    private void remove(final TileKey key) {
+        LocalTile removed = localTiles.remove(key);
+        if (removed != null) {
+            localBytes -= removed.size;
+        }
+    }
+
+    private static interface KeyMatcher {
+        boolean matches(TileKey key);
+    }
+
+    private void removeMatching(final KeyMatcher matcher) {
+        generation.incrementAndGet();
+        synchronized (localTiles) {
+            Iterator<Map.Entry<TileKey, LocalTile>> it = localTiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<TileKey, LocalTile> entry = it.next();
+                if (matcher.matches(entry.getKey())) {
+                    it.remove();
+                    localBytes -= entry.getValue().size;
+                }
+            }
+        }
+    }
+
+    private void removeLayer(final String layerName, final String gridSetId) {
+        removeMatching(new KeyMatcher() {
+            public boolean matches(TileKey key) {
+                return layerName.equals(key.getLayerName())
+                        && (gridSetId == null || gridSetId.equals(key.getGridSetId()));
+            }
+        });
+    }
+
+    public boolean delete(final TileObject stObj) throws StorageException {
+        generation.incrementAndGet();
+        synchronized (localTiles) {
+            remove(TileKey.forTile(stObj));
+        }
+        TileObject copy = TileObject.createQueryTileObject(stObj.getLayerName(), stObj.getXYZ(),
+                stObj.getGridSetId(), stObj.getBlobFormat(), stObj.getParameters());
+        copy.setParamtersId(stObj.getParametersId());
+        deleteLocal(copy);
+        return primary.delete(stObj);
+    }
+
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final String layerName = trObj.getLayerName();
+        final String gridSetId = trObj.getGridSetId();
+        final MimeType mimeType = trObj.getMimeType();
+        final String format = mimeType == null ? null : mimeType.getFormat();
+        final Long parametersId = trObj.getParametersId();
+        removeMatching(new KeyMatcher() {
+            public boolean matches(TileKey key) {
+                return layerName.equals(key.getLayerName())
+                        && (gridSetId == null || gridSetId.equals(key.getGridSetId()))
+                        && (format == null || format.equals(key.getFormat()))
+                        && (parametersId == null || parametersId.longValue() == key
+                                .getParametersId())
+                        && trObj.contains(key.getX(), key.getY(), key.getZ());
+            }
+        });
+        local.delete(trObj);
+        return primary.delete(trObj);
+    }
+
+    public boolean delete(final String layerName) throws StorageException {
+        removeLayer(layerName, null);
+        local.delete(layerName);
+        return primary.delete(layerName);
+    }
+
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        removeLayer(layerName, gridSetId);
+        local.deleteByGridsetId(layerName, gridSetId);
+        return primary.deleteByGridsetId(layerName, gridSetId);
+    }
+
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        // the local copies are just dropped, they'll be copied again with the new name if used
+        removeLayer(oldLayerName, null);
+        removeLayer(newLayerName, null);
+        local.delete(oldLayerName);
+        local.delete(newLayerName);
+        return primary.rename(oldLayerName, newLayerName);
+    }
+
+    public void clear() throws StorageException {
+        removeMatching(new KeyMatcher() {
+            public boolean matches(TileKey key) {
+                return true;
+            }
+        });
+        primary.clear();
+    }
+
+    public void destroy() {
+        local.destroy();
+        primary.destroy();
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        primary.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return primary.removeListener(listener);
+    }
+
+    public String getLayerMetadata(String layerName, String key) {
+        return primary.getLayerMetadata(layerName, key);
+    }
+
+    public void putLayerMetadata(String layerName, String key, String value) {
+        primary.putLayerMetadata(layerName, key, value);
+    }
+
+    /**
+     * @return number of tiles served from the local tier
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of tiles looked up in the primary store
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public int getLocalTileCount() {
+        synchronized (localTiles) {
+            return localTiles.size();
+        }
+    }
+
+    /**
+     * @return number of bytes used by the tiles in the local tier
+     */
+    public long getLocalStorageSize() {
+        synchronized (localTiles) {
+            return localBytes;
+        }
+    }
+
+    private static final class LocalTile {
+        final long size;
+
+        final long copied;
+
+        LocalTile(long size, long copied) {
+            this.size = size;
+            this.copied = copied;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Lays out the tiles of a zoom level of a {@link FileBlobStore}.
+ * <p>
+ * The store always keeps the tiles of a layer under {@code <layer>/<gridset>_<zoom>[_<params>]}
+ * directories, a layout decides the directories and file names below that, as long as the tile
+ * coordinates can be told back out of them. A cache is written with a single layout, changing it
+ * calls for a {@link TilePathLayoutMigrator migration} of the existing tiles.
+ * </p>
+ * <p>
+ * Implementations must be thread safe, and should not create any object while building a path as
+ * it's done for every tile request.
+ * </p>
+ *
+ * @see DefaultTilePathLayout
+ * @see HashedTilePathLayout
+ * @see TMSTilePathLayout
+ */
+public interface TilePathLayout {
+
+    /**
+     * Appends the path of a tile relative to its zoom level directory, using
+     * {@link File#separatorChar} between directories.
+     *
+     * @param extension
+     *            the tile file extension, without the dot
+     */
+    void appendTilePath(StringBuilder path, long x, long y, int z, String extension);
+
+    /**
+     * Lists the directories right above the tile files of a zoom level directory, that may contain
+     * tiles inside the given bounds.
+     *
+     * @param bounds
+     *            {@code {minx, miny, maxx, maxy}}, or {@code null} for all the tiles
+     * @return the existing directories that may hold tiles in the bounds, the ones that don't are
+     *         better left out but are not required to
+     */
+    List<File> listTileDirectories(File zoomDir, int z, long[] bounds);
+
+    /**
+     * Tells the coordinates of a tile back out of its file name and the name of the directory it's
+     * in.
+     * <p>
+     * Files that weren't named by the layout, like temporary files, must not be taken for tiles.
+     * The file extension is not checked.
+     * </p>
+     *
+     * @param xy
+     *            receives the tile coordinates
+     * @return whether the file is a tile
+     */
+    boolean parseTile(String directoryName, String fileName, long[] xy);
+}
@@ -0,0 +1,193 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Moves the tiles of a {@link FileBlobStore} cache from a {@link TilePathLayout} to another, in
+ * place.
+ * <p>
+ * Tiles are renamed within their zoom level directory, so no tile is copied and the cache needs no
+ * extra space. The migration can be interrupted and run again, tiles already moved are left alone.
+ * It should be run while GeoWebCache is stopped, and the blob store configured with the new layout
+ * before starting it again.
+ * </p>
+ * <p>
+ * The grid sets of each layer must be given, as there is no telling the zoom level directories
+ * of a grid set apart from the ones of a grid set whose name starts the same otherwise.
+ * </p>
+ * <p>
+ * Usage:
+ * {@code TilePathLayoutMigrator <cache directory> <from layout> <to layout> <layer> <gridset>...}
+ * where layouts are {@code default}, {@code hashed}, {@code tms} or the name of a
+ * {@link TilePathLayout} class.
+ * </p>
+ */
+public class TilePathLayoutMigrator {
+
+    private static final Log log = LogFactory.getLog(TilePathLayoutMigrator.class);
+
+    private final File cacheRoot;
+
+    private final TilePathLayout from;
+
+    private final TilePathLayout to;
+
+    public TilePathLayoutMigrator(File cacheRoot, TilePathLayout from, TilePathLayout to) {
+        this.cacheRoot = cacheRoot;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Moves the tiles of all the zoom levels and parameters of a layer grid set.
+     *
+     * @return the number of tiles moved
+     */
+    public long migrate(final String layerName, final String gridSetId) throws StorageException {
+        final File layerDir = new File(cacheRoot, FilePathGenerator.filteredLayerName(layerName));
+        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(gridSetId);
+        final String[] names = layerDir.list();
+        if (names == null) {
+            return 0;
+        }
+        long count = 0;
+        for (String name : names) {
+            if (!isZoomLevelDir(gridsetPrefix, name)) {
+                continue;
+            }
+            final File zoomDir = new File(layerDir, name);
+            final int z = FilePathGenerator.findZoomLevel(gridsetPrefix, name);
+            count += migrate(zoomDir, z);
+        }
+        log.info("Moved " + count + " tiles of " + layerName + "/" + gridSetId + " from the "
+                + from + " layout to the " + to + " layout");
+        return count;
+    }
+
+    /**
+     * @return whether the name is {@code <gridsetPrefix>_<zoom level>[_<parameters id>]}
+     */
+    private static boolean isZoomLevelDir(final String gridsetPrefix, final String name) {
+        final int start = gridsetPrefix.length() + 1;
+        if (!name.startsWith(gridsetPrefix) || name.length() <= start
+                || name.charAt(start - 1) != '_') {
+            return false;
+        }
+        int sep = name.indexOf('_', start);
+        if (FilePathGenerator.parseLong(name, start, sep < 0 ? name.length() : sep) < 0) {
+            return false;
+        }
+        if (sep < 0) {
+            return true;
+        }
+        for (int i = sep + 1; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return sep + 1 < name.length();
+    }
+
+    private long migrate(final File zoomDir, final int z) throws StorageException {
+        final String zoomPath = zoomDir.getPath() + File.separatorChar;
+        final StringBuilder target = new StringBuilder(256);
+        final long[] xy = new long[2];
+        long count = 0;
+        // listed up front, so that the directories of the new layout aren't walked
+        final List<File> directories = from.listTileDirectories(zoomDir, z, null);
+        for (File directory : directories) {
+            final String directoryName = directory.getName();
+            final String[] names = directory.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                final int dot = name.lastIndexOf('.');
+                if (dot <= 0 || !from.parseTile(directoryName, name, xy)) {
+                    continue;
+                }
+                final File tile = new File(directory, name);
+                target.setLength(0);
+                target.append(zoomPath);
+                to.appendTilePath(target, xy[0], xy[1], z, name.substring(dot + 1));
+                final File targetTile = new File(target.toString());
+                if (targetTile.equals(tile) || !tile.isFile()) {
+                    continue;
+                }
+                if (targetTile.exists()) {
+                    // moved on a previous run, or written since
+                    tile.delete();
+                    continue;
+                }
+                final File targetDir = targetTile.getParentFile();
+                if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+                    throw new StorageException("Unable to create " + targetDir.getAbsolutePath());
+                }
+                if (!tile.renameTo(targetTile)) {
+                    throw new StorageException("Unable to rename " + tile.getAbsolutePath()
+                            + " to " + targetTile.getAbsolutePath());
+                }
+                count++;
+            }
+            // Try deleting the directory and its parents up to the zoom level (will be done only
+            // as long as they're empty)
+            File parent = directory;
+            while (!parent.equals(zoomDir) && parent.delete()) {
+                parent = parent.getParentFile();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param name
+     *            {@code default}, {@code hashed}, {@code tms} or the name of a
+     *            {@link TilePathLayout} class
+     */
+    public static TilePathLayout layout(final String name) throws Exception {
+        if ("default".equals(name)) {
+            return DefaultTilePathLayout.INSTANCE;
+        } else if ("hashed".equals(name)) {
+            return new HashedTilePathLayout();
+        } else if ("tms".equals(name)) {
+            return new TMSTilePathLayout();
+        }
+        return (TilePathLayout) Class.forName(name).newInstance();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: " + TilePathLayoutMigrator.class.getName()
+                    + " <cache directory> <from layout> <to layout> <layer> <gridset>...");
+            System.err.println("Layouts: default, hashed, tms or the name of a "
+                    + TilePathLayout.class.getSimpleName() + " class");
+            System.exit(1);
+        }
+        File cacheRoot = new File(args[0]);
+        TilePathLayoutMigrator migrator = new TilePathLayoutMigrator(cacheRoot, layout(args[1]),
+                layout(args[2]));
+        for (int i = 4; i < args.length; i++) {
+            long count = migrator.migrate(args[3], args[i]);
+            System.out.println(args[3] + "/" + args[i] + ": " + count + " tiles moved");
+        }
+    }
+}
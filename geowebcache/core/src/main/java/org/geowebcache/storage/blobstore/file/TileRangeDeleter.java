@@ -0,0 +1,262 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileBatch;
+import org.geowebcache.storage.TileRange;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Deletes the tiles of a {@link TileRange} out of a {@link FileBlobStore} layer directory.
+ * <p>
+ * Each directory holding tiles is a unit of work. They're queued up to a pool of threads, each one
+ * taking the next directory as soon as it's done with the previous one, so that sparse and dense
+ * directories even out. The {@link TilePathLayout layout} leaves out the directories it can tell
+ * are entirely outside the range bounds, and tile coordinates are parsed straight out of the file
+ * names.
+ * </p>
+ * <p>
+ * Deletes can be throttled with a {@link RateLimiter} shared by all the threads, listeners get the
+ * deleted tiles in batches, and interrupting the calling thread stops the whole operation.
+ * </p>
+ */
+class TileRangeDeleter {
+
+    private static final int BATCH_SIZE = 512;
+
+    private final TileRange trObj;
+
+    private final File layerPath;
+
+    private final BlobStoreListenerList listeners;
+
+    private final DirectoryCache knownDirectories;
+
+    private final TilePathLayout layout;
+
+    private final int threads;
+
+    private final RateLimiter rateLimiter;
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String blobFormat;
+
+    private final String extension;
+
+    private final Long parametersId;
+
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * @param rateLimiter
+     *            limits the rate of tile deletes, or {@code null} for no limit
+     */
+    TileRangeDeleter(TileRange trObj, File layerPath, BlobStoreListenerList listeners,
+            DirectoryCache knownDirectories, TilePathLayout layout, int threads,
+            RateLimiter rateLimiter) throws StorageException {
+        if (trObj.getGridSetId() == null) {
+            throw new StorageException("Specifying the grid set id is currently mandatory.");
+        }
+        if (trObj.getMimeType() == null) {
+            throw new StorageException("Specifying the mime type is currently mandatory.");
+        }
+        this.trObj = trObj;
+        this.layerPath = layerPath;
+        this.listeners = listeners;
+        this.knownDirectories = knownDirectories;
+        this.layout = layout;
+        this.threads = Math.max(1, threads);
+        this.rateLimiter = rateLimiter;
+        this.layerName = trObj.getLayerName();
+        this.gridSetId = trObj.getGridSetId();
+        this.blobFormat = trObj.getMimeType().getFormat();
+        this.extension = trObj.getMimeType().getFileExtension();
+        this.parametersId = trObj.getParametersId();
+    }
+
+    /**
+     * @return the number of deleted tiles
+     */
+    long delete() throws StorageException, InterruptedException {
+        final String gridsetPrefix = FilePathGenerator.filteredGridSetId(gridSetId);
+        final File[] zoomDirs = layerPath.listFiles(new FilePathFilter(trObj));
+        if (zoomDirs == null) {
+            return 0;
+        }
+
+        List<DirectoryDelete> work = new ArrayList<DirectoryDelete>();
+        for (File zoomDir : zoomDirs) {
+            final int z = FilePathGenerator.findZoomLevel(gridsetPrefix, zoomDir.getName());
+            if (!trObj.includesZoomLevel(z)) {
+                // no bounds for this level, none of its tiles are in the range
+                continue;
+            }
+            final long[] bounds = trObj.getZoomLevelBounds(z);
+            for (File directory : layout.listTileDirectories(zoomDir, z, bounds)) {
+                work.add(new DirectoryDelete(zoomDir, directory, z));
+            }
+        }
+
+        if (threads == 1 || work.size() < 2) {
+            for (DirectoryDelete task : work) {
+                task.call();
+            }
+        } else {
+            runParallel(work);
+        }
+
+        for (File zoomDir : zoomDirs) {
+            // Try deleting the zoom directory (will be done only if the directory is empty)
+            if (zoomDir.delete()) {
+                knownDirectories.removeAll(zoomDir);
+            }
+        }
+        return count.get();
+    }
+
+    private void runParallel(final List<DirectoryDelete> work) throws StorageException,
+            InterruptedException {
+
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC truncate thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, work.size()), tf);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(work.size());
+            for (DirectoryDelete task : work) {
+                futures.add(executor.submit(task));
+            }
+            executor.shutdown();
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    StorageException se = new StorageException("Error truncating "
+                            + layerPath.getAbsolutePath() + ": " + cause.getMessage());
+                    se.initCause(cause);
+                    throw se;
+                }
+            }
+        } finally {
+            // no-op if done, stops the remaining work on interruption or error
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes the tiles of a directory
+     */
+    private class DirectoryDelete implements Callable<Object> {
+
+        private final File zoomDir;
+
+        private final File directory;
+
+        private final int z;
+
+        DirectoryDelete(File zoomDir, File directory, int z) {
+            this.zoomDir = zoomDir;
+            this.directory = directory;
+            this.z = z;
+        }
+
+        public Object call() throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final String[] names = directory.list();
+            if (names == null) {
+                return null;
+            }
+            final boolean notify = !listeners.isEmpty();
+            final String directoryName = directory.getName();
+            final long[] xy = new long[2];
+            TileBatch batch = null;
+            try {
+                for (String name : names) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    final int dot = name.length() - extension.length() - 1;
+                    if (dot <= 0 || name.charAt(dot) != '.'
+                            || !name.regionMatches(true, dot + 1, extension, 0, extension.length())
+                            || !layout.parseTile(directoryName, name, xy)) {
+                        continue;
+                    }
+                    final long x = xy[0];
+                    final long y = xy[1];
+                    // the bounds, and the raster mask of a discontinuous range
+                    if (!trObj.contains(x, y, z)) {
+                        continue;
+                    }
+
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire();
+                    }
+                    final File tile = new File(directory, name);
+                    final long length = notify ? tile.length() : 0;
+                    if (tile.delete()) {
+                        count.incrementAndGet();
+                        if (notify) {
+                            if (batch == null) {
+                                batch = new TileBatch(layerName, gridSetId, blobFormat,
+                                        parametersId, Math.min(BATCH_SIZE, names.length));
+                            }
+                            batch.add(x, y, z, length);
+                            if (batch.size() == BATCH_SIZE) {
+                                listeners.sendTilesDeleted(batch);
+                                batch = null;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                // whatever was deleted gets notified, even if interrupted
+                if (batch != null) {
+                    listeners.sendTilesDeleted(batch);
+                }
+            }
+
+            // Try deleting the directory and its parents up to the zoom level (will be done only
+            // as long as they're empty)
+            File parent = directory;
+            while (!parent.equals(zoomDir) && parent.delete()) {
+                knownDirectories.remove(parent);
+                parent = parent.getParentFile();
+            }
+            return null;
+        }
+    }
+}
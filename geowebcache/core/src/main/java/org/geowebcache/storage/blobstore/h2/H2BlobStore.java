@@ -0,0 +1,1052 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.h2;
+
+import static org.geowebcache.storage.metastore.jdbc.JDBCUtils.close;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DriverManagerConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * A {@link BlobStore} packing all the tiles of a layer into a single H2 database, MBTiles style,
+ * instead of writing a file per tile like
+ * {@link org.geowebcache.storage.blobstore.file.FileBlobStore} does.
+ * <p>
+ * Each layer gets a directory under the store root holding its database files, which contain a
+ * {@code TILES} table indexed by gridset, zoom level, x and y, and a {@code LAYER_METADATA} table.
+ * So a layer is a handful of large files no matter how many tiles it has, which is much easier on
+ * inodes, backups and disk usage scans.
+ * </p>
+ * <p>
+ * Reads go through a small connection pool per layer. Writes to a layer are serialized, since H2
+ * locks the whole table on writes anyway, which also allows telling created from updated tiles
+ * apart for the listeners.
+ * </p>
+ * <p>
+ * With {@link #setDeduplicate(boolean) deduplication} on, tiles are stored once per distinct
+ * content in a {@code BLOBS} table keyed by their SHA-1 hash, and the {@code TILES} rows only
+ * reference them. Each blob keeps count of its references and goes away along with the last one.
+ * Listeners still get each tile's own size, so disk quota accounting stays consistent across
+ * stores and deletes, but counts shared tiles once per reference.
+ * </p>
+ */
+public class H2BlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(H2BlobStore.class);
+
+    public static final String DEFAULT_DIRECTORY = "h2_blobstore";
+
+    static final String DATABASE_NAME = "tiles";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /**
+     * How many tiles are deleted per batch when truncating
+     */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final File root;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    private final ConcurrentMap<String, TileDatabase> databases =
+            new ConcurrentHashMap<String, TileDatabase>();
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private boolean deduplicate;
+
+    public H2BlobStore(DefaultStorageFinder defStoreFinder) throws ConfigurationException {
+        root = new File(defStoreFinder.getDefaultPath(), DEFAULT_DIRECTORY);
+        if (!root.exists() && !root.mkdirs()) {
+            throw new ConfigurationException("Unable to create " + root.getAbsolutePath()
+                    + " for the H2 blob store.");
+        }
+        loadDriver();
+    }
+
+    public H2BlobStore(String rootPath) throws StorageException {
+        root = new File(rootPath);
+        if (!root.exists() || !root.isDirectory() || !root.canWrite()) {
+            throw new StorageException(rootPath + " is not writable directory.");
+        }
+        loadDriver();
+    }
+
+    private static void loadDriver() {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("H2 driver not found", e);
+        }
+    }
+
+    /**
+     * @param maxConnections
+     *            maximum number of concurrent connections to each layer database
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param deduplicate
+     *            whether to store identical tiles only once, which pays off for layers with lots
+     *            of blank or single color tiles. Tiles stored either way can be read either way.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    private File getLayerPath(final String layerName) {
+        return new File(root, FilePathGenerator.filteredLayerName(layerName));
+    }
+
+    /**
+     * @param create
+     *            whether to create the database if it doesn't exist yet
+     * @return the database of the given layer, or {@code null} if it doesn't exist and
+     *         {@code create} is false
+     */
+    private TileDatabase getDatabase(final String layerName, final boolean create)
+            throws StorageException {
+        final String key = FilePathGenerator.filteredLayerName(layerName);
+        TileDatabase db = databases.get(key);
+        if (db == null) {
+            File directory = getLayerPath(layerName);
+            if (!create && !directory.exists()) {
+                return null;
+            }
+            synchronized (databases) {
+                db = databases.get(key);
+                if (db == null) {
+                    if (!directory.exists() && !directory.mkdirs()) {
+                        throw new StorageException("Unable to create "
+                                + directory.getAbsolutePath());
+                    }
+                    db = new TileDatabase(directory, maxConnections);
+                    databases.put(key, db);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Closes the database of the given layer, if open, and stops it from being handed out
+     */
+    private void closeDatabase(final String layerName) {
+        TileDatabase db;
+        synchronized (databases) {
+            db = databases.remove(FilePathGenerator.filteredLayerName(layerName));
+        }
+        if (db != null) {
+            db.dispose();
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(java.lang.String)
+     */
+    public boolean delete(final String layerName) throws StorageException {
+        final File layerPath = getLayerPath(layerName);
+        closeDatabase(layerName);
+        if (!layerPath.exists()) {
+            return false;
+        }
+        try {
+            FileUtils.deleteDirectory(layerPath);
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete " + layerPath.getAbsolutePath() + ": "
+                    + e.getMessage());
+        }
+        listeners.sendLayerDeleted(layerName);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#deleteByGridsetId(java.lang.String, java.lang.String)
+     */
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        final TileDatabase db = getDatabase(layerName, false);
+        if (db == null) {
+            return false;
+        }
+        db.execute(new WriteOperation<Object>() {
+            public Object run(Connection conn) throws SQLException {
+                // drop the references to the shared blobs first
+                PreparedStatement st = conn.prepareStatement("UPDATE BLOBS SET REFS = REFS - "
+                        + "(SELECT COUNT(*) FROM TILES WHERE TILES.BLOB_HASH = BLOBS.HASH "
+                        + "AND GRIDSET = ?) WHERE HASH IN "
+                        + "(SELECT BLOB_HASH FROM TILES WHERE GRIDSET = ?)");
+                try {
+                    st.setString(1, gridSetId);
+                    st.setString(2, gridSetId);
+                    st.executeUpdate();
+                } finally {
+                    close(st);
+                }
+                st = conn.prepareStatement("DELETE FROM TILES WHERE GRIDSET = ?");
+                try {
+                    st.setString(1, gridSetId);
+                    st.executeUpdate();
+                } finally {
+                    close(st);
+                }
+                deleteUnreferencedBlobs(conn);
+                return null;
+            }
+        });
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#rename
+     */
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        final File oldLayerPath = getLayerPath(oldLayerName);
+        final File newLayerPath = getLayerPath(newLayerName);
+
+        if (newLayerPath.exists()) {
+            throw new StorageException("Can't rename layer directory " + oldLayerPath + " to "
+                    + newLayerPath + ". Target directory already exists");
+        }
+        closeDatabase(oldLayerName);
+        if (oldLayerPath.exists() && !oldLayerPath.renameTo(newLayerPath)) {
+            throw new StorageException("Couldn't rename layer directory " + oldLayerPath + " to "
+                    + newLayerPath);
+        }
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    public boolean delete(final TileObject stObj) throws StorageException {
+        final TileDatabase db = getDatabase(stObj.getLayerName(), false);
+        if (db == null) {
+            return false;
+        }
+        final int size = db.execute(new WriteOperation<Integer>() {
+            public Integer run(Connection conn) throws SQLException {
+                final StoredTile stored = selectStored(conn, stObj);
+                if (stored == null) {
+                    return Integer.valueOf(-1);
+                }
+                PreparedStatement st = conn.prepareStatement("DELETE FROM TILES WHERE "
+                        + KEY_CLAUSE);
+                try {
+                    setKey(st, 1, stObj);
+                    st.executeUpdate();
+                } finally {
+                    close(st);
+                }
+                if (stored.hash != null) {
+                    removeReference(conn, stored.hash);
+                }
+                return Integer.valueOf(stored.size);
+            }
+        }).intValue();
+
+        if (size < 0) {
+            return false;
+        }
+        stObj.setBlobSize(size);
+        listeners.sendTileDeleted(stObj);
+        return true;
+    }
+
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final TileDatabase db = getDatabase(trObj.getLayerName(), false);
+        if (db == null) {
+            return true;
+        }
+        // a null zoom level stands for all of them, without bounds
+        final List<Integer> zoomLevels = new ArrayList<Integer>();
+        if (trObj.getZoomStart() == -1 && trObj.getZoomStop() == -1) {
+            zoomLevels.add(null);
+        } else {
+            for (int z = trObj.getZoomStart(); z <= trObj.getZoomStop(); z++) {
+                // levels without bounds have none of their tiles in the range
+                if (trObj.includesZoomLevel(z)) {
+                    zoomLevels.add(Integer.valueOf(z));
+                }
+            }
+        }
+
+        long count = 0;
+        for (final Integer z : zoomLevels) {
+            DeletedTile last = null;
+            do {
+                // one batch at a time, not to hold the write lock for too long
+                final DeletedTile after = last;
+                final List<DeletedTile> deleted = new ArrayList<DeletedTile>();
+                last = db.execute(new WriteOperation<DeletedTile>() {
+                    public DeletedTile run(Connection conn) throws SQLException {
+                        return deleteBatch(conn, trObj, z, after, deleted);
+                    }
+                });
+                BlobStoreListenerList.beginBatch();
+                try {
+                    for (DeletedTile tile : deleted) {
+                        listeners.sendTileDeleted(trObj.getLayerName(), trObj.getGridSetId(),
+                                tile.format, tile.parametersId == -1 ? null : Long
+                                        .valueOf(tile.parametersId), tile.x, tile.y, tile.z,
+                                tile.size);
+                    }
+                } finally {
+                    BlobStoreListenerList.endBatch();
+                }
+                count += deleted.size();
+            } while (last != null);
+        }
+        log.info("Truncated " + count + " tiles");
+        return true;
+    }
+
+    /**
+     * Deletes the tiles of the range at the given zoom level among the next
+     * {@link #DELETE_BATCH_SIZE} tiles in key order. Walking the table by key keeps each batch
+     * from reading the rows of the previous ones, and from getting stuck on the tiles within the
+     * bounds of a discontinuous range but out of it, which are read but not deleted.
+     * 
+     * @param after
+     *            the last tile read by the previous batch, or {@code null} for the first batch
+     * @param deleted
+     *            receives the deleted tiles
+     * @return the last tile read, or {@code null} if there are no more tiles to read
+     */
+    private DeletedTile deleteBatch(final Connection conn, final TileRange trObj,
+            final Integer z, final DeletedTile after, final List<DeletedTile> deleted)
+            throws SQLException {
+
+        StringBuilder sql = new StringBuilder("SELECT Z, X, Y, PARAMETERS_ID, FORMAT, SIZE, "
+                + "BLOB_HASH FROM TILES WHERE GRIDSET = ?");
+        long[] bounds = null;
+        if (z != null) {
+            sql.append(" AND Z = ?");
+            bounds = trObj.getZoomLevelBounds(z.intValue());
+            if (bounds != null) {
+                sql.append(" AND X >= ? AND X <= ? AND Y >= ? AND Y <= ?");
+            }
+        }
+        if (trObj.getMimeType() != null) {
+            sql.append(" AND FORMAT = ?");
+        }
+        if (trObj.getParametersId() != null) {
+            sql.append(" AND PARAMETERS_ID = ?");
+        }
+        if (after != null) {
+            sql.append(" AND (Z > ? OR Z = ? AND (X > ? OR X = ? AND (Y > ? OR Y = ? AND "
+                    + "(PARAMETERS_ID > ? OR PARAMETERS_ID = ? AND FORMAT > ?))))");
+        }
+        sql.append(" ORDER BY Z, X, Y, PARAMETERS_ID, FORMAT LIMIT ?");
+
+        DeletedTile last = null;
+        int read = 0;
+        PreparedStatement select = conn.prepareStatement(sql.toString());
+        ResultSet rs = null;
+        try {
+            int i = 1;
+            select.setString(i++, trObj.getGridSetId());
+            if (z != null) {
+                select.setInt(i++, z.intValue());
+            }
+            if (bounds != null) {
+                select.setLong(i++, bounds[0]);
+                select.setLong(i++, bounds[2]);
+                select.setLong(i++, bounds[1]);
+                select.setLong(i++, bounds[3]);
+            }
+            if (trObj.getMimeType() != null) {
+                select.setString(i++, trObj.getMimeType().getFormat());
+            }
+            if (trObj.getParametersId() != null) {
+                select.setLong(i++, trObj.getParametersId().longValue());
+            }
+            if (after != null) {
+                select.setInt(i++, after.z);
+                select.setInt(i++, after.z);
+                select.setLong(i++, after.x);
+                select.setLong(i++, after.x);
+                select.setLong(i++, after.y);
+                select.setLong(i++, after.y);
+                select.setLong(i++, after.parametersId);
+                select.setLong(i++, after.parametersId);
+                select.setString(i++, after.format);
+            }
+            select.setInt(i++, DELETE_BATCH_SIZE);
+            rs = select.executeQuery();
+            while (rs.next()) {
+                DeletedTile tile = new DeletedTile();
+                tile.z = rs.getInt(1);
+                tile.x = rs.getLong(2);
+                tile.y = rs.getLong(3);
+                tile.parametersId = rs.getLong(4);
+                tile.format = rs.getString(5);
+                last = tile;
+                read++;
+                // the bounding box may include tiles out of a discontinuous range
+                if (bounds == null || trObj.contains(tile.x, tile.y, tile.z)) {
+                    tile.size = rs.getInt(6);
+                    tile.hash = rs.getString(7);
+                    deleted.add(tile);
+                }
+            }
+        } finally {
+            close(rs);
+            close(select);
+        }
+        if (read < DELETE_BATCH_SIZE) {
+            last = null;
+        }
+        if (deleted.isEmpty()) {
+            return last;
+        }
+
+        PreparedStatement delete = conn
+                .prepareStatement("DELETE FROM TILES WHERE GRIDSET = ? AND Z = ? AND X = ? "
+                        + "AND Y = ? AND PARAMETERS_ID = ? AND FORMAT = ?");
+        try {
+            for (DeletedTile tile : deleted) {
+                delete.setString(1, trObj.getGridSetId());
+                delete.setInt(2, tile.z);
+                delete.setLong(3, tile.x);
+                delete.setLong(4, tile.y);
+                delete.setLong(5, tile.parametersId);
+                delete.setString(6, tile.format);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        } finally {
+            close(delete);
+        }
+
+        PreparedStatement release = null;
+        try {
+            for (DeletedTile tile : deleted) {
+                if (tile.hash == null) {
+                    continue;
+                }
+                if (release == null) {
+                    release = conn.prepareStatement("UPDATE BLOBS SET REFS = REFS - 1 "
+                            + "WHERE HASH = ?");
+                }
+                release.setString(1, tile.hash);
+                release.addBatch();
+            }
+            if (release != null) {
+                release.executeBatch();
+                deleteUnreferencedBlobs(conn);
+            }
+        } finally {
+            close(release);
+        }
+        return last;
+    }
+
+    public Resource get(final TileObject stObj) throws StorageException {
+        final TileDatabase db = getDatabase(stObj.getLayerName(), false);
+        if (db == null) {
+            return null;
+        }
+        return db.query(new Operation<Resource>() {
+            public Resource run(Connection conn) throws SQLException {
+                PreparedStatement st = conn.prepareStatement("SELECT T.DATA, T.CREATED, "
+                        + "T.BLOB_HASH, B.DATA FROM TILES T LEFT JOIN BLOBS B "
+                        + "ON T.BLOB_HASH = B.HASH WHERE " + KEY_CLAUSE);
+                ResultSet rs = null;
+                try {
+                    setKey(st, 1, stObj);
+                    rs = st.executeQuery();
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    byte[] data = rs.getString(3) == null ? rs.getBytes(1) : rs.getBytes(4);
+                    if (0L == stObj.getCreated()) {
+                        stObj.setCreated(rs.getLong(2));
+                    }
+                    return new ByteArrayResource(data);
+                } finally {
+                    close(rs);
+                    close(st);
+                }
+            }
+        });
+    }
+
+    public void put(final TileObject stObj) throws StorageException {
+        final TileDatabase db = getDatabase(stObj.getLayerName(), true);
+        final Resource blob = stObj.getBlob();
+        final int size = (int) blob.getSize();
+        final long created = System.currentTimeMillis();
+
+        final byte[] contents;
+        final String hash;
+        if (deduplicate) {
+            try {
+                contents = toByteArray(blob);
+            } catch (IOException e) {
+                throw new StorageException("Error reading tile " + stObj + ": " + e.getMessage());
+            }
+            hash = hash(contents);
+        } else {
+            contents = null;
+            hash = null;
+        }
+
+        final int oldSize = db.execute(new WriteOperation<Integer>() {
+            public Integer run(Connection conn) throws SQLException {
+                final StoredTile stored = selectStored(conn, stObj);
+                final boolean sameBlob = hash != null && stored != null
+                        && hash.equals(stored.hash);
+                if (hash != null && !sameBlob) {
+                    addReference(conn, hash, contents);
+                }
+                PreparedStatement st;
+                if (stored != null) {
+                    st = conn.prepareStatement("UPDATE TILES SET SIZE = ?, CREATED = ?, DATA = ?, "
+                            + "BLOB_HASH = ? WHERE " + KEY_CLAUSE);
+                } else {
+                    st = conn.prepareStatement("INSERT INTO TILES (SIZE, CREATED, DATA, BLOB_HASH, "
+                            + "GRIDSET, Z, X, Y, PARAMETERS_ID, FORMAT) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                }
+                InputStream data = null;
+                try {
+                    st.setInt(1, size);
+                    st.setLong(2, created);
+                    if (hash == null) {
+                        data = blob.getInputStream();
+                        st.setBinaryStream(3, data, size);
+                        st.setNull(4, Types.VARCHAR);
+                    } else {
+                        st.setNull(3, Types.BINARY);
+                        st.setString(4, hash);
+                    }
+                    setKey(st, 5, stObj);
+                    st.executeUpdate();
+                } catch (IOException e) {
+                    SQLException sqle = new SQLException("Error reading tile " + stObj + ": "
+                            + e.getMessage());
+                    sqle.initCause(e);
+                    throw sqle;
+                } finally {
+                    close(st);
+                    if (data != null) {
+                        try {
+                            data.close();
+                        } catch (IOException e) {
+                            log.debug(e.getMessage());
+                        }
+                    }
+                }
+                if (stored != null && stored.hash != null && !sameBlob) {
+                    removeReference(conn, stored.hash);
+                }
+                return Integer.valueOf(stored == null ? -1 : stored.size);
+            }
+        }).intValue();
+
+        stObj.setCreated(created);
+        /*
+         * This is important because listeners may be tracking tile existence
+         */
+        if (oldSize >= 0) {
+            listeners.sendTileUpdated(stObj, oldSize);
+        } else {
+            listeners.sendTileStored(stObj);
+        }
+    }
+
+    private static byte[] toByteArray(final Resource blob) throws IOException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            if (contents != null && contents.length == blob.getSize()) {
+                return contents;
+            }
+        }
+        InputStream in = blob.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the hex encoded SHA-1 hash of the given contents
+     */
+    static String hash(final byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        byte[] hash = digest.digest(contents);
+        char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Adds a reference to the blob with the given hash, storing it if it's the first one
+     */
+    private static void addReference(final Connection conn, final String hash,
+            final byte[] contents) throws SQLException {
+        PreparedStatement st = conn.prepareStatement("UPDATE BLOBS SET REFS = REFS + 1 "
+                + "WHERE HASH = ?");
+        try {
+            st.setString(1, hash);
+            if (st.executeUpdate() > 0) {
+                return;
+            }
+        } finally {
+            close(st);
+        }
+        st = conn.prepareStatement("INSERT INTO BLOBS (HASH, REFS, DATA) VALUES (?, 1, ?)");
+        try {
+            st.setString(1, hash);
+            st.setBytes(2, contents);
+            st.executeUpdate();
+        } finally {
+            close(st);
+        }
+    }
+
+    /**
+     * Removes a reference to the blob with the given hash, deleting it if it was the last one
+     */
+    private static void removeReference(final Connection conn, final String hash)
+            throws SQLException {
+        PreparedStatement st = conn.prepareStatement("UPDATE BLOBS SET REFS = REFS - 1 "
+                + "WHERE HASH = ?");
+        try {
+            st.setString(1, hash);
+            st.executeUpdate();
+        } finally {
+            close(st);
+        }
+        st = conn.prepareStatement("DELETE FROM BLOBS WHERE HASH = ? AND REFS <= 0");
+        try {
+            st.setString(1, hash);
+            st.executeUpdate();
+        } finally {
+            close(st);
+        }
+    }
+
+    private static void deleteUnreferencedBlobs(final Connection conn) throws SQLException {
+        Statement st = conn.createStatement();
+        try {
+            st.executeUpdate("DELETE FROM BLOBS WHERE REFS <= 0");
+        } finally {
+            close(st);
+        }
+    }
+
+    private static final String KEY_CLAUSE = "GRIDSET = ? AND Z = ? AND X = ? AND Y = ? "
+            + "AND PARAMETERS_ID = ? AND FORMAT = ?";
+
+    /**
+     * Sets the parameters of {@link #KEY_CLAUSE} starting at the given index
+     */
+    private static void setKey(final PreparedStatement st, final int index, final TileObject stObj)
+            throws SQLException {
+        final long[] xyz = stObj.getXYZ();
+        st.setString(index, stObj.getGridSetId());
+        st.setInt(index + 1, (int) xyz[2]);
+        st.setLong(index + 2, xyz[0]);
+        st.setLong(index + 3, xyz[1]);
+        st.setLong(index + 4, stObj.getParametersId());
+        st.setString(index + 5, stObj.getBlobFormat());
+    }
+
+    /**
+     * @return the size and blob hash of the stored tile, or {@code null} if it doesn't exist
+     */
+    private static StoredTile selectStored(final Connection conn, final TileObject stObj)
+            throws SQLException {
+        PreparedStatement st = conn.prepareStatement("SELECT SIZE, BLOB_HASH FROM TILES WHERE "
+                + KEY_CLAUSE);
+        ResultSet rs = null;
+        try {
+            setKey(st, 1, stObj);
+            rs = st.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            StoredTile stored = new StoredTile();
+            stored.size = rs.getInt(1);
+            stored.hash = rs.getString(2);
+            return stored;
+        } finally {
+            close(rs);
+            close(st);
+        }
+    }
+
+    /**
+     * Closes and deletes the databases of all the layers. Listeners are not notified, as the layer
+     * names can't be told from the database directory names.
+     */
+    public void clear() throws StorageException {
+        destroy();
+        File[] layerPaths = root.listFiles();
+        if (layerPaths == null) {
+            throw new StorageException("Unable to list " + root.getAbsolutePath());
+        }
+        for (File layerPath : layerPaths) {
+            if (!isLayerDatabase(layerPath)) {
+                continue;
+            }
+            try {
+                FileUtils.deleteDirectory(layerPath);
+            } catch (IOException e) {
+                throw new StorageException("Unable to delete " + layerPath.getAbsolutePath()
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return whether the given file is a layer directory holding a tile database
+     */
+    private static boolean isLayerDatabase(final File layerPath) {
+        if (!layerPath.isDirectory()) {
+            return false;
+        }
+        String[] files = layerPath.list();
+        if (files == null) {
+            return false;
+        }
+        for (String name : files) {
+            if (name.startsWith(DATABASE_NAME + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Destroy method for Spring
+     */
+    public void destroy() {
+        synchronized (databases) {
+            for (TileDatabase db : databases.values()) {
+                db.dispose();
+            }
+            databases.clear();
+        }
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
+     */
+    public String getLayerMetadata(final String layerName, final String key) {
+        try {
+            final TileDatabase db = getDatabase(layerName, false);
+            if (db == null) {
+                return null;
+            }
+            return db.query(new Operation<String>() {
+                public String run(Connection conn) throws SQLException {
+                    PreparedStatement st = conn
+                            .prepareStatement("SELECT VALUE FROM LAYER_METADATA WHERE KEY = ?");
+                    ResultSet rs = null;
+                    try {
+                        st.setString(1, key);
+                        rs = st.executeQuery();
+                        return rs.next() ? rs.getString(1) : null;
+                    } finally {
+                        close(rs);
+                        close(st);
+                    }
+                }
+            });
+        } catch (StorageException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    public void putLayerMetadata(final String layerName, final String key, final String value) {
+        try {
+            getDatabase(layerName, true).execute(new WriteOperation<Object>() {
+                public Object run(Connection conn) throws SQLException {
+                    PreparedStatement st = conn
+                            .prepareStatement("DELETE FROM LAYER_METADATA WHERE KEY = ?");
+                    try {
+                        st.setString(1, key);
+                        st.executeUpdate();
+                    } finally {
+                        close(st);
+                    }
+                    if (value != null) {
+                        st = conn.prepareStatement("INSERT INTO LAYER_METADATA (KEY, VALUE) "
+                                + "VALUES (?, ?)");
+                        try {
+                            st.setString(1, key);
+                            st.setString(2, value);
+                            st.executeUpdate();
+                        } finally {
+                            close(st);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (StorageException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class DeletedTile {
+        int z;
+
+        long x, y, parametersId;
+
+        String format;
+
+        int size;
+
+        String hash;
+    }
+
+    private static class StoredTile {
+        int size;
+
+        /**
+         * The hash of the shared blob, {@code null} if the tile holds its own data
+         */
+        String hash;
+    }
+
+    /**
+     * Some work done with a connection to a layer database
+     */
+    private static interface Operation<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * An {@link Operation} modifying the database, run in a transaction and one at a time
+     */
+    private static interface WriteOperation<T> extends Operation<T> {
+    }
+
+    /**
+     * The database holding the tiles of a single layer
+     */
+    private static class TileDatabase {
+
+        private final String jdbcUrl;
+
+        private final GenericObjectPool connectionPool;
+
+        private final DataSource dataSource;
+
+        /**
+         * Held while running operations, and exclusively while closing
+         */
+        private final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+
+        private final Object writeLock = new Object();
+
+        private boolean closed;
+
+        TileDatabase(final File directory, final int maxConnections) throws StorageException {
+            jdbcUrl = "jdbc:h2:file:" + new File(directory, DATABASE_NAME).getAbsolutePath()
+                    + ";TRACE_LEVEL_FILE=0";
+
+            GenericObjectPool.Config config = new GenericObjectPool.Config();
+            config.maxActive = maxConnections;
+            // keep the connections open, H2 closes the database files along with the last one
+            config.maxIdle = maxConnections;
+            config.maxWait = 60000;
+            connectionPool = new GenericObjectPool(null, config);
+            ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(jdbcUrl,
+                    "sa", "");
+            connectionPool.setFactory(new PoolableConnectionFactory(connectionFactory,
+                    connectionPool, null, null, false, true));
+            dataSource = new PoolingDataSource(connectionPool);
+
+            try {
+                createTables();
+            } catch (SQLException e) {
+                dispose();
+                throw new StorageException("Unable to initialize " + jdbcUrl + ": "
+                        + e.getMessage());
+            }
+        }
+
+        private void createTables() throws SQLException {
+            Connection conn = dataSource.getConnection();
+            Statement st = null;
+            try {
+                st = conn.createStatement();
+                st.execute("CREATE TABLE IF NOT EXISTS TILES (GRIDSET VARCHAR(254) NOT NULL, "
+                        + "Z INT NOT NULL, X BIGINT NOT NULL, Y BIGINT NOT NULL, "
+                        + "PARAMETERS_ID BIGINT NOT NULL, FORMAT VARCHAR(126) NOT NULL, "
+                        + "SIZE INT, CREATED BIGINT, DATA BINARY, "
+                        + "PRIMARY KEY (GRIDSET, Z, X, Y, PARAMETERS_ID, FORMAT))");
+                st.execute("CREATE TABLE IF NOT EXISTS LAYER_METADATA "
+                        + "(KEY VARCHAR(254) PRIMARY KEY, VALUE VARCHAR)");
+                st.execute("CREATE TABLE IF NOT EXISTS BLOBS (HASH VARCHAR(64) PRIMARY KEY, "
+                        + "REFS INT NOT NULL, DATA BINARY NOT NULL)");
+                // databases created before deduplication was supported
+                ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS "
+                        + "WHERE TABLE_NAME = 'TILES' AND COLUMN_NAME = 'BLOB_HASH'");
+                try {
+                    rs.next();
+                    if (rs.getInt(1) == 0) {
+                        st.execute("ALTER TABLE TILES ADD COLUMN BLOB_HASH VARCHAR(64)");
+                    }
+                } finally {
+                    close(rs);
+                }
+            } finally {
+                close(st);
+                close(conn);
+            }
+        }
+
+        <T> T query(final Operation<T> operation) throws StorageException {
+            return execute(operation);
+        }
+
+        <T> T execute(final Operation<T> operation) throws StorageException {
+            lifecycleLock.readLock().lock();
+            try {
+                if (closed) {
+                    throw new StorageException("The tile database " + jdbcUrl
+                            + " has been closed");
+                }
+                if (operation instanceof WriteOperation) {
+                    synchronized (writeLock) {
+                        return run(operation, true);
+                    }
+                }
+                return run(operation, false);
+            } finally {
+                lifecycleLock.readLock().unlock();
+            }
+        }
+
+        private <T> T run(final Operation<T> operation, final boolean transaction)
+                throws StorageException {
+            Connection conn = null;
+            try {
+                conn = dataSource.getConnection();
+                if (!transaction) {
+                    return operation.run(conn);
+                }
+                conn.setAutoCommit(false);
+                try {
+                    T result = operation.run(conn);
+                    conn.commit();
+                    return result;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                throw new StorageException("Error accessing " + jdbcUrl + ": " + e.getMessage());
+            } finally {
+                close(conn);
+            }
+        }
+
+        void dispose() {
+            lifecycleLock.writeLock().lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                // once the last connection is closed H2 releases the database files
+                connectionPool.close();
+            } catch (Exception e) {
+                log.warn("Error closing " + jdbcUrl, e);
+            } finally {
+                lifecycleLock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A {@link BlobStore} keeping the tiles as objects in an Amazon S3 bucket, or in any object store
+ * implementing the S3 API such as MinIO, so that several GeoWebCache instances can share a cache
+ * that grows independently of them.
+ * <p>
+ * Tiles are stored under
+ * {@code <prefix><layer>/<gridset>/<extension>/<parameters id>/<z>/<x>/<y>.<extension>}, where the
+ * parameters id is {@code default} or its hexadecimal value, and the layer metadata in a
+ * {@code <prefix><layer>/metadata.properties} object.
+ * </p>
+ * <p>
+ * Layer and gridset deletes remove all the objects under their key prefix. Truncates list the
+ * tiles of the affected zoom levels, by column when the range is narrow enough, and delete them in
+ * bulk requests of up to {@link S3Client#MAX_DELETE_KEYS} keys sent in parallel. Renaming a layer
+ * copies each of its objects, so it's as slow as the layer is big.
+ * </p>
+ */
+public class S3BlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(S3BlobStore.class);
+
+    public static final int DEFAULT_DELETE_THREADS = 4;
+
+    /**
+     * Ranges spanning more columns than this are truncated by listing whole zoom levels
+     */
+    static final int MAX_COLUMN_LISTINGS = 64;
+
+    private static final String METADATA_KEY = "metadata.properties";
+
+    private static final String DEFAULT_PARAMETERS = "default";
+
+    private final S3Client client;
+
+    private final String prefix;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    private int deleteThreads = DEFAULT_DELETE_THREADS;
+
+    private final Object metadataLock = new Object();
+
+    /**
+     * @param prefix
+     *            the prefix of all the keys, so that the bucket can be shared, may be empty
+     */
+    public S3BlobStore(S3Client client, String prefix) {
+        this.client = client;
+        if (prefix == null) {
+            prefix = "";
+        }
+        if (prefix.length() > 0 && !prefix.endsWith("/")) {
+            prefix = prefix + "/";
+        }
+        this.prefix = prefix;
+        log.info("Storing tiles in bucket " + client.getBucket()
+                + (prefix.length() == 0 ? "" : " under " + prefix));
+    }
+
+    public int getDeleteThreads() {
+        return deleteThreads;
+    }
+
+    /**
+     * @param deleteThreads
+     *            how many bulk delete (or copy, for renames) requests are sent at the same time
+     */
+    public void setDeleteThreads(int deleteThreads) {
+        this.deleteThreads = Math.max(1, deleteThreads);
+    }
+
+    private String layerPrefix(final String layerName) {
+        return prefix + FilePathGenerator.filteredLayerName(layerName).replace('/', '_') + "/";
+    }
+
+    private String gridSetPrefix(final String layerName, final String gridSetId) {
+        return layerPrefix(layerName) + FilePathGenerator.filteredGridSetId(gridSetId) + "/";
+    }
+
+    private static String extension(final String blobFormat) throws StorageException {
+        try {
+            return MimeType.createFromFormat(blobFormat).getFileExtension();
+        } catch (MimeException e) {
+            throw new StorageException(e.getMessage());
+        }
+    }
+
+    String tileKey(final TileObject tile) throws StorageException {
+        final long[] xyz = tile.getXYZ();
+        final String extension = extension(tile.getBlobFormat());
+        final long parametersId = tile.getParametersId();
+        StringBuilder key = new StringBuilder(128);
+        key.append(gridSetPrefix(tile.getLayerName(), tile.getGridSetId()));
+        key.append(extension).append('/');
+        key.append(parametersId == -1L ? DEFAULT_PARAMETERS : Long.toHexString(parametersId));
+        key.append('/').append(xyz[2]).append('/').append(xyz[0]).append('/').append(xyz[1]);
+        key.append('.').append(extension);
+        return key.toString();
+    }
+
+    public Resource get(final TileObject stObj) throws StorageException {
+        final S3Client.S3Object object = client.getObject(tileKey(stObj));
+        if (object == null) {
+            return null;
+        }
+        if (0L == stObj.getCreated()) {
+            stObj.setCreated(object.getLastModified());
+        }
+        return new ByteArrayResource(object.getData());
+    }
+
+    public void put(final TileObject stObj) throws StorageException {
+        final String key = tileKey(stObj);
+        final byte[] data;
+        try {
+            data = toByteArray(stObj.getBlob());
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile " + stObj + ": " + e.getMessage());
+        }
+        // only needed to tell stored from updated tiles apart
+        final long oldSize = listeners.isEmpty() ? -1 : client.headObject(key);
+        client.putObject(key, data, stObj.getBlobFormat());
+        stObj.setCreated(System.currentTimeMillis());
+        if (oldSize > 0) {
+            listeners.sendTileUpdated(stObj, oldSize);
+        } else {
+            listeners.sendTileStored(stObj);
+        }
+    }
+
+    private static byte[] toByteArray(final Resource blob) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(
+                blob.getSize(), 0));
+        final InputStream in = blob.getInputStream();
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    public boolean delete(final TileObject stObj) throws StorageException {
+        final String key = tileKey(stObj);
+        final long size = client.headObject(key);
+        if (size < 0) {
+            return false;
+        }
+        client.deleteObject(key);
+        stObj.setBlobSize((int) size);
+        listeners.sendTileDeleted(stObj);
+        return true;
+    }
+
+    public boolean delete(final TileRange trObj) throws StorageException {
+        if (trObj.getGridSetId() == null) {
+            throw new StorageException("Specifying the grid set id is currently mandatory.");
+        }
+        if (trObj.getMimeType() == null) {
+            throw new StorageException("Specifying the mime type is currently mandatory.");
+        }
+        final String layerName = trObj.getLayerName();
+        final String gridSetId = trObj.getGridSetId();
+        final String blobFormat = trObj.getMimeType().getFormat();
+        final String extension = trObj.getMimeType().getFileExtension();
+        final String formatPrefix = gridSetPrefix(layerName, gridSetId) + extension + "/";
+
+        final List<String> parametersPrefixes = new ArrayList<String>();
+        if (trObj.getParametersId() != null) {
+            final long parametersId = trObj.getParametersId().longValue();
+            parametersPrefixes.add(formatPrefix
+                    + (parametersId == -1L ? DEFAULT_PARAMETERS : Long.toHexString(parametersId))
+                    + "/");
+        } else {
+            parametersPrefixes.addAll(listCommonPrefixes(formatPrefix));
+        }
+
+        final BulkRequests bulkRequests = new BulkRequests();
+        try {
+            for (String parametersPrefix : parametersPrefixes) {
+                final String segment = parametersPrefix.substring(formatPrefix.length(),
+                        parametersPrefix.length() - 1);
+                final Long parametersId = DEFAULT_PARAMETERS.equals(segment) ? null : Long
+                        .valueOf(Long.parseLong(segment, 16));
+                for (String zoomPrefix : listCommonPrefixes(parametersPrefix)) {
+                    final int z = Integer.parseInt(zoomPrefix.substring(
+                            parametersPrefix.length(), zoomPrefix.length() - 1));
+                    if (!trObj.includesZoomLevel(z)) {
+                        continue;
+                    }
+                    final long[] bounds = trObj.getZoomLevelBounds(z);
+                    final DeletedTiles tiles = new DeletedTiles(layerName, gridSetId, blobFormat,
+                            parametersId, z);
+                    if (bounds == null || bounds[2] - bounds[0] >= MAX_COLUMN_LISTINGS) {
+                        deleteTiles(zoomPrefix, zoomPrefix, extension, trObj, tiles,
+                                bulkRequests);
+                    } else {
+                        for (long x = bounds[0]; x <= bounds[2]; x++) {
+                            deleteTiles(zoomPrefix + x + "/", zoomPrefix, extension, trObj,
+                                    tiles, bulkRequests);
+                        }
+                    }
+                    tiles.flush(bulkRequests);
+                }
+            }
+            final long count = bulkRequests.await();
+            log.info("Truncated " + count + " tiles");
+        } finally {
+            bulkRequests.shutdown();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the tiles listed under {@code listPrefix} that are in the range to be deleted
+     */
+    private void deleteTiles(final String listPrefix, final String zoomPrefix,
+            final String extension, final TileRange trObj, final DeletedTiles tiles,
+            final BulkRequests bulkRequests) throws StorageException {
+        final String suffix = "." + extension;
+        String token = null;
+        do {
+            final S3Client.Listing listing = client.list(listPrefix, null, token);
+            final List<String> keys = listing.getKeys();
+            for (int i = 0; i < keys.size(); i++) {
+                // <x>/<y>.<extension>
+                final String key = keys.get(i);
+                if (!key.endsWith(suffix)) {
+                    continue;
+                }
+                final int slash = key.indexOf('/', zoomPrefix.length());
+                if (slash < 0) {
+                    continue;
+                }
+                final long x;
+                final long y;
+                try {
+                    x = Long.parseLong(key.substring(zoomPrefix.length(), slash));
+                    y = Long.parseLong(key.substring(slash + 1, key.length() - suffix.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                // the bounds, and the raster mask of a discontinuous range
+                if (!trObj.contains(x, y, tiles.z)) {
+                    continue;
+                }
+                tiles.add(key, x, y, listing.getSizes().get(i).longValue(), bulkRequests);
+            }
+            token = listing.getNextContinuationToken();
+        } while (token != null);
+    }
+
+    private List<String> listCommonPrefixes(final String listPrefix) throws StorageException {
+        final List<String> prefixes = new ArrayList<String>();
+        String token = null;
+        do {
+            S3Client.Listing listing = client.list(listPrefix, "/", token);
+            prefixes.addAll(listing.getCommonPrefixes());
+            token = listing.getNextContinuationToken();
+        } while (token != null);
+        return prefixes;
+    }
+
+    /**
+     * Deletes all the objects whose key starts with the given prefix
+     */
+    private void deletePrefix(final String keyPrefix) throws StorageException {
+        final BulkRequests bulkRequests = new BulkRequests();
+        try {
+            String token = null;
+            do {
+                final S3Client.Listing listing = client.list(keyPrefix, null, token);
+                if (listing.getKeys().size() > 0) {
+                    bulkRequests.submit(listing.getKeys(), null);
+                }
+                token = listing.getNextContinuationToken();
+            } while (token != null);
+            bulkRequests.await();
+        } finally {
+            bulkRequests.shutdown();
+        }
+    }
+
+    public boolean delete(final String layerName) throws StorageException {
+        deletePrefix(layerPrefix(layerName));
+        listeners.sendLayerDeleted(layerName);
+        return true;
+    }
+
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        deletePrefix(gridSetPrefix(layerName, gridSetId));
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return true;
+    }
+
+    /**
+     * Copies all the objects of the layer under the new name and deletes the old ones.
+     *
+     * @throws StorageException
+     *             if there are objects under the new name already
+     */
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        final String oldPrefix = layerPrefix(oldLayerName);
+        final String newPrefix = layerPrefix(newLayerName);
+        if (client.list(newPrefix, null, null).getKeys().size() > 0) {
+            throw new StorageException("Can't rename layer " + oldLayerName + " to "
+                    + newLayerName + ", there are objects under " + newPrefix + " already");
+        }
+        final BulkRequests bulkRequests = new BulkRequests();
+        try {
+            String token = null;
+            do {
+                final S3Client.Listing listing = client.list(oldPrefix, null, token);
+                if (listing.getKeys().size() > 0) {
+                    bulkRequests.submit(listing.getKeys(), new Callable<Object>() {
+                        public Object call() throws Exception {
+                            for (String key : listing.getKeys()) {
+                                client.copyObject(key,
+                                        newPrefix + key.substring(oldPrefix.length()));
+                            }
+                            client.deleteObjects(listing.getKeys());
+                            return null;
+                        }
+                    });
+                }
+                token = listing.getNextContinuationToken();
+            } while (token != null);
+            bulkRequests.await();
+        } finally {
+            bulkRequests.shutdown();
+        }
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    /**
+     * Deletes all the objects under the store prefix
+     */
+    public void clear() throws StorageException {
+        deletePrefix(prefix);
+    }
+
+    public void destroy() {
+        client.destroy();
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
+     */
+    public String getLayerMetadata(final String layerName, final String key) {
+        String value = getLayerMetadata(layerName).getProperty(key);
+        if (value != null) {
+            try {
+                value = URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    public void putLayerMetadata(final String layerName, final String key, final String value) {
+        // read, modify, write: at least don't lose updates made through this instance
+        synchronized (metadataLock) {
+            Properties metadata = getLayerMetadata(layerName);
+            try {
+                if (null == value) {
+                    metadata.remove(key);
+                } else {
+                    metadata.setProperty(key, URLEncoder.encode(value, "UTF-8"));
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                metadata.store(out, "auto generated file, do not edit by hand");
+                client.putObject(layerPrefix(layerName) + METADATA_KEY, out.toByteArray(),
+                        "text/plain");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private Properties getLayerMetadata(final String layerName) {
+        Properties properties = new Properties();
+        try {
+            S3Client.S3Object object = client.getObject(layerPrefix(layerName) + METADATA_KEY);
+            if (object != null) {
+                properties.load(new ByteArrayInputStream(object.getData()));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return properties;
+    }
+
+    /**
+     * The tiles of a zoom level being truncated, gathered into bulk deletes
+     */
+    private final class DeletedTiles {
+
+        private final String layerName;
+
+        private final String gridSetId;
+
+        private final String blobFormat;
+
+        private final Long parametersId;
+
+        private final int z;
+
+        private List<String> keys = new ArrayList<String>();
+
+        private List<long[]> tiles = new ArrayList<long[]>();
+
+        DeletedTiles(String layerName, String gridSetId, String blobFormat, Long parametersId,
+                int z) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.blobFormat = blobFormat;
+            this.parametersId = parametersId;
+            this.z = z;
+        }
+
+        void add(String key, long x, long y, long size, BulkRequests bulkRequests)
+                throws StorageException {
+            keys.add(key);
+            tiles.add(new long[] { x, y, size });
+            if (keys.size() == S3Client.MAX_DELETE_KEYS) {
+                flush(bulkRequests);
+            }
+        }
+
+        void flush(final BulkRequests bulkRequests) throws StorageException {
+            if (keys.size() == 0) {
+                return;
+            }
+            final List<String> batchKeys = keys;
+            final List<long[]> batchTiles = tiles;
+            keys = new ArrayList<String>();
+            tiles = new ArrayList<long[]>();
+            bulkRequests.submit(batchKeys, new Callable<Object>() {
+                public Object call() throws Exception {
+                    client.deleteObjects(batchKeys);
+                    BlobStoreListenerList.beginBatch();
+                    try {
+                        for (long[] tile : batchTiles) {
+                            listeners.sendTileDeleted(layerName, gridSetId, blobFormat,
+                                    parametersId, tile[0], tile[1], z, tile[2]);
+                        }
+                    } finally {
+                        BlobStoreListenerList.endBatch();
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs bulk deletes (or copies, for renames) on {@link #deleteThreads} threads, keeping a
+     * bounded number of them queued so that listing the keys doesn't get too far ahead
+     */
+    private final class BulkRequests {
+
+        private final ExecutorService executor;
+
+        private final LinkedList<Future<Object>> pending = new LinkedList<Future<Object>>();
+
+        private final AtomicLong count = new AtomicLong();
+
+        BulkRequests() {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC S3 delete thread-");
+            tf.setDaemon(true);
+            executor = Executors.newFixedThreadPool(deleteThreads, tf);
+        }
+
+        /**
+         * @param task
+         *            the requests to run for the keys, or {@code null} to just delete them
+         */
+        void submit(final List<String> keys, final Callable<Object> task) throws StorageException {
+            while (pending.size() >= 2 * deleteThreads) {
+                waitFor(pending.removeFirst());
+            }
+            final int size = keys.size();
+            pending.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    if (task == null) {
+                        client.deleteObjects(keys);
+                    } else {
+                        task.call();
+                    }
+                    count.addAndGet(size);
+                    return null;
+                }
+            }));
+        }
+
+        /**
+         * @return the number of keys processed
+         */
+        long await() throws StorageException {
+            while (pending.size() > 0) {
+                waitFor(pending.removeFirst());
+            }
+            return count.get();
+        }
+
+        private void waitFor(final Future<Object> future) throws StorageException {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted waiting for S3 requests");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof StorageException) {
+                    throw (StorageException) cause;
+                }
+                StorageException se = new StorageException("S3 request failed: "
+                        + cause.getMessage());
+                se.initCause(cause);
+                throw se;
+            }
+        }
+
+        void shutdown() {
+            // no-op if done, stops the remaining work on error
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,643 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SimpleTimeZone;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.util.HttpClientBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A minimal client for the object operations of the Amazon S3 REST API needed by
+ * {@link S3BlobStore}, signing requests with AWS Signature Version 4.
+ * <p>
+ * Buckets are addressed path style ({@code <endpoint>/<bucket>/<key>}), which works with AWS as
+ * well as with S3 compatible servers such as MinIO. Requests go through a pool of persistent
+ * connections shared by all the threads using the client.
+ * </p>
+ */
+public class S3Client {
+
+    /**
+     * Maximum number of keys in a bulk delete request, as set by the S3 API
+     */
+    public static final int MAX_DELETE_KEYS = 1000;
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final URL endpoint;
+
+    private final String hostHeader;
+
+    private final String bucket;
+
+    private final String region;
+
+    private final String accessKey;
+
+    private final String secretKey;
+
+    private final HttpClient httpClient;
+
+    /**
+     * Creates a client with {@link #DEFAULT_MAX_CONNECTIONS} pooled connections and
+     * {@link #DEFAULT_TIMEOUT} milliseconds time outs
+     */
+    public S3Client(String endpoint, String bucket, String region, String accessKey,
+            String secretKey) throws MalformedURLException {
+        this(endpoint, bucket, region, accessKey, secretKey, DEFAULT_MAX_CONNECTIONS,
+                DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param endpoint
+     *            the service URL, such as {@code https://s3.eu-west-1.amazonaws.com} or
+     *            {@code http://localhost:9000}
+     * @param maxConnections
+     *            maximum number of connections open at the same time
+     * @param timeout
+     *            connect and read time out, in milliseconds
+     */
+    public S3Client(String endpoint, String bucket, String region, String accessKey,
+            String secretKey, int maxConnections, int timeout) throws MalformedURLException {
+        this.endpoint = new URL(endpoint.endsWith("/") ? endpoint.substring(0,
+                endpoint.length() - 1) : endpoint);
+        final int port = this.endpoint.getPort();
+        this.hostHeader = port == -1 || port == this.endpoint.getDefaultPort() ? this.endpoint
+                .getHost() : this.endpoint.getHost() + ":" + port;
+        this.bucket = bucket;
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+
+        HttpClientBuilder builder = new HttpClientBuilder();
+        builder.setPooled(maxConnections, maxConnections);
+        builder.setBackendTimeout(timeout);
+        this.httpClient = builder.buildClient();
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * An object read from the bucket
+     */
+    public static final class S3Object {
+        private final byte[] data;
+
+        private final long lastModified;
+
+        S3Object(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the last modification time, or {@code 0} if unknown
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * A page of the keys starting with a given prefix
+     */
+    public static final class Listing {
+        final List<String> keys = new ArrayList<String>();
+
+        final List<Long> sizes = new ArrayList<Long>();
+
+        final List<String> commonPrefixes = new ArrayList<String>();
+
+        String nextContinuationToken;
+
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        public List<Long> getSizes() {
+            return sizes;
+        }
+
+        /**
+         * @return the distinct key prefixes up to the delimiter, if one was given
+         */
+        public List<String> getCommonPrefixes() {
+            return commonPrefixes;
+        }
+
+        /**
+         * @return the token to get the next page with, or {@code null} if this is the last one
+         */
+        public String getNextContinuationToken() {
+            return nextContinuationToken;
+        }
+    }
+
+    /**
+     * @return the object, or {@code null} if there's no object with that key
+     */
+    public S3Object getObject(final String key) throws StorageException {
+        GetMethod method = new GetMethod();
+        try {
+            int status = execute(method, key, null, null, null);
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                return null;
+            }
+            checkStatus(method, status, key);
+            byte[] data = method.getResponseBody();
+            return new S3Object(data, lastModified(method));
+        } catch (IOException e) {
+            throw new StorageException("Unable to get " + key + ": " + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * @return the size of the object, or {@code -1} if there's no object with that key
+     */
+    public long headObject(final String key) throws StorageException {
+        HeadMethod method = new HeadMethod();
+        try {
+            int status = execute(method, key, null, null, null);
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                return -1;
+            }
+            checkStatus(method, status, key);
+            Header length = method.getResponseHeader("Content-Length");
+            return length == null ? 0 : Long.parseLong(length.getValue().trim());
+        } catch (IOException e) {
+            throw new StorageException("Unable to get " + key + ": " + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Stores the object in a single request, tiles are way smaller than what multipart uploads
+     * are meant for
+     */
+    public void putObject(final String key, final byte[] data, final String contentType)
+            throws StorageException {
+        PutMethod method = new PutMethod();
+        try {
+            Map<String, String> headers = new TreeMap<String, String>();
+            if (contentType != null) {
+                headers.put("content-type", contentType);
+            }
+            int status = execute(method, key, null, headers, data);
+            checkStatus(method, status, key);
+        } catch (IOException e) {
+            throw new StorageException("Unable to put " + key + ": " + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Copies an object within the bucket
+     */
+    public void copyObject(final String sourceKey, final String targetKey)
+            throws StorageException {
+        PutMethod method = new PutMethod();
+        try {
+            Map<String, String> headers = new TreeMap<String, String>();
+            headers.put("x-amz-copy-source", encodePath("/" + bucket + "/" + sourceKey));
+            int status = execute(method, targetKey, null, headers, new byte[0]);
+            checkStatus(method, status, targetKey);
+            // copies may fail after the 200 status has been sent
+            Document response = parse(method);
+            if ("Error".equals(response.getDocumentElement().getNodeName())) {
+                throw new StorageException("Unable to copy " + sourceKey + " to " + targetKey
+                        + ": " + childText(response.getDocumentElement(), "Message"));
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to copy " + sourceKey + " to " + targetKey + ": "
+                    + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Deletes an object, deleting a missing object is not an error
+     */
+    public void deleteObject(final String key) throws StorageException {
+        DeleteMethod method = new DeleteMethod();
+        try {
+            int status = execute(method, key, null, null, null);
+            if (status != HttpStatus.SC_NOT_FOUND) {
+                checkStatus(method, status, key);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete " + key + ": " + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Deletes up to {@link #MAX_DELETE_KEYS} objects in a single request. Deleting a missing
+     * object is not an error.
+     */
+    public void deleteObjects(final List<String> keys) throws StorageException {
+        if (keys.size() == 0) {
+            return;
+        }
+        if (keys.size() > MAX_DELETE_KEYS) {
+            throw new IllegalArgumentException("At most " + MAX_DELETE_KEYS
+                    + " keys can be deleted at once: " + keys.size());
+        }
+        StringBuilder body = new StringBuilder(64 * keys.size());
+        body.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Delete><Quiet>true</Quiet>");
+        for (String key : keys) {
+            body.append("<Object><Key>");
+            appendXml(body, key);
+            body.append("</Key></Object>");
+        }
+        body.append("</Delete>");
+        final byte[] data = utf8(body.toString());
+
+        PostMethod method = new PostMethod();
+        try {
+            Map<String, String> headers = new TreeMap<String, String>();
+            headers.put("content-md5", new String(Base64.encodeBase64(digest("MD5", data)),
+                    "US-ASCII"));
+            headers.put("content-type", "application/xml");
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("delete", "");
+            int status = execute(method, "", query, headers, data);
+            checkStatus(method, status, "bulk delete");
+            // only the keys that failed are reported in quiet mode
+            NodeList errors = parse(method).getElementsByTagName("Error");
+            if (errors.getLength() > 0) {
+                Element error = (Element) errors.item(0);
+                throw new StorageException("Unable to delete " + errors.getLength()
+                        + " objects, first one " + childText(error, "Key") + ": "
+                        + childText(error, "Message"));
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete " + keys.size() + " objects: "
+                    + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Lists a page of the keys starting with the given prefix
+     *
+     * @param delimiter
+     *            if not {@code null}, keys containing it after the prefix are not listed but
+     *            rolled up into {@link Listing#getCommonPrefixes() common prefixes}
+     * @param continuationToken
+     *            {@code null} for the first page, {@link Listing#getNextContinuationToken()}
+     *            afterwards
+     */
+    public Listing list(final String prefix, final String delimiter,
+            final String continuationToken) throws StorageException {
+        GetMethod method = new GetMethod();
+        try {
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            if (delimiter != null) {
+                query.put("delimiter", delimiter);
+            }
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            int status = execute(method, "", query, null, null);
+            checkStatus(method, status, "list " + prefix);
+
+            Document response = parse(method);
+            Listing listing = new Listing();
+            NodeList contents = response.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element item = (Element) contents.item(i);
+                listing.keys.add(childText(item, "Key"));
+                String size = childText(item, "Size");
+                listing.sizes.add(Long.valueOf(size == null ? 0 : Long.parseLong(size)));
+            }
+            NodeList prefixes = response.getElementsByTagName("CommonPrefixes");
+            for (int i = 0; i < prefixes.getLength(); i++) {
+                listing.commonPrefixes.add(childText((Element) prefixes.item(i), "Prefix"));
+            }
+            if ("true".equals(childText(response.getDocumentElement(), "IsTruncated"))) {
+                listing.nextContinuationToken = childText(response.getDocumentElement(),
+                        "NextContinuationToken");
+            }
+            return listing;
+        } catch (IOException e) {
+            throw new StorageException("Unable to list " + prefix + ": " + e.getMessage());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Releases the pooled connections
+     */
+    public void destroy() {
+        if (httpClient.getHttpConnectionManager() instanceof MultiThreadedHttpConnectionManager) {
+            ((MultiThreadedHttpConnectionManager) httpClient.getHttpConnectionManager())
+                    .shutdown();
+        }
+    }
+
+    /**
+     * Signs and executes the request
+     *
+     * @return the response status
+     */
+    private int execute(final HttpMethod method, final String key,
+            final Map<String, String> query, final Map<String, String> extraHeaders,
+            final byte[] body) throws IOException, StorageException {
+        final String canonicalUri = encodePath(key.length() == 0 ? "/" + bucket : "/" + bucket
+                + "/" + key);
+        final String canonicalQuery = query == null ? "" : canonicalQuery(query);
+        final String amzDate = timestamp(new Date());
+        final String payloadHash = hex(digest("SHA-256", body == null ? new byte[0] : body));
+
+        final SortedMap<String, String> headers = new TreeMap<String, String>();
+        headers.put("host", hostHeader);
+        headers.put("x-amz-date", amzDate);
+        headers.put("x-amz-content-sha256", payloadHash);
+        if (extraHeaders != null) {
+            headers.putAll(extraHeaders);
+        }
+        final String authorization = authorization(method.getName(), canonicalUri,
+                canonicalQuery, headers, payloadHash, amzDate, region, "s3", accessKey,
+                secretKey);
+
+        method.setURI(new org.apache.commons.httpclient.URI(endpoint.toExternalForm()
+                + canonicalUri + (canonicalQuery.length() == 0 ? "" : "?" + canonicalQuery),
+                true));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!"host".equals(header.getKey())) {
+                method.setRequestHeader(header.getKey(), header.getValue());
+            }
+        }
+        method.setRequestHeader("Authorization", authorization);
+        if (body != null && method instanceof EntityEnclosingMethod) {
+            String contentType = headers.get("content-type");
+            ((EntityEnclosingMethod) method).setRequestEntity(new ByteArrayRequestEntity(body,
+                    contentType));
+        }
+        return httpClient.executeMethod(method);
+    }
+
+    /**
+     * Builds the value of the {@code Authorization} header for a request
+     *
+     * @param headers
+     *            the headers to sign, by lower case name
+     */
+    static String authorization(final String httpMethod, final String canonicalUri,
+            final String canonicalQuery, final SortedMap<String, String> headers,
+            final String payloadHash, final String amzDate, final String region,
+            final String service, final String accessKey, final String secretKey)
+            throws StorageException {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':')
+                    .append(header.getValue().trim()).append('\n');
+            if (signedHeaders.length() > 0) {
+                signedHeaders.append(';');
+            }
+            signedHeaders.append(header.getKey());
+        }
+        final String canonicalRequest = httpMethod + '\n' + canonicalUri + '\n' + canonicalQuery
+                + '\n' + canonicalHeaders + '\n' + signedHeaders + '\n' + payloadHash;
+
+        final String date = amzDate.substring(0, 8);
+        final String scope = date + "/" + region + "/" + service + "/aws4_request";
+        final String stringToSign = ALGORITHM + '\n' + amzDate + '\n' + scope + '\n'
+                + hex(digest("SHA-256", utf8(canonicalRequest)));
+
+        byte[] signingKey = hmac(utf8("AWS4" + secretKey), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, service);
+        signingKey = hmac(signingKey, "aws4_request");
+        final String signature = hex(hmac(signingKey, stringToSign));
+
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders="
+                + signedHeaders + ", Signature=" + signature;
+    }
+
+    static String timestamp(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        format.setTimeZone(new SimpleTimeZone(0, "UTC"));
+        return format.format(date);
+    }
+
+    private static String canonicalQuery(final Map<String, String> query) {
+        // sorted by encoded name, which is the same order for the names used here
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> param : new TreeMap<String, String>(query).entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(encode(param.getKey(), true)).append('=')
+                    .append(encode(param.getValue(), true));
+        }
+        return sb.toString();
+    }
+
+    static String encodePath(final String path) {
+        return encode(path, false);
+    }
+
+    /**
+     * URI encodes all but the unreserved characters, and slashes if {@code encodeSlash} is false
+     */
+    static String encode(final String value, final boolean encodeSlash) {
+        final byte[] bytes = utf8(value);
+        final StringBuilder sb = new StringBuilder(bytes.length + 16);
+        for (byte b : bytes) {
+            final char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(HEX[(c >> 4) & 0xF]))
+                        .append(Character.toUpperCase(HEX[c & 0xF]));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendXml(final StringBuilder sb, final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                sb.append("&lt;");
+            } else if (c == '>') {
+                sb.append("&gt;");
+            } else if (c == '&') {
+                sb.append("&amp;");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static byte[] utf8(final String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] digest(final String algorithm, final byte[] data)
+            throws StorageException {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new StorageException(algorithm + " not available: " + e.getMessage());
+        }
+    }
+
+    private static byte[] hmac(final byte[] key, final String data) throws StorageException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(utf8(data));
+        } catch (GeneralSecurityException e) {
+            throw new StorageException("HmacSHA256 not available: " + e.getMessage());
+        }
+    }
+
+    private static long lastModified(final HttpMethod method) {
+        Header header = method.getResponseHeader("Last-Modified");
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return DateUtil.parseDate(header.getValue()).getTime();
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+
+    private static void checkStatus(final HttpMethod method, final int status,
+            final String what) throws IOException, StorageException {
+        if (status >= 200 && status < 300) {
+            return;
+        }
+        String message = method.getStatusText();
+        if (!(method instanceof HeadMethod)) {
+            try {
+                Document error = parse(method);
+                String errorMessage = childText(error.getDocumentElement(), "Message");
+                if (errorMessage != null) {
+                    message = errorMessage;
+                }
+            } catch (StorageException e) {
+                // not an S3 error document
+            }
+        }
+        throw new StorageException("S3 request for " + what + " failed with status " + status
+                + ": " + message);
+    }
+
+    private static Document parse(final HttpMethod method) throws IOException, StorageException {
+        final byte[] body = method.getResponseBody();
+        if (body == null || body.length == 0) {
+            throw new StorageException("Empty S3 response");
+        }
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            return builder.parse(new ByteArrayInputStream(body));
+        } catch (Exception e) {
+            throw new StorageException("Unable to parse S3 response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the text of the first child element of the given name, or {@code null}
+     */
+    private static String childText(final Element parent, final String name) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && name.equals(child.getNodeName())) {
+                return child.getTextContent();
+            }
+        }
+        return null;
+    }
+}
@@ -8,7 +8,7 @@ import java.sql.Statement;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-class JDBCUtils {
+public class JDBCUtils {
     private static Log log = LogFactory
             .getLog(org.geowebcache.storage.metastore.jdbc.JDBCUtils.class);
 
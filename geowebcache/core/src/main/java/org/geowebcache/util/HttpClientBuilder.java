@@ -25,8 +25,11 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
 
 /**
@@ -47,6 +50,14 @@ public class HttpClientBuilder {
 
     private boolean doAuthentication = false;
 
+    private int maxConnectionsPerHost = 0;
+
+    private int maxTotalConnections = 0;
+
+    private static boolean vmProxyChecked;
+
+    private static URL vmProxyUrl;
+
     public HttpClientBuilder() {
         super();
     }
@@ -56,28 +67,44 @@ public class HttpClientBuilder {
         this.setHttpCredentials(httpUsername, httpPassword,
                 new AuthScope(url.getHost(), url.getPort()));
 
-        RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
-        List<String> lst = runtimeMXBean.getInputArguments();
-        String proxyHost = null;
-        String proxyPort = null;
-        for (String arg : lst) {
-            if (arg.startsWith("-Dhttp.proxyHost=")) {
-                proxyHost = extractVMArg(arg);
-            } else if (arg.startsWith("-Dhttp.proxyPort=")) {
-                proxyPort = extractVMArg(arg);
-            }
+        URL vmProxyUrl = getVMProxyUrl();
+        if (vmProxyUrl != null) {
+            proxyUrl = vmProxyUrl;
         }
-        if (proxyHost != null)
-            try {
-                proxyUrl = new URL(proxyHost + ((proxyPort != null) ? (":" + proxyPort) : ("")));
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
-            }
         this.setProxy(proxyUrl);
         this.setBackendTimeout(backendTimeout);
     }
 
-    private String extractVMArg(String arg) {
+    /**
+     * Looks up the proxy given through the {@code http.proxyHost} and {@code http.proxyPort} VM
+     * arguments. The arguments can't change while the VM is running, so they're only scanned once.
+     */
+    private static synchronized URL getVMProxyUrl() {
+        if (!vmProxyChecked) {
+            RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+            List<String> lst = runtimeMXBean.getInputArguments();
+            String proxyHost = null;
+            String proxyPort = null;
+            for (String arg : lst) {
+                if (arg.startsWith("-Dhttp.proxyHost=")) {
+                    proxyHost = extractVMArg(arg);
+                } else if (arg.startsWith("-Dhttp.proxyPort=")) {
+                    proxyPort = extractVMArg(arg);
+                }
+            }
+            if (proxyHost != null)
+                try {
+                    vmProxyUrl = new URL(proxyHost
+                            + ((proxyPort != null) ? (":" + proxyPort) : ("")));
+                } catch (MalformedURLException e) {
+                    e.printStackTrace();
+                }
+            vmProxyChecked = true;
+        }
+        return vmProxyUrl;
+    }
+
+    private static String extractVMArg(String arg) {
         String[] proxyArg = arg.split("=");
         if (proxyArg.length == 2 && proxyArg[1].length() > 0)
             return proxyArg[1];
@@ -123,16 +150,50 @@ public class HttpClientBuilder {
         this.backendTimeoutMillis = backendTimeout * 1000;
     }
 
+    /**
+     * Makes the generated HttpClient keep a pool of reusable (keep-alive) connections that can be
+     * shared by several threads, instead of opening a new connection for each request.
+     * 
+     * @param maxConnectionsPerHost
+     *            maximum number of connections open at the same time to a single host, requests
+     *            exceeding it wait for a connection to be released, up to the backend timeout
+     * @param maxTotalConnections
+     *            maximum number of connections open at the same time to all hosts
+     */
+    public void setPooled(final int maxConnectionsPerHost, final int maxTotalConnections) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxTotalConnections = Math.max(maxConnectionsPerHost, maxTotalConnections);
+    }
+
     /**
      * uses the configuration of this builder to generate a HttpClient
      * 
      * @return the generated HttpClient
      */
     public HttpClient buildClient() {
-        HttpClient httpClient = new HttpClient();
+        HttpClient httpClient;
+        if (maxConnectionsPerHost > 0) {
+            MultiThreadedHttpConnectionManager connectionManager =
+                    new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams managerParams = connectionManager.getParams();
+            managerParams.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+            managerParams.setMaxTotalConnections(maxTotalConnections);
+            managerParams.setStaleCheckingEnabled(true);
+            httpClient = new HttpClient(connectionManager);
+            if (backendTimeoutMillis != null) {
+                // how long to wait for a pooled connection to be available
+                httpClient.getParams().setConnectionManagerTimeout(backendTimeoutMillis);
+            }
+            // the client is shared, don't let a backend session leak into unrelated requests
+            httpClient.getParams().setCookiePolicy(CookiePolicy.IGNORE_COOKIES);
+        } else {
+            httpClient = new HttpClient();
+        }
         HttpConnectionParams params = httpClient.getHttpConnectionManager().getParams();
-        params.setConnectionTimeout(backendTimeoutMillis);
-        params.setSoTimeout(backendTimeoutMillis);
+        if (backendTimeoutMillis != null) {
+            params.setConnectionTimeout(backendTimeoutMillis);
+            params.setSoTimeout(backendTimeoutMillis);
+        }
 
         if (authscope != null && httpcredentials != null) {
             httpClient.getState().setCredentials(authscope, httpcredentials);
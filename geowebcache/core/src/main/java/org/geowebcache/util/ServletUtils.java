@@ -33,9 +33,16 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimeZone;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.commons.collections.map.CaseInsensitiveMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheExtensions;
+import org.geowebcache.io.FileBackedResource;
+import org.geowebcache.io.OutputStreamChannel;
+import org.geowebcache.io.Resource;
 
 public class ServletUtils {
     private static Log log = LogFactory.getLog(org.geowebcache.util.ServletUtils.class);
@@ -49,6 +56,22 @@ public class ServletUtils {
 
     static private long localOffset = TimeZone.getDefault().getRawOffset();
 
+    /**
+     * Whether to let the servlet container send file backed resources by itself, see
+     * {@link #writeResource(Resource, HttpServletRequest, HttpServletResponse)}
+     */
+    public static final String GWC_USE_SENDFILE = "GWC_USE_SENDFILE";
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static volatile Boolean useSendfile;
+
     /**
      * Case insensitive lookup
      * 
@@ -233,6 +256,65 @@ public class ServletUtils {
         return newBuffer;
     }
 
+    /**
+     * Writes the resource as the response body, the content length shall already be set.
+     * <p>
+     * File backed resources are transferred straight out of their file channel, which the OS can
+     * do without copying the data through the Java heap. Other resources are written from their
+     * buffers. In both cases no per request buffer is allocated.
+     * </p>
+     * <p>
+     * If {@code GWC_USE_SENDFILE} is set to {@code true} and the container supports it, like Tomcat
+     * with the NIO or APR connectors, file backed resources are instead handed over to the
+     * container, that sends them with {@code sendfile} once the request is processed. It's off by
+     * default since the container reads the file after the fact, and a tile being reseeded
+     * meanwhile may not match the content length.
+     * </p>
+     * 
+     * @param request
+     *            the request, may be {@code null}, in which case {@code sendfile} isn't used
+     * @return the number of bytes written, or to be written by the container
+     */
+    public static long writeResource(Resource resource, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        return writeResource(resource, request, response, isSendfileEnabled());
+    }
+
+    static long writeResource(Resource resource, HttpServletRequest request,
+            HttpServletResponse response, boolean sendfile) throws IOException {
+
+        if (sendfile && request != null && resource instanceof FileBackedResource
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            FileBackedResource fileResource = (FileBackedResource) resource;
+            final long size = fileResource.getSize();
+            if (size > 0) {
+                final long start = fileResource.getOffset();
+                request.setAttribute(SENDFILE_FILENAME, fileResource.getFile().getAbsolutePath());
+                request.setAttribute(SENDFILE_START, Long.valueOf(start));
+                request.setAttribute(SENDFILE_END, Long.valueOf(start + size));
+                return size;
+            }
+        }
+        OutputStreamChannel channel = new OutputStreamChannel(response.getOutputStream());
+        try {
+            return resource.transferTo(channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean isSendfileEnabled() {
+        Boolean enabled = useSendfile;
+        if (enabled == null) {
+            enabled = Boolean.valueOf(GeoWebCacheExtensions.getProperty(GWC_USE_SENDFILE));
+            useSendfile = enabled;
+            if (enabled.booleanValue()) {
+                log.info("Letting the servlet container send file backed tiles when it can");
+            }
+        }
+        return enabled.booleanValue();
+    }
+
     /**
      * Makes HTTP Expire header value
      * 
@@ -50,6 +50,42 @@ public class FilePathKey2Test extends TestCase {
         assertEquals("099", actual);
     }
 
+    /**
+     * The padding used to count the digits with logarithms, existing caches depend on it
+     */
+    private static String legacyZeroPadder(long number, int order) {
+        int numberOrder = 1;
+        if (number > 9) {
+            if (number > 11) {
+                numberOrder = (int) Math.ceil(Math.log10(number) - 0.001);
+            } else {
+                numberOrder = 2;
+            }
+        }
+        StringBuilder padding = new StringBuilder();
+        for (int diffOrder = order - numberOrder; diffOrder > 0; diffOrder--) {
+            padding.append('0');
+        }
+        return padding.append(number).toString();
+    }
+
+    public void testPadderMatchesLegacy() throws Exception {
+        for (long n = 0; n < 20000; n++) {
+            assertEquals(legacyZeroPadder(n, 6), FilePathGenerator.zeroPadder(n, 6));
+        }
+        long power = 1;
+        for (int k = 1; k < 17; k++) {
+            power *= 10;
+            long threshold = (long) Math.pow(10, k + 0.001);
+            for (long n = Math.max(0, power - 100); n < power + 100; n++) {
+                assertEquals(legacyZeroPadder(n, 20), FilePathGenerator.zeroPadder(n, 20));
+            }
+            for (long n = threshold - 100; n < threshold + 100; n++) {
+                assertEquals(legacyZeroPadder(n, 20), FilePathGenerator.zeroPadder(n, 20));
+            }
+        }
+    }
+
     public void testFindZoomLevel() {
         assertEquals(5, findZoomLevel("nyc", "nyc_05_01"));
         assertEquals(9, findZoomLevel("EPSG_4326", "EPSG_4326_09"));
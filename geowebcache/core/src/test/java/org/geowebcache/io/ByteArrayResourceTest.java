@@ -0,0 +1,57 @@
+package org.geowebcache.io;
+
+import java.awt.image.BufferedImage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+
+import junit.framework.TestCase;
+
+public class ByteArrayResourceTest extends TestCase {
+
+    public void testImageOutputStreamSeek() throws Exception {
+        ByteArrayResource res = new ByteArrayResource(2);
+        ImageOutputStream out = res.getImageOutputStream();
+        out.writeInt(0);
+        out.write(new byte[] { 1, 2, 3, 4 });
+        // go back and patch the first int, like image writers do with chunk lengths
+        out.seek(0);
+        out.writeInt(42);
+        assertEquals(4, out.getStreamPosition());
+        assertEquals(8, out.length());
+        out.close();
+
+        assertEquals(8, res.getSize());
+        byte[] contents = res.getContents();
+        assertEquals(42, contents[3]);
+        assertEquals(4, contents[7]);
+    }
+
+    public void testImageOutputStreamAppends() throws Exception {
+        ByteArrayResource res = new ByteArrayResource(new byte[] { 9, 9 });
+        ImageOutputStream out = res.getImageOutputStream();
+        out.write(new byte[] { 1, 2 });
+        out.seek(0);
+        assertEquals(1, out.read());
+        out.close();
+
+        byte[] contents = res.getContents();
+        assertEquals(4, contents.length);
+        assertEquals(9, contents[1]);
+        assertEquals(1, contents[2]);
+    }
+
+    public void testWriteImage() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(10, 10, 0xFFFF0000);
+
+        ByteArrayResource res = new ByteArrayResource(16);
+        ImageOutputStream out = res.getImageOutputStream();
+        assertTrue(ImageIO.write(image, "png", out));
+        out.close();
+
+        BufferedImage read = ImageIO.read(res.getInputStream());
+        assertEquals(256, read.getWidth());
+        assertEquals(0xFFFF0000, read.getRGB(10, 10));
+    }
+}
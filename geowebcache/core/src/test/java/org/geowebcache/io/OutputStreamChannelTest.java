@@ -0,0 +1,143 @@
+package org.geowebcache.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class OutputStreamChannelTest extends TestCase {
+
+    private static final boolean RUN_PERFORMANCE_TEST = false;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("gwcTile", ".png");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    public void testWriteBuffers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamChannel channel = new OutputStreamChannel(out);
+
+        byte[] data = data(20000);
+        ByteBuffer heap = ByteBuffer.wrap(data, 10, 100).slice();
+        assertEquals(100, channel.write(heap));
+        assertFalse(heap.hasRemaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(data.length, channel.write(direct));
+        assertFalse(direct.hasRemaining());
+
+        byte[] expected = new byte[100 + data.length];
+        System.arraycopy(data, 10, expected, 0, 100);
+        System.arraycopy(data, 0, expected, 100, data.length);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        channel.close();
+        assertFalse(channel.isOpen());
+        try {
+            channel.write(ByteBuffer.wrap(data));
+            fail("Expected ClosedChannelException");
+        } catch (ClosedChannelException e) {
+            assertTrue(true);
+        }
+    }
+
+    public void testTransferFileResource() throws Exception {
+        byte[] data = data(50000);
+        FileUtils.writeByteArrayToFile(file, data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileResource resource = new FileResource(file);
+        assertEquals(data.length, resource.transferTo(new OutputStreamChannel(out)));
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    /**
+     * Compares serving a tile through {@link Channels#newChannel(OutputStream)} and through
+     * {@link OutputStreamChannel}, reporting throughput and, when the JVM can tell, the bytes
+     * allocated per tile
+     */
+    public void testTransferPerformance() throws Exception {
+        if (!RUN_PERFORMANCE_TEST) {
+            return;
+        }
+        FileUtils.writeByteArrayToFile(file, data(20 * 1024));
+        FileResource resource = new FileResource(file);
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        final int tiles = 100000;
+        for (int run = 0; run < 3; run++) {
+            long allocated = allocatedBytes();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < tiles; i++) {
+                resource.transferTo(Channels.newChannel(sink));
+            }
+            report("Channels.newChannel", tiles, start, allocated);
+
+            allocated = allocatedBytes();
+            start = System.currentTimeMillis();
+            for (int i = 0; i < tiles; i++) {
+                WritableByteChannel channel = new OutputStreamChannel(sink);
+                resource.transferTo(channel);
+                channel.close();
+            }
+            report("OutputStreamChannel", tiles, start, allocated);
+        }
+    }
+
+    private static void report(String name, int tiles, long start, long allocated) {
+        long time = System.currentTimeMillis() - start;
+        long after = allocatedBytes();
+        System.out.println(name + ": " + (1000L * tiles / Math.max(1, time)) + " tiles/s"
+                + (allocated < 0 ? "" : ", " + ((after - allocated) / tiles) + " bytes/tile"));
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, or -1 if the JVM doesn't tell
+     */
+    private static long allocatedBytes() {
+        try {
+            Object bean = ManagementFactory.getThreadMXBean();
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Long.valueOf(Thread.currentThread().getId())))
+                    .longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
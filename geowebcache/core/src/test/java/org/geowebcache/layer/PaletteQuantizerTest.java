@@ -0,0 +1,67 @@
+package org.geowebcache.layer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import junit.framework.TestCase;
+
+public class PaletteQuantizerTest extends TestCase {
+
+    public void testFewColorsKeptExact() {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.setRGB(x, y, x < 32 ? 0xFF123456 : 0x80ABCDEF);
+            }
+        }
+        image.setRGB(0, 0, 0x00FFFFFF);
+
+        BufferedImage quantized = PaletteQuantizer.quantize(image);
+        assertTrue(PaletteQuantizer.isPaletted(quantized));
+        assertEquals(3, ((IndexColorModel) quantized.getColorModel()).getMapSize());
+        assertEquals(0xFF123456, quantized.getRGB(1, 1));
+        assertEquals(0x80ABCDEF, quantized.getRGB(40, 1));
+        assertEquals(0, quantized.getRGB(0, 0) >>> 24);
+    }
+
+    public void testMedianCut() {
+        // a smooth gradient with way more than 256 colors
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, 0xFF000000 | (x << 16) | (y << 8) | ((x + y) / 2));
+            }
+        }
+
+        BufferedImage quantized = PaletteQuantizer.quantize(image);
+        IndexColorModel icm = (IndexColorModel) quantized.getColorModel();
+        assertEquals(256, icm.getMapSize());
+        assertFalse(icm.hasAlpha());
+        for (int y = 0; y < 256; y += 5) {
+            for (int x = 0; x < 256; x += 5) {
+                int expected = image.getRGB(x, y);
+                int actual = quantized.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                    assertTrue("error " + error + " at " + x + "," + y, error < 48);
+                }
+            }
+        }
+    }
+
+    public void testTransparentEntry() {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, y < 128 ? 0 : 0xFF000000 | (x << 16) | (y << 8));
+            }
+        }
+
+        BufferedImage quantized = PaletteQuantizer.quantize(image);
+        IndexColorModel icm = (IndexColorModel) quantized.getColorModel();
+        assertTrue(icm.getMapSize() <= 256);
+        assertEquals(0, icm.getAlpha(0));
+        assertEquals(0, quantized.getRaster().getSample(10, 10, 0));
+        assertEquals(255, quantized.getRGB(10, 200) >>> 24);
+    }
+}
@@ -1,5 +1,9 @@
 package org.geowebcache.layer.wms;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
@@ -7,16 +11,25 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
 import junit.framework.TestCase;
 
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.mime.ImageMime;
 
 public class MetaTileTest extends TestCase {
 
+    final static boolean RUN_PERFORMANCE_TEST = false;
+
     GridSetBroker gridSetBroker = new GridSetBroker(false, false);
     
     @Override
@@ -194,6 +207,170 @@ public class MetaTileTest extends TestCase {
         assertTrue(Math.abs( Double.parseDouble(coordStrs[3]) - 45.54931640625) < 0.001);
     }
     
+    public void testWriteTilesReusingWriter() throws Exception {
+        WMSMetaTile mt = createEncodableMetaTile();
+        long[][] positions = mt.getTilesGridPositions();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < positions.length; i++) {
+                ByteArrayResource target = new ByteArrayResource(1024);
+                assertTrue(mt.writeTileToStream(i, target));
+                BufferedImage tile = ImageIO.read(target.getInputStream());
+                assertNotNull(tile);
+                assertEquals(256, tile.getWidth());
+                assertEquals(256, tile.getHeight());
+                // each tile was painted with its own index as the blue channel
+                assertEquals(i, tile.getRGB(128, 128) & 0xFF);
+            }
+        }
+        mt.dispose();
+    }
+
+    public void testCreateTileSharesRaster() throws Exception {
+        WMSMetaTile mt = createEncodableMetaTile();
+        BufferedImage metaTileImage = (BufferedImage) mt.getImage();
+        RenderedImage tile = mt.createTile(256, 512, 256, 256);
+        assertTrue(tile instanceof BufferedImage);
+        assertEquals(256, tile.getWidth());
+        assertEquals(256, tile.getHeight());
+        assertSame(metaTileImage.getRaster().getDataBuffer(), ((BufferedImage) tile).getRaster()
+                .getDataBuffer());
+        // bottom row, middle column
+        assertEquals(1, ((BufferedImage) tile).getRGB(0, 0) & 0xFF);
+        mt.dispose();
+    }
+
+    public void testGetUniformColor() throws Exception {
+        WMSMetaTile mt = createEncodableMetaTile();
+        BufferedImage image = (BufferedImage) mt.getImage();
+        long[][] positions = mt.getTilesGridPositions();
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(0xFF000000L | i, mt.getUniformColor(i));
+        }
+
+        // a single different pixel in the bottom right corner of the middle tile
+        image.setRGB(511, 511, 0xFFFFFFFF);
+        assertEquals(-1, mt.getUniformColor(4));
+
+        // fully transparent, no matter the color components
+        for (int j = 0; j < 256; j++) {
+            for (int i = 0; i < 256; i++) {
+                image.setRGB(i, 512 + j, (i * j) & 0xFFFFFF);
+            }
+        }
+        assertEquals(0, mt.getUniformColor(0));
+        image.setRGB(255, 767, 0x01000000);
+        assertEquals(-1, mt.getUniformColor(0));
+        mt.dispose();
+    }
+
+    public void testPNG8SharedPalette() throws Exception {
+        WMSMetaTile mt = createEncodableMetaTile(ImageMime.png8);
+        // many more colors than fit a palette
+        BufferedImage image = new BufferedImage(3 * 256, 3 * 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, ((x & 0xFF) << 16) | ((y & 0xFF) << 8) | (x / 3));
+            }
+        }
+        mt.setImage(image);
+
+        IndexColorModel palette = null;
+        long[][] positions = mt.getTilesGridPositions();
+        for (int i = 0; i < positions.length; i++) {
+            ByteArrayResource target = new ByteArrayResource(1024);
+            assertTrue(mt.writeTileToStream(i, target));
+            BufferedImage tile = ImageIO.read(target.getInputStream());
+            assertTrue(tile.getColorModel() instanceof IndexColorModel);
+            IndexColorModel icm = (IndexColorModel) tile.getColorModel();
+            if (palette == null) {
+                palette = icm;
+            } else {
+                assertEquals(palette.getMapSize(), icm.getMapSize());
+                for (int c = 0; c < icm.getMapSize(); c++) {
+                    assertEquals(palette.getRGB(c), icm.getRGB(c));
+                }
+            }
+        }
+        mt.dispose();
+    }
+
+    /**
+     * Compares encoding the tiles of a meta tile with the cached writer against looking up a new
+     * writer and going through an intermediate stream for every tile, as it used to be done
+     */
+    public void testWriteTilePerformance() throws Exception {
+        if (!RUN_PERFORMANCE_TEST) {
+            return;
+        }
+        final int metaTiles = 200;
+        WMSMetaTile mt = createEncodableMetaTile();
+        final int tileCount = mt.getTilesGridPositions().length;
+        // warm up
+        for (int i = 0; i < tileCount; i++) {
+            mt.writeTileToStream(i, new ByteArrayResource(16 * 1024));
+        }
+
+        long start = System.currentTimeMillis();
+        for (int m = 0; m < metaTiles; m++) {
+            for (int i = 0; i < tileCount; i++) {
+                ByteArrayResource target = new ByteArrayResource(16 * 1024);
+                ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+                ImageOutputStream imgOut = new MemoryCacheImageOutputStream(target
+                        .getOutputStream());
+                writer.setOutput(imgOut);
+                Rectangle r = new Rectangle(256 * (i % 3), 256 * (i / 3), 256, 256);
+                RenderedImage tile = mt.createTile(r.x, r.y, r.width, r.height);
+                writer.write(null, new IIOImage(tile, null, null), writer.getDefaultWriteParam());
+                imgOut.close();
+                writer.dispose();
+            }
+        }
+        long uncached = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int m = 0; m < metaTiles; m++) {
+            for (int i = 0; i < tileCount; i++) {
+                mt.writeTileToStream(i, new ByteArrayResource(16 * 1024));
+            }
+        }
+        long cached = System.currentTimeMillis() - start;
+        mt.dispose();
+
+        final int tiles = metaTiles * tileCount;
+        System.out.println("New writer per tile: " + (tiles * 1000 / Math.max(1, uncached))
+                + " tiles/s, cached writer: " + (tiles * 1000 / Math.max(1, cached))
+                + " tiles/s");
+    }
+
+    /**
+     * A 3x3 meta tile without gutter, each tile filled with its index
+     */
+    private WMSMetaTile createEncodableMetaTile() {
+        return createEncodableMetaTile(ImageMime.png);
+    }
+
+    private WMSMetaTile createEncodableMetaTile(ImageMime format) {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[] gridPos = { 0, 0, 5 };
+        WMSMetaTile mt = new WMSMetaTile(null, grid, format, null, gridPos, 3, 3,
+                Collections.singletonMap("test", "test1"));
+
+        BufferedImage image = new BufferedImage(3 * 256, 3 * 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                // tiles are numbered bottom up
+                int index = (2 - y) * 3 + x;
+                for (int j = 0; j < 256; j++) {
+                    for (int i = 0; i < 256; i++) {
+                        image.setRGB(x * 256 + i, y * 256 + j, 0xFF000000 | index);
+                    }
+                }
+            }
+        }
+        mt.setImage(image);
+        return mt;
+    }
+
     private WMSLayer createWMSLayer(BoundingBox layerBounds) {
         String[] urls = {"http://localhost:38080/wms"};
         List<String> formatList = new LinkedList<String>();
@@ -0,0 +1,141 @@
+package org.geowebcache.layer.wms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.layer.wms.WMSBackendSelector.Backend;
+import org.geowebcache.layer.wms.WMSBackendSelector.CircuitState;
+
+public class WMSBackendSelectorTest extends TestCase {
+
+    private static final String[] URLS = { "http://a/wms?", "http://b/wms?", "http://c/wms?" };
+
+    public void testSpreadsIdleBackendsEvenly() {
+        WMSBackendSelector selector = new WMSBackendSelector(URLS);
+        int[] hits = new int[URLS.length];
+        for (int i = 0; i < 30; i++) {
+            Backend backend = selector.select(null);
+            hits[selector.getBackends().indexOf(backend)]++;
+        }
+        for (int count : hits) {
+            assertEquals(10, count);
+        }
+    }
+
+    public void testLeastOutstandingRequests() {
+        WMSBackendSelector selector = new WMSBackendSelector(URLS);
+        List<Backend> backends = selector.getBackends();
+        backends.get(0).start();
+        backends.get(0).start();
+        backends.get(1).start();
+
+        Backend backend = selector.select(null);
+        assertSame(backends.get(2), backend);
+        backend.start();
+        assertEquals(1, backend.getOutstandingRequests());
+
+        // b and c are now tied, a has more outstanding requests
+        assertNotSame(backends.get(0), selector.select(null));
+    }
+
+    public void testPrefersLowerLatency() throws Exception {
+        WMSBackendSelector selector = new WMSBackendSelector(new String[] { URLS[0], URLS[1] });
+        Backend slow = selector.getBackends().get(0);
+        Backend fast = selector.getBackends().get(1);
+        slow.success(slow.start() - 500);
+        fast.success(fast.start() - 10);
+        assertTrue(slow.getAverageLatency() >= 500);
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(fast, selector.select(null));
+        }
+        // once the fast one is loaded enough the slow one gets its share
+        for (int i = 0; i < 100; i++) {
+            fast.start();
+        }
+        assertSame(slow, selector.select(null));
+    }
+
+    public void testExcluded() {
+        WMSBackendSelector selector = new WMSBackendSelector(URLS);
+        List<Backend> tried = new ArrayList<Backend>();
+        for (int i = 0; i < URLS.length; i++) {
+            Backend backend = selector.select(tried);
+            assertNotNull(backend);
+            assertFalse(tried.contains(backend));
+            tried.add(backend);
+        }
+        assertNull(selector.select(tried));
+    }
+
+    public void testCircuitBreaker() throws Exception {
+        WMSBackendSelector selector = new WMSBackendSelector(new String[] { URLS[0], URLS[1] },
+                3, 100);
+        Backend failing = selector.getBackends().get(0);
+        Backend healthy = selector.getBackends().get(1);
+
+        for (int i = 0; i < 2; i++) {
+            failing.failure(failing.start());
+        }
+        assertEquals(CircuitState.CLOSED, failing.getState());
+        failing.failure(failing.start());
+        assertEquals(CircuitState.OPEN, failing.getState());
+        assertEquals(3, failing.getFailureCount());
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(healthy, selector.select(null));
+        }
+
+        // after the open timeout a single probe is let through
+        Thread.sleep(150);
+        assertSame(failing, selector.select(null));
+        assertEquals(CircuitState.HALF_OPEN, failing.getState());
+        assertSame(healthy, selector.select(null));
+
+        // a failed probe opens the circuit again right away
+        failing.failure(failing.start());
+        assertEquals(CircuitState.OPEN, failing.getState());
+        assertSame(healthy, selector.select(null));
+
+        Thread.sleep(150);
+        assertSame(failing, selector.select(null));
+        failing.success(failing.start());
+        assertEquals(CircuitState.CLOSED, failing.getState());
+    }
+
+    public void testProbeWhileAnotherBackendIsProbed() throws Exception {
+        WMSBackendSelector selector = new WMSBackendSelector(new String[] { URLS[0], URLS[1] },
+                1, 500);
+        Backend first = selector.getBackends().get(0);
+        Backend second = selector.getBackends().get(1);
+        first.failure(first.start());
+        Thread.sleep(10);
+        second.failure(second.start());
+
+        // none expired yet, the one out of rotation the longest is still tried
+        assertSame(first, selector.select(null));
+        assertEquals(CircuitState.OPEN, first.getState());
+
+        Thread.sleep(600);
+        assertSame(first, selector.select(null));
+        assertEquals(CircuitState.HALF_OPEN, first.getState());
+        // the other expired backend gets its own probe instead of requests piling onto the first
+        assertSame(second, selector.select(null));
+        assertEquals(CircuitState.HALF_OPEN, second.getState());
+        // no more requests while both probes are in flight
+        assertNull(selector.select(null));
+
+        first.success(first.start());
+        assertSame(first, selector.select(null));
+    }
+
+    public void testAllOpenStillTried() {
+        WMSBackendSelector selector = new WMSBackendSelector(new String[] { URLS[0] }, 1, 60000);
+        Backend backend = selector.getBackends().get(0);
+        backend.failure(backend.start());
+        assertEquals(CircuitState.OPEN, backend.getState());
+        assertSame(backend, selector.select(null));
+    }
+}
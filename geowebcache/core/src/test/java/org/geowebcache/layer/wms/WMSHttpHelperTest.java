@@ -0,0 +1,227 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+
+public class WMSHttpHelperTest extends TestCase {
+
+    private static final byte[] BODY = new byte[1024];
+
+    private GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+    private ServerSocket serverSocket;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile long responseDelay;
+
+    private volatile byte[] responseBody = BODY;
+
+    private volatile String responseType = "image/png";
+
+    private WMSHttpHelper helper;
+
+    private WMSLayer layer;
+
+    @Override
+    protected void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        String[] urls = { "http://localhost:" + serverSocket.getLocalPort() + "/wms" };
+        List<String> formatList = new LinkedList<String>();
+        formatList.add("image/png");
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        grids.put(grid.getName(), grid);
+        int[] metaWidthHeight = { 3, 3 };
+
+        helper = new WMSHttpHelper();
+        layer = new WMSLayer("test:layer", urls, "aStyle", "test:layer", formatList, grids, null,
+                metaWidthHeight, "vendorparam=true", false);
+        layer.setSourceHelper(helper);
+        layer.initialize(gridSetBroker);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+    }
+
+    /**
+     * Minimal HTTP/1.1 server answering every request on the connection with a png
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (readRequest(in)) {
+                requests.incrementAndGet();
+                if (responseDelay > 0) {
+                    Thread.sleep(responseDelay);
+                }
+                byte[] body = responseBody;
+                String headers = "HTTP/1.1 200 OK\r\nContent-Type: " + responseType
+                        + "\r\nContent-Length: " + body.length + "\r\n\r\n";
+                out.write(headers.getBytes("ISO-8859-1"));
+                out.write(body);
+                out.flush();
+            }
+        } catch (Exception e) {
+            // connection closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Consumes the request headers, up to the empty line
+     *
+     * @return false if the connection got closed
+     */
+    private boolean readRequest(InputStream in) throws IOException {
+        int lineLength = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                if (lineLength == 0) {
+                    return true;
+                }
+                lineLength = 0;
+            } else if (c != '\r') {
+                lineLength++;
+            }
+        }
+        return false;
+    }
+
+    private WMSMetaTile metaTile(long x) {
+        GridSubset grid = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
+        long[] gridPos = { x * 3, 0, 5 };
+        return new WMSMetaTile(layer, grid, ImageMime.png, null, gridPos, 3, 3,
+                Collections.singletonMap("test", "test1"));
+    }
+
+    public void testConnectionReuse() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Resource target = new ByteArrayResource();
+            helper.makeRequest(metaTile(i), target);
+            assertEquals(BODY.length, target.getSize());
+        }
+        assertEquals(5, requests.get());
+        assertEquals(1, connections.get());
+    }
+
+    public void testMaxConnectionsPerHost() throws Exception {
+        helper.setMaxConnectionsPerHost(2);
+        responseDelay = 50;
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Resource>> results = new ArrayList<Future<Resource>>();
+            for (int i = 0; i < 8; i++) {
+                final WMSMetaTile metaTile = metaTile(i);
+                results.add(executor.submit(new Callable<Resource>() {
+                    public Resource call() throws Exception {
+                        Resource target = new ByteArrayResource();
+                        helper.makeRequest(metaTile, target);
+                        return target;
+                    }
+                }));
+            }
+            for (Future<Resource> result : results) {
+                assertEquals(BODY.length, result.get().getSize());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8, requests.get());
+        assertTrue(connections.get() <= 2);
+    }
+
+    public void testDecodeFromStream() throws Exception {
+        WMSMetaTile metaTile = metaTile(0);
+        int width = Integer.parseInt(metaTile.getWMSParams().get("WIDTH"));
+        int height = Integer.parseInt(metaTile.getWMSParams().get("HEIGHT"));
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", png);
+        responseBody = png.toByteArray();
+
+        Resource buffer = new ByteArrayResource();
+        helper.makeRequestAndDecode(metaTile, buffer);
+        assertFalse(metaTile.getError());
+        // decoded straight from the response, not buffered
+        assertEquals(0, buffer.getSize());
+        assertNotNull(metaTile.getImage());
+        assertEquals(width, metaTile.getImage().getWidth());
+        assertEquals(height, metaTile.getImage().getHeight());
+        metaTile.dispose();
+    }
+
+    public void testDecodeMimeMismatch() throws Exception {
+        responseType = "application/vnd.ogc.se_xml";
+        responseBody = "<ServiceExceptionReport/>".getBytes("UTF-8");
+
+        WMSMetaTile metaTile = metaTile(0);
+        try {
+            helper.makeRequestAndDecode(metaTile, new ByteArrayResource());
+            fail("Expected exception");
+        } catch (GeoWebCacheException e) {
+            // the only backend answered with an exception report
+        }
+        assertTrue(metaTile.getError());
+        assertTrue(metaTile.getErrorMessage().indexOf("ServiceExceptionReport") > 0);
+        assertNull(metaTile.getImage());
+    }
+}
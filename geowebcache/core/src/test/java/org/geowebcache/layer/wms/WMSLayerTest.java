@@ -18,6 +18,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyInt;
 import static org.easymock.classextension.EasyMock.replay;
 import static org.easymock.classextension.EasyMock.verify;
 
@@ -37,6 +38,7 @@ import org.easymock.classextension.EasyMock;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.grid.GridSet;
 import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.layer.InFlightRequest;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileObject;
@@ -81,6 +83,7 @@ public class WMSLayerTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         Capture<TileObject> captured = new Capture<TileObject>();
         expect(mockStorageBroker.put(EasyMock.capture(captured))).andReturn(true).anyTimes();
+        expect(mockStorageBroker.getUniformTileStore()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         String layerId = layer.getName();
@@ -125,6 +128,97 @@ public class WMSLayerTest extends TestCase {
         assertEquals(218, mock.storagePutCounter.get());
     }
 
+    public void testConcurrentRequestsShareMetaTileRequest() throws Exception {
+        final WMSLayer tl = createWMSLayer("image/png");
+        final MockTileSupport mock = new MockTileSupport(tl);
+        // hold the backend request until all the other requests wait on it
+        final CountDownLatch registered = new CountDownLatch(1);
+        mock.requestGate = registered;
+
+        final String gridSetId = tl.getGridSubsets().iterator().next();
+        final GridSubset gridSubset = tl.getGridSubset(gridSetId);
+        final MimeType mimeType = tl.getMimeTypes().get(0);
+
+        // tiles of the same 3x3 meta tile at zoom level 3
+        List<ConveyorTile> tiles = new ArrayList<ConveyorTile>();
+        for (long x = 6; x <= 8; x++) {
+            for (long y = 3; y <= 5; y++) {
+                long[] gridLoc = { x, y, 3 };
+                if (gridSubset.covers(gridLoc)) {
+                    tiles.add(new ConveyorTile(mock.storageBroker, tl.getName(), gridSetId,
+                            gridLoc, mimeType, null, null, null));
+                }
+            }
+        }
+        assertTrue(tiles.size() > 1);
+
+        // a thread per tile, so that all of them are waiting at the same time
+        ExecutorService requests = Executors.newFixedThreadPool(tiles.size());
+        try {
+            List<Future<ConveyorTile>> futures = new ArrayList<Future<ConveyorTile>>();
+            for (final ConveyorTile tile : tiles) {
+                futures.add(requests.submit(new Callable<ConveyorTile>() {
+                    public ConveyorTile call() throws Exception {
+                        return tl.getTile(tile);
+                    }
+                }));
+            }
+
+            // one thread makes the request, the others register the tile they wait for
+            final long timeout = System.currentTimeMillis() + 10000;
+            while (registeredTiles(tl) < tiles.size() - 1) {
+                if (System.currentTimeMillis() > timeout) {
+                    fail("The requests did not pile up on a single backend request");
+                }
+                Thread.sleep(10);
+            }
+            assertEquals(1, tl.getInFlightRequests().size());
+            registered.countDown();
+
+            for (Future<ConveyorTile> future : futures) {
+                ConveyorTile tile = future.get();
+                assertNotNull(tile.getBlob());
+                assertTrue(tile.getBlob().getSize() > 0);
+            }
+        } finally {
+            requests.shutdown();
+        }
+
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+        // the waiting requests got their tiles handed over instead of reading them from storage
+        assertEquals(0, mock.storageGetCounter.get());
+    }
+
+    /**
+     * @return the number of tiles requested to the backend requests in flight by waiting threads
+     */
+    private int registeredTiles(WMSLayer tl) {
+        int count = 0;
+        for (InFlightRequest request : tl.getInFlightRequests()) {
+            count += request.getRequestedCount();
+        }
+        return count;
+    }
+
+    public void testParallelEncoding() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png", 5, 6);
+        tl.setParallelEncoding(true);
+        MockTileSupport mock = new MockTileSupport(tl);
+
+        SeedRequest req = createRequest(tl, GWCTask.TYPE.SEED, 4, 7);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+        seedTiles(mock.storageBroker, tr, tl);
+
+        // the tiles other than the requested ones are saved in the background
+        long timeout = System.currentTimeMillis() + 10000;
+        while (mock.storagePutCounter.get() < 218 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        // same as when encoding sequentially
+        assertEquals(42, mock.wmsMetaRequestCounter.get());
+        assertEquals(218, mock.storagePutCounter.get());
+    }
+
     //ignore to fix the build until the failing assertion is worked out
     public void _testMinMaxCacheGetTile() throws Exception {
         WMSLayer tl = createWMSLayer("image/png", 5, 6);
@@ -239,6 +333,7 @@ public class WMSLayerTest extends TestCase {
         final AtomicInteger wmsMetaRequestCounter = new AtomicInteger();
         final AtomicInteger tileTransferCounter = new AtomicInteger();
         final TransientCache transientCache = new TransientCache(100, 100);
+        volatile CountDownLatch requestGate;
 
         public MockTileSupport(WMSLayer tl) throws Exception {
             // create an image to be returned by the mock WMSSourceHelper
@@ -250,7 +345,10 @@ public class WMSLayerTest extends TestCase {
 
         private void installSourceHelper(WMSLayer tl) throws Exception {
             // WMSSourceHelper that on makeRequest() returns always the same fake image
-            WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class);
+            // only the request is mocked, the response is decoded as usual
+            WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class,
+                    WMSSourceHelper.class.getMethod("makeRequest", WMSMetaTile.class,
+                            Resource.class));
 
             Capture<WMSMetaTile> wmsRequestsCapturer = new Capture<WMSMetaTile>() {
 
@@ -264,11 +362,17 @@ public class WMSLayerTest extends TestCase {
                 @Override
                 public void setValue(Resource target) {
                     try {
+                        CountDownLatch gate = requestGate;
+                        if (gate != null && !gate.await(10, TimeUnit.SECONDS)) {
+                            throw new RuntimeException("Backend request held for too long");
+                        }
                         target.transferFrom(Channels.newChannel(new ByteArrayInputStream(
                                 fakeWMSResponse)));
                         tileTransferCounter.incrementAndGet();
                     } catch (IOException e) {
                         throw new RuntimeException(e);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
                     }
                 }
             };
@@ -284,11 +388,7 @@ public class WMSLayerTest extends TestCase {
 
                 public Boolean answer() throws Throwable {
                     TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
-                    String key = StorageBroker.computeTransientKey(tile);
-                    Resource resource;
-                    synchronized (transientCache) {
-                        resource = transientCache.get(key);
-                    }
+                    Resource resource = transientCache.get(TileKey.forTileParameters(tile));
                     if (resource != null) {
                         cacheHits.incrementAndGet();
                     } else {
@@ -303,26 +403,23 @@ public class WMSLayerTest extends TestCase {
 
                 @Override
                 public void setValue(TileObject tile) {
-                    String key = StorageBroker.computeTransientKey(tile);
-                    synchronized (transientCache) {
-                        transientCache.put(key, tile.getBlob());
-                    }
+                    transientCache.put(TileKey.forTileParameters(tile), tile.getBlob());
                 }
-            }));
+            }), anyInt(), anyInt());
             expectLastCall().anyTimes();
 
-            final HashSet<String> puts = new HashSet<String>();
+            final Set<TileKey> puts = Collections.synchronizedSet(new HashSet<TileKey>());
             expect(storageBroker.put(capture(new Capture<TileObject>() {
                 @Override
                 public void setValue(TileObject value) {
-                    puts.add(StorageBroker.computeTransientKey(value));
+                    puts.add(TileKey.forTile(value));
                     storagePutCounter.incrementAndGet();
                 }
             }))).andReturn(true).anyTimes();
             expect(storageBroker.get((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
                 public Boolean answer() throws Throwable {
                     TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
-                    if (puts.contains(StorageBroker.computeTransientKey(tile))) {
+                    if (puts.contains(TileKey.forTile(tile))) {
                         tile.setBlob(new ByteArrayResource(fakeWMSResponse));
                         storageGetCounter.incrementAndGet();
                         return true;
@@ -331,6 +428,7 @@ public class WMSLayerTest extends TestCase {
                     }
                 }
             }).anyTimes();
+            expect(storageBroker.getUniformTileStore()).andReturn(null).anyTimes();
             replay(storageBroker);
         }
     }
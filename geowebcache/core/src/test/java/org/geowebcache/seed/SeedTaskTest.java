@@ -85,7 +85,9 @@ public class SeedTaskTest extends TestCase {
         final byte[] fakeWMSResponse = createFakeSourceImage(tl);
 
         // WMSSourceHelper that on makeRequest() returns always the saqme fake image
-        WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class);
+        // only the request is mocked, the response is decoded as usual
+        WMSSourceHelper mockSourceHelper = EasyMock.createMock(WMSSourceHelper.class,
+                WMSSourceHelper.class.getMethod("makeRequest", WMSMetaTile.class, Resource.class));
 
         final AtomicInteger wmsRequestsCounter = new AtomicInteger();
         Capture<WMSMetaTile> wmsRequestsCapturer = new Capture<WMSMetaTile>() {
@@ -127,6 +129,7 @@ public class SeedTaskTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.getUniformTileStore()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -205,6 +208,7 @@ public class SeedTaskTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.getUniformTileStore()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -271,6 +275,7 @@ public class SeedTaskTest extends TestCase {
         };
         expect(mockStorageBroker.put(capture(storedObjects))).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.getUniformTileStore()).andReturn(null).anyTimes();
         replay(mockStorageBroker);
 
         TileRange tr = TileBreeder.createTileRange(req, tl);
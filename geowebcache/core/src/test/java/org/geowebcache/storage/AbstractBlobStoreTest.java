@@ -0,0 +1,235 @@
+package org.geowebcache.storage;
+
+import static org.geowebcache.storage.TileTestUtils.assertContents;
+import static org.geowebcache.storage.TileTestUtils.evenColumnsRange;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.grid.SRS;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+
+/**
+ * The checks every {@link BlobStore} shall pass, run against a store created by the subclass on
+ * an empty directory
+ */
+public abstract class AbstractBlobStoreTest<T extends BlobStore> extends TestCase {
+
+    protected static final String LAYER = "test:123123 112";
+
+    protected File root;
+
+    protected T store;
+
+    protected Map<String, String> parameters;
+
+    /**
+     * @param root
+     *            an empty directory for the store to keep its files in
+     */
+    protected abstract T createStore(File root) throws Exception;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir(), "gwc" + getClass().getSimpleName());
+        if (root.exists()) {
+            FileUtils.deleteDirectory(root);
+        }
+        if (!root.mkdirs()) {
+            throw new StorageException("Unable to create " + root.getAbsolutePath());
+        }
+        store = createStore(root);
+
+        parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+        parameters.put("b", "ø");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+    }
+
+    /**
+     * @return a tile of {@link #LAYER} with the test parameters, or a query for it if
+     *         {@code blob} is {@code null}
+     */
+    protected TileObject tile(long x, long y, int z, Resource blob) {
+        long[] xyz = { x, y, z };
+        if (blob == null) {
+            return TileObject.createQueryTileObject(LAYER, xyz, "EPSG:4326", "image/png",
+                    parameters);
+        }
+        return TileObject.createCompleteTileObject(LAYER, xyz, "EPSG:4326", "image/png",
+                parameters, blob);
+    }
+
+    public void testTile() throws Exception {
+        assertNull(store.get(tile(1, 2, 3, null)));
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        store.put(tile(1, 2, 3, bytes));
+
+        TileObject query = tile(1, 2, 3, null);
+        assertContents(bytes, store.get(query));
+        assertTrue(query.getCreated() > 0);
+        assertNull(store.get(tile(2, 1, 3, null)));
+    }
+
+    public void testListenerEvents() throws Exception {
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        listener.tileStored(LAYER, "EPSG:4326", "image/png", null, 1, 2, 3, 4);
+        listener.tileUpdated(LAYER, "EPSG:4326", "image/png", null, 1, 2, 3, 2, 4);
+        listener.tileDeleted(LAYER, "EPSG:4326", "image/png", null, 1, 2, 3, 2);
+        EasyMock.replay(listener);
+        store.addListener(listener);
+
+        store.put(tile(1, 2, 3, new ByteArrayResource(new byte[4])));
+        store.put(tile(1, 2, 3, new ByteArrayResource(new byte[2])));
+        assertTrue(store.delete(tile(1, 2, 3, null)));
+        assertFalse(store.delete(tile(1, 2, 3, null)));
+        assertNull(store.get(tile(1, 2, 3, null)));
+
+        EasyMock.verify(listener);
+    }
+
+    public void testTileRangeDelete() throws Exception {
+        assertTileRangeDelete(25, 6, 7);
+    }
+
+    /**
+     * Deletes four tiles out of a row of six starting at {@code x - 1}, checking the tiles around
+     * them and the ones at the next zoom level are kept
+     */
+    protected void assertTileRangeDelete(int x, int y, int zoomLevel) throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (int i = 0; i < 6; i++) {
+            store.put(tile(x + i - 1, y, zoomLevel, bytes));
+        }
+        // same location, another zoom level
+        store.put(tile(x, y, zoomLevel + 1, bytes));
+
+        long[][] rangeBounds = new long[zoomLevel + 1][];
+        rangeBounds[zoomLevel] = new long[] { x, y, x + 3, y, zoomLevel };
+        TileRange trObj = new TileRange(LAYER, SRS.getEPSG4326().toString(), zoomLevel,
+                zoomLevel, rangeBounds, ImageMime.png, parameters);
+        assertTrue(store.delete(trObj));
+
+        assertContents(bytes, store.get(tile(x - 1, y, zoomLevel, null)));
+        for (int i = 0; i < 4; i++) {
+            assertNull(store.get(tile(x + i, y, zoomLevel, null)));
+        }
+        assertContents(bytes, store.get(tile(x + 4, y, zoomLevel, null)));
+        assertContents(bytes, store.get(tile(x, y, zoomLevel + 1, null)));
+    }
+
+    public void testTileRangeDeleteDiscontinuous() throws Exception {
+        assertTileRangeDeleteDiscontinuous(2, 0, 4);
+    }
+
+    /**
+     * Deletes the tiles of the even columns out of four rows of eight columns starting at
+     * {@code x}, checking the tiles out of the raster mask and around it are kept
+     */
+    protected void assertTileRangeDeleteDiscontinuous(int x, int y, int zoomLevel)
+            throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (int i = -1; i <= 8; i++) {
+            for (int j = 0; j <= 4; j++) {
+                store.put(tile(x + i, y + j, zoomLevel, bytes));
+            }
+        }
+
+        long[] bounds = { x, y, x + 7, y + 3, zoomLevel };
+        assertTrue(store.delete(evenColumnsRange(LAYER, bounds, parameters)));
+
+        for (int i = -1; i <= 8; i++) {
+            for (int j = 0; j <= 4; j++) {
+                boolean inRange = i >= 0 && i <= 7 && j <= 3 && (x + i) % 2 == 0;
+                assertEquals(i + "," + j, inRange,
+                        store.get(tile(x + i, y + j, zoomLevel, null)) == null);
+            }
+        }
+    }
+
+    public void testTileRangeDeleteLevelWithoutBounds() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (int z = 3; z <= 5; z++) {
+            store.put(tile(0, 0, z, bytes));
+        }
+
+        // bounds for zoom level 4 only, out of 3 to 5
+        long[][] rangeBounds = new long[5][];
+        rangeBounds[4] = new long[] { 0, 0, 1, 1, 4 };
+        assertTrue(store.delete(new TileRange(LAYER, "EPSG:4326", 3, 5, rangeBounds,
+                ImageMime.png, parameters)));
+
+        assertContents(bytes, store.get(tile(0, 0, 3, null)));
+        assertNull(store.get(tile(0, 0, 4, null)));
+        assertContents(bytes, store.get(tile(0, 0, 5, null)));
+    }
+
+    public void testDeleteGridset() throws Exception {
+        Resource bytes = new ByteArrayResource(new byte[10]);
+        store.put(tile(0, 0, 0, bytes));
+        long[] xyz = { 0, 0, 0 };
+        store.put(TileObject.createCompleteTileObject(LAYER, xyz, "EPSG:900913", "image/png",
+                parameters, bytes));
+
+        assertTrue(store.deleteByGridsetId(LAYER, "EPSG:4326"));
+        assertNull(store.get(tile(0, 0, 0, null)));
+        assertNotNull(store.get(TileObject.createQueryTileObject(LAYER, xyz, "EPSG:900913",
+                "image/png", parameters)));
+    }
+
+    public void testRenameAndDeleteLayer() throws Exception {
+        Resource bytes = new ByteArrayResource(new byte[10]);
+        store.put(tile(0, 0, 0, bytes));
+
+        final String newLayerName = "modifiedLayerName";
+        assertTrue(store.rename(LAYER, newLayerName));
+        assertNull(store.get(tile(0, 0, 0, null)));
+        long[] xyz = { 0, 0, 0 };
+        TileObject renamed = TileObject.createQueryTileObject(newLayerName, xyz, "EPSG:4326",
+                "image/png", parameters);
+        assertContents(bytes, store.get(renamed));
+
+        store.put(tile(0, 0, 0, bytes));
+        try {
+            store.rename(LAYER, newLayerName);
+            fail("Expected StorageException, target already exists");
+        } catch (StorageException e) {
+            assertTrue(true);
+        }
+
+        assertTrue(store.delete(newLayerName));
+        assertNull(store.get(renamed));
+        assertFalse(store.delete(newLayerName));
+    }
+
+    public void testLayerMetadata() throws Exception {
+        final String layerName = "TestLayer";
+        final String key1 = "Test.Metadata.Property_1";
+        final String key2 = "Test.Metadata.Property_2";
+
+        assertNull(store.getLayerMetadata(layerName, key1));
+        assertNull(store.getLayerMetadata(layerName, key2));
+
+        store.putLayerMetadata(layerName, key1, "value 1");
+        store.putLayerMetadata(layerName, key2, "value 2");
+        assertEquals("value 1", store.getLayerMetadata(layerName, key1));
+        assertEquals("value 2", store.getLayerMetadata(layerName, key2));
+
+        store.putLayerMetadata(layerName, key1, "value 1_1");
+        store.putLayerMetadata(layerName, key2, null);
+        assertEquals("value 1_1", store.getLayerMetadata(layerName, key1));
+        assertNull(store.getLayerMetadata(layerName, key2));
+    }
+}
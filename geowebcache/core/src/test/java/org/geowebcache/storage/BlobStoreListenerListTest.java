@@ -0,0 +1,152 @@
+package org.geowebcache.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.io.ByteArrayResource;
+
+public class BlobStoreListenerListTest extends TestCase {
+
+    private BlobStoreListenerList listeners;
+
+    private RecordingListener batchListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        listeners = new BlobStoreListenerList();
+        batchListener = new RecordingListener();
+        listeners.addListener(batchListener);
+    }
+
+    private static TileObject tile(long x, long y, int z, String layer) {
+        long[] xyz = { x, y, z };
+        return TileObject.createCompleteTileObject(layer, xyz, "EPSG:4326", "image/png", null,
+                new ByteArrayResource(new byte[10]));
+    }
+
+    public void testUnbatched() throws Exception {
+        listeners.sendTileStored(tile(1, 2, 3, "layer"));
+        assertEquals(0, batchListener.stored.size());
+        assertEquals(1, batchListener.tilesStored);
+    }
+
+    public void testBatch() throws Exception {
+        BlobStoreListener plain = EasyMock.createMock(BlobStoreListener.class);
+        plain.tileStored("layer", "EPSG:4326", "image/png", null, 0, 0, 5, 10);
+        plain.tileStored("layer", "EPSG:4326", "image/png", null, 1, 0, 5, 10);
+        plain.tileStored("other", "EPSG:4326", "image/png", null, 0, 0, 5, 10);
+        plain.tileUpdated("layer", "EPSG:4326", "image/png", null, 0, 1, 5, 10, 20);
+        EasyMock.replay(plain);
+        listeners.addListener(plain);
+
+        BlobStoreListenerList.beginBatch();
+        try {
+            listeners.sendTileStored(tile(0, 0, 5, "layer"));
+            listeners.sendTileStored(tile(1, 0, 5, "layer"));
+            listeners.sendTileStored(tile(0, 0, 5, "other"));
+            listeners.sendTileUpdated(tile(0, 1, 5, "layer"), 20);
+            // nothing sent until the batch ends
+            assertEquals(0, batchListener.stored.size());
+        } finally {
+            BlobStoreListenerList.endBatch();
+        }
+
+        assertEquals(0, batchListener.tilesStored);
+        assertEquals(2, batchListener.stored.size());
+        TileBatch batch = batchListener.stored.get(0);
+        assertEquals("layer", batch.getLayerName());
+        assertEquals(2, batch.size());
+        assertEquals(1, batch.getX(1));
+        assertEquals(5, batch.getZ(1));
+        assertEquals(10, batch.getBlobSize(1));
+        assertEquals("other", batchListener.stored.get(1).getLayerName());
+
+        assertEquals(1, batchListener.updated.size());
+        assertEquals(20, batchListener.updated.get(0).getOldSize(0));
+        EasyMock.verify(plain);
+        listeners.removeListener(plain);
+
+        // and back to one by one
+        listeners.sendTileStored(tile(2, 0, 5, "layer"));
+        assertEquals(1, batchListener.tilesStored);
+    }
+
+    public void testNestedBatches() throws Exception {
+        BlobStoreListenerList.beginBatch();
+        try {
+            BlobStoreListenerList.beginBatch();
+            try {
+                listeners.sendTileDeleted("layer", "EPSG:4326", "image/png", null, 0, 0, 1, 10);
+            } finally {
+                BlobStoreListenerList.endBatch();
+            }
+            assertEquals(0, batchListener.deleted.size());
+            listeners.sendTileDeleted("layer", "EPSG:4326", "image/png", null, 1, 0, 1, 10);
+        } finally {
+            BlobStoreListenerList.endBatch();
+        }
+        assertEquals(1, batchListener.deleted.size());
+        assertEquals(2, batchListener.deleted.get(0).size());
+    }
+
+    public void testTileBatchGrows() throws Exception {
+        TileBatch batch = new TileBatch("layer", "EPSG:4326", "image/png", Long.valueOf(1), 1);
+        for (int i = 0; i < 100; i++) {
+            batch.add(i, 2 * i, 3, 4 * i);
+        }
+        assertEquals(100, batch.size());
+        assertEquals(99, batch.getX(99));
+        assertEquals(198, batch.getY(99));
+        assertEquals(396, batch.getBlobSize(99));
+        assertTrue(batch.isSameTileSet("layer", "EPSG:4326", "image/png", Long.valueOf(1)));
+        assertFalse(batch.isSameTileSet("layer", "EPSG:4326", "image/png", null));
+    }
+
+    private static class RecordingListener implements BatchBlobStoreListener {
+
+        final List<TileBatch> stored = new ArrayList<TileBatch>();
+
+        final List<TileBatch> deleted = new ArrayList<TileBatch>();
+
+        final List<TileBatch> updated = new ArrayList<TileBatch>();
+
+        int tilesStored;
+
+        public void tilesStored(TileBatch batch) {
+            stored.add(batch);
+        }
+
+        public void tilesDeleted(TileBatch batch) {
+            deleted.add(batch);
+        }
+
+        public void tilesUpdated(TileBatch batch) {
+            updated.add(batch);
+        }
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+            tilesStored++;
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        }
+
+        public void layerDeleted(String layerName) {
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+        }
+    }
+}
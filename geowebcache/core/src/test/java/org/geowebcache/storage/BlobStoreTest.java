@@ -18,9 +18,12 @@
 package org.geowebcache.storage;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 
@@ -111,6 +114,107 @@ public class BlobStoreTest extends TestCase {
         assertNull(fbs.get(to4));
     }
 
+    public void testTileOverwrite() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setFsync(true);
+
+        final String layerName = "test:123123 112";
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        listener.tileStored(layerName, "EPSG:4326", "image/png", null, 1, 2, 3, 16);
+        listener.tileUpdated(layerName, "EPSG:4326", "image/png", null, 1, 2, 3, 4, 16);
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        long[] xyz = { 1L, 2L, 3L };
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                null, bytes));
+        Resource bytes2 = new ByteArrayResource("test".getBytes());
+        fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                null, bytes2));
+        EasyMock.verify(listener);
+
+        Resource resp = fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                "image/png", null));
+        assertEquals(4, resp.getSize());
+
+        // no temporary file left behind
+        File layerDir = new File(StorageBrokerTest.findTempDir() + File.separator
+                + TEST_BLOB_DIR_NAME, "test_123123_112");
+        for (Object file : FileUtils.listFiles(layerDir, null, true)) {
+            assertFalse(file.toString(), file.toString().endsWith(".tmp"));
+        }
+    }
+
+    public void testPutAfterDirectoryRemoved() throws Exception {
+        FileBlobStore fbs = setup();
+
+        final String layerName = "test:123123 112";
+        long[] xyz = { 1L, 2L, 3L };
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                null, bytes));
+
+        // through the store
+        assertTrue(fbs.delete(layerName));
+        fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                null, bytes));
+        assertNotNull(fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                "image/png", null)));
+
+        // behind the store's back, the cached directory no longer exists
+        FileUtils.deleteDirectory(new File(StorageBrokerTest.findTempDir() + File.separator
+                + TEST_BLOB_DIR_NAME, "test_123123_112"));
+        fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                null, bytes));
+        assertNotNull(fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                "image/png", null)));
+    }
+
+    /**
+     * Reports the throughput of writing tiles in place, as the store used to, and through a
+     * temporary file renamed into place, with and without forcing them to disk
+     */
+    public void testPutPerformance() throws Exception {
+        if (!StorageBrokerTest.RUN_PERFORMANCE_TESTS) {
+            return;
+        }
+        FileBlobStore fbs = setup();
+        final byte[] data = new byte[20 * 1024];
+        final int tiles = 2000;
+        for (int run = 0; run < 2; run++) {
+            File dir = new File(StorageBrokerTest.findTempDir() + File.separator
+                    + TEST_BLOB_DIR_NAME, "inplace");
+            dir.mkdirs();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < tiles; i++) {
+                FileOutputStream out = new FileOutputStream(new File(dir, i + ".png"));
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+            report("in place", tiles, start);
+
+            for (int fsync = 0; fsync < 2; fsync++) {
+                fbs.setFsync(fsync == 1);
+                start = System.currentTimeMillis();
+                for (int i = 0; i < tiles; i++) {
+                    long[] xyz = { i, 0L, 20L };
+                    fbs.put(TileObject.createCompleteTileObject("perf", xyz, "EPSG:4326",
+                            "image/png", null, new ByteArrayResource(data)));
+                }
+                report(fsync == 1 ? "rename, fsync" : "rename", tiles, start);
+            }
+        }
+    }
+
+    private static void report(String name, int tiles, long start) {
+        long time = System.currentTimeMillis() - start;
+        System.out.println(name + ": " + (1000L * tiles / Math.max(1, time)) + " tiles/s");
+    }
+
     public void testTilRangeDelete() throws Exception {
         FileBlobStore fbs = setup();
 
@@ -179,6 +283,139 @@ public class BlobStoreTest extends TestCase {
         assertNull(res);
     }
 
+    public void testTileRangeDeleteParallel() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setTruncateThreads(3);
+        fbs.setTruncateMaxDeletesPerSecond(1000);
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        MimeType mime = ImageMime.png;
+        SRS srs = SRS.getEPSG4326();
+        String layerName = "test:parallel";
+        final int zoomLevel = 4;
+        final long[] ys = { 0, 1, 8, 9 };
+
+        // 6 intermediate directories at zoom level 4, 8x8 tiles each
+        for (long x = 0; x < 24; x++) {
+            for (long y : ys) {
+                long[] xyz = { x, y, zoomLevel };
+                fbs.put(TileObject.createCompleteTileObject(layerName, xyz, srs.toString(),
+                        mime.getFormat(), null, bytes));
+            }
+        }
+
+        CountingListener listener = new CountingListener();
+        fbs.addListener(listener);
+
+        long[][] rangeBounds = new long[zoomLevel + 1][];
+        rangeBounds[zoomLevel] = new long[] { 4, 0, 19, 1, zoomLevel };
+        TileRange trObj = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                rangeBounds, mime, (Map<String, String>) null);
+
+        long start = System.currentTimeMillis();
+        assertTrue(fbs.delete(trObj));
+        // 32 deletes at 1000/s
+        assertTrue(System.currentTimeMillis() - start >= 25);
+
+        assertEquals(32, listener.deleted.get());
+        assertEquals(32 * bytes.getSize(), listener.deletedSize.get());
+        for (long x = 0; x < 24; x++) {
+            for (long y : ys) {
+                long[] xyz = { x, y, zoomLevel };
+                TileObject to = TileObject.createQueryTileObject(layerName, xyz, srs.toString(),
+                        mime.getFormat(), null);
+                boolean inRange = x >= 4 && x <= 19 && y <= 1;
+                assertEquals(inRange, fbs.get(to) == null);
+            }
+        }
+    }
+
+    public void testTileRangeDeleteDiscontinuous() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setTruncateThreads(2);
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        String layerName = "test:discontinuous";
+        final int zoomLevel = 4;
+        for (long x = 0; x < 12; x++) {
+            for (long y = 0; y < 4; y++) {
+                long[] xyz = { x, y, zoomLevel };
+                fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326",
+                        "image/png", null, bytes));
+            }
+        }
+
+        long[] bounds = { 2, 0, 9, 2, zoomLevel };
+        assertTrue(fbs.delete(TileTestUtils.evenColumnsRange(layerName, bounds, null)));
+
+        for (long x = 0; x < 12; x++) {
+            for (long y = 0; y < 4; y++) {
+                long[] xyz = { x, y, zoomLevel };
+                TileObject to = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                        "image/png", null);
+                // the tiles out of the mask are kept
+                boolean inRange = x >= 2 && x <= 9 && y <= 2 && x % 2 == 0;
+                assertEquals(x + "," + y, inRange, fbs.get(to) == null);
+            }
+        }
+    }
+
+    public void testTileRangeDeleteLevelWithoutBounds() throws Exception {
+        FileBlobStore fbs = setup();
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        String layerName = "test:levels";
+        for (int z = 3; z <= 4; z++) {
+            long[] xyz = { 0, 0, z };
+            fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null, bytes));
+        }
+
+        // bounds for zoom level 4 only
+        long[][] rangeBounds = new long[5][];
+        rangeBounds[4] = new long[] { 0, 0, 1, 1, 4 };
+        TileRange trObj = new TileRange(layerName, "EPSG:4326", 3, 4, rangeBounds,
+                ImageMime.png, (Map<String, String>) null);
+        assertTrue(fbs.delete(trObj));
+
+        long[] xyz = { 0, 0, 3 };
+        assertNotNull(fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                "image/png", null)));
+        xyz = new long[] { 0, 0, 4 };
+        assertNull(fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                "image/png", null)));
+    }
+
+    private static class CountingListener implements BlobStoreListener {
+
+        final AtomicInteger deleted = new AtomicInteger();
+
+        final AtomicLong deletedSize = new AtomicLong();
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+            deleted.incrementAndGet();
+            deletedSize.addAndGet(blobSize);
+        }
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        }
+
+        public void layerDeleted(String layerName) {
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+        }
+    }
+
     public void testRenameLayer() throws Exception {
         FileBlobStore fbs = setup();
         Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
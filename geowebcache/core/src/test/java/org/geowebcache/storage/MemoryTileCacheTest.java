@@ -0,0 +1,145 @@
+package org.geowebcache.storage;
+
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+
+public class MemoryTileCacheTest extends TestCase {
+
+    private MemoryTileCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        // single segment so limits are exact
+        cache = new MemoryTileCache(4, 1, 1);
+    }
+
+    private TileObject tile(long x, long y, int z, int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) x;
+        TileObject tile = TileObject.createCompleteTileObject("layer", new long[] { x, y, z },
+                "EPSG:4326", "image/png", null, new ByteArrayResource(data));
+        return tile;
+    }
+
+    private TileObject query(long x, long y, int z) {
+        return TileObject.createQueryTileObject("layer", new long[] { x, y, z }, "EPSG:4326",
+                "image/png", null);
+    }
+
+    private void put(TileObject tile) throws Exception {
+        assertTrue(cache.put(tile, cache.getGeneration(tile)));
+    }
+
+    public void testGetPut() throws Exception {
+        TileObject query = query(1, 2, 3);
+        assertFalse(cache.get(query));
+        assertEquals(1, cache.getMissCount());
+
+        TileObject tile = tile(1, 2, 3, 100);
+        tile.setCreated(1000L);
+        put(tile);
+
+        query = query(1, 2, 3);
+        assertTrue(cache.get(query));
+        assertEquals(100, query.getBlobSize());
+        assertEquals(1, ((ByteArrayResource) query.getBlob()).getContents()[0]);
+        assertEquals(1000L, query.getCreated());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getTileCount());
+        assertEquals(100, cache.getStorageSize());
+    }
+
+    public void testEvictsByTileCount() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            put(tile(i, 0, 5, 10));
+        }
+        // access the first one so it's not the least recently used anymore
+        assertTrue(cache.get(query(0, 0, 5)));
+        put(tile(4, 0, 5, 10));
+
+        assertEquals(4, cache.getTileCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.get(query(0, 0, 5)));
+        assertFalse(cache.get(query(1, 0, 5)));
+        assertEquals(40, cache.getStorageSize());
+    }
+
+    public void testEvictsByStorageSize() throws Exception {
+        put(tile(0, 0, 5, 400));
+        put(tile(1, 0, 5, 400));
+        put(tile(2, 0, 5, 400));
+
+        assertEquals(2, cache.getTileCount());
+        assertEquals(800, cache.getStorageSize());
+        assertFalse(cache.get(query(0, 0, 5)));
+
+        // bigger than the whole cache, never stored
+        TileObject big = tile(3, 0, 5, 2048);
+        assertFalse(cache.put(big, cache.getGeneration(big)));
+        assertEquals(800, cache.getStorageSize());
+    }
+
+    public void testReplaceKeepsAccounting() throws Exception {
+        put(tile(0, 0, 5, 400));
+        put(tile(0, 0, 5, 100));
+        assertEquals(1, cache.getTileCount());
+        assertEquals(100, cache.getStorageSize());
+    }
+
+    public void testStaleGenerationIsNotCached() throws Exception {
+        TileObject tile = tile(0, 0, 5, 10);
+        long generation = cache.getGeneration(tile);
+        cache.tileUpdated("layer", "EPSG:4326", "image/png", null, 0, 0, 5, 10, 10);
+        assertFalse(cache.put(tile, generation));
+        assertFalse(cache.get(query(0, 0, 5)));
+    }
+
+    public void testListenerInvalidation() throws Exception {
+        put(tile(0, 0, 5, 10));
+        put(tile(1, 0, 5, 10));
+        cache.tileDeleted("layer", "EPSG:4326", "image/png", null, 0, 0, 5, 10);
+        assertFalse(cache.get(query(0, 0, 5)));
+        assertTrue(cache.get(query(1, 0, 5)));
+        assertEquals(10, cache.getStorageSize());
+
+        cache.layerDeleted("layer");
+        assertEquals(0, cache.getTileCount());
+        assertEquals(0, cache.getStorageSize());
+    }
+
+    public void testRemoveRange() throws Exception {
+        put(tile(0, 0, 5, 10));
+        put(tile(5, 5, 5, 10));
+        put(tile(0, 0, 6, 10));
+
+        long[][] bounds = { { 0, 0, 1, 1, 5 } };
+        TileRange range = new TileRange("layer", "EPSG:4326", 5, 5, bounds, ImageMime.png,
+                (Map<String, String>) null);
+        cache.remove(range);
+
+        assertFalse(cache.get(query(0, 0, 5)));
+        assertTrue(cache.get(query(5, 5, 5)));
+        assertTrue(cache.get(query(0, 0, 6)));
+    }
+
+    public void testUnresolvedParametersAreNotCached() throws Exception {
+        Map<String, String> params = Collections.singletonMap("STYLES", "foo");
+        TileObject tile = TileObject.createCompleteTileObject("layer", new long[] { 0, 0, 0 },
+                "EPSG:4326", "image/png", params, new ByteArrayResource(new byte[10]));
+        assertEquals(-1L, cache.getGeneration(tile));
+        assertFalse(cache.put(tile, 0));
+
+        tile.setParamtersId(7);
+        put(tile);
+        TileObject query = TileObject.createQueryTileObject("layer", new long[] { 0, 0, 0 },
+                "EPSG:4326", "image/png", params);
+        assertFalse(cache.get(query));
+        query.setParamtersId(7);
+        assertTrue(cache.get(query));
+    }
+}
@@ -0,0 +1,184 @@
+package org.geowebcache.storage;
+
+import static org.easymock.classextension.EasyMock.*;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.storage.blobstore.file.BundleFileBlobStore;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class TileExistenceIndexTest extends TestCase {
+
+    private File root;
+
+    private FileBlobStore blobStore;
+
+    private TileExistenceIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir(), "gwcTestTileIndex");
+        FileUtils.deleteDirectory(root);
+        root.mkdirs();
+        blobStore = new FileBlobStore(root.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (index != null) {
+            index.destroy();
+        }
+        blobStore.destroy();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private static TileObject tile(String layer, long x, long y, int z, String format) {
+        long[] xyz = { x, y, z };
+        return TileObject.createCompleteTileObject(layer, xyz, "EPSG:4326", format, null,
+                new ByteArrayResource(new byte[] { 1, 2, 3 }));
+    }
+
+    private TileExistenceIndex start(String... layerNames) throws Exception {
+        TileLayerDispatcher layers = createMock(TileLayerDispatcher.class);
+        Set<TileLayer> layerList = new HashSet<TileLayer>();
+        for (String layerName : layerNames) {
+            TileLayer layer = createMock(TileLayer.class);
+            expect(layer.getName()).andReturn(layerName).anyTimes();
+            expect(layer.getGridSubsets()).andReturn(Collections.singleton("EPSG:4326"))
+                    .anyTimes();
+            replay(layer);
+            layerList.add(layer);
+        }
+        expect(layers.getLayerList()).andReturn(layerList);
+        replay(layers);
+
+        index = new TileExistenceIndex(blobStore, layers);
+        index.setRebuildThreads(2);
+        index.afterPropertiesSet();
+        for (int i = 0; i < 100 && !index.isReady(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(index.isReady());
+        return index;
+    }
+
+    public void testRebuild() throws Exception {
+        blobStore.put(tile("a", 1, 2, 3, "image/png"));
+        blobStore.put(tile("a", 1, 2, 3, "image/jpeg"));
+        blobStore.put(tile("b", 100, 200, 10, "image/png"));
+        start("a", "b", "c");
+
+        assertTrue(index.contains("a", "EPSG:4326", "image/png", null, 1, 2, 3));
+        assertTrue(index.contains("a", "EPSG:4326", "image/jpeg", null, 1, 2, 3));
+        assertTrue(index.contains("b", "EPSG:4326", "image/png", null, 100, 200, 10));
+        assertFalse(index.contains("a", "EPSG:4326", "image/png", null, 2, 2, 3));
+        assertFalse(index.contains("a", "EPSG:900913", "image/png", null, 1, 2, 3));
+
+        assertTrue(index.isMissing(tile("c", 0, 0, 0, "image/png")));
+        assertFalse(index.isMissing(tile("b", 100, 200, 10, "image/png")));
+    }
+
+    public void testRebuildBundles() throws Exception {
+        blobStore.destroy();
+        blobStore = new BundleFileBlobStore(root.getAbsolutePath());
+        blobStore.put(tile("a", 1, 2, 3, "image/png"));
+        blobStore.put(tile("a", 200, 2, 3, "image/png"));
+        blobStore.put(tile("a", 4, 4, 4, "image/png"));
+        blobStore.delete(tile("a", 4, 4, 4, "image/png"));
+        start("a");
+
+        assertTrue(index.contains("a", "EPSG:4326", "image/png", null, 1, 2, 3));
+        assertTrue(index.contains("a", "EPSG:4326", "image/png", null, 200, 2, 3));
+        assertFalse(index.contains("a", "EPSG:4326", "image/png", null, 4, 4, 4));
+        assertFalse(index.isMissing(tile("a", 1, 2, 3, "image/png")));
+        assertTrue(index.isMissing(tile("a", 2, 2, 3, "image/png")));
+    }
+
+    public void testEvents() throws Exception {
+        start();
+        blobStore.put(tile("a", 5, 6, 7, "image/png"));
+        assertTrue(index.contains("a", "EPSG:4326", "image/png", null, 5, 6, 7));
+        blobStore.delete(tile("a", 5, 6, 7, "image/png"));
+        assertFalse(index.contains("a", "EPSG:4326", "image/png", null, 5, 6, 7));
+
+        blobStore.put(tile("a", 5, 6, 7, "image/png"));
+        blobStore.rename("a", "b");
+        assertFalse(index.contains("a", "EPSG:4326", "image/png", null, 5, 6, 7));
+        assertTrue(index.contains("b", "EPSG:4326", "image/png", null, 5, 6, 7));
+
+        // as sent by the blob store, which deletes the directories in the background
+        index.gridSubsetDeleted("b", "EPSG:4326");
+        assertFalse(index.contains("b", "EPSG:4326", "image/png", null, 5, 6, 7));
+
+        blobStore.put(tile("b", 5, 6, 7, "image/png"));
+        index.layerDeleted("b");
+        assertFalse(index.contains("b", "EPSG:4326", "image/png", null, 5, 6, 7));
+
+        TileBatch batch = new TileBatch("c", "EPSG:4326", "image/png", Long.valueOf(12), 2);
+        batch.add(1, 1, 1, 10);
+        batch.add(0, 1, 1, 10);
+        index.tilesStored(batch);
+        assertTrue(index.contains("c", "EPSG:4326", "image/png", Long.valueOf(12), 0, 1, 1));
+        assertFalse(index.contains("c", "EPSG:4326", "image/png", null, 0, 1, 1));
+        index.tilesDeleted(batch);
+        assertFalse(index.contains("c", "EPSG:4326", "image/png", Long.valueOf(12), 0, 1, 1));
+    }
+
+    public void testStorageBroker() throws Exception {
+        start();
+        StorageBroker broker = new StorageBroker(null, blobStore);
+        broker.setTileExistenceIndex(index);
+        broker.put(tile("a", 1, 1, 1, "image/png"));
+        assertTrue(broker.get(tile("a", 1, 1, 1, "image/png")));
+
+        // written behind the index back, taken for missing
+        FileBlobStore other = new FileBlobStore(root.getAbsolutePath());
+        other.put(tile("a", 0, 1, 1, "image/png"));
+        other.destroy();
+        assertFalse(broker.get(tile("a", 0, 1, 1, "image/png")));
+        broker.setTileExistenceIndex(null);
+        assertTrue(broker.get(tile("a", 0, 1, 1, "image/png")));
+    }
+
+    public void testTileBitmap() throws Exception {
+        TileExistenceIndex.TileBitmap bitmap = new TileExistenceIndex.TileBitmap();
+        Set<String> expected = new HashSet<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            long x = random.nextInt(1 << 20);
+            long y = random.nextInt(1 << 20);
+            bitmap.set(x, y, true);
+            expected.add(x + "," + y);
+        }
+        // dense corner
+        for (long x = 0; x < 64; x++) {
+            for (long y = 0; y < 64; y++) {
+                bitmap.set(x, y, true);
+                expected.add(x + "," + y);
+            }
+        }
+        random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            long x = random.nextInt(1 << 20);
+            long y = random.nextInt(1 << 20);
+            assertTrue(bitmap.get(x, y));
+            assertEquals(expected.contains((x + 1) + "," + y), bitmap.get(x + 1, y));
+            if (i % 2 == 0) {
+                bitmap.set(x, y, false);
+                assertFalse(bitmap.get(x, y));
+            }
+        }
+        assertTrue(bitmap.get(63, 63));
+        assertEquals(expected.contains("64,63"), bitmap.get(64, 63));
+    }
+}
@@ -0,0 +1,92 @@
+package org.geowebcache.storage;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+
+/**
+ * Helpers for the tests storing and fetching tiles
+ */
+public class TileTestUtils {
+
+    private TileTestUtils() {
+        // nothing to do
+    }
+
+    /**
+     * @return an EPSG:4326 PNG tile of {@code size} bytes, the first one being {@code value}
+     */
+    public static TileObject tile(String layer, long x, long y, int z, int value, int size) {
+        long[] xyz = { x, y, z };
+        byte[] data = new byte[size];
+        data[0] = (byte) value;
+        return TileObject.createCompleteTileObject(layer, xyz, "EPSG:4326", "image/png", null,
+                new ByteArrayResource(data));
+    }
+
+    /**
+     * @return a query for an EPSG:4326 PNG tile
+     */
+    public static TileObject query(String layer, long x, long y, int z) {
+        long[] xyz = { x, y, z };
+        return TileObject.createQueryTileObject(layer, xyz, "EPSG:4326", "image/png", null);
+    }
+
+    /**
+     * @return the first byte of the blob, as set by {@link #tile}
+     */
+    public static int value(Resource blob) throws Exception {
+        InputStream in = blob.getInputStream();
+        try {
+            return in.read();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param bounds
+     *            the {@code minx, miny, maxx, maxy, z} bounds of the range
+     * @return an EPSG:4326 PNG range over a single zoom level, its raster mask taking in the tiles
+     *         of the even columns within the bounds only
+     */
+    public static DiscontinuousTileRange evenColumnsRange(String layer, long[] bounds,
+            Map<String, String> parameters) {
+        final int z = (int) bounds[4];
+        BufferedImage[] masks = new BufferedImage[z + 1];
+        masks[z] = new BufferedImage((int) bounds[2] + 1, (int) bounds[3] + 1,
+                BufferedImage.TYPE_BYTE_BINARY);
+        for (long x = bounds[0]; x <= bounds[2]; x += 2) {
+            for (long y = bounds[1]; y <= bounds[3]; y++) {
+                // the raster origin is at the top left corner
+                masks[z].getRaster().setSample((int) x, (int) (bounds[3] - y), 0, 1);
+            }
+        }
+        long[][] fullCoverage = new long[z + 1][];
+        fullCoverage[z] = new long[] { 0, 0, bounds[2], bounds[3], z };
+        long[][] coveredBounds = new long[z + 1][];
+        coveredBounds[z] = bounds;
+        RasterMask mask = new RasterMask(masks, fullCoverage, coveredBounds);
+        return new DiscontinuousTileRange(layer, "EPSG:4326", z, z, mask, ImageMime.png,
+                parameters);
+    }
+
+    public static void assertContents(Resource expected, Resource actual) throws Exception {
+        Assert.assertNotNull(actual);
+        InputStream is = expected.getInputStream();
+        InputStream is2 = actual.getInputStream();
+        try {
+            Assert.assertTrue(IOUtils.contentEquals(is, is2));
+        } finally {
+            is.close();
+            is2.close();
+        }
+    }
+}
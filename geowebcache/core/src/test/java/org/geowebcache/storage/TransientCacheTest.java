@@ -0,0 +1,119 @@
+package org.geowebcache.storage;
+
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+
+public class TransientCacheTest extends TestCase {
+
+    private static TileKey key(long x) {
+        return new TileKey("layer", "EPSG:4326", "image/png", -1L, x, 0, 3);
+    }
+
+    private static Resource blob(int size) {
+        return new ByteArrayResource(new byte[size]);
+    }
+
+    public void testConsumeOnRead() {
+        TransientCache cache = new TransientCache(10, 10, 1);
+        cache.put(key(1), blob(100));
+        assertEquals(1, cache.size());
+        assertEquals(100, cache.storageSize());
+
+        Resource r = cache.get(key(1));
+        assertNotNull(r);
+        assertEquals(100, r.getSize());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.storageSize());
+        assertNull(cache.get(key(1)));
+    }
+
+    public void testMaxTiles() {
+        TransientCache cache = new TransientCache(3, 10, 1);
+        for (int i = 0; i < 5; i++) {
+            cache.put(key(i), blob(10));
+        }
+        assertEquals(3, cache.size());
+        assertEquals(30, cache.storageSize());
+        // oldest ones evicted first
+        assertNull(cache.get(key(0)));
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(4)));
+    }
+
+    public void testMaxStorage() {
+        TransientCache cache = new TransientCache(100, 1, 1);
+        for (int i = 0; i < 5; i++) {
+            cache.put(key(i), blob(300));
+        }
+        assertEquals(3, cache.size());
+        assertEquals(900, cache.storageSize());
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(2)));
+        assertEquals(600, cache.storageSize());
+    }
+
+    public void testReplaceKeepsAccounting() {
+        TransientCache cache = new TransientCache(100, 10, 1);
+        cache.put(key(1), blob(300));
+        cache.put(key(1), blob(100));
+        assertEquals(1, cache.size());
+        assertEquals(100, cache.storageSize());
+    }
+
+    public void testKeyedByParameters() {
+        Map<String, String> params = Collections.singletonMap("STYLES", "foo");
+        TileObject tile = TileObject.createCompleteTileObject("layer", new long[] { 1, 2, 3 },
+                "EPSG:4326", "image/png", params, blob(10));
+        TileObject defaultTile = TileObject.createCompleteTileObject("layer", new long[] { 1, 2,
+                3 }, "EPSG:4326", "image/png", null, blob(20));
+
+        TransientCache cache = new TransientCache(100, 10);
+        cache.put(TileKey.forTileParameters(tile), tile.getBlob());
+        cache.put(TileKey.forTileParameters(defaultTile), defaultTile.getBlob());
+        assertEquals(2, cache.size());
+        assertEquals(10, cache.get(TileKey.forTileParameters(tile)).getSize());
+        assertEquals(20, cache.get(TileKey.forTileParameters(defaultTile)).getSize());
+    }
+
+    public void testConcurrentAccounting() throws Exception {
+        final TransientCache cache = new TransientCache(1000, 64);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 10000;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        cache.put(key(offset + i), blob(1 + (i % 50)));
+                        if (i % 3 == 0) {
+                            cache.get(key(offset + i - 1));
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(cache.size() <= 1000);
+        assertTrue(cache.storageSize() <= 64 * 1024);
+
+        long remaining = 0;
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < 2000; i++) {
+                Resource r = cache.get(key(t * 10000 + i));
+                if (r != null) {
+                    remaining += r.getSize();
+                }
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.storageSize());
+        assertTrue(remaining > 0);
+    }
+}
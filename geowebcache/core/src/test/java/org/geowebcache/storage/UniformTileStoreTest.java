@@ -0,0 +1,216 @@
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class UniformTileStoreTest extends TestCase {
+
+    private static final long RED = 0xFFFF0000L;
+
+    private static final long BLUE = 0xFF0000FFL;
+
+    private File directory;
+
+    private UniformTileStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File(StorageBrokerTest.findTempDir(), "gwcTestUniformTiles");
+        FileUtils.deleteDirectory(directory);
+        store = new UniformTileStore(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static TileObject tile(String layer, long x, long y, int z, byte[] contents) {
+        long[] xyz = { x, y, z };
+        return TileObject.createCompleteTileObject(layer, xyz, "EPSG:4326", "image/png", null,
+                contents == null ? null : new ByteArrayResource(contents));
+    }
+
+    public void testPutGet() throws Exception {
+        TileObject first = tile("layer", 1, 2, 3, new byte[] { 1, 2, 3 });
+        UniformTileResource red = store.put(first, RED);
+        assertNotNull(red);
+        assertEquals(3, red.getSize());
+        assertEquals(RED, red.getColor());
+
+        // no need for the encoded tile anymore
+        assertSame(red, store.getResource(tile("layer", 0, 0, 0, null), RED));
+        assertNull(store.getResource(tile("layer", 0, 0, 0, null), BLUE));
+        assertSame(red, store.put(tile("layer", 2, 2, 3, null), RED));
+        UniformTileResource blue = store.put(tile("layer", 3, 2, 3, new byte[] { 4 }), BLUE);
+        assertNotSame(red, blue);
+        assertFalse(red.getETag().equals(blue.getETag()));
+
+        TileObject query = tile("layer", 2, 2, 3, null);
+        assertTrue(store.get(query));
+        assertSame(red, query.getBlob());
+        assertEquals(first.getCreated(), query.getCreated(), 1000);
+        query = tile("layer", 3, 2, 3, null);
+        assertTrue(store.get(query));
+        assertSame(blue, query.getBlob());
+
+        assertFalse(store.get(tile("layer", 4, 2, 3, null)));
+        assertFalse(store.get(tile("other", 2, 2, 3, null)));
+        long[] xyz = { 2, 2, 3 };
+        assertFalse(store.get(TileObject.createQueryTileObject("layer", xyz, "EPSG:4326",
+                "image/jpeg", null)));
+    }
+
+    public void testUntracked() throws Exception {
+        Map<String, String> parameters = Collections.singletonMap("STYLES", "a");
+        long[] xyz = { 1, 2, 3 };
+        TileObject tile = TileObject.createCompleteTileObject("layer", xyz, "EPSG:4326",
+                "image/png", parameters, new ByteArrayResource(new byte[1]));
+        assertFalse(store.supports(tile));
+        assertNull(store.put(tile, RED));
+        assertFalse(store.supports(tile("layer", 1L << 29, 0, 30, null)));
+        assertNull(store.put(tile("layer", 1L << 29, 0, 30, new byte[1]), RED));
+        assertTrue(store.supports(tile("layer", 1, 2, 3, null)));
+    }
+
+    public void testRemove() throws Exception {
+        store.put(tile("layer", 1, 2, 3, new byte[1]), RED);
+        assertTrue(store.contains(tile("layer", 1, 2, 3, null)));
+        assertTrue(store.remove(tile("layer", 1, 2, 3, null)));
+        assertFalse(store.remove(tile("layer", 1, 2, 3, null)));
+        assertFalse(store.contains(tile("layer", 1, 2, 3, null)));
+        assertFalse(store.get(tile("layer", 1, 2, 3, null)));
+    }
+
+    public void testPersistence() throws Exception {
+        for (int x = 0; x < 100; x++) {
+            store.put(tile("layer", x, 0, 7, new byte[] { 1 }), x % 2 == 0 ? RED : BLUE);
+        }
+        store.remove(tile("layer", 10, 0, 7, null));
+        store.destroy();
+
+        store = new UniformTileStore(directory);
+        TileObject query = tile("layer", 11, 0, 7, null);
+        assertTrue(store.get(query));
+        assertEquals(BLUE, ((UniformTileResource) query.getBlob()).getColor());
+        assertFalse(store.get(tile("layer", 10, 0, 7, null)));
+        assertTrue(store.get(tile("layer", 12, 0, 7, null)));
+
+        // keeps appending after reloading
+        store.put(tile("layer", 10, 0, 7, null), RED);
+        store.destroy();
+        store = new UniformTileStore(directory);
+        assertTrue(store.get(tile("layer", 10, 0, 7, null)));
+    }
+
+    public void testInterruptedLogSwap() throws Exception {
+        store.put(tile("layer", 1, 2, 3, new byte[1]), RED);
+        store.destroy();
+        // as left by a crash between moving the old log aside and renaming the new one
+        File[] logs = directory.listFiles();
+        assertEquals(1, logs.length);
+        assertTrue(logs[0].renameTo(new File(directory, logs[0].getName() + ".old")));
+
+        store = new UniformTileStore(directory);
+        assertTrue(store.get(tile("layer", 1, 2, 3, null)));
+    }
+
+    public void testDeleteRange() throws Exception {
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                store.put(tile("layer", x, y, 4, new byte[1]), RED);
+            }
+        }
+        long[][] bounds = new long[5][];
+        bounds[4] = new long[] { 2, 2, 5, 5, 4 };
+        store.delete(new TileRange("layer", "EPSG:4326", 4, 4, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                boolean inRange = x >= 2 && x <= 5 && y >= 2 && y <= 5;
+                assertEquals(x + "," + y, !inRange, store.get(tile("layer", x, y, 4, null)));
+            }
+        }
+
+        store.destroy();
+        store = new UniformTileStore(directory);
+        assertFalse(store.get(tile("layer", 3, 3, 4, null)));
+        assertTrue(store.get(tile("layer", 6, 3, 4, null)));
+    }
+
+    public void testDeleteRenameLayer() throws Exception {
+        store.put(tile("layer", 1, 2, 3, new byte[1]), RED);
+        store.rename("layer", "renamed");
+        assertFalse(store.get(tile("layer", 1, 2, 3, null)));
+        assertTrue(store.get(tile("renamed", 1, 2, 3, null)));
+
+        store.deleteByGridSetId("renamed", "EPSG:900913");
+        assertTrue(store.get(tile("renamed", 1, 2, 3, null)));
+        store.deleteByGridSetId("renamed", "EPSG:4326");
+        assertFalse(store.get(tile("renamed", 1, 2, 3, null)));
+
+        store.put(tile("renamed", 1, 2, 3, new byte[1]), RED);
+        store.delete("renamed");
+        assertFalse(store.get(tile("renamed", 1, 2, 3, null)));
+        store.destroy();
+        store = new UniformTileStore(directory);
+        assertFalse(store.get(tile("renamed", 1, 2, 3, null)));
+    }
+
+    public void testStorageBroker() throws Exception {
+        File blobs = new File(directory, "blobs");
+        blobs.mkdirs();
+        StorageBroker broker = new StorageBroker(null, new FileBlobStore(blobs.getAbsolutePath()));
+        broker.setUniformTileStore(store);
+
+        broker.put(tile("layer", 1, 2, 3, new byte[] { 1, 2 }));
+        Resource shared = broker.putUniform(tile("layer", 1, 2, 3, new byte[] { 3 }), RED);
+        assertTrue(shared instanceof UniformTileResource);
+        TileObject query = tile("layer", 1, 2, 3, null);
+        assertTrue(broker.get(query));
+        assertSame(shared, query.getBlob());
+        // the previous tile is gone from the blob store
+        broker.setUniformTileStore(null);
+        assertFalse(broker.get(tile("layer", 1, 2, 3, null)));
+        broker.setUniformTileStore(store);
+
+        // stored as a regular tile again
+        broker.put(tile("layer", 1, 2, 3, new byte[] { 4, 5 }));
+        query = tile("layer", 1, 2, 3, null);
+        assertTrue(broker.get(query));
+        assertFalse(query.getBlob() instanceof UniformTileResource);
+        assertEquals(2, query.getBlob().getSize());
+    }
+
+    public void testMarkerTableRemove() throws Exception {
+        UniformTileStore.MarkerTable table = new UniformTileStore.MarkerTable();
+        for (int i = 0; i < 1000; i++) {
+            table.put(UniformTileStore.key(i, i / 3, 10), i % 7, i);
+        }
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(table.remove(UniformTileStore.key(i, i / 3, 10)));
+        }
+        assertEquals(500, table.size());
+        for (int i = 0; i < 1000; i++) {
+            int slot = table.find(UniformTileStore.key(i, i / 3, 10));
+            if (i % 2 == 0) {
+                assertEquals(-1, slot);
+            } else {
+                assertTrue(slot >= 0);
+                assertEquals(i % 7, table.getColor(slot));
+                assertEquals(i, table.getCreated(slot));
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.geowebcache.storage;
+
+import static org.geowebcache.storage.TileTestUtils.query;
+import static org.geowebcache.storage.TileTestUtils.tile;
+import static org.geowebcache.storage.TileTestUtils.value;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class WriteBehindQueueTest extends TestCase {
+
+    private static final String LAYER = "layer";
+
+    private WriteBehindQueue queue;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Records the written tiles, holding the IO threads until released
+     */
+    private static class BlockingWriter implements WriteBehindQueue.TileWriter {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+        public boolean write(TileObject tile) throws StorageException {
+            try {
+                release.await();
+                written.add(tile.getXYZ()[0] + ":" + value(tile.getBlob()));
+            } catch (Exception e) {
+                throw new StorageException(e.getMessage());
+            }
+            return true;
+        }
+    }
+
+    public void testCoalesce() throws Exception {
+        queue = new WriteBehindQueue(10, 1);
+        BlockingWriter writer = new BlockingWriter();
+        queue.start(writer);
+
+        // keeps the IO thread busy
+        queue.put(tile(LAYER, 0, 0, 0, 0, 1));
+        for (int i = 0; i < 100 && queue.getQueuedCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        queue.put(tile(LAYER, 1, 0, 1, 1, 1));
+        queue.put(tile(LAYER, 2, 0, 2, 2, 1));
+        queue.put(tile(LAYER, 1, 0, 1, 3, 1));
+        assertEquals(2, queue.getQueuedCount());
+        assertEquals(1, queue.getCoalescedCount());
+
+        TileObject query = query(LAYER, 1, 0, 1);
+        assertTrue(queue.get(query));
+        assertEquals(3, value(query.getBlob()));
+        assertFalse(queue.get(query(LAYER, 1, 1, 1)));
+
+        writer.release.countDown();
+        assertTrue(queue.flush(5, TimeUnit.SECONDS));
+        assertEquals("[0:0, 1:3, 2:2]", writer.written.toString());
+        assertEquals(3, queue.getWrittenCount());
+        assertFalse(queue.get(query(LAYER, 1, 0, 1)));
+    }
+
+    public void testBlobCopied() throws Exception {
+        queue = new WriteBehindQueue(10, 1);
+        BlockingWriter writer = new BlockingWriter();
+        queue.start(writer);
+
+        // as tile layers do, reusing their buffer for the next tile
+        ByteArrayResource buffer = new ByteArrayResource(new byte[] { 5 });
+        long[] xyz = { 7, 0, 3 };
+        queue.put(TileObject.createCompleteTileObject(LAYER, xyz, "EPSG:4326", "image/png",
+                null, buffer));
+        buffer.getContents()[0] = 6;
+        TileObject query = query(LAYER, 7, 0, 3);
+        assertTrue(queue.get(query));
+        assertEquals(5, value(query.getBlob()));
+        writer.release.countDown();
+        assertTrue(queue.flush(5, TimeUnit.SECONDS));
+        assertEquals("[7:5]", writer.written.toString());
+    }
+
+    private void fill(WriteBehindQueue.OverflowPolicy policy, BlockingWriter writer)
+            throws Exception {
+        queue = new WriteBehindQueue(2, 1);
+        queue.setOverflowPolicy(policy);
+        queue.start(writer);
+        queue.put(tile(LAYER, 0, 0, 0, 0, 1));
+        for (int i = 0; i < 100 && queue.getQueuedCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(queue.put(tile(LAYER, 1, 0, 1, 1, 1)));
+        assertTrue(queue.put(tile(LAYER, 2, 0, 2, 2, 1)));
+        // already queued, takes no room
+        assertTrue(queue.put(tile(LAYER, 2, 0, 2, 3, 1)));
+    }
+
+    public void testOverflowDrop() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        fill(WriteBehindQueue.OverflowPolicy.DROP, writer);
+        assertFalse(queue.put(tile(LAYER, 3, 0, 3, 4, 1)));
+        assertEquals(1, queue.getDroppedCount());
+        assertFalse(queue.get(query(LAYER, 3, 0, 3)));
+        writer.release.countDown();
+        assertTrue(queue.flush(5, TimeUnit.SECONDS));
+        assertEquals("[0:0, 1:1, 2:3]", writer.written.toString());
+    }
+
+    public void testOverflowInline() throws Exception {
+        final List<String> inline = new ArrayList<String>();
+        final BlockingWriter blocking = new BlockingWriter();
+        final Thread caller = Thread.currentThread();
+        BlockingWriter writer = new BlockingWriter() {
+            @Override
+            public boolean write(TileObject tile) throws StorageException {
+                if (Thread.currentThread() == caller) {
+                    inline.add(tile.getXYZ()[0] + "");
+                    return true;
+                }
+                return blocking.write(tile);
+            }
+        };
+        fill(WriteBehindQueue.OverflowPolicy.INLINE, writer);
+        assertTrue(queue.put(tile(LAYER, 3, 0, 3, 4, 1)));
+        assertEquals("[3]", inline.toString());
+        assertEquals(2, queue.getQueuedCount());
+        blocking.release.countDown();
+        assertTrue(queue.flush(5, TimeUnit.SECONDS));
+        assertEquals("[0:0, 1:1, 2:3]", blocking.written.toString());
+    }
+
+    public void testOverflowBlock() throws Exception {
+        final BlockingWriter writer = new BlockingWriter();
+        fill(WriteBehindQueue.OverflowPolicy.BLOCK, writer);
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(tile(LAYER, 3, 0, 3, 4, 1));
+                    queued.countDown();
+                } catch (StorageException e) {
+                    // fails the test below
+                }
+            }
+        };
+        caller.start();
+        assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+        writer.release.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.flush(5, TimeUnit.SECONDS));
+        assertEquals("[0:0, 1:1, 2:3, 3:4]", writer.written.toString());
+    }
+
+    public void testDiscard() throws Exception {
+        queue = new WriteBehindQueue(10, 1);
+        BlockingWriter writer = new BlockingWriter();
+        queue.start(writer);
+        queue.put(tile(LAYER, 0, 0, 0, 0, 1));
+        for (int i = 0; i < 100 && queue.getQueuedCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        queue.put(tile(LAYER, 1, 0, 1, 1, 1));
+        queue.put(tile(LAYER, 2, 0, 2, 2, 1));
+        queue.put(tile(LAYER, 3, 0, 3, 3, 1));
+
+        long[][] bounds = new long[3][];
+        bounds[1] = new long[] { 0, 0, 1, 1, 1 };
+        bounds[2] = new long[] { 0, 0, 1, 1, 2 };
+        queue.discard(new TileRange(LAYER, "EPSG:4326", 1, 2, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        // out of the range bounds
+        assertTrue(queue.get(query(LAYER, 2, 0, 2)));
+        assertFalse(queue.get(query(LAYER, 1, 0, 1)));
+        queue.discard(LAYER, "EPSG:900913");
+        assertEquals(2, queue.getQueuedCount());
+        queue.discard(query(LAYER, 3, 0, 3));
+        assertEquals(1, queue.getQueuedCount());
+        // no grid set stands for all of them
+        bounds[2] = new long[] { 0, 0, 3, 3, 2 };
+        queue.discard(new TileRange(LAYER, null, 2, 2, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        assertFalse(queue.get(query(LAYER, 2, 0, 2)));
+        assertEquals(0, queue.getQueuedCount());
+
+        // waits for the tile being written
+        final CountDownLatch discarded = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                queue.discard(LAYER, null);
+                discarded.countDown();
+            }
+        }.start();
+        assertFalse(discarded.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getQueuedCount());
+        writer.release.countDown();
+        assertTrue(discarded.await(5, TimeUnit.SECONDS));
+        assertEquals("[0:0]", writer.written.toString());
+    }
+
+    public void testStorageBroker() throws Exception {
+        File root = new File(StorageBrokerTest.findTempDir(), "gwcTestWriteBehind");
+        FileUtils.deleteDirectory(root);
+        root.mkdirs();
+        FileBlobStore blobStore = new FileBlobStore(root.getAbsolutePath());
+        try {
+            StorageBroker broker = new StorageBroker(null, blobStore);
+            broker.setWriteBehindQueue(new WriteBehindQueue(100, 2));
+            for (int i = 0; i < 50; i++) {
+                broker.put(tile(LAYER, i, 0, 6, i, 1));
+            }
+            broker.put(tile(LAYER, 3, 0, 6, 99, 1));
+            TileObject query = query(LAYER, 3, 0, 6);
+            assertTrue(broker.get(query));
+            assertEquals(99, value(query.getBlob()));
+
+            // flushed on destroy
+            broker.destroy();
+            for (int i = 0; i < 50; i++) {
+                query = query(LAYER, i, 0, 6);
+                Resource blob = blobStore.get(query);
+                assertNotNull(blob);
+                assertEquals(i == 3 ? 99 : i, value(blob));
+            }
+            // on the calling thread once shut down
+            broker.put(tile(LAYER, 60, 0, 6, 60, 1));
+            assertNotNull(blobStore.get(query(LAYER, 60, 0, 6)));
+        } finally {
+            blobStore.destroy();
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
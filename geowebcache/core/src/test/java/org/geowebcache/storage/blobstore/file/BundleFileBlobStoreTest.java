@@ -0,0 +1,159 @@
+package org.geowebcache.storage.blobstore.file;
+
+import static org.easymock.EasyMock.capture;
+import static org.geowebcache.storage.TileTestUtils.assertContents;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.easymock.Capture;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.AbstractBlobStoreTest;
+import org.geowebcache.storage.BatchBlobStoreListener;
+import org.geowebcache.storage.TileBatch;
+import org.geowebcache.storage.TileObject;
+
+public class BundleFileBlobStoreTest extends AbstractBlobStoreTest<BundleFileBlobStore> {
+
+    @Override
+    protected BundleFileBlobStore createStore(File root) throws Exception {
+        return new BundleFileBlobStore(root.getAbsolutePath());
+    }
+
+    public void testBundles() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        store.put(tile(1, 2, 3, bytes));
+        // same bundle, and next bundle
+        Resource bytes2 = new ByteArrayResource("other".getBytes());
+        store.put(tile(2, 1, 3, bytes2));
+        store.put(tile(Bundle.SIZE + 1, 2, 3, bytes2));
+
+        assertContents(bytes, store.get(tile(1, 2, 3, null)));
+        assertContents(bytes2, store.get(tile(2, 1, 3, null)));
+        assertContents(bytes2, store.get(tile(Bundle.SIZE + 1, 2, 3, null)));
+        assertNull(store.get(tile(2, 2, 3, null)));
+        assertEquals(2, store.getBundleFiles(LAYER).size());
+
+        // overwrite
+        store.put(tile(1, 2, 3, bytes2));
+        assertContents(bytes2, store.get(tile(1, 2, 3, null)));
+    }
+
+    public void testTileRangeDeleteAcrossBundles() throws Exception {
+        assertTileRangeDelete(Bundle.SIZE - 2, 6, 9);
+    }
+
+    public void testTileRangeDeleteDiscontinuousAcrossBundles() throws Exception {
+        assertTileRangeDeleteDiscontinuous(Bundle.SIZE - 4, 6, 9);
+    }
+
+    public void testCompaction() throws Exception {
+        store.setCompactionThreshold(0.55);
+        store.setMinCompactionGarbage(0);
+
+        Resource bytes = new ByteArrayResource(new byte[1000]);
+        for (int i = 0; i < 10; i++) {
+            store.put(tile(i, 0, 3, bytes));
+        }
+        List<File> bundles = store.getBundleFiles(LAYER);
+        assertEquals(1, bundles.size());
+        final File bundle = bundles.get(0);
+        final long fullSize = bundle.length();
+        assertEquals(Bundle.DATA_START + 10 * (Bundle.RECORD_HEADER_SIZE + 1000), fullSize);
+
+        for (int i = 0; i < 6; i++) {
+            store.delete(tile(i, 0, 3, null));
+        }
+        final long compactedSize = Bundle.DATA_START + 4 * (Bundle.RECORD_HEADER_SIZE + 1000);
+        for (int i = 0; i < 50 && bundle.length() != compactedSize; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(compactedSize, bundle.length());
+        assertFalse(new File(bundle.getParentFile(), bundle.getName() + ".compacting").exists());
+
+        for (int i = 0; i < 6; i++) {
+            assertNull(store.get(tile(i, 0, 3, null)));
+        }
+        for (int i = 6; i < 10; i++) {
+            assertContents(bytes, store.get(tile(i, 0, 3, null)));
+        }
+        // appends after the compaction go to the new file
+        Resource bytes2 = new ByteArrayResource("after".getBytes());
+        store.put(tile(0, 0, 3, bytes2));
+        assertContents(bytes2, store.get(tile(0, 0, 3, null)));
+    }
+
+    public void testReopen() throws Exception {
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        store.put(tile(1, 2, 3, bytes));
+        store.put(tile(4, 5, 6, bytes));
+        store.delete(tile(4, 5, 6, null));
+        store.destroy();
+
+        store = createStore(root);
+        assertContents(bytes, store.get(tile(1, 2, 3, null)));
+        assertNull(store.get(tile(4, 5, 6, null)));
+    }
+
+    public void testMaxOpenBundles() throws Exception {
+        store.setMaxOpenBundles(2);
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        for (int i = 0; i < 5; i++) {
+            store.put(tile(i * Bundle.SIZE, 0, 8, bytes));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertContents(bytes, store.get(tile(i * Bundle.SIZE, 0, 8, null)));
+        }
+    }
+
+    public void testScanTiles() throws Exception {
+        store.put(tile(1, 2, 3, new ByteArrayResource(new byte[10])));
+        store.put(tile(Bundle.SIZE + 1, 2, 3, new ByteArrayResource(new byte[20])));
+        store.put(tile(1, 2, 4, new ByteArrayResource(new byte[30])));
+        store.delete(tile(1, 2, 4, null));
+        // another gridset
+        long[] xyz = { 0, 0, 0 };
+        store.put(TileObject.createCompleteTileObject(LAYER, xyz, "EPSG:900913", "image/png",
+                parameters, new ByteArrayResource(new byte[40])));
+
+        final List<TileBatch> batches = new ArrayList<TileBatch>();
+        Capture<TileBatch> batchCapturer = new Capture<TileBatch>() {
+            @Override
+            public void setValue(TileBatch batch) {
+                batches.add(batch);
+            }
+        };
+        BatchBlobStoreListener listener = EasyMock.createMock(BatchBlobStoreListener.class);
+        listener.tilesStored(capture(batchCapturer));
+        EasyMock.expectLastCall().times(2);
+        EasyMock.replay(listener);
+
+        assertEquals(2, store.scanTiles(LAYER, "EPSG:4326", listener));
+        EasyMock.verify(listener);
+
+        long size = 0;
+        for (TileBatch batch : batches) {
+            assertEquals(LAYER, batch.getLayerName());
+            assertEquals("EPSG:4326", batch.getGridSetId());
+            assertEquals("image/png", batch.getBlobFormat());
+            assertNotNull(batch.getParametersId());
+            assertEquals(1, batch.size());
+            assertEquals(2, batch.getY(0));
+            assertEquals(3, batch.getZ(0));
+            size += batch.getBlobSize(0);
+        }
+        assertEquals(30, size);
+    }
+
+    public void testTilePathLayoutRejected() throws Exception {
+        try {
+            store.setTilePathLayout(DefaultTilePathLayout.INSTANCE);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(true);
+        }
+    }
+}
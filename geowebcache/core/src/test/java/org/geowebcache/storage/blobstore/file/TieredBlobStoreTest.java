@@ -0,0 +1,126 @@
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.storage.TileTestUtils.query;
+import static org.geowebcache.storage.TileTestUtils.value;
+
+import java.io.File;
+import java.util.Map;
+
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.AbstractBlobStoreTest;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileTestUtils;
+
+public class TieredBlobStoreTest extends AbstractBlobStoreTest<TieredBlobStore> {
+
+    private File localRoot;
+
+    private FileBlobStore primary;
+
+    @Override
+    protected TieredBlobStore createStore(File root) throws Exception {
+        File primaryRoot = new File(root, "primary");
+        primaryRoot.mkdirs();
+        localRoot = new File(root, "local");
+        primary = new FileBlobStore(primaryRoot.getAbsolutePath());
+        return new TieredBlobStore(primary, localRoot.getAbsolutePath(), 1);
+    }
+
+    public void testPromoteOnRead() throws Exception {
+        primary.put(TileTestUtils.tile(LAYER, 1, 2, 3, 7, 10));
+        assertNull(store.get(query(LAYER, 2, 2, 3)));
+
+        Resource resource = store.get(query(LAYER, 1, 2, 3));
+        assertEquals(7, value(resource));
+        assertEquals(10, resource.getSize());
+        assertEquals(0, store.getHitCount());
+        assertEquals(2, store.getMissCount());
+        assertEquals(1, store.getLocalTileCount());
+        assertEquals(10, store.getLocalStorageSize());
+
+        resource = store.get(query(LAYER, 1, 2, 3));
+        assertEquals(7, value(resource));
+        assertEquals(1, store.getHitCount());
+    }
+
+    public void testWriteThrough() throws Exception {
+        store.put(TileTestUtils.tile(LAYER, 1, 2, 3, 7, 10));
+        assertNotNull(primary.get(query(LAYER, 1, 2, 3)));
+        assertEquals(7, value(store.get(query(LAYER, 1, 2, 3))));
+        assertEquals(1, store.getHitCount());
+
+        // overwritten
+        store.put(TileTestUtils.tile(LAYER, 1, 2, 3, 8, 20));
+        assertEquals(8, value(store.get(query(LAYER, 1, 2, 3))));
+        assertEquals(1, store.getLocalTileCount());
+        assertEquals(20, store.getLocalStorageSize());
+    }
+
+    public void testEviction() throws Exception {
+        final int size = 300 * 1024;
+        for (int i = 0; i < 3; i++) {
+            store.put(TileTestUtils.tile(LAYER, i, 0, 5, i, size));
+        }
+        assertEquals(0, store.getEvictionCount());
+        // makes tile 1 the least recently used
+        store.get(query(LAYER, 0, 0, 5));
+        store.put(TileTestUtils.tile(LAYER, 3, 0, 5, 3, size));
+        store.put(TileTestUtils.tile(LAYER, 4, 0, 5, 4, size));
+        assertEquals(2, store.getEvictionCount());
+        assertEquals(3, store.getLocalTileCount());
+        assertEquals(3 * size, store.getLocalStorageSize());
+
+        long hits = store.getHitCount();
+        store.get(query(LAYER, 0, 0, 5));
+        assertEquals(hits + 1, store.getHitCount());
+        // read back from the primary store
+        long misses = store.getMissCount();
+        assertEquals(1, value(store.get(query(LAYER, 1, 0, 5))));
+        assertEquals(misses + 1, store.getMissCount());
+    }
+
+    public void testDeleteRange() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            store.put(TileTestUtils.tile(LAYER, i, i, 4, 1, 10));
+        }
+        long[][] bounds = new long[5][];
+        bounds[4] = new long[] { 0, 0, 1, 1, 4 };
+        store.delete(new TileRange(LAYER, "EPSG:4326", 4, 4, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        assertNull(store.get(query(LAYER, 0, 0, 4)));
+        assertNull(store.get(query(LAYER, 1, 1, 4)));
+        assertNotNull(store.get(query(LAYER, 2, 2, 4)));
+        assertEquals(2, store.getLocalTileCount());
+
+        // stored again behind the tiered store back, the old copy is not served
+        primary.put(TileTestUtils.tile(LAYER, 1, 1, 4, 2, 10));
+        assertEquals(2, value(store.get(query(LAYER, 1, 1, 4))));
+
+        store.delete(query(LAYER, 2, 2, 4));
+        assertNull(store.get(query(LAYER, 2, 2, 4)));
+        assertNull(primary.get(query(LAYER, 2, 2, 4)));
+    }
+
+    public void testLocalTileMaxAge() throws Exception {
+        store.put(TileTestUtils.tile(LAYER, 1, 2, 3, 7, 10));
+        primary.put(TileTestUtils.tile(LAYER, 1, 2, 3, 8, 10));
+        // not noticed by default
+        assertEquals(7, value(store.get(query(LAYER, 1, 2, 3))));
+
+        store.setLocalTileMaxAge(1);
+        Thread.sleep(20);
+        assertEquals(8, value(store.get(query(LAYER, 1, 2, 3))));
+    }
+
+    public void testLocalTierEmptiedOnStartUp() throws Exception {
+        store.put(TileTestUtils.tile(LAYER, 1, 2, 3, 7, 10));
+        store.destroy();
+        assertTrue(localRoot.list().length > 0);
+
+        store = createStore(root);
+        assertEquals(0, localRoot.list().length);
+        assertEquals(7, value(store.get(query(LAYER, 1, 2, 3))));
+        assertEquals(0, store.getHitCount());
+    }
+}
@@ -0,0 +1,257 @@
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+public class TilePathLayoutTest extends TestCase {
+
+    private static final String LAYER = "test:layer";
+
+    private File root;
+
+    private FileBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir() + File.separator + "gwcTestTilePaths");
+        if (root.exists()) {
+            FileUtils.deleteDirectory(root);
+        }
+        if (!root.mkdirs()) {
+            throw new StorageException("Unable to create " + root.getAbsolutePath());
+        }
+        store = new FileBlobStore(root.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private static TileObject tile(long x, long y, int z, Resource blob) {
+        long[] xyz = { x, y, z };
+        if (blob == null) {
+            return TileObject.createQueryTileObject(LAYER, xyz, "EPSG:4326", "image/png", null);
+        }
+        return TileObject.createCompleteTileObject(LAYER, xyz, "EPSG:4326", "image/png", null,
+                blob);
+    }
+
+    /**
+     * How tile paths were built before layouts, existing caches depend on it
+     */
+    private static String legacyTilePath(long x, long y, int z) {
+        long half = 2 << (z / 2);
+        int digits = 1;
+        if (half > 10) {
+            digits = (int) (Math.log10(half)) + 1;
+        }
+        return FilePathGenerator.zeroPadder(x / half, digits) + "_"
+                + FilePathGenerator.zeroPadder(y / half, digits) + File.separator
+                + FilePathGenerator.zeroPadder(x, 2 * digits) + "_"
+                + FilePathGenerator.zeroPadder(y, 2 * digits) + ".png";
+    }
+
+    public void testDefaultLayoutMatchesLegacy() throws Exception {
+        for (int z = 0; z < 31; z++) {
+            long max = (1L << z) - 1;
+            long[] coords = { 0, 1, 9, 10, 11, 99, 100, 101, 102, 1000, 1001, 1002, 1003,
+                    max / 3, max / 2, max };
+            for (long x : coords) {
+                for (long y : coords) {
+                    if (x > max || y > max) {
+                        continue;
+                    }
+                    long[] xyz = { x, y, z };
+                    File expected = new File("root" + File.separator + "test_layer"
+                            + File.separator + "EPSG_4326_" + FilePathGenerator.zeroPadder(z, 2)
+                            + "_ff" + File.separator + legacyTilePath(x, y, z));
+                    assertEquals(expected, FilePathGenerator.tilePath("root", LAYER, xyz,
+                            "EPSG:4326", ImageMime.png, 255));
+                }
+            }
+        }
+    }
+
+    private void assertRoundTrip(TilePathLayout layout) {
+        long[] xy = new long[2];
+        StringBuilder path = new StringBuilder();
+        for (int z = 0; z < 25; z += 3) {
+            long max = (1L << z) - 1;
+            long[] coords = { 0, 1, max / 7, max / 2, max };
+            for (long x : coords) {
+                for (long y : coords) {
+                    path.setLength(0);
+                    layout.appendTilePath(path, x, y, z, "png");
+                    File file = new File(path.toString());
+                    assertTrue(layout.parseTile(file.getParentFile().getName(), file.getName(),
+                            xy));
+                    assertEquals(x, xy[0]);
+                    assertEquals(y, xy[1]);
+                    // what the file blob store writes before renaming a tile into place
+                    assertFalse(layout.parseTile(file.getParentFile().getName(), file.getName()
+                            + ".1f_1.tmp", xy));
+                }
+            }
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip(DefaultTilePathLayout.INSTANCE);
+        assertRoundTrip(new HashedTilePathLayout());
+        assertRoundTrip(new TMSTilePathLayout());
+    }
+
+    public void testPaths() throws Exception {
+        StringBuilder path = new StringBuilder();
+        new TMSTilePathLayout().appendTilePath(path, 3, 12, 4, "jpeg");
+        assertEquals("3" + File.separator + "12.jpeg", path.toString());
+
+        path.setLength(0);
+        new HashedTilePathLayout().appendTilePath(path, 3, 12, 4, "png");
+        String[] parts = path.toString().split(File.separator.replace("\\", "\\\\"));
+        assertEquals(3, parts.length);
+        assertTrue(parts[0].matches("[0-9a-f]{2}"));
+        assertTrue(parts[1].matches("[0-9a-f]{2}"));
+        assertEquals("3_12.png", parts[2]);
+    }
+
+    public void testHashSpread() throws Exception {
+        // a dense block of tiles uses most of the directories evenly
+        int[] counts = new int[256 * 256];
+        for (long x = 1000; x < 1512; x++) {
+            for (long y = 2000; y < 2512; y++) {
+                counts[(int) (HashedTilePathLayout.hash(x, y) & 0xFFFF)]++;
+            }
+        }
+        int max = 0;
+        int empty = 0;
+        for (int count : counts) {
+            max = Math.max(max, count);
+            if (count == 0) {
+                empty++;
+            }
+        }
+        // 4 tiles per directory on average, as thrown at random about 1200 would be left empty
+        assertTrue("max " + max, max < 20);
+        assertTrue("empty " + empty, empty < 1500);
+    }
+
+    private void putTiles(int z, int size) throws Exception {
+        for (long x = 0; x < size; x++) {
+            for (long y = 0; y < size; y++) {
+                store.put(tile(x, y, z, new ByteArrayResource(new byte[] { (byte) x, (byte) y })));
+            }
+        }
+    }
+
+    private void assertRangeDelete(TilePathLayout layout) throws Exception {
+        store.setTilePathLayout(layout);
+        putTiles(6, 20);
+
+        TileObject query = tile(3, 4, 6, null);
+        Resource resource = store.get(query);
+        assertNotNull(resource);
+        assertEquals(2, resource.getSize());
+
+        long[][] bounds = new long[7][];
+        bounds[6] = new long[] { 5, 5, 9, 9, 6 };
+        store.delete(new TileRange(LAYER, "EPSG:4326", 6, 6, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        for (long x = 0; x < 20; x++) {
+            for (long y = 0; y < 20; y++) {
+                boolean inRange = x >= 5 && x <= 9 && y >= 5 && y <= 9;
+                assertEquals(layout + " " + x + "," + y, !inRange,
+                        store.get(tile(x, y, 6, null)) != null);
+            }
+        }
+
+        // the whole level, leaving no directory behind
+        store.delete(new TileRange(LAYER, "EPSG:4326", 6, 6, null, ImageMime.png,
+                (Map<String, String>) null));
+        assertFalse(new File(root, "test_layer" + File.separator + "EPSG_4326_06").exists());
+    }
+
+    public void testRangeDelete() throws Exception {
+        assertRangeDelete(new HashedTilePathLayout());
+        assertRangeDelete(new TMSTilePathLayout());
+        assertRangeDelete(DefaultTilePathLayout.INSTANCE);
+    }
+
+    public void testListTileDirectories() throws Exception {
+        TilePathLayout layout = new HashedTilePathLayout();
+        store.setTilePathLayout(layout);
+        putTiles(8, 30);
+        File zoomDir = new File(root, "test_layer" + File.separator + "EPSG_4326_08");
+
+        long[] bounds = { 2, 3, 4, 5 };
+        Set<File> expected = new HashSet<File>();
+        for (long x = 2; x <= 4; x++) {
+            for (long y = 3; y <= 5; y++) {
+                expected.add(FilePathGenerator.tilePath(root.getPath(), LAYER,
+                        new long[] { x, y, 8 }, "EPSG:4326", ImageMime.png, -1, layout)
+                        .getParentFile());
+            }
+        }
+        List<File> directories = layout.listTileDirectories(zoomDir, 8, bounds);
+        assertEquals(expected, new HashSet<File>(directories));
+        assertEquals(directories.size(), expected.size());
+        assertEquals(900, layout.listTileDirectories(zoomDir, 8, null).size(), 100);
+
+        layout = new TMSTilePathLayout();
+        store.setTilePathLayout(layout);
+        putTiles(9, 10);
+        zoomDir = new File(root, "test_layer" + File.separator + "EPSG_4326_09");
+        assertEquals(3, layout.listTileDirectories(zoomDir, 9, bounds).size());
+        assertEquals(10, layout.listTileDirectories(zoomDir, 9, null).size());
+    }
+
+    public void testMigrator() throws Exception {
+        putTiles(5, 20);
+        putTiles(12, 5);
+
+        TilePathLayout hashed = new HashedTilePathLayout();
+        TilePathLayout tms = new TMSTilePathLayout();
+        TilePathLayout[] layouts = { DefaultTilePathLayout.INSTANCE, hashed, tms,
+                DefaultTilePathLayout.INSTANCE };
+        for (int i = 1; i < layouts.length; i++) {
+            TilePathLayoutMigrator migrator = new TilePathLayoutMigrator(root, layouts[i - 1],
+                    layouts[i]);
+            assertEquals(425, migrator.migrate(LAYER, "EPSG:4326"));
+            // nothing left to move
+            assertEquals(0, migrator.migrate(LAYER, "EPSG:4326"));
+            assertEquals(0, migrator.migrate(LAYER, "EPSG:900913"));
+
+            store.setTilePathLayout(layouts[i]);
+            Resource resource = store.get(tile(7, 9, 5, null));
+            assertNotNull(resource);
+            byte[] contents = new byte[2];
+            resource.getInputStream().read(contents);
+            assertEquals(7, contents[0]);
+            assertEquals(9, contents[1]);
+            assertNotNull(store.get(tile(4, 4, 12, null)));
+            assertNull(store.get(tile(5, 4, 12, null)));
+        }
+
+        // no directory of the intermediate layouts left behind
+        File zoomDir = new File(root, "test_layer" + File.separator + "EPSG_4326_05");
+        for (String name : zoomDir.list()) {
+            assertTrue(name, name.indexOf('_') > 0);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.geowebcache.storage.blobstore.h2;
+
+import static org.geowebcache.storage.TileTestUtils.assertContents;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.AbstractBlobStoreTest;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+public class H2BlobStoreTest extends AbstractBlobStoreTest<H2BlobStore> {
+
+    @Override
+    protected H2BlobStore createStore(File root) throws Exception {
+        return new H2BlobStore(root.getAbsolutePath());
+    }
+
+    public void testTileRangeDeleteBatches() throws Exception {
+        Resource bytes = new ByteArrayResource(new byte[10]);
+        // more than a delete batch within the range, and tiles around it
+        for (int x = 0; x < 60; x++) {
+            for (int y = 0; y < 40; y++) {
+                store.put(tile(x, y, 8, bytes));
+            }
+        }
+        long[][] rangeBounds = new long[9][];
+        rangeBounds[8] = new long[] { 10, 0, 49, 29, 8 };
+        assertTrue(store.delete(new TileRange(LAYER, "EPSG:4326", 8, 8, rangeBounds,
+                ImageMime.png, parameters)));
+
+        for (int x = 0; x < 60; x++) {
+            for (int y = 0; y < 40; y++) {
+                boolean deleted = x >= 10 && x <= 49 && y <= 29;
+                assertEquals(x + "," + y, !deleted, store.get(tile(x, y, 8, null)) != null);
+            }
+        }
+    }
+
+    public void testClear() throws Exception {
+        Resource bytes = new ByteArrayResource(new byte[10]);
+        store.put(tile(0, 0, 0, bytes));
+        store.putLayerMetadata("other", "key", "value");
+
+        store.clear();
+        assertEquals(0, root.list().length);
+        assertNull(store.get(tile(0, 0, 0, null)));
+        assertNull(store.getLayerMetadata("other", "key"));
+
+        // usable afterwards
+        store.put(tile(0, 0, 0, bytes));
+        assertContents(bytes, store.get(tile(0, 0, 0, null)));
+    }
+
+    public void testDeduplicate() throws Exception {
+        Resource blank = new ByteArrayResource(new byte[100]);
+        Resource other = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        // stored before turning deduplication on
+        store.put(tile(9, 9, 5, blank));
+
+        store.setDeduplicate(true);
+        for (int x = 0; x < 3; x++) {
+            store.put(tile(x, 0, 5, blank));
+        }
+        store.put(tile(3, 0, 5, other));
+        for (int x = 0; x < 3; x++) {
+            assertContents(blank, store.get(tile(x, 0, 5, null)));
+        }
+        assertContents(other, store.get(tile(3, 0, 5, null)));
+        assertContents(blank, store.get(tile(9, 9, 5, null)));
+        assertBlobs(2, 4);
+
+        // overwrites move the references around
+        store.put(tile(0, 0, 5, other));
+        store.put(tile(9, 9, 5, other));
+        assertContents(other, store.get(tile(0, 0, 5, null)));
+        assertBlobs(2, 5);
+
+        assertTrue(store.delete(tile(1, 0, 5, null)));
+        assertTrue(store.delete(tile(2, 0, 5, null)));
+        assertNull(store.get(tile(1, 0, 5, null)));
+        // the blank one is gone along with its last reference
+        assertBlobs(1, 3);
+
+        long[][] rangeBounds = new long[6][];
+        rangeBounds[5] = new long[] { 0, 0, 3, 0, 5 };
+        assertTrue(store.delete(new TileRange(LAYER, "EPSG:4326", 5, 5, rangeBounds,
+                ImageMime.png, parameters)));
+        assertContents(other, store.get(tile(9, 9, 5, null)));
+        assertBlobs(1, 1);
+
+        assertTrue(store.deleteByGridsetId(LAYER, "EPSG:4326"));
+        assertBlobs(0, 0);
+    }
+
+    /**
+     * Checks the number of shared blobs in the layer database and their total references, closing
+     * the store to look into the database and opening a new one afterwards
+     */
+    private void assertBlobs(int blobs, int references) throws Exception {
+        store.destroy();
+        File directory = new File(root, FilePathGenerator.filteredLayerName(LAYER));
+        Connection conn = DriverManager.getConnection("jdbc:h2:file:"
+                + new File(directory, H2BlobStore.DATABASE_NAME).getAbsolutePath(), "sa", "");
+        try {
+            ResultSet rs = conn.createStatement().executeQuery(
+                    "SELECT COUNT(*), SUM(REFS) FROM BLOBS");
+            rs.next();
+            assertEquals(blobs, rs.getInt(1));
+            assertEquals(references, rs.getInt(2));
+        } finally {
+            conn.close();
+        }
+        store = createStore(root);
+        store.setDeduplicate(true);
+    }
+}
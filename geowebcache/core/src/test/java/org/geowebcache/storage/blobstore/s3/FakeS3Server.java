@@ -0,0 +1,513 @@
+package org.geowebcache.storage.blobstore.s3;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.codec.binary.Base64;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * An in-process stand-in for an S3 server, holding a single bucket in memory and implementing
+ * just what {@link S3Client} uses. Signatures are not checked, only that requests are signed.
+ * <p>
+ * It speaks just enough HTTP/1.1 over a plain server socket for {@link S3Client}: requests with a
+ * {@code Content-Length} body, persistent connections, and responses always sized up front.
+ * </p>
+ */
+public class FakeS3Server {
+
+    private final String bucket;
+
+    private final SortedMap<String, byte[]> objects = Collections
+            .synchronizedSortedMap(new TreeMap<String, byte[]>());
+
+    private final Map<String, AtomicInteger> requests = Collections
+            .synchronizedMap(new HashMap<String, AtomicInteger>());
+
+    private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+    private int maxKeys = 1000;
+
+    private ServerSocket serverSocket;
+
+    private ExecutorService executor;
+
+    public FakeS3Server(String bucket) {
+        this.bucket = bucket;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+        executor = Executors.newCachedThreadPool();
+        executor.submit(new Runnable() {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        // closed by stop()
+                        return;
+                    }
+                    connections.add(socket);
+                    executor.submit(new Runnable() {
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                close(socket);
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param maxKeys
+     *            the page size of listings
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public SortedMap<String, byte[]> getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return the number of requests received of the given type, such as {@code GET},
+     *         {@code LIST}, {@code BULK_DELETE} or {@code COPY}
+     */
+    public int getRequestCount(String type) {
+        AtomicInteger count = requests.get(type);
+        return count == null ? 0 : count.get();
+    }
+
+    private void count(String type) {
+        synchronized (requests) {
+            AtomicInteger count = requests.get(type);
+            if (count == null) {
+                count = new AtomicInteger();
+                requests.put(type, count);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Answers the requests sent over a connection until the client closes it
+     */
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            Exchange exchange;
+            while ((exchange = Exchange.read(in, out)) != null) {
+                try {
+                    handle(exchange);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    send(exchange, 500, error("InternalError", e.toString()));
+                }
+                if (!exchange.isResponded()) {
+                    exchange.respond(500, new byte[0], 0);
+                }
+                out.flush();
+                if ("close".equalsIgnoreCase(exchange.getRequestHeader("Connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // connection dropped or closed by stop()
+        } finally {
+            connections.remove(socket);
+            close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void handle(Exchange exchange) throws Exception {
+        final String authorization = exchange.getRequestHeader("Authorization");
+        if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=")
+                || exchange.getRequestHeader("x-amz-date") == null) {
+            send(exchange, 403, error("AccessDenied", "Unsigned request"));
+            return;
+        }
+        final String path = URLDecoder.decode(exchange.getRawPath(), "UTF-8");
+        if (!path.startsWith("/" + bucket)) {
+            send(exchange, 404, error("NoSuchBucket", path));
+            return;
+        }
+        final String key = path.length() > bucket.length() + 2 ? path.substring(bucket.length() + 2)
+                : "";
+        final Map<String, String> query = parseQuery(exchange.getRawQuery());
+        final String method = exchange.getMethod();
+        final byte[] body = exchange.getBody();
+
+        if ("GET".equals(method) && key.length() == 0 && "2".equals(query.get("list-type"))) {
+            count("LIST");
+            list(exchange, query);
+        } else if ("POST".equals(method) && query.containsKey("delete")) {
+            count("BULK_DELETE");
+            bulkDelete(exchange, body);
+        } else if ("GET".equals(method)) {
+            count("GET");
+            byte[] data = objects.get(key);
+            if (data == null) {
+                send(exchange, 404, error("NoSuchKey", key));
+            } else {
+                exchange.setResponseHeader("Last-Modified", "Mon, 10 Oct 2016 10:00:00 GMT");
+                send(exchange, 200, data);
+            }
+        } else if ("HEAD".equals(method)) {
+            count("HEAD");
+            byte[] data = objects.get(key);
+            if (data == null) {
+                exchange.respond(404, new byte[0], 0);
+            } else {
+                exchange.respond(200, new byte[0], data.length);
+            }
+        } else if ("PUT".equals(method)) {
+            String source = exchange.getRequestHeader("x-amz-copy-source");
+            if (source != null) {
+                count("COPY");
+                source = URLDecoder.decode(source, "UTF-8").substring(bucket.length() + 2);
+                byte[] data = objects.get(source);
+                if (data == null) {
+                    send(exchange, 404, error("NoSuchKey", source));
+                    return;
+                }
+                objects.put(key, data);
+                send(exchange, 200,
+                        utf8("<CopyObjectResult><ETag>\"x\"</ETag></CopyObjectResult>"));
+            } else {
+                count("PUT");
+                objects.put(key, body);
+                send(exchange, 200, new byte[0]);
+            }
+        } else if ("DELETE".equals(method)) {
+            count("DELETE");
+            objects.remove(key);
+            exchange.respond(204, new byte[0], 0);
+        } else {
+            send(exchange, 405, error("MethodNotAllowed", method));
+        }
+    }
+
+    private void list(Exchange exchange, Map<String, String> query) throws IOException {
+        final String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        final String delimiter = query.get("delimiter");
+        final String token = query.get("continuation-token");
+
+        List<String> keys = new ArrayList<String>();
+        List<Long> sizes = new ArrayList<Long>();
+        TreeSet<String> prefixes = new TreeSet<String>();
+        String last = null;
+        boolean truncated = false;
+        synchronized (objects) {
+            for (Map.Entry<String, byte[]> entry : objects.tailMap(prefix).entrySet()) {
+                String key = entry.getKey();
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (token != null
+                        && (key.compareTo(token) <= 0 || (delimiter != null
+                                && token.endsWith(delimiter) && key.startsWith(token)))) {
+                    continue;
+                }
+                int sep = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+                if (sep >= 0) {
+                    String common = key.substring(0, sep + delimiter.length());
+                    if (prefixes.contains(common)) {
+                        continue;
+                    }
+                    if (keys.size() + prefixes.size() == maxKeys) {
+                        truncated = true;
+                        break;
+                    }
+                    prefixes.add(common);
+                    last = common;
+                } else {
+                    if (keys.size() + prefixes.size() == maxKeys) {
+                        truncated = true;
+                        break;
+                    }
+                    keys.add(key);
+                    sizes.add(Long.valueOf(entry.getValue().length));
+                    last = key;
+                }
+            }
+        }
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        xml.append("<Name>").append(bucket).append("</Name>");
+        xml.append("<Prefix>").append(escape(prefix)).append("</Prefix>");
+        xml.append("<KeyCount>").append(keys.size() + prefixes.size()).append("</KeyCount>");
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>").append(escape(last))
+                    .append("</NextContinuationToken>");
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            xml.append("<Contents><Key>").append(escape(keys.get(i))).append("</Key><Size>")
+                    .append(sizes.get(i)).append("</Size></Contents>");
+        }
+        for (String common : prefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(escape(common))
+                    .append("</Prefix></CommonPrefixes>");
+        }
+        xml.append("</ListBucketResult>");
+        send(exchange, 200, utf8(xml.toString()));
+    }
+
+    private void bulkDelete(Exchange exchange, byte[] body) throws Exception {
+        String md5 = exchange.getRequestHeader("Content-MD5");
+        String expected = new String(Base64.encodeBase64(MessageDigest.getInstance("MD5")
+                .digest(body)), "US-ASCII");
+        if (!expected.equals(md5)) {
+            send(exchange, 400, error("InvalidDigest", "Content-MD5 mismatch"));
+            return;
+        }
+        Document request = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(body));
+        NodeList keys = request.getElementsByTagName("Key");
+        if (keys.getLength() > 1000) {
+            send(exchange, 400, error("MalformedXML", "Too many keys"));
+            return;
+        }
+        for (int i = 0; i < keys.getLength(); i++) {
+            objects.remove(keys.item(i).getTextContent());
+        }
+        send(exchange, 200, utf8("<?xml version=\"1.0\" encoding=\"UTF-8\"?><DeleteResult/>"));
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            String name = eq < 0 ? param : param.substring(0, eq);
+            String value = eq < 0 ? "" : param.substring(eq + 1);
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static byte[] error(String code, String message) {
+        return utf8("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code
+                + "</Code><Message>" + escape(message) + "</Message></Error>");
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void send(Exchange exchange, int status, byte[] body) throws IOException {
+        exchange.respond(status, body, body.length);
+    }
+
+    /**
+     * A request read off a connection, and the means to answer it
+     */
+    private static final class Exchange {
+
+        private final OutputStream out;
+
+        private final String method;
+
+        private final String rawPath;
+
+        private final String rawQuery;
+
+        /**
+         * Request headers, by lower case name
+         */
+        private final Map<String, String> requestHeaders = new HashMap<String, String>();
+
+        private final Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+
+        private byte[] body;
+
+        private boolean responded;
+
+        private Exchange(OutputStream out, String method, String target) {
+            this.out = out;
+            this.method = method;
+            int q = target.indexOf('?');
+            this.rawPath = q < 0 ? target : target.substring(0, q);
+            this.rawQuery = q < 0 ? null : target.substring(q + 1);
+        }
+
+        /**
+         * @return the next request on the connection, or {@code null} if the client closed it
+         */
+        static Exchange read(InputStream in, OutputStream out) throws IOException {
+            String requestLine = readLine(in);
+            while (requestLine != null && requestLine.length() == 0) {
+                requestLine = readLine(in);
+            }
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Bad request line: " + requestLine);
+            }
+            Exchange exchange = new Exchange(out, parts[0], parts[1]);
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    exchange.requestHeaders.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            if ("100-continue".equalsIgnoreCase(exchange.getRequestHeader("Expect"))) {
+                out.write(utf8("HTTP/1.1 100 Continue\r\n\r\n"));
+                out.flush();
+            }
+            String contentLength = exchange.getRequestHeader("Content-Length");
+            exchange.body = new byte[contentLength == null ? 0 : Integer.parseInt(contentLength)];
+            int read = 0;
+            while (read < exchange.body.length) {
+                int count = in.read(exchange.body, read, exchange.body.length - read);
+                if (count < 0) {
+                    throw new IOException("Connection closed while reading the request body");
+                }
+                read += count;
+            }
+            return exchange;
+        }
+
+        /**
+         * @return a CRLF terminated line, without the terminator, or {@code null} at the end of
+         *         the stream
+         */
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    int length = bytes.length;
+                    if (length > 0 && bytes[length - 1] == '\r') {
+                        length--;
+                    }
+                    return new String(bytes, 0, length, "ISO-8859-1");
+                }
+                line.write(c);
+            }
+            return line.size() == 0 ? null : line.toString("ISO-8859-1");
+        }
+
+        String getMethod() {
+            return method;
+        }
+
+        String getRawPath() {
+            return rawPath;
+        }
+
+        String getRawQuery() {
+            return rawQuery;
+        }
+
+        String getRequestHeader(String name) {
+            return requestHeaders.get(name.toLowerCase());
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        void setResponseHeader(String name, String value) {
+            responseHeaders.put(name, value);
+        }
+
+        boolean isResponded() {
+            return responded;
+        }
+
+        /**
+         * @param contentLength
+         *            the announced body length, which may differ from the body sent for HEAD
+         *            requests
+         */
+        void respond(int status, byte[] responseBody, long contentLength) throws IOException {
+            responded = true;
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ')
+                    .append(status < 300 ? "OK" : "Error").append("\r\n");
+            for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue())
+                        .append("\r\n");
+            }
+            if (status != 204) {
+                head.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(utf8(head.toString()));
+            if (!"HEAD".equals(method)) {
+                out.write(responseBody);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.geowebcache.storage.blobstore.s3;
+
+import static org.geowebcache.storage.TileTestUtils.evenColumnsRange;
+import static org.geowebcache.storage.TileTestUtils.query;
+import static org.geowebcache.storage.TileTestUtils.value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+public class S3BlobStoreTest extends TestCase {
+
+    private static final String LAYER = "topp:states";
+
+    private FakeS3Server server;
+
+    private S3BlobStore store;
+
+    private Events events;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeS3Server("tiles");
+        server.start();
+        store = new S3BlobStore(new S3Client(server.getEndpoint(), "tiles", "us-east-1", "key",
+                "secret"), "gwc");
+        events = new Events();
+        store.addListener(events);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        server.stop();
+    }
+
+    /**
+     * Records the tile events
+     */
+    private static class Events implements BlobStoreListener {
+        final List<String> tiles = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<String> layers = Collections.synchronizedList(new ArrayList<String>());
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+            tiles.add("stored " + x + "," + y + "," + z + " " + blobSize);
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize) {
+            tiles.add("deleted " + x + "," + y + "," + z + " " + blobSize);
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                Long parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            tiles.add("updated " + x + "," + y + "," + z + " " + blobSize + " " + oldSize);
+        }
+
+        public void layerDeleted(String layerName) {
+            layers.add("deleted " + layerName);
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+            layers.add("renamed " + oldLayerName + " " + newLayerName);
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+            layers.add("deleted " + layerName + " " + gridSetId);
+        }
+    }
+
+    private static TileObject tile(String layer, String gridSetId, long x, long y, int z,
+            long parametersId, int size) {
+        long[] xyz = { x, y, z };
+        byte[] data = new byte[size];
+        data[0] = (byte) x;
+        TileObject tile = TileObject.createCompleteTileObject(layer, xyz, gridSetId, "image/png",
+                null, new ByteArrayResource(data));
+        tile.setParamtersId(parametersId);
+        return tile;
+    }
+
+    private static TileObject tile(long x, long y, int z, int size) {
+        return tile(LAYER, "EPSG:4326", x, y, z, -1, size);
+    }
+
+    public void testPutGetDelete() throws Exception {
+        store.put(tile(3, 1, 2, 10));
+        assertTrue(server.getObjects().containsKey(
+                "gwc/topp_states/EPSG_4326/png/default/2/3/1.png"));
+        TileObject query = query(LAYER, 3, 1, 2);
+        Resource resource = store.get(query);
+        assertEquals(10, resource.getSize());
+        assertEquals(3, value(resource));
+        assertTrue(query.getCreated() > 0);
+        assertNull(store.get(query(LAYER, 3, 2, 2)));
+
+        store.put(tile(3, 1, 2, 20));
+        assertTrue(store.delete(query(LAYER, 3, 1, 2)));
+        assertFalse(store.delete(query(LAYER, 3, 1, 2)));
+        assertNull(store.get(query(LAYER, 3, 1, 2)));
+        assertEquals("[stored 3,1,2 10, updated 3,1,2 20 10, deleted 3,1,2 20]",
+                events.tiles.toString());
+
+        TileObject withParameters = tile(LAYER, "EPSG:4326", 3, 1, 2, 31, 5);
+        store.put(withParameters);
+        assertTrue(server.getObjects().containsKey("gwc/topp_states/EPSG_4326/png/1f/2/3/1.png"));
+        assertNull(store.get(query(LAYER, 3, 1, 2)));
+    }
+
+    private int tileCount() {
+        int count = 0;
+        for (String key : server.getObjects().keySet()) {
+            if (key.endsWith(".png")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testTruncate() throws Exception {
+        // small pages, and at least two bulk deletes
+        server.setMaxKeys(100);
+        for (long x = 0; x < 40; x++) {
+            for (long y = 0; y < 40; y++) {
+                store.put(tile(x, y, 6, 1));
+            }
+        }
+        store.put(tile(LAYER, "EPSG:4326", 10, 10, 6, 7, 1));
+        store.put(tile(5, 5, 5, 1));
+        events.tiles.clear();
+
+        long[][] bounds = new long[7][];
+        bounds[6] = new long[] { 10, 10, 12, 39, 6 };
+        store.delete(new TileRange(LAYER, "EPSG:4326", 6, 6, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        // all parameters ids
+        assertEquals(3 * 30 + 1, events.tiles.size());
+        assertEquals(1600 + 2 - 91, tileCount());
+        assertNull(store.get(query(LAYER, 11, 39, 6)));
+        assertNotNull(store.get(query(LAYER, 13, 39, 6)));
+        assertNotNull(store.get(query(LAYER, 11, 9, 6)));
+
+        // wide enough for the zoom level to be listed at once
+        events.tiles.clear();
+        bounds[6] = new long[] { 0, 0, 100, 20, 6 };
+        store.delete(new TileRange(LAYER, "EPSG:4326", 6, 6, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        assertEquals(40 * 21 - 3 * 11, events.tiles.size());
+        assertNull(store.get(query(LAYER, 0, 0, 6)));
+        assertNotNull(store.get(query(LAYER, 0, 21, 6)));
+        assertTrue(server.getRequestCount("BULK_DELETE") >= 2);
+
+        // just one parameters id, at all zoom levels
+        store.put(tile(LAYER, "EPSG:4326", 10, 10, 6, 7, 1));
+        TileRange range = new TileRange(LAYER, "EPSG:4326", -1, -1, null, ImageMime.png,
+                (Map<String, String>) null);
+        range.setParametersId(7);
+        store.delete(range);
+        assertNotNull(store.get(query(LAYER, 0, 21, 6)));
+        assertNotNull(store.get(query(LAYER, 5, 5, 5)));
+        assertFalse(server.getObjects().containsKey("gwc/topp_states/EPSG_4326/png/7/6/10/10.png"));
+
+        // whole zoom level
+        range = new TileRange(LAYER, "EPSG:4326", 6, 6, null, ImageMime.png,
+                (Map<String, String>) null);
+        store.delete(range);
+        assertEquals(1, tileCount());
+    }
+
+    public void testTruncateDiscontinuous() throws Exception {
+        for (long x = 0; x < 12; x++) {
+            for (long y = 0; y < 4; y++) {
+                store.put(tile(x, y, 4, 1));
+            }
+        }
+        store.put(tile(0, 0, 3, 1));
+
+        store.delete(evenColumnsRange(LAYER, new long[] { 2, 0, 9, 2, 4 }, null));
+        for (long x = 0; x < 12; x++) {
+            for (long y = 0; y < 4; y++) {
+                // the tiles out of the mask are kept
+                boolean inRange = x >= 2 && x <= 9 && y <= 2 && x % 2 == 0;
+                assertEquals(x + "," + y, inRange, store.get(query(LAYER, x, y, 4)) == null);
+            }
+        }
+
+        // no bounds for zoom level 3, none of its tiles are in the range
+        long[][] bounds = new long[5][];
+        bounds[4] = new long[] { 0, 0, 11, 3, 4 };
+        store.delete(new TileRange(LAYER, "EPSG:4326", 3, 4, bounds, ImageMime.png,
+                (Map<String, String>) null));
+        assertEquals(1, tileCount());
+        assertNotNull(store.get(query(LAYER, 0, 0, 3)));
+    }
+
+    public void testDeleteLayerAndGridSet() throws Exception {
+        server.setMaxKeys(7);
+        for (int i = 0; i < 20; i++) {
+            store.put(tile(LAYER, "EPSG:4326", i, 0, 5, -1, 1));
+            store.put(tile(LAYER, "EPSG:900913", i, 0, 5, -1, 1));
+            store.put(tile("other", "EPSG:4326", i, 0, 5, -1, 1));
+        }
+        store.putLayerMetadata(LAYER, "key", "value");
+
+        store.deleteByGridsetId(LAYER, "EPSG:900913");
+        assertEquals(40, tileCount());
+        assertEquals("value", store.getLayerMetadata(LAYER, "key"));
+
+        store.delete(LAYER);
+        assertEquals(20, tileCount());
+        assertNull(store.getLayerMetadata(LAYER, "key"));
+        assertEquals("[deleted topp:states EPSG:900913, deleted topp:states]",
+                events.layers.toString());
+    }
+
+    public void testRename() throws Exception {
+        server.setMaxKeys(7);
+        for (int i = 0; i < 20; i++) {
+            store.put(tile(i, 0, 5, 1));
+        }
+        store.putLayerMetadata(LAYER, "key", "value");
+        store.rename(LAYER, "renamed");
+        assertEquals(20, tileCount());
+        assertEquals("value", store.getLayerMetadata("renamed", "key"));
+        assertNull(store.getLayerMetadata(LAYER, "key"));
+        long[] xyz = { 3, 0, 5 };
+        assertEquals(3, value(store.get(TileObject.createQueryTileObject("renamed", xyz,
+                "EPSG:4326", "image/png", null))));
+        assertEquals("[renamed topp:states renamed]", events.layers.toString());
+
+        store.put(tile(1, 0, 5, 1));
+        try {
+            store.rename(LAYER, "renamed");
+            fail("renamed over an existing layer");
+        } catch (org.geowebcache.storage.StorageException e) {
+            // expected
+        }
+    }
+
+    public void testMetadata() throws Exception {
+        assertNull(store.getLayerMetadata(LAYER, "key"));
+        store.putLayerMetadata(LAYER, "key", "a value & more");
+        store.putLayerMetadata(LAYER, "other", "1");
+        assertEquals("a value & more", store.getLayerMetadata(LAYER, "key"));
+        assertEquals("1", store.getLayerMetadata(LAYER, "other"));
+        store.putLayerMetadata(LAYER, "other", null);
+        assertNull(store.getLayerMetadata(LAYER, "other"));
+        assertTrue(server.getObjects().containsKey("gwc/topp_states/metadata.properties"));
+    }
+}
@@ -0,0 +1,83 @@
+package org.geowebcache.storage.blobstore.s3;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class S3ClientTest extends TestCase {
+
+    /**
+     * The example of the AWS Signature Version 4 documentation
+     */
+    public void testAuthorization() throws Exception {
+        SortedMap<String, String> headers = new TreeMap<String, String>();
+        headers.put("content-type", "application/x-www-form-urlencoded; charset=utf-8");
+        headers.put("host", "iam.amazonaws.com");
+        headers.put("x-amz-date", "20150830T123600Z");
+        String authorization = S3Client.authorization("GET", "/",
+                "Action=ListUsers&Version=2010-05-08", headers,
+                "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                "20150830T123600Z", "us-east-1", "iam", "AKIDEXAMPLE",
+                "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/iam/aws4_request, "
+                + "SignedHeaders=content-type;host;x-amz-date, "
+                + "Signature=5d672d79c15b13162d9279b0855cfba6789a8edb4c82c400e06b5924a6f2b5d7",
+                authorization);
+    }
+
+    public void testEncode() throws Exception {
+        assertEquals("/bucket/topp_states/EPSG_4326/png/default/3/1/2.png", S3Client
+                .encodePath("/bucket/topp_states/EPSG_4326/png/default/3/1/2.png"));
+        assertEquals("/b/a%20b%2Bc%3Dd%C3%A9~", S3Client.encodePath("/b/a b+c=dé~"));
+        assertEquals("a%2Fb", S3Client.encode("a/b", true));
+        assertEquals("20150830T123600Z", S3Client.timestamp(new java.util.Date(1440938160000L)));
+    }
+
+    public void testClient() throws Exception {
+        FakeS3Server server = new FakeS3Server("tiles");
+        server.start();
+        S3Client client = new S3Client(server.getEndpoint(), "tiles", "us-east-1", "key",
+                "secret");
+        try {
+            assertNull(client.getObject("a/b c.png"));
+            assertEquals(-1, client.headObject("a/b c.png"));
+
+            client.putObject("a/b c.png", new byte[] { 1, 2, 3 }, "image/png");
+            assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, client.getObject("a/b c.png")
+                    .getData()));
+            assertTrue(client.getObject("a/b c.png").getLastModified() > 0);
+            assertEquals(3, client.headObject("a/b c.png"));
+
+            client.copyObject("a/b c.png", "b/b c.png");
+            assertEquals(3, client.headObject("b/b c.png"));
+            client.deleteObject("b/b c.png");
+            assertEquals(-1, client.headObject("b/b c.png"));
+
+            server.setMaxKeys(2);
+            for (int i = 0; i < 5; i++) {
+                client.putObject("list/" + i + "/tile", new byte[i], null);
+            }
+            S3Client.Listing listing = client.list("list/", null, null);
+            assertEquals(Arrays.asList("list/0/tile", "list/1/tile"), listing.getKeys());
+            assertEquals(Long.valueOf(1), listing.getSizes().get(1));
+            listing = client.list("list/", null, listing.getNextContinuationToken());
+            listing = client.list("list/", null, listing.getNextContinuationToken());
+            assertEquals(Arrays.asList("list/4/tile"), listing.getKeys());
+            assertNull(listing.getNextContinuationToken());
+
+            listing = client.list("list/", "/", null);
+            assertEquals(Arrays.asList("list/0/", "list/1/"), listing.getCommonPrefixes());
+            assertEquals(0, listing.getKeys().size());
+
+            client.deleteObjects(Arrays.asList("list/0/tile", "list/3/tile", "missing"));
+            assertEquals(-1, client.headObject("list/3/tile"));
+            assertEquals(4, client.headObject("list/4/tile"));
+            assertEquals(1, server.getRequestCount("BULK_DELETE"));
+        } finally {
+            client.destroy();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.geowebcache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.FileResource;
+
+public class ServletUtilsTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("gwcTile", ".png");
+        FileUtils.writeByteArrayToFile(file, "tile contents".getBytes());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static class CapturingOutputStream extends ServletOutputStream {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+    }
+
+    public void testWriteResource() throws Exception {
+        CapturingOutputStream out = new CapturingOutputStream();
+        HttpServletResponse response = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.expect(response.getOutputStream()).andReturn(out).times(2);
+        EasyMock.replay(response);
+
+        assertEquals(13, ServletUtils.writeResource(new FileResource(file), null, response, true));
+        assertEquals(5, ServletUtils.writeResource(new ByteArrayResource("12345".getBytes()),
+                null, response, true));
+        assertEquals("tile contents12345", out.out.toString());
+        EasyMock.verify(response);
+    }
+
+    public void testSendfile() throws Exception {
+        HttpServletRequest request = EasyMock.createMock(HttpServletRequest.class);
+        EasyMock.expect(request.getAttribute("org.apache.tomcat.sendfile.support")).andReturn(
+                Boolean.TRUE);
+        request.setAttribute("org.apache.tomcat.sendfile.filename", file.getAbsolutePath());
+        request.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(0));
+        request.setAttribute("org.apache.tomcat.sendfile.end", Long.valueOf(13));
+        // the container writes the body
+        HttpServletResponse response = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.replay(request, response);
+
+        assertEquals(13, ServletUtils.writeResource(new FileResource(file), request, response,
+                true));
+        EasyMock.verify(request, response);
+    }
+
+    public void testSendfileUnsupported() throws Exception {
+        HttpServletRequest request = EasyMock.createMock(HttpServletRequest.class);
+        EasyMock.expect(request.getAttribute("org.apache.tomcat.sendfile.support")).andReturn(
+                null);
+        CapturingOutputStream out = new CapturingOutputStream();
+        HttpServletResponse response = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.expect(response.getOutputStream()).andReturn(out);
+        EasyMock.replay(request, response);
+
+        assertEquals(13, ServletUtils.writeResource(new FileResource(file), request, response,
+                true));
+        assertEquals("tile contents", out.out.toString());
+        EasyMock.verify(request, response);
+    }
+}
@@ -40,6 +40,8 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.blobstore.file.DefaultTilePathLayout;
+import org.geowebcache.storage.blobstore.file.TilePathLayout;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
@@ -108,6 +110,8 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
 
     private boolean diskQuotaEnabled;
 
+    private TilePathLayout tilePathLayout = DefaultTilePathLayout.INSTANCE;
+
     /**
      * 
      * @param configLoader
@@ -156,6 +160,17 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         return isRunning;
     }
 
+    /**
+     * @param tilePathLayout
+     *            the layout of the tiles in the cache, to be set the same as the
+     *            {@link org.geowebcache.storage.blobstore.file.FileBlobStore#setTilePathLayout
+     *            blob store's} for the disk usage of the layers to be computed
+     */
+    public void setTilePathLayout(TilePathLayout tilePathLayout) {
+        this.tilePathLayout = tilePathLayout == null ? DefaultTilePathLayout.INSTANCE
+                : tilePathLayout;
+    }
+
     /**
      * Called when the framework calls this bean for initialization
      * <p>
@@ -359,7 +374,7 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
             throw new RuntimeException(e);
         }
         cacheInfoBuilder = new LayerCacheInfoBuilder(cacheRoot, cleanUpExecutorService,
-                quotaUsageMonitor);
+                quotaUsageMonitor, tilePathLayout);
 
         for (String layerName : tileLayerDispatcher.getLayerNames()) {
 
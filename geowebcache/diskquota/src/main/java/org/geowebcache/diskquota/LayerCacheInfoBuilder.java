@@ -41,7 +41,9 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.blobstore.file.DefaultTilePathLayout;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.geowebcache.storage.blobstore.file.TilePathLayout;
 import org.geowebcache.util.FileUtils;
 
 /**
@@ -61,11 +63,24 @@ final class LayerCacheInfoBuilder {
 
     private final QuotaUpdatesMonitor quotaUsageMonitor;
 
+    private final TilePathLayout tilePathLayout;
+
     public LayerCacheInfoBuilder(final File rootCacheDir, final ExecutorService threadPool,
             QuotaUpdatesMonitor quotaUsageMonitor) {
+        this(rootCacheDir, threadPool, quotaUsageMonitor, DefaultTilePathLayout.INSTANCE);
+    }
+
+    /**
+     * @param tilePathLayout
+     *            the layout of the tiles in the cache, as set to its
+     *            {@link org.geowebcache.storage.blobstore.file.FileBlobStore}
+     */
+    public LayerCacheInfoBuilder(final File rootCacheDir, final ExecutorService threadPool,
+            QuotaUpdatesMonitor quotaUsageMonitor, final TilePathLayout tilePathLayout) {
         this.rootCacheDir = rootCacheDir;
         this.threadPool = threadPool;
         this.quotaUsageMonitor = quotaUsageMonitor;
+        this.tilePathLayout = tilePathLayout;
         this.perLayerRunningTasks = new HashMap<String, List<Future<ZoomLevelVisitor.Stats>>>();
     }
 
@@ -127,7 +142,7 @@ final class LayerCacheInfoBuilder {
                 if (gridsetZLevelDir.exists()) {
                     ZoomLevelVisitor cacheInfoBuilder;
                     cacheInfoBuilder = new ZoomLevelVisitor(layerName, gridsetZLevelDir, gridSetId,
-                            zoomLevel, parametersId, quotaUsageMonitor);
+                            zoomLevel, parametersId, quotaUsageMonitor, tilePathLayout);
 
                     Future<ZoomLevelVisitor.Stats> cacheTask;
                     cacheTask = threadPool.submit(cacheInfoBuilder);
@@ -199,6 +214,10 @@ final class LayerCacheInfoBuilder {
 
         private final Long parametersId;
 
+        private final TilePathLayout tilePathLayout;
+
+        private final long[] xy = new long[2];
+
         private static class Stats {
             long runTimeMillis;
 
@@ -209,8 +228,9 @@ final class LayerCacheInfoBuilder {
 
         public ZoomLevelVisitor(final String layerName, final File zoomLevelPath,
                 final String gridsetId, final int zoomLevel, Long parametersId,
-                final QuotaUpdatesMonitor quotaUsageMonitor) {
+                final QuotaUpdatesMonitor quotaUsageMonitor, final TilePathLayout tilePathLayout) {
             this.layerName = layerName;
+            this.tilePathLayout = tilePathLayout;
             this.zoomLevelPath = zoomLevelPath;
             this.gridSetId = gridsetId;
             this.parametersId = parametersId;
@@ -258,23 +278,22 @@ final class LayerCacheInfoBuilder {
                 return true;
             }
 
+            final String fileName = file.getName();
+            if (!tilePathLayout.parseTile(file.getParentFile().getName(), fileName, xy)) {
+                // not a tile, like the temporary file of a tile being written
+                return true;
+            }
+            final long x = xy[0];
+            final long y = xy[1];
             final long length = file.length();
 
-            // we know path is a direct child of processingDir and represents a tile file...
-            final String path = file.getPath();
-
-            final int fileNameIdx = 1 + path.lastIndexOf(File.separatorChar);
-            final int coordSepIdx = path.lastIndexOf('_');
-            final int dotIdx = path.lastIndexOf('.');
-            final String extension = FilenameUtils.getExtension(file.getName());
+            final String extension = FilenameUtils.getExtension(fileName);
             String blobFormat;
             try {
                 blobFormat = MimeType.createFromExtension(extension).getFormat();
             } catch (MimeException e) {
                 throw new RuntimeException(e);
             }
-            final long x = Long.valueOf(path.substring(fileNameIdx, coordSepIdx));
-            final long y = Long.valueOf(path.substring(1 + coordSepIdx, dotIdx));
 
             this.quotaUsageMonitor.tileStored(layerName, gridSetId, blobFormat, parametersId, x, y,
                     (int) tileZ, length);
@@ -88,23 +88,33 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
 
         private int[] pageIndexTarget;
 
+        private long[] tileIndexTarget;
+
         public TimedQuotaUpdate(TileSet tileSet, TilePageCalculator tpc) {
             this.tileSet = tileSet;
             this.tpc = tpc;
             this.creationTime = System.currentTimeMillis();
             tilePages = new HashMap<String, PageStatsPayload>();
             pageIndexTarget = new int[3];
+            tileIndexTarget = new long[3];
             pageIdTarget = new StringBuilder(128);
             accumQuotaDiff = new Quota();
         }
 
         public void add(QuotaUpdate quotaUpdate) {
-            final String tileSetId = tileSet.getId();
-
-            long size = quotaUpdate.getSize();
             this.accumQuotaDiff.addBytes(quotaUpdate.getSize());
 
-            long[] tileIndex = quotaUpdate.getTileIndex();
+            final int numTiles = quotaUpdate.getNumTiles();
+            for (int i = 0; i < numTiles; i++) {
+                quotaUpdate.getTileIndex(i, tileIndexTarget);
+                addTile(tileIndexTarget, quotaUpdate.getSize(i));
+            }
+            numAggregations += numTiles;
+        }
+
+        private void addTile(final long[] tileIndex, final long size) {
+            final String tileSetId = tileSet.getId();
+
             tpc.pageIndexForTile(tileSet, tileIndex, pageIndexTarget);
             int pageX = pageIndexTarget[0];
             int pageY = pageIndexTarget[1];
@@ -123,8 +133,6 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
             }
             int previousCount = payload.getNumTiles();
             payload.setNumTiles(previousCount + tileCountDiff);
-
-            ++numAggregations;
         }
 
         public TileSet getTileSet() {
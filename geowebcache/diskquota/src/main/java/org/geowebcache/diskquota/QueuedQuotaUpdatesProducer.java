@@ -21,9 +21,11 @@ import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geowebcache.diskquota.storage.BDBQuotaStore;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.storage.BatchBlobStoreListener;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileBatch;
 import org.springframework.util.Assert;
 
 /**
@@ -33,12 +35,15 @@ import org.springframework.util.Assert;
  * {@link QuotaUpdate}s to the provided {@link BlockingQueue}. Another thread is responsible of
  * taking the {@link QuotaUpdate} off the queue and updating the quota store as appropriate.
  * </p>
+ * <p>
+ * Tile events sent in batches result in a single {@link QuotaUpdate} per batch.
+ * </p>
  * 
  * @author groldan
  * @see DiskQuotaMonitor
  * @see QueuedQuotaUpdatesConsumer
  */
-class QueuedQuotaUpdatesProducer implements BlobStoreListener {
+class QueuedQuotaUpdatesProducer implements BatchBlobStoreListener {
 
     private static final Log log = LogFactory.getLog(QueuedQuotaUpdatesProducer.class);
 
@@ -122,6 +127,67 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
         quotaUpdate(layerName, gridSetId, blobFormat, parametersId, actualDifference, tileIndex);
     }
 
+    /**
+     * @see org.geowebcache.storage.BatchBlobStoreListener#tilesStored
+     */
+    public void tilesStored(final TileBatch batch) {
+        final int blockSize = quotaConfig.getDiskBlockSize();
+        QuotaUpdate update = null;
+        for (int i = 0; i < batch.size(); i++) {
+            final long blobSize = batch.getBlobSize(i);
+            if (blobSize == 0) {
+                continue;
+            }
+            long actuallyUsedStorage = blockSize * (int) Math.ceil((double) blobSize / blockSize);
+            update = add(update, batch, i, actuallyUsedStorage);
+        }
+        quotaUpdate(update);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BatchBlobStoreListener#tilesDeleted
+     */
+    public void tilesDeleted(final TileBatch batch) {
+        final int blockSize = quotaConfig.getDiskBlockSize();
+        QuotaUpdate update = null;
+        for (int i = 0; i < batch.size(); i++) {
+            final long blobSize = batch.getBlobSize(i);
+            long actualSizeFreed = -1 * (blockSize * (int) Math.ceil((double) blobSize / blockSize));
+            update = add(update, batch, i, actualSizeFreed);
+        }
+        quotaUpdate(update);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BatchBlobStoreListener#tilesUpdated
+     */
+    public void tilesUpdated(final TileBatch batch) {
+        final int blockSize = quotaConfig.getDiskBlockSize();
+        QuotaUpdate update = null;
+        for (int i = 0; i < batch.size(); i++) {
+            double delta = batch.getBlobSize(i) - batch.getOldSize(i);
+            long actualDifference = blockSize * (int) Math.ceil(delta / blockSize);
+            if (actualDifference == 0) {
+                continue;
+            }
+            update = add(update, batch, i, actualDifference);
+        }
+        quotaUpdate(update);
+    }
+
+    /**
+     * Adds the i-th tile of the batch to the update, creating it if {@code null}
+     */
+    private QuotaUpdate add(QuotaUpdate update, TileBatch batch, int i, long amount) {
+        if (update == null) {
+            TileSet tileSet = new TileSet(batch.getLayerName(), batch.getGridSetId(),
+                    batch.getBlobFormat(), batch.getParametersId());
+            update = new QuotaUpdate(tileSet, batch.size());
+        }
+        update.add(batch.getX(i), batch.getY(i), batch.getZ(i), amount);
+        return update;
+    }
+
     /**
      * @see org.geowebcache.storage.BlobStoreListener#layerDeleted(java.lang.String)
      * @see QuotaStore#deleteLayer(String)
@@ -164,6 +230,25 @@ class QueuedQuotaUpdatesProducer implements BlobStoreListener {
         }
         QuotaUpdate payload = new QuotaUpdate(layerName, gridSetId, blobFormat, parametersId,
                 amount, tileIndex);
+        enqueue(payload);
+    }
+
+    /**
+     * Defers a batch of quota updates like {@link #quotaUpdate(String, String, String, Long, long,
+     * long[])}
+     * 
+     * @param payload
+     *            the batch, or {@code null} if there's nothing to update
+     */
+    private void quotaUpdate(QuotaUpdate payload) {
+        if (payload == null || cancelled(payload.getTileSet().getLayerName())) {
+            return;
+        }
+        enqueue(payload);
+    }
+
+    private void enqueue(QuotaUpdate payload) {
+        final String layerName = payload.getTileSet().getLayerName();
         try {
             this.queuedUpdates.put(payload);
         } catch (InterruptedException e) {
@@ -2,6 +2,9 @@ package org.geowebcache.diskquota;
 
 import org.geowebcache.diskquota.storage.TileSet;
 
+/**
+ * A quota difference for a tile set, made of a single tile or of a batch of tiles
+ */
 public class QuotaUpdate {
 
     private final TileSet tileSet;
@@ -10,6 +13,15 @@ public class QuotaUpdate {
 
     private long[] tileIndex;
 
+    /**
+     * For batches, the x, y and z of each tile in a row, and each tile's size difference
+     */
+    private long[] tileIndexes;
+
+    private long[] tileSizes;
+
+    private int numTiles;
+
     /**
      * 
      * @param layerName
@@ -30,12 +42,76 @@ public class QuotaUpdate {
         this.tileSet = tileset;
         this.size = quotaUpdateSize;
         this.tileIndex = tileIndex;
+        this.numTiles = 1;
+    }
+
+    /**
+     * Creates an empty batch of tile updates, to be filled with {@link #add(long, long, int, long)}
+     * 
+     * @param capacity
+     *            the expected number of tiles
+     */
+    public QuotaUpdate(TileSet tileset, int capacity) {
+        this.tileSet = tileset;
+        this.tileIndexes = new long[3 * Math.max(1, capacity)];
+        this.tileSizes = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * Adds a tile to a batch created with {@link #QuotaUpdate(TileSet, int)}
+     * 
+     * @param size
+     *            bytes to add or subtract from the quota because of this tile
+     */
+    public void add(long x, long y, int z, long size) {
+        if (numTiles == tileSizes.length) {
+            long[] indexes = new long[2 * tileIndexes.length];
+            System.arraycopy(tileIndexes, 0, indexes, 0, tileIndexes.length);
+            tileIndexes = indexes;
+            long[] sizes = new long[2 * tileSizes.length];
+            System.arraycopy(tileSizes, 0, sizes, 0, tileSizes.length);
+            tileSizes = sizes;
+        }
+        tileIndexes[3 * numTiles] = x;
+        tileIndexes[3 * numTiles + 1] = y;
+        tileIndexes[3 * numTiles + 2] = z;
+        tileSizes[numTiles] = size;
+        numTiles++;
+        this.size += size;
+    }
+
+    /**
+     * @return the number of tiles this update is made of
+     */
+    public int getNumTiles() {
+        return numTiles;
+    }
+
+    /**
+     * @return the size difference due to the i-th tile
+     */
+    public long getSize(int i) {
+        return tileSizes == null ? size : tileSizes[i];
+    }
+
+    /**
+     * Copies the index of the i-th tile to {@code target}
+     */
+    public void getTileIndex(int i, long[] target) {
+        if (tileIndexes == null) {
+            System.arraycopy(tileIndex, 0, target, 0, 3);
+        } else {
+            System.arraycopy(tileIndexes, 3 * i, target, 0, 3);
+        }
     }
 
     public TileSet getTileSet() {
         return tileSet;
     }
 
+    /**
+     * @return the size difference of the whole update
+     */
     public long getSize() {
         return size;
     }
@@ -44,6 +120,10 @@ public class QuotaUpdate {
         this.size = size;
     }
 
+    /**
+     * @return the tile index of a single tile update, {@code null} for batches
+     * @see #getTileIndex(int, long[])
+     */
     public long[] getTileIndex() {
         return tileIndex;
     }
@@ -51,6 +131,6 @@ public class QuotaUpdate {
     @Override
     public String toString() {
         return new StringBuilder("[").append(tileSet.toString()).append(", ").append(size)
-                .append(" bytes]").toString();
+                .append(" bytes, ").append(numTiles).append(" tiles]").toString();
     }
-}
\ No newline at end of file
+}
@@ -36,6 +36,7 @@ import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileExistenceIndex;
 
 /**
  * Just a helper class for KMZ experimentation stuff
@@ -64,6 +65,8 @@ public class KMZHelper {
             String gridSetId, MimeType mime, long[][] linkGridLocs) 
     throws GeoWebCacheException {
         
+        final TileExistenceIndex index = sb.getTileExistenceIndex();
+        
         for(int i=0;i<linkGridLocs.length; i++) {
             if(linkGridLocs[i][2] > 0) {
                 
@@ -85,6 +88,13 @@ public class KMZHelper {
                 
                 // Special treatment for regionated KML
                 if (mime.equals(XMLMime.kml)) {
+                    // Cached tiles are linked as they are, no need to fetch them
+                    if (index != null && index.isReady()
+                            && index.contains(tileLayer.getName(), gridSetId, mime.getFormat(),
+                                    null, linkGridLocs[i][0], linkGridLocs[i][1],
+                                    (int) linkGridLocs[i][2])) {
+                        continue;
+                    }
                     try {
                         tileLayer.getTile(tile);
                     } catch (IOException ioe) {